@@ -0,0 +1,49 @@
+package fi.tkgwf.ruuvi.benchmark;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.handler.BeaconHandler;
+import fi.tkgwf.ruuvi.utils.HCIParser;
+import fi.tkgwf.ruuvi.utils.MeasurementValueCalculator;
+
+/**
+ * Captured "hcidump --raw" output used as input for the benchmarks. See TestFixture in the test
+ * sources for a byte-by-byte breakdown of the data format 3 packet.
+ */
+final class HciDumpSamples {
+
+    /** A data format 3 packet, fits on a single line. */
+    static final String DATA_FORMAT_3 =
+            "> 04 3E 21 02 01 03 01 FF EE DD CC BB AA 15 02 01 06 11 FF 99 04 03 49 16 0E BE F8"
+                    + " 00 05 FF EA 03 E1 0B BF B4";
+
+    /** A data format 5 packet, split to multiple lines like hcidump does for long packets. */
+    static final String[] DATA_FORMAT_5 = {
+        "> 04 3E 2B 02 01 03 01 EF C0 45 EB B7 C9 1F 02 01 06 1B FF 99",
+        "  04 05 12 FC 53 94 C3 7C 00 04 FF FC 04 0C AC 36 42 00 CD CB",
+        "  B8 33 4C 88 4F B4"
+    };
+
+    /** A non-Ruuvi packet (iBeacon), which is parsed but never results in a measurement. */
+    static final String IBEACON =
+            "> 04 3E 21 02 01 03 01 FF EE DD CC BB AA 1E 02 01 06 1A FF 4C 00 02 15 FD A5 06 93"
+                    + " A4 E2 4F B1 AF CF C6 EB 07 64 78 25 00 01 00 02 C5";
+
+    private HciDumpSamples() {}
+
+    static HCIData dataFormat5HciData() {
+        HCIParser parser = new HCIParser();
+        HCIData data = null;
+        for (String line : DATA_FORMAT_5) {
+            data = parser.readLine(line);
+        }
+        return data;
+    }
+
+    static EnhancedRuuviMeasurement dataFormat5Measurement() {
+        return new BeaconHandler()
+                .handle(dataFormat5HciData())
+                .map(MeasurementValueCalculator::calculateAllValues)
+                .orElseThrow();
+    }
+}
@@ -0,0 +1,123 @@
+package fi.tkgwf.ruuvi.benchmark;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.handler.BeaconHandler;
+import fi.tkgwf.ruuvi.utils.DerivedValuePlan;
+import fi.tkgwf.ruuvi.utils.HCIParser;
+import fi.tkgwf.ruuvi.utils.MeasurementValueCalculator;
+import fi.tkgwf.ruuvi.utils.Utils;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Optional;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Per-line and per-packet costs from the raw hcidump line up to a calculated measurement. */
+@State(Scope.Thread)
+public class IngestBenchmark {
+
+    private HCIParser parser;
+    private BeaconHandler beaconHandler;
+    private HCIData dataFormat5;
+    private HCIData iBeacon;
+    private EnhancedRuuviMeasurement measurement;
+    private PrimitiveMeasurement primitiveMeasurement;
+    private final MeasurementBatch batch = new MeasurementBatch(1000);
+    private final DerivedValuePlan approximatePlan =
+            DerivedValuePlan.forFields(EnumSet.allOf(MeasurementField.class), true);
+    private ByteBuffer dataFormat5Bytes;
+    private int[] dataFormat5LineEnds;
+
+    @Setup
+    public void setup() {
+        parser = new HCIParser();
+        beaconHandler = new BeaconHandler();
+        dataFormat5 = HciDumpSamples.dataFormat5HciData();
+        iBeacon = new HCIParser().readLine(HciDumpSamples.IBEACON);
+        measurement = HciDumpSamples.dataFormat5Measurement();
+        primitiveMeasurement = PrimitiveMeasurement.from(measurement);
+        while (!batch.isFull()) {
+            batch.add(primitiveMeasurement);
+        }
+        String text = String.join("\n", HciDumpSamples.DATA_FORMAT_5);
+        dataFormat5Bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+        dataFormat5LineEnds = new int[HciDumpSamples.DATA_FORMAT_5.length];
+        for (int i = 0, end = -1; i < dataFormat5LineEnds.length; i++) {
+            end += HciDumpSamples.DATA_FORMAT_5[i].length() + 1;
+            dataFormat5LineEnds[i] = end;
+        }
+    }
+
+    @Benchmark
+    public HCIData hciParserReadLineDataFormat3() {
+        return parser.readLine(HciDumpSamples.DATA_FORMAT_3);
+    }
+
+    @Benchmark
+    public HCIData hciParserReadLinesDataFormat5() {
+        HCIData data = null;
+        for (String line : HciDumpSamples.DATA_FORMAT_5) {
+            data = parser.readLine(line);
+        }
+        return data;
+    }
+
+    @Benchmark
+    public HCIData hciParserReadByteLinesDataFormat5() {
+        HCIData data = null;
+        int start = 0;
+        for (int end : dataFormat5LineEnds) {
+            data = parser.readLine(dataFormat5Bytes, start, end);
+            start = end + 1;
+        }
+        return data;
+    }
+
+    @Benchmark
+    public byte[] hexToBytes() {
+        return Utils.hexToBytes(HciDumpSamples.DATA_FORMAT_3);
+    }
+
+    @Benchmark
+    public String getMacFromLine() {
+        return Utils.getMacFromLine(HciDumpSamples.DATA_FORMAT_3);
+    }
+
+    @Benchmark
+    public Optional<EnhancedRuuviMeasurement> beaconHandlerHandleDataFormat5() {
+        return beaconHandler.handle(dataFormat5);
+    }
+
+    @Benchmark
+    public Optional<EnhancedRuuviMeasurement> beaconHandlerHandleNonRuuvi() {
+        return beaconHandler.handle(iBeacon);
+    }
+
+    @Benchmark
+    public EnhancedRuuviMeasurement calculateAllValues() {
+        return MeasurementValueCalculator.calculateAllValues(measurement);
+    }
+
+    @Benchmark
+    public PrimitiveMeasurement derivedValuesExact() {
+        return DerivedValuePlan.ALL.apply(primitiveMeasurement);
+    }
+
+    @Benchmark
+    public PrimitiveMeasurement derivedValuesApproximate() {
+        return approximatePlan.apply(primitiveMeasurement);
+    }
+
+    /** Compare with 1000 times {@link #derivedValuesExact()} */
+    @Benchmark
+    public MeasurementBatch derivedValuesBatchOf1000() {
+        return DerivedValuePlan.ALL.apply(batch);
+    }
+}
@@ -0,0 +1,56 @@
+package fi.tkgwf.ruuvi.benchmark;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import fi.tkgwf.ruuvi.strategy.impl.DefaultDiscardingWithMotionSensitivityStrategy;
+import fi.tkgwf.ruuvi.strategy.impl.DiscardUntilEnoughTimeHasElapsedStrategy;
+import java.util.Optional;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-measurement cost of the limiting strategies. Most measurements are discarded by the
+ * strategies, so the common case is the discarding one; the motion sensitive strategy is also
+ * measured with a tag that is moving all the time.
+ */
+@State(Scope.Thread)
+public class LimitingStrategyBenchmark {
+
+    private LimitingStrategy discardUntilEnoughTimeHasElapsed;
+    private LimitingStrategy motionSensitivityStill;
+    private LimitingStrategy motionSensitivityMoving;
+    private EnhancedRuuviMeasurement still;
+    private EnhancedRuuviMeasurement[] moving;
+    private int index;
+
+    @Setup
+    public void setup() {
+        discardUntilEnoughTimeHasElapsed = new DiscardUntilEnoughTimeHasElapsedStrategy();
+        motionSensitivityStill = new DefaultDiscardingWithMotionSensitivityStrategy();
+        motionSensitivityMoving = new DefaultDiscardingWithMotionSensitivityStrategy();
+        still = HciDumpSamples.dataFormat5Measurement();
+        moving =
+                new EnhancedRuuviMeasurement[] {
+                    HciDumpSamples.dataFormat5Measurement(), HciDumpSamples.dataFormat5Measurement()
+                };
+        moving[1].setAccelerationX(moving[0].getAccelerationX() + 1d);
+    }
+
+    @Benchmark
+    public Optional<EnhancedRuuviMeasurement> discardUntilEnoughTimeHasElapsed() {
+        return discardUntilEnoughTimeHasElapsed.apply(still);
+    }
+
+    @Benchmark
+    public Optional<EnhancedRuuviMeasurement> motionSensitivityStill() {
+        return motionSensitivityStill.apply(still);
+    }
+
+    @Benchmark
+    public Optional<EnhancedRuuviMeasurement> motionSensitivityMoving() {
+        index ^= 1;
+        return motionSensitivityMoving.apply(moving[index]);
+    }
+}
@@ -0,0 +1,50 @@
+package fi.tkgwf.ruuvi.benchmark;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.db.PrometheusExporter;
+import fi.tkgwf.ruuvi.utils.InfluxDB2Converter;
+import fi.tkgwf.ruuvi.utils.InfluxDBConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of turning an accepted measurement into whatever the storage backend consumes. The network
+ * side of the backends is deliberately left out.
+ */
+@State(Scope.Thread)
+public class PersistenceBenchmark {
+
+    private EnhancedRuuviMeasurement measurement;
+    private PrometheusExporter prometheusExporter;
+
+    @Setup
+    public void setup() {
+        measurement = HciDumpSamples.dataFormat5Measurement();
+        // The collectors register to the default registry, so only one exporter per JVM (fork)
+        prometheusExporter = new PrometheusExporter(0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        prometheusExporter.close();
+    }
+
+    @Benchmark
+    public org.influxdb.dto.Point influxDBConverter() {
+        return InfluxDBConverter.toInflux(measurement);
+    }
+
+    @Benchmark
+    public com.influxdb.client.write.Point influxDB2Converter() {
+        return InfluxDB2Converter.toInflux(measurement);
+    }
+
+    @Benchmark
+    public EnhancedRuuviMeasurement prometheusExporterSave() {
+        prometheusExporter.save(measurement);
+        return measurement;
+    }
+}
@@ -1,16 +1,34 @@
 package fi.tkgwf.ruuvi;
 
 import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.config.ConfigReloader;
 import fi.tkgwf.ruuvi.config.Configuration;
+import fi.tkgwf.ruuvi.config.RuntimeConfig;
+import fi.tkgwf.ruuvi.db.RuuviDBConnection;
 import fi.tkgwf.ruuvi.handler.BeaconHandler;
+import fi.tkgwf.ruuvi.http.QueryServer;
+import fi.tkgwf.ruuvi.input.BtsnoopReader;
+import fi.tkgwf.ruuvi.input.HciDumpCapture;
+import fi.tkgwf.ruuvi.input.HciDumpLineReader;
+import fi.tkgwf.ruuvi.input.HciDumpReplayReader;
+import fi.tkgwf.ruuvi.input.HciPacketReader;
+import fi.tkgwf.ruuvi.input.HciServer;
+import fi.tkgwf.ruuvi.input.MergedPacketReader;
 import fi.tkgwf.ruuvi.service.PersistenceService;
 import fi.tkgwf.ruuvi.utils.HCIParser;
-import fi.tkgwf.ruuvi.utils.MeasurementValueCalculator;
 import fi.tkgwf.ruuvi.utils.Utils;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.influxdb.InfluxDBIOException;
@@ -19,10 +37,36 @@ public class Main {
 
     private static final Logger LOG = Logger.getLogger(Main.class);
 
-    private final BeaconHandler beaconHandler = new BeaconHandler();
+    private volatile RuntimeConfig runtime;
+    private final BeaconHandler beaconHandler;
+
+    public Main() {
+        this(RuntimeConfig.get());
+    }
+
+    /**
+     * @param runtime the settings looked at for every packet
+     */
+    Main(final RuntimeConfig runtime) {
+        this.runtime = runtime;
+        this.beaconHandler = new BeaconHandler(runtime);
+    }
+
+    /**
+     * Switches to the settings of a reloaded configuration, the packets are filtered and decoded
+     * with them from the next one on.
+     */
+    void setRuntime(final RuntimeConfig runtime) {
+        this.runtime = runtime;
+        beaconHandler.setConfig(runtime);
+    }
 
     public static void main(String[] args) throws IOException {
         Main m = new Main();
+        ConfigReloader reloader = ConfigReloader.start();
+        if (reloader != null) {
+            reloader.addListener(m::setRuntime);
+        }
 
         if (!m.run()) {
             LOG.info("Unclean exit");
@@ -31,13 +75,28 @@ public class Main {
         LOG.info("Clean exit");
         // due to a bug in the InfluxDB library, we have to force the exit as a
         // workaround. See: https://github.com/influxdata/influxdb-java/issues/359
-        if (Configuration.get().storage.method.startsWith("influx")) {
+        if (RuntimeConfig.get().getStorageMethod().startsWith("influx")) {
             System.exit(0);
         }
     }
 
-    private BufferedReader startHciListeners() throws IOException {
-        String[] scan = Configuration.get().sensor.scanCommand.split(" ");
+    private HciPacketReader startAdapter(Configuration.Adapter adapter) throws IOException {
+        boolean btsnoop = "btsnoop".equals(Configuration.get().sensor.inputFormat);
+        if (btsnoop && StringUtils.isNotBlank(adapter.btsnoopFile)) {
+            // The dump command writes to the file (typically a FIFO), its own output is not needed
+            startHciProcesses(adapter, true);
+            LOG.debug("Reading btsnoop data from: " + adapter.btsnoopFile);
+            return new BtsnoopReader(
+                    FileChannel.open(Paths.get(adapter.btsnoopFile), StandardOpenOption.READ));
+        }
+        Process hcidump = startHciProcesses(adapter, false);
+        ReadableByteChannel channel = Channels.newChannel(hcidump.getInputStream());
+        return btsnoop ? new BtsnoopReader(channel) : new HciDumpLineReader(channel);
+    }
+
+    private Process startHciProcesses(Configuration.Adapter adapter, boolean discardDumpOutput)
+            throws IOException {
+        String[] scan = adapter.scanCommand.split(" ");
         if (scan.length > 0 && StringUtils.isNotBlank(scan[0])) {
             Process hcitool = new ProcessBuilder(scan).start();
             Runtime.getRuntime().addShutdownHook(new Thread(() -> hcitool.destroyForcibly()));
@@ -45,11 +104,15 @@ public class Main {
         } else {
             LOG.debug("Skipping scan command, scan command is blank.");
         }
-        String[] dump = Configuration.get().sensor.dumpCommand.split(" ");
-        Process hcidump = new ProcessBuilder(dump).start();
+        String[] dump = adapter.dumpCommand.split(" ");
+        ProcessBuilder dumpBuilder = new ProcessBuilder(dump);
+        if (discardDumpOutput) {
+            dumpBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        }
+        Process hcidump = dumpBuilder.start();
         Runtime.getRuntime().addShutdownHook(new Thread(() -> hcidump.destroyForcibly()));
-        LOG.debug("Starting dump with: " + Configuration.get().sensor.dumpCommand);
-        return new BufferedReader(new InputStreamReader(hcidump.getInputStream()));
+        LOG.debug("Starting dump with: " + adapter.dumpCommand);
+        return hcidump;
     }
 
     /**
@@ -58,25 +121,94 @@ public class Main {
      * @return true if the run ends gracefully, false in case of severe errors
      */
     public boolean run() {
-        BufferedReader reader;
+        Configuration.Sensor sensor = Configuration.get().sensor;
         try {
-            reader = startHciListeners();
+            if (StringUtils.isNotBlank(sensor.replayFile)) {
+                return run(
+                        withCapture(
+                                new BufferedReader(
+                                        new HciDumpReplayReader(
+                                                Paths.get(sensor.replayFile),
+                                                sensor.replaySpeed))));
+            }
+            Configuration.Server server = Configuration.get().server;
+            if (server != null && server.port > 0) {
+                InetSocketAddress address =
+                        StringUtils.isBlank(server.bindAddress)
+                                ? new InetSocketAddress(server.port)
+                                : new InetSocketAddress(server.bindAddress, server.port);
+                return run(
+                        new HciServer(
+                                address,
+                                server.maxConnections,
+                                server.receivers,
+                                sensor.deduplicationWindowMs),
+                        RuuviDBConnection.createDBConnection());
+            }
+            List<Configuration.Adapter> adapters = sensor.listAdapters();
+            boolean text = !"btsnoop".equals(sensor.inputFormat);
+            if (StringUtils.isNotBlank(sensor.captureFile) && text && adapters.size() == 1) {
+                Process hcidump = startHciProcesses(adapters.get(0), false);
+                logListenerStarted();
+                return run(
+                        withCapture(
+                                new BufferedReader(
+                                        new InputStreamReader(hcidump.getInputStream()))));
+            }
+            if (StringUtils.isNotBlank(sensor.captureFile)) {
+                LOG.warn(
+                        "Capturing is only supported with a single adapter and hcidump input,"
+                                + " not capturing");
+            }
+            List<String> names = new ArrayList<>();
+            List<HciPacketReader> readers = new ArrayList<>();
+            for (Configuration.Adapter adapter : adapters) {
+                names.add(
+                        StringUtils.isNotBlank(adapter.name)
+                                ? adapter.name
+                                : String.valueOf(names.size()));
+                readers.add(startAdapter(adapter));
+            }
+            logListenerStarted();
+            HciPacketReader reader =
+                    readers.size() == 1
+                            ? readers.get(0)
+                            : new MergedPacketReader(names, readers, sensor.deduplicationWindowMs);
+            return run(reader, RuuviDBConnection.createDBConnection());
         } catch (IOException ex) {
             LOG.error("Failed to start hci processes", ex);
             return false;
         }
+    }
+
+    private void logListenerStarted() {
         LOG.info(
                 "BLE listener started successfully, waiting for data... \n"
-                    + " If you don't get any data, check that you are able to run 'hcitool lescan'"
-                    + " and 'hcidump --raw' without issues");
-        return run(reader);
+                        + " If you don't get any data, check that you are able to run 'hcitool"
+                        + " lescan' and 'hcidump --raw' without issues");
+    }
+
+    private BufferedReader withCapture(final BufferedReader reader) throws IOException {
+        String captureFile = Configuration.get().sensor.captureFile;
+        if (StringUtils.isBlank(captureFile)) {
+            return reader;
+        }
+        return HciDumpCapture.capturing(reader, Paths.get(captureFile));
     }
 
     boolean run(final BufferedReader reader) {
+        return run(reader, RuuviDBConnection.createDBConnection());
+    }
+
+    // the HTTP API, if enabled, only lives as long as the loop
+    @SuppressWarnings("try")
+    boolean run(final BufferedReader reader, final RuuviDBConnection db) {
         HCIParser parser = new HCIParser();
         boolean dataReceived = false;
         boolean healthy = false;
-        try (final PersistenceService persistenceService = new PersistenceService()) {
+        try (reader;
+                final PersistenceService persistenceService = new PersistenceService(db);
+                final QueryServer ignored = QueryServer.start(db)) {
             String line, latestMAC = null;
             while ((line = reader.readLine()) != null) {
                 if (line.contains("device: disconnected")) {
@@ -109,50 +241,104 @@ public class Main {
                         latestMAC = Utils.getMacFromLine(line);
                     }
                     // TODO Apply Mac Address Filtering
-                    if (Configuration.get().sensor.isAllowedMac(latestMAC)) {
+                    if (runtime.isAllowedMac(latestMAC)) {
                         HCIData hciData = parser.readLine(line);
                         if (hciData != null) {
-                            beaconHandler
-                                    .handle(hciData)
-                                    .map(MeasurementValueCalculator::calculateAllValues)
-                                    .ifPresent(persistenceService::store);
+                            store(hciData, persistenceService);
                             latestMAC = null; // "reset" the mac to null to avoid misleading MAC
                             // addresses when an error happens *after* successfully
                             // reading a full packet
                             healthy = true;
                         }
                     }
-                } catch (InfluxDBIOException ex) {
-                    LOG.error(
-                            "Database connection lost while attempting to save measurements to"
-                                    + " InfluxDB",
-                            ex);
-                    if (Configuration.get().influxCommon.exitOnInfluxDBIOException) {
+                } catch (Exception ex) {
+                    if (!handleException(ex, latestMAC, "line: " + line)) {
+                        return false;
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            LOG.error("Uncaught exception while reading measurements", ex);
+            return false;
+        }
+        return healthy;
+    }
+
+    // the HTTP API, if enabled, only lives as long as the loop
+    @SuppressWarnings("try")
+    boolean run(final HciPacketReader reader, final RuuviDBConnection db) {
+        boolean healthy = false;
+        try (reader;
+                final PersistenceService persistenceService = new PersistenceService(db);
+                final QueryServer ignored = QueryServer.start(db)) {
+            while (true) {
+                final HCIData hciData;
+                try {
+                    hciData = reader.next();
+                } catch (RuntimeException ex) {
+                    // a malformed packet the parser couldn't handle
+                    if (!handleException(ex, null, null)) {
                         return false;
                     }
+                    continue;
+                }
+                if (hciData == null) {
+                    break;
+                }
+                healthy = true;
+                try {
+                    if (runtime.isAllowedMac(hciData.mac)) {
+                        store(hciData, persistenceService);
+                    }
                 } catch (Exception ex) {
-                    if (latestMAC != null) {
-                        LOG.warn(
-                                "Uncaught exception while handling measurements from MAC address \""
-                                        + latestMAC
-                                        + "\", if this repeats and this is not a Ruuvitag, try"
-                                        + " blacklisting it",
-                                ex);
-                    } else {
-                        LOG.warn(
-                                "Uncaught exception while handling measurements, this is an"
-                                    + " unexpected event. Please report this to"
-                                    + " https://github.com/Scrin/RuuviCollector/issues and include"
-                                    + " this log",
-                                ex);
+                    if (!handleException(ex, hciData.mac, "packet: " + hciData)) {
+                        return false;
                     }
-                    LOG.debug("Offending line: " + line);
                 }
             }
         } catch (IOException ex) {
             LOG.error("Uncaught exception while reading measurements", ex);
             return false;
         }
-        return healthy;
+        return healthy && reader.isHealthy();
+    }
+
+    private void store(final HCIData hciData, final PersistenceService persistenceService) {
+        beaconHandler.decode(hciData).ifPresent(persistenceService::store);
+    }
+
+    /**
+     * Logs an exception that happened while handling the data of a single packet.
+     *
+     * @param mac the MAC address of the packet, if known
+     * @param offending description of the data being handled, logged on debug level if known
+     * @return false if the collector should exit because of the exception
+     */
+    private boolean handleException(final Exception ex, final String mac, final String offending) {
+        if (ex instanceof InfluxDBIOException) {
+            LOG.error(
+                    "Database connection lost while attempting to save measurements to InfluxDB",
+                    ex);
+            return !Configuration.get().influxCommon.exitOnInfluxDBIOException;
+        }
+        if (mac != null) {
+            LOG.warn(
+                    "Uncaught exception while handling measurements from MAC address \""
+                            + mac
+                            + "\", if this repeats and this is not a Ruuvitag, try"
+                            + " blacklisting it",
+                    ex);
+        } else {
+            LOG.warn(
+                    "Uncaught exception while handling measurements, this is an"
+                            + " unexpected event. Please report this to"
+                            + " https://github.com/Scrin/RuuviCollector/issues and include"
+                            + " this log",
+                    ex);
+        }
+        if (offending != null) {
+            LOG.debug("Offending " + offending);
+        }
+        return true;
     }
 }
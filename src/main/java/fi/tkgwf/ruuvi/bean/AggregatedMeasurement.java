@@ -0,0 +1,84 @@
+package fi.tkgwf.ruuvi.bean;
+
+import java.util.Arrays;
+
+/**
+ * A measurement aggregated from the samples of a time window. The values of the decimal fields are
+ * the means of the samples, those of the whole number fields, such as the movement counter, are the
+ * last values. The minimum, maximum and last value of every field and the number of samples are
+ * available too. The time is the start of the window.
+ */
+public class AggregatedMeasurement extends PrimitiveMeasurement {
+
+    private final double[] min = new double[MeasurementField.ALL.length];
+    private final double[] max = new double[MeasurementField.ALL.length];
+    private final double[] last = new double[MeasurementField.ALL.length];
+    /** The fields with aggregates, bit {@link MeasurementField#bit()} for each */
+    private long aggregated;
+
+    private int count;
+
+    {
+        Arrays.fill(min, Double.NaN);
+        Arrays.fill(max, Double.NaN);
+        Arrays.fill(last, Double.NaN);
+    }
+
+    /**
+     * @return true if the field was aggregated from the samples, false for the values set later,
+     *     like the derived values
+     */
+    public boolean hasAggregates(MeasurementField field) {
+        return (aggregated & field.bit()) != 0;
+    }
+
+    /**
+     * @return the smallest value of the field in the window, NaN if it had none
+     */
+    public double getMin(MeasurementField field) {
+        return min[field.ordinal()];
+    }
+
+    /**
+     * @return the largest value of the field in the window, NaN if it had none
+     */
+    public double getMax(MeasurementField field) {
+        return max[field.ordinal()];
+    }
+
+    /**
+     * @return the last value of the field in the window, NaN if it had none
+     */
+    public double getLast(MeasurementField field) {
+        return last[field.ordinal()];
+    }
+
+    /**
+     * @return the number of samples in the window
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Sets the aggregates of the field, and its value: the mean for decimal fields, the last value
+     * for whole number fields.
+     */
+    public void setAggregates(
+            MeasurementField field, double mean, double min, double max, double last) {
+        this.min[field.ordinal()] = min;
+        this.max[field.ordinal()] = max;
+        this.last[field.ordinal()] = last;
+        aggregated |= field.bit();
+        set(field, field.isInteger() ? last : mean);
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    @Override
+    public String toString() {
+        return "AggregatedMeasurement{count=" + count + ", " + super.toString() + "}";
+    }
+}
@@ -16,6 +16,10 @@ public class HCIData {
     public String mac;
     public List<Report> reports;
     public Integer rssi;
+    /** Name of the remote receiver the packet came from, null if it was received locally */
+    public String receiver;
+    /** The measurement already decoded by a relay, in which case there are no reports */
+    public PrimitiveMeasurement measurement;
 
     public Report.AdvertisementData findAdvertisementDataByType(int type) {
         if (reports == null) {
@@ -53,6 +57,10 @@ public class HCIData {
                 + reports
                 + ", rssi="
                 + rssi
+                + ", receiver="
+                + receiver
+                + ", measurement="
+                + measurement
                 + '}';
     }
 
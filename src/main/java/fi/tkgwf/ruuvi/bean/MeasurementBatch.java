@@ -0,0 +1,230 @@
+package fi.tkgwf.ruuvi.bean;
+
+/**
+ * A fixed capacity batch of measurements stored by column: the values of each {@link
+ * MeasurementField} are in an array of their own, with a presence bitmask per row like in {@link
+ * PrimitiveMeasurement}. Database connections can then encode the whole batch in one go, and adding
+ * a measurement copies its values without allocating anything.
+ *
+ * <p>The batch is reused after {@link #clear()}. It is not thread safe.
+ */
+public class MeasurementBatch {
+
+    private final int capacity;
+    /** The values by field ordinal and row */
+    private final double[][] columns = new double[MeasurementField.ALL.length][];
+
+    private final long[] presence;
+    private final long[] times;
+    private final String[] macs;
+    private final String[] names;
+    private final String[] receivers;
+    private int size;
+
+    public MeasurementBatch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Batch capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new double[capacity];
+        }
+        presence = new long[capacity];
+        times = new long[capacity];
+        macs = new String[capacity];
+        names = new String[capacity];
+        receivers = new String[capacity];
+    }
+
+    /**
+     * @return a batch of the one measurement
+     */
+    public static MeasurementBatch of(PrimitiveMeasurement measurement) {
+        MeasurementBatch batch = new MeasurementBatch(1);
+        batch.add(measurement);
+        return batch;
+    }
+
+    /**
+     * Copies the measurement to the next row.
+     *
+     * @throws IllegalStateException if the batch is full
+     */
+    public void add(PrimitiveMeasurement measurement) {
+        if (size == capacity) {
+            throw new IllegalStateException("Batch is full");
+        }
+        int row = size++;
+        long bits = measurement.getPresence();
+        for (MeasurementField field : MeasurementField.ALL) {
+            if ((bits & field.bit()) != 0) {
+                columns[field.ordinal()][row] = measurement.get(field);
+            }
+        }
+        if (measurement.hasTime()) {
+            bits |= PrimitiveMeasurement.TIME_BIT;
+            times[row] = measurement.getTime();
+        }
+        presence[row] = bits;
+        macs[row] = measurement.getMac();
+        names[row] = measurement.getName();
+        receivers[row] = measurement.getReceiver();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /** Removes all the rows, so that the batch can be reused */
+    public void clear() {
+        for (int row = 0; row < size; row++) {
+            macs[row] = null;
+            names[row] = null;
+            receivers[row] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * @return true if the field has a value on the row
+     */
+    public boolean has(int row, MeasurementField field) {
+        return (presence(row) & field.bit()) != 0;
+    }
+
+    /**
+     * @return the value of the field on the row, NaN if it has none
+     */
+    public double get(int row, MeasurementField field) {
+        return has(row, field) ? columns[field.ordinal()][row] : Double.NaN;
+    }
+
+    /**
+     * @return the value of the field on the row as an int, 0 if it has none
+     */
+    public int getInt(int row, MeasurementField field) {
+        return has(row, field) ? (int) columns[field.ordinal()][row] : 0;
+    }
+
+    /**
+     * The values of the field, to be read with {@link #getPresence(int)} telling which rows have a
+     * value. The array is longer than the batch, the rows from {@link #size()} on are garbage.
+     *
+     * @return the column itself, not a copy
+     */
+    public double[] column(MeasurementField field) {
+        return columns[field.ordinal()];
+    }
+
+    /**
+     * Copies the values of the field to an array, NaN for the rows without a value.
+     *
+     * @param target an array at least as long as the batch
+     * @return the array given
+     */
+    public double[] get(MeasurementField field, double[] target) {
+        double[] column = columns[field.ordinal()];
+        long bit = field.bit();
+        for (int row = 0; row < size; row++) {
+            target[row] = (presence[row] & bit) != 0 ? column[row] : Double.NaN;
+        }
+        return target;
+    }
+
+    /**
+     * Sets the values of the field on all the rows. Like {@link PrimitiveMeasurement#set(
+     * MeasurementField, double)}, NaN and infinities clear the field.
+     *
+     * @param values an array at least as long as the batch
+     */
+    public void set(MeasurementField field, double[] values) {
+        double[] column = columns[field.ordinal()];
+        long bit = field.bit();
+        for (int row = 0; row < size; row++) {
+            if (Double.isFinite(values[row])) {
+                column[row] = values[row];
+                presence[row] |= bit;
+            } else {
+                presence[row] &= ~bit;
+            }
+        }
+    }
+
+    /**
+     * @return the fields with a value on the row, bit {@link MeasurementField#bit()} for each
+     */
+    public long getPresence(int row) {
+        return presence(row) & ~PrimitiveMeasurement.TIME_BIT;
+    }
+
+    public boolean hasTime(int row) {
+        return (presence(row) & PrimitiveMeasurement.TIME_BIT) != 0;
+    }
+
+    /**
+     * @return timestamp in milliseconds, 0 if not set
+     */
+    public long getTime(int row) {
+        return hasTime(row) ? times[row] : 0;
+    }
+
+    public String getMac(int row) {
+        checkRow(row);
+        return macs[row];
+    }
+
+    public String getName(int row) {
+        checkRow(row);
+        return names[row];
+    }
+
+    public String getReceiver(int row) {
+        checkRow(row);
+        return receivers[row];
+    }
+
+    /**
+     * Copies the row to the measurement, replacing all of its values.
+     *
+     * @return the measurement given
+     */
+    public PrimitiveMeasurement get(int row, PrimitiveMeasurement target) {
+        long bits = presence(row);
+        target.reset();
+        for (MeasurementField field : MeasurementField.ALL) {
+            if ((bits & field.bit()) != 0) {
+                target.set(field, columns[field.ordinal()][row]);
+            }
+        }
+        if ((bits & PrimitiveMeasurement.TIME_BIT) != 0) {
+            target.setTime(times[row]);
+        }
+        target.setMac(macs[row]);
+        target.setName(names[row]);
+        target.setReceiver(receivers[row]);
+        return target;
+    }
+
+    private long presence(int row) {
+        checkRow(row);
+        return presence[row];
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of a batch of " + size);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package fi.tkgwf.ruuvi.bean;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The numeric fields of a measurement. The name of a field is the name of the corresponding
+ * property of {@link EnhancedRuuviMeasurement}, which is also the name used in the configuration
+ * and in the databases. The ordinal is the bit of the field in the presence bitmask of {@link
+ * PrimitiveMeasurement}, so new fields must be added last.
+ */
+public enum MeasurementField {
+    DATA_FORMAT(
+            "dataFormat",
+            EnhancedRuuviMeasurement::getDataFormat,
+            EnhancedRuuviMeasurement::setDataFormat),
+    TEMPERATURE(
+            "temperature",
+            EnhancedRuuviMeasurement::getTemperature,
+            EnhancedRuuviMeasurement::setTemperature),
+    HUMIDITY(
+            "humidity",
+            EnhancedRuuviMeasurement::getHumidity,
+            EnhancedRuuviMeasurement::setHumidity),
+    PRESSURE(
+            "pressure",
+            EnhancedRuuviMeasurement::getPressure,
+            EnhancedRuuviMeasurement::setPressure),
+    ACCELERATION_X(
+            "accelerationX",
+            EnhancedRuuviMeasurement::getAccelerationX,
+            EnhancedRuuviMeasurement::setAccelerationX),
+    ACCELERATION_Y(
+            "accelerationY",
+            EnhancedRuuviMeasurement::getAccelerationY,
+            EnhancedRuuviMeasurement::setAccelerationY),
+    ACCELERATION_Z(
+            "accelerationZ",
+            EnhancedRuuviMeasurement::getAccelerationZ,
+            EnhancedRuuviMeasurement::setAccelerationZ),
+    BATTERY_VOLTAGE(
+            "batteryVoltage",
+            EnhancedRuuviMeasurement::getBatteryVoltage,
+            EnhancedRuuviMeasurement::setBatteryVoltage),
+    TX_POWER("txPower", EnhancedRuuviMeasurement::getTxPower, EnhancedRuuviMeasurement::setTxPower),
+    MOVEMENT_COUNTER(
+            "movementCounter",
+            EnhancedRuuviMeasurement::getMovementCounter,
+            EnhancedRuuviMeasurement::setMovementCounter),
+    MEASUREMENT_SEQUENCE_NUMBER(
+            "measurementSequenceNumber",
+            EnhancedRuuviMeasurement::getMeasurementSequenceNumber,
+            EnhancedRuuviMeasurement::setMeasurementSequenceNumber),
+    RSSI("rssi", EnhancedRuuviMeasurement::getRssi, EnhancedRuuviMeasurement::setRssi),
+    ACCELERATION_TOTAL(
+            "accelerationTotal",
+            EnhancedRuuviMeasurement::getAccelerationTotal,
+            EnhancedRuuviMeasurement::setAccelerationTotal),
+    ACCELERATION_ANGLE_FROM_X(
+            "accelerationAngleFromX",
+            EnhancedRuuviMeasurement::getAccelerationAngleFromX,
+            EnhancedRuuviMeasurement::setAccelerationAngleFromX),
+    ACCELERATION_ANGLE_FROM_Y(
+            "accelerationAngleFromY",
+            EnhancedRuuviMeasurement::getAccelerationAngleFromY,
+            EnhancedRuuviMeasurement::setAccelerationAngleFromY),
+    ACCELERATION_ANGLE_FROM_Z(
+            "accelerationAngleFromZ",
+            EnhancedRuuviMeasurement::getAccelerationAngleFromZ,
+            EnhancedRuuviMeasurement::setAccelerationAngleFromZ),
+    ABSOLUTE_HUMIDITY(
+            "absoluteHumidity",
+            EnhancedRuuviMeasurement::getAbsoluteHumidity,
+            EnhancedRuuviMeasurement::setAbsoluteHumidity),
+    DEW_POINT(
+            "dewPoint",
+            EnhancedRuuviMeasurement::getDewPoint,
+            EnhancedRuuviMeasurement::setDewPoint),
+    EQUILIBRIUM_VAPOR_PRESSURE(
+            "equilibriumVaporPressure",
+            EnhancedRuuviMeasurement::getEquilibriumVaporPressure,
+            EnhancedRuuviMeasurement::setEquilibriumVaporPressure),
+    AIR_DENSITY(
+            "airDensity",
+            EnhancedRuuviMeasurement::getAirDensity,
+            EnhancedRuuviMeasurement::setAirDensity);
+
+    /** {@link #values()} without copying the array on every call */
+    public static final MeasurementField[] ALL = values();
+
+    private static final Map<String, MeasurementField> BY_NAME = new HashMap<>();
+
+    static {
+        for (MeasurementField field : ALL) {
+            BY_NAME.put(field.fieldName, field);
+        }
+    }
+
+    private final String fieldName;
+    private final boolean integer;
+    private final Function<EnhancedRuuviMeasurement, ? extends Number> getter;
+    private final BiConsumer<EnhancedRuuviMeasurement, Number> setter;
+
+    MeasurementField(
+            String fieldName,
+            Function<EnhancedRuuviMeasurement, Double> getter,
+            BiConsumer<EnhancedRuuviMeasurement, Double> setter) {
+        this.fieldName = fieldName;
+        this.integer = false;
+        this.getter = getter;
+        this.setter = (m, value) -> setter.accept(m, value != null ? value.doubleValue() : null);
+    }
+
+    MeasurementField(
+            String fieldName,
+            IntegerGetter getter,
+            BiConsumer<EnhancedRuuviMeasurement, Integer> setter) {
+        this.fieldName = fieldName;
+        this.integer = true;
+        this.getter = getter::get;
+        this.setter = (m, value) -> setter.accept(m, value != null ? value.intValue() : null);
+    }
+
+    /** Distinguishes the constructor of the integer fields from that of the decimal ones */
+    @FunctionalInterface
+    private interface IntegerGetter {
+        Integer get(EnhancedRuuviMeasurement measurement);
+    }
+
+    /**
+     * @return the field with the given name, or null if there is none
+     */
+    public static MeasurementField forName(String name) {
+        return BY_NAME.get(name);
+    }
+
+    /**
+     * @return the fields with the given names, names that aren't fields are skipped
+     */
+    public static Set<MeasurementField> forNames(Collection<String> names) {
+        Set<MeasurementField> fields = EnumSet.noneOf(MeasurementField.class);
+        for (String name : names) {
+            MeasurementField field = BY_NAME.get(name);
+            if (field != null) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * @return true if the values of this field are whole numbers, stored as Integer in the bean
+     */
+    public boolean isInteger() {
+        return integer;
+    }
+
+    /** Present in the bitmask of {@link PrimitiveMeasurement} if the field has a value */
+    public long bit() {
+        return 1L << ordinal();
+    }
+
+    /**
+     * @return the value of this field in the bean, null if it has none
+     */
+    public Number get(EnhancedRuuviMeasurement measurement) {
+        return getter.apply(measurement);
+    }
+
+    /**
+     * @param value the value, or null to clear the field
+     */
+    public void set(EnhancedRuuviMeasurement measurement, Number value) {
+        setter.accept(measurement, value);
+    }
+}
@@ -0,0 +1,213 @@
+package fi.tkgwf.ruuvi.bean;
+
+import fi.tkgwf.ruuvi.common.bean.RuuviMeasurement;
+
+/**
+ * A measurement holding its values as primitive doubles, with a bitmask telling which of the {@link
+ * MeasurementField}s have a value. Unlike {@link EnhancedRuuviMeasurement}, setting and reading the
+ * values doesn't box them, so a measurement costs a constant two allocations however many values it
+ * has. Whole number fields are stored as doubles too, which represents them exactly.
+ *
+ * <p>{@link #from(EnhancedRuuviMeasurement)} and {@link #toEnhanced()} convert from and to the bean
+ * for code that uses the bean API, such as custom limiting strategies and database connections.
+ */
+public class PrimitiveMeasurement {
+
+    /** Set in the bitmask if the time is set */
+    static final long TIME_BIT = 1L << 63;
+
+    private final double[] values = new double[MeasurementField.ALL.length];
+    private long presence;
+    private long time;
+    private String mac;
+    private String name;
+    private String receiver;
+
+    /**
+     * @return true if the field has a value
+     */
+    public boolean has(MeasurementField field) {
+        return (presence & field.bit()) != 0;
+    }
+
+    /**
+     * @return the value of the field, NaN if it has none
+     */
+    public double get(MeasurementField field) {
+        return has(field) ? values[field.ordinal()] : Double.NaN;
+    }
+
+    /**
+     * @return the value of the field as an int, 0 if it has none
+     */
+    public int getInt(MeasurementField field) {
+        return has(field) ? (int) values[field.ordinal()] : 0;
+    }
+
+    /**
+     * @return the value of the field boxed, null if it has none. Integer for whole number fields,
+     *     like the getter of the bean.
+     */
+    public Number getValue(MeasurementField field) {
+        if (!has(field)) {
+            return null;
+        }
+        double value = values[field.ordinal()];
+        return field.isInteger() ? (Number) (int) value : (Number) value;
+    }
+
+    /**
+     * Sets the value of the field. NaN and infinities clear the field, like the derived value
+     * calculations returning null for the bean.
+     */
+    public void set(MeasurementField field, double value) {
+        if (Double.isFinite(value)) {
+            values[field.ordinal()] = value;
+            presence |= field.bit();
+        } else {
+            clear(field);
+        }
+    }
+
+    /**
+     * @param value the value, or null to clear the field
+     */
+    public void set(MeasurementField field, Number value) {
+        if (value != null) {
+            set(field, value.doubleValue());
+        } else {
+            clear(field);
+        }
+    }
+
+    public void clear(MeasurementField field) {
+        presence &= ~field.bit();
+    }
+
+    /**
+     * @return the fields with a value, bit {@link MeasurementField#bit()} for each
+     */
+    public long getPresence() {
+        return presence & ~TIME_BIT;
+    }
+
+    public boolean hasTime() {
+        return (presence & TIME_BIT) != 0;
+    }
+
+    /**
+     * @return timestamp in milliseconds, 0 if not set
+     */
+    public long getTime() {
+        return hasTime() ? time : 0;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+        presence |= TIME_BIT;
+    }
+
+    public void clearTime() {
+        presence &= ~TIME_BIT;
+    }
+
+    public String getMac() {
+        return mac;
+    }
+
+    public void setMac(String mac) {
+        this.mac = mac;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getReceiver() {
+        return receiver;
+    }
+
+    public void setReceiver(String receiver) {
+        this.receiver = receiver;
+    }
+
+    /** Clears all the values, so that the instance can be reused */
+    public void reset() {
+        presence = 0;
+        mac = null;
+        name = null;
+        receiver = null;
+    }
+
+    /**
+     * @return the values of a measurement decoded by the ruuvitag-common parsers
+     */
+    public static PrimitiveMeasurement from(RuuviMeasurement m) {
+        PrimitiveMeasurement p = new PrimitiveMeasurement();
+        p.set(MeasurementField.DATA_FORMAT, m.getDataFormat());
+        p.set(MeasurementField.TEMPERATURE, m.getTemperature());
+        p.set(MeasurementField.HUMIDITY, m.getHumidity());
+        p.set(MeasurementField.PRESSURE, m.getPressure());
+        p.set(MeasurementField.ACCELERATION_X, m.getAccelerationX());
+        p.set(MeasurementField.ACCELERATION_Y, m.getAccelerationY());
+        p.set(MeasurementField.ACCELERATION_Z, m.getAccelerationZ());
+        p.set(MeasurementField.BATTERY_VOLTAGE, m.getBatteryVoltage());
+        p.set(MeasurementField.TX_POWER, m.getTxPower());
+        p.set(MeasurementField.MOVEMENT_COUNTER, m.getMovementCounter());
+        p.set(MeasurementField.MEASUREMENT_SEQUENCE_NUMBER, m.getMeasurementSequenceNumber());
+        return p;
+    }
+
+    /**
+     * @return a copy of the bean
+     */
+    public static PrimitiveMeasurement from(EnhancedRuuviMeasurement m) {
+        PrimitiveMeasurement p = new PrimitiveMeasurement();
+        for (MeasurementField field : MeasurementField.ALL) {
+            p.set(field, field.get(m));
+        }
+        if (m.getTime() != null) {
+            p.setTime(m.getTime());
+        }
+        p.mac = m.getMac();
+        p.name = m.getName();
+        p.receiver = m.getReceiver();
+        return p;
+    }
+
+    /**
+     * @return a copy of this measurement as a bean
+     */
+    public EnhancedRuuviMeasurement toEnhanced() {
+        EnhancedRuuviMeasurement m = new EnhancedRuuviMeasurement();
+        for (MeasurementField field : MeasurementField.ALL) {
+            if (has(field)) {
+                field.set(m, getValue(field));
+            }
+        }
+        m.setTime(hasTime() ? time : null);
+        m.setMac(mac);
+        m.setName(name);
+        m.setReceiver(receiver);
+        return m;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PrimitiveMeasurement{");
+        sb.append("time=").append(hasTime() ? String.valueOf(time) : "null");
+        sb.append(", name=").append(name);
+        sb.append(", mac=").append(mac);
+        sb.append(", receiver=").append(receiver);
+        for (MeasurementField field : MeasurementField.ALL) {
+            if (has(field)) {
+                sb.append(", ").append(field.getFieldName()).append('=').append(getValue(field));
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,405 @@
+package fi.tkgwf.ruuvi.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.apache.log4j.Logger;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.Constructor;
+
+/**
+ * Reloads the configuration file when it changes, without restarting the scan and dump processes or
+ * the database connections. The new configuration is compiled into a {@link RuntimeConfig} and
+ * swapped in at once, so a packet is handled either with the old settings or the new ones:
+ *
+ * <ul>
+ *   <li>the allowed MAC addresses, the names of the tags and the receiver are looked up from the
+ *       new snapshot from the next packet on
+ *   <li>the limiting strategies of the tags whose settings changed are forgotten, and created again
+ *       from the new settings when the tags are seen next, all of them if the defaults changed
+ *   <li>the other changes, like the commands, the stored fields and the database settings, need a
+ *       restart, they are logged and the running values are kept in the new configuration until
+ *       then
+ * </ul>
+ *
+ * <p>A configuration that can't be read or compiled is logged and the old one is kept.
+ */
+public class ConfigReloader implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(ConfigReloader.class);
+
+    /** Editors write a file in several steps, it is read when it has been quiet this long */
+    private static final long QUIET_MS = 500;
+
+    /** The settings the limiting strategies of all the tags are created from */
+    private static final Set<String> STRATEGY_DEFAULTS =
+            Set.of(
+                    "measurementUpdateLimitMs",
+                    "motionSensitivityStrategyThreshold",
+                    "motionSensitivityStrategyNumberOfPreviousMeasurementsToKeep",
+                    "deadbands",
+                    "deadbandHeartbeatMs",
+                    "alignedIntervalMs");
+
+    private final Path file;
+    private final List<Consumer<RuntimeConfig>> listeners = new CopyOnWriteArrayList<>();
+    private WatchService watcher;
+
+    /**
+     * @param file the configuration file, read on {@link #reload()}
+     */
+    ConfigReloader(final Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Starts watching the configuration file in the working directory, unless reloading is disabled
+     * or the configuration comes from the defaults in the resources.
+     *
+     * @return the reloader, null if the configuration isn't reloaded
+     */
+    public static ConfigReloader start() {
+        final Path file = Paths.get(System.getProperty("user.dir"), "configuration.yml");
+        if (!Configuration.get().reloadOnChange || !Files.isRegularFile(file)) {
+            return null;
+        }
+        final ConfigReloader reloader = new ConfigReloader(file);
+        try {
+            reloader.watch();
+        } catch (IOException ex) {
+            LOG.warn("Failed to watch " + file + ", the configuration isn't reloaded", ex);
+            return null;
+        }
+        LOG.info("Reloading the configuration when " + file + " changes");
+        return reloader;
+    }
+
+    /**
+     * @param listener called with the new snapshot after each reload
+     */
+    public void addListener(final Consumer<RuntimeConfig> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Reads the configuration file and applies it.
+     *
+     * @return what was changed
+     * @throws IOException if the file can't be read
+     */
+    public synchronized Changes reload() throws IOException {
+        final Configuration next;
+        try (InputStream in = Files.newInputStream(file)) {
+            next = new Yaml(new Constructor(Configuration.class)).load(in);
+        }
+        if (next == null || next.sensor == null || next.storage == null) {
+            throw new IOException("The sensor or storage section is missing from " + file);
+        }
+        return apply(next);
+    }
+
+    /**
+     * Swaps in the configuration, rebuilding what depends on the changed settings.
+     *
+     * @return what was changed
+     */
+    synchronized Changes apply(final Configuration next) {
+        final Configuration previous = Configuration.get();
+        final Changes changes = new Changes();
+        final Set<String> changedTags = diff(previous, next, changes);
+        keepRestartOnly(previous, next);
+        final RuntimeConfig runtime = RuntimeConfig.compile(next);
+
+        Configuration.set(next);
+        RuntimeConfig.set(runtime);
+        if (changes.rebuilt.contains("limiting strategies of all tags")) {
+            TagProperties.forget(mac -> true);
+        } else if (!changedTags.isEmpty()) {
+            TagProperties.forget(changedTags::contains);
+        }
+        for (final Consumer<RuntimeConfig> listener : listeners) {
+            listener.accept(runtime);
+        }
+        if (changes.isEmpty()) {
+            LOG.info("Configuration reloaded, nothing changed");
+        } else {
+            LOG.info(
+                    "Configuration reloaded, rebuilt "
+                            + changes.rebuilt
+                            + (changes.restartNeeded.isEmpty()
+                                    ? ""
+                                    : ", restart needed for " + changes.restartNeeded));
+        }
+        return changes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    private void watch() throws IOException {
+        final Path directory = file.toAbsolutePath().getParent();
+        watcher = directory.getFileSystem().newWatchService();
+        directory.register(
+                watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        final Thread thread = new Thread(this::run, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                if (!changed(watcher.take())) {
+                    continue;
+                }
+                WatchKey key;
+                while ((key = watcher.poll(QUIET_MS, TimeUnit.MILLISECONDS)) != null) {
+                    changed(key);
+                }
+                try {
+                    reload();
+                } catch (IOException | RuntimeException ex) {
+                    LOG.error("Failed to reload the configuration, keeping the old one", ex);
+                }
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // closed
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean changed(final WatchKey key) {
+        boolean changed = false;
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            changed |= file.getFileName().equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * @return the MAC addresses of the tags whose settings changed
+     */
+    private static Set<String> diff(
+            final Configuration previous, final Configuration next, final Changes changes) {
+        final Set<String> changedTags = new HashSet<>();
+        for (final Field field : fields(Configuration.class)) {
+            final String section = field.getName();
+            if (section.equals("sensor") || section.equals("storage")) {
+                continue;
+            }
+            if (!same(get(field, previous), get(field, next))) {
+                changes.restartNeeded.add(section);
+            }
+        }
+        for (final Field field : fields(Configuration.Sensor.class)) {
+            final String name = field.getName();
+            final Object before = get(field, previous.sensor);
+            final Object after = get(field, next.sensor);
+            if (same(before, after)) {
+                continue;
+            }
+            if (!isReloadable("sensor", name)) {
+                changes.restartNeeded.add("sensor." + name);
+            } else if (name.equals("allowedMac")) {
+                changes.rebuilt.add("allowed MAC addresses");
+            } else if (name.equals("macAddressToName")) {
+                changes.rebuilt.add("tag names");
+            } else if (STRATEGY_DEFAULTS.contains(name)) {
+                if (!changes.rebuilt.contains("limiting strategies of all tags")) {
+                    changes.rebuilt.add("limiting strategies of all tags");
+                }
+            } else if (name.equals("tagSettings")) {
+                changedTags.addAll(changedKeys((Map<?, ?>) before, (Map<?, ?>) after));
+            }
+        }
+        if (!changedTags.isEmpty()
+                && !changes.rebuilt.contains("limiting strategies of all tags")) {
+            changes.rebuilt.add("limiting strategies of " + new TreeSet<>(changedTags));
+        }
+        for (final Field field : fields(Configuration.Storage.class)) {
+            final String name = field.getName();
+            if (same(get(field, previous.storage), get(field, next.storage))) {
+                continue;
+            }
+            if (isReloadable("storage", name)) {
+                changes.rebuilt.add("receiver");
+            } else {
+                changes.restartNeeded.add("storage." + name);
+            }
+        }
+        return changedTags;
+    }
+
+    /**
+     * @return true if the setting of the section is applied without a restart
+     */
+    private static boolean isReloadable(final String section, final String name) {
+        if (section.equals("sensor")) {
+            return name.equals("allowedMac")
+                    || name.equals("macAddressToName")
+                    || name.equals("tagSettings")
+                    || STRATEGY_DEFAULTS.contains(name);
+        }
+        return section.equals("storage") && name.equals("receiver");
+    }
+
+    /**
+     * Copies the settings applied only on a restart from the running configuration, so that the
+     * components reading the configuration keep using the values they were started with.
+     */
+    private static void keepRestartOnly(final Configuration previous, final Configuration next) {
+        for (final Field field : fields(Configuration.class)) {
+            final String section = field.getName();
+            if (!section.equals("sensor") && !section.equals("storage")) {
+                set(field, next, get(field, previous));
+            }
+        }
+        for (final Field field : fields(Configuration.Sensor.class)) {
+            if (previous.sensor != null && !isReloadable("sensor", field.getName())) {
+                set(field, next.sensor, get(field, previous.sensor));
+            }
+        }
+        for (final Field field : fields(Configuration.Storage.class)) {
+            if (previous.storage != null && !isReloadable("storage", field.getName())) {
+                set(field, next.storage, get(field, previous.storage));
+            }
+        }
+    }
+
+    private static Set<String> changedKeys(final Map<?, ?> before, final Map<?, ?> after) {
+        final Set<String> keys = new HashSet<>();
+        final Set<Object> all = new HashSet<>();
+        if (before != null) {
+            all.addAll(before.keySet());
+        }
+        if (after != null) {
+            all.addAll(after.keySet());
+        }
+        for (final Object key : all) {
+            if (!same(
+                    before != null ? before.get(key) : null,
+                    after != null ? after.get(key) : null)) {
+                keys.add(String.valueOf(key));
+            }
+        }
+        return keys;
+    }
+
+    /** Compares the values of the configuration, the sections by their fields */
+    private static boolean same(final Object a, final Object b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.getClass() != b.getClass()) {
+            return Objects.equals(a, b);
+        }
+        if (a.getClass().getEnclosingClass() == Configuration.class) {
+            for (final Field field : fields(a.getClass())) {
+                if (!same(get(field, a), get(field, b))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof List) {
+            final List<?> x = (List<?>) a;
+            final List<?> y = (List<?>) b;
+            if (x.size() != y.size()) {
+                return false;
+            }
+            for (int i = 0; i < x.size(); i++) {
+                if (!same(x.get(i), y.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof Map) {
+            final Map<?, ?> x = (Map<?, ?>) a;
+            final Map<?, ?> y = (Map<?, ?>) b;
+            return x.keySet().equals(y.keySet()) && changedKeys(x, y).isEmpty();
+        }
+        return a.equals(b);
+    }
+
+    private static List<Field> fields(final Class<?> type) {
+        final List<Field> fields = new ArrayList<>();
+        for (final Field field : type.getFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    private static Object get(final Field field, final Object object) {
+        if (object == null) {
+            return null;
+        }
+        try {
+            return field.get(object);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void set(final Field field, final Object object, final Object value) {
+        try {
+            field.set(object, value);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /** What a reload changed */
+    public static class Changes {
+        private final List<String> rebuilt = new ArrayList<>();
+        private final List<String> restartNeeded = new ArrayList<>();
+
+        /**
+         * @return the components rebuilt with the new settings
+         */
+        public List<String> getRebuilt() {
+            return Collections.unmodifiableList(rebuilt);
+        }
+
+        /**
+         * @return the settings that changed but are applied only on a restart
+         */
+        public List<String> getRestartNeeded() {
+            return Collections.unmodifiableList(restartNeeded);
+        }
+
+        public boolean isEmpty() {
+            return rebuilt.isEmpty() && restartNeeded.isEmpty();
+        }
+    }
+}
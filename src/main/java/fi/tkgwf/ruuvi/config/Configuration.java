@@ -2,13 +2,14 @@ package fi.tkgwf.ruuvi.config;
 
 import fi.tkgwf.ruuvi.utils.Utils;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public class Configuration {
 
-    private static Configuration self;
+    private static volatile Configuration self;
 
     public Sensor sensor;
     public Storage storage;
@@ -17,16 +18,33 @@ public class Configuration {
     public InfluxDB2 influxDB2;
     public InfluxCommon influxCommon;
     public Prometheus prometheus;
+    public Server server;
+    public Relay relay;
+    public LocalStore localStore = new LocalStore();
+    public Api api = new Api();
+    public boolean reloadOnChange = true;
 
     public static Configuration get() {
-        if (self == null) {
-            try {
-                self = Utils.readYamlConfig(Configuration.class);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        Configuration configuration = self;
+        if (configuration == null) {
+            synchronized (Configuration.class) {
+                configuration = self;
+                if (configuration == null) {
+                    try {
+                        configuration = Utils.readYamlConfig(Configuration.class);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    self = configuration;
+                }
             }
         }
-        return self;
+        return configuration;
+    }
+
+    /** Replaces the configuration returned by {@link #get()}, on a reload */
+    static void set(final Configuration configuration) {
+        self = configuration;
     }
 
     public static class Sensor {
@@ -35,18 +53,71 @@ public class Configuration {
         public int motionSensitivityStrategyNumberOfPreviousMeasurementsToKeep;
         public String scanCommand;
         public String dumpCommand;
+        /** "hcidump" or "btsnoop" */
+        public String inputFormat = "hcidump";
+        /** Blank for stdout */
+        public String btsnoopFile;
+
+        public String captureFile;
+        public String replayFile;
+        /** 0 for as fast as possible */
+        public double replaySpeed = 1;
+
+        /** Empty to use the commands above */
+        public List<Adapter> adapters = new ArrayList<>();
+
+        public long deduplicationWindowMs = 300;
+
         public Map<String, String> macAddressToName;
+        public Map<String, Map<String, Object>> tagSettings = Map.of();
+        public Map<String, Object> deadbands = Map.of();
+        public long deadbandHeartbeatMs = 600000;
+        public long alignedIntervalMs = 10000;
+        public long tagIdleTimeoutMs = 3600000;
+        public int maxTrackedTags = 10000;
+
         public Set<String> allowedMac = Set.of();
 
         public boolean isAllowedMac(String mac) {
             return allowedMac.isEmpty() || allowedMac.contains(mac);
         }
+
+        /**
+         * @return the configured adapters, or a single adapter using the scan and dump commands of
+         *     the sensor if there are none
+         */
+        public List<Adapter> listAdapters() {
+            if (adapters != null && !adapters.isEmpty()) {
+                return adapters;
+            }
+            Adapter adapter = new Adapter();
+            adapter.name = "default";
+            adapter.scanCommand = scanCommand;
+            adapter.dumpCommand = dumpCommand;
+            adapter.btsnoopFile = btsnoopFile;
+            return List.of(adapter);
+        }
+    }
+
+    public static class Adapter {
+        public String name;
+        public String scanCommand;
+        public String dumpCommand;
+        public String btsnoopFile;
     }
 
     public static class Storage {
         public String receiver;
         public String method;
         public List<String> fields;
+        public int batchSize = 1;
+        public long batchMaxTimeMs = 1000;
+        public boolean approximateDerivedValues;
+        /** 0 to keep no history */
+        public long historyMemoryBytes = 8 * 1024 * 1024;
+
+        public int historyBlockBytes = 4096;
+        public int latestMaxTags = 1024;
     }
 
     public static class TimescaleDB {
@@ -84,4 +155,39 @@ public class Configuration {
     public static class Prometheus {
         public int httpPort;
     }
+
+    public static class Server {
+        /** 0 disables the server */
+        public int port;
+        /** Blank for all addresses */
+        public String bindAddress;
+
+        public int maxConnections = 500;
+        /** By IP address */
+        public Map<String, String> receivers = Map.of();
+    }
+
+    public static class Relay {
+        public String host;
+        public int port = 7155;
+        public long flushIntervalMs = 1000;
+        public int maxBatchSize = 500;
+        public long spoolMaxBytes = 4 * 1024 * 1024;
+        public long reconnectIntervalMs = 5000;
+    }
+
+    public static class LocalStore {
+        public String directory = "data";
+        public long flushIntervalMs = 10000;
+        public int maxBufferedMeasurements = 10000;
+    }
+
+    public static class Api {
+        /** 0 disables the API */
+        public int port;
+        /** Blank for all addresses */
+        public String bindAddress;
+
+        public long latestMaxAgeMs = 3600000;
+    }
 }
@@ -0,0 +1,282 @@
+package fi.tkgwf.ruuvi.config;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.log4j.Logger;
+
+/**
+ * The settings the measurement pipeline looks at for every packet, compiled from a {@link
+ * Configuration} into an immutable snapshot: the allowed MAC addresses and the names of the tags as
+ * sorted arrays of the MAC addresses as numbers, the stored fields as an enum set and a set of
+ * names, and the settings of each tag as strings for {@link TagProperties.Builder}, along with the
+ * defaults of the limiting strategies. The snapshot is safe to share between threads, and is passed
+ * to the pipeline components when they are created, and again when the {@link ConfigReloader}
+ * reloads the configuration.
+ */
+public final class RuntimeConfig {
+
+    private static final Logger LOG = Logger.getLogger(RuntimeConfig.class);
+
+    private static volatile RuntimeConfig current;
+
+    private final boolean allMacsAllowed;
+    /** Sorted */
+    private final long[] allowedMacs;
+    /** Sorted, with the names at the same indexes in {@link #names} */
+    private final long[] namedMacs;
+
+    private final String[] names;
+    private final Set<MeasurementField> storedFieldSet;
+    private final Set<String> storedFieldNames;
+    private final String receiver;
+    private final String storageMethod;
+    private final Map<String, Map<String, String>> tagSettings;
+    private final long measurementUpdateLimitMs;
+    private final double motionSensitivityThreshold;
+    private final int motionSensitivityPreviousMeasurements;
+    private final Map<String, String> deadbands;
+    private final long deadbandHeartbeatMs;
+    private final long alignedIntervalMs;
+
+    private RuntimeConfig(final Configuration configuration) {
+        final Configuration.Sensor sensor = configuration.sensor;
+        this.allMacsAllowed = sensor.allowedMac == null || sensor.allowedMac.isEmpty();
+        this.allowedMacs = keys(sensor.allowedMac, "allowedMac");
+        final Map<String, String> macAddressToName =
+                sensor.macAddressToName != null ? sensor.macAddressToName : Map.of();
+        final List<String> named = new ArrayList<>();
+        for (final String mac : macAddressToName.keySet()) {
+            if (key(mac) >= 0) {
+                named.add(mac);
+            } else {
+                LOG.warn("Ignoring the name of an invalid MAC address: " + mac);
+            }
+        }
+        named.sort((a, b) -> Long.compare(key(a), key(b)));
+        this.namedMacs = new long[named.size()];
+        this.names = new String[named.size()];
+        for (int i = 0; i < named.size(); i++) {
+            namedMacs[i] = key(named.get(i));
+            names[i] = macAddressToName.get(named.get(i));
+        }
+        final List<String> fields =
+                configuration.storage.fields != null ? configuration.storage.fields : List.of();
+        this.storedFieldNames = Set.copyOf(fields);
+        this.storedFieldSet = Collections.unmodifiableSet(MeasurementField.forNames(fields));
+        this.receiver = configuration.storage.receiver;
+        this.storageMethod = configuration.storage.method;
+        final Map<String, Map<String, String>> settings = new HashMap<>();
+        if (sensor.tagSettings != null) {
+            sensor.tagSettings.forEach(
+                    (mac, tag) -> {
+                        final Map<String, String> strings = new HashMap<>();
+                        tag.forEach((key, value) -> strings.put(key, String.valueOf(value)));
+                        settings.put(mac, Map.copyOf(strings));
+                    });
+        }
+        this.tagSettings = Map.copyOf(settings);
+        this.measurementUpdateLimitMs = sensor.measurementUpdateLimitMs;
+        this.motionSensitivityThreshold = sensor.motionSensitivityStrategyThreshold;
+        this.motionSensitivityPreviousMeasurements =
+                sensor.motionSensitivityStrategyNumberOfPreviousMeasurementsToKeep;
+        final Map<String, String> bands = new HashMap<>();
+        if (sensor.deadbands != null) {
+            sensor.deadbands.forEach((field, band) -> bands.put(field, String.valueOf(band)));
+        }
+        this.deadbands = Map.copyOf(bands);
+        this.deadbandHeartbeatMs = sensor.deadbandHeartbeatMs;
+        this.alignedIntervalMs = sensor.alignedIntervalMs;
+    }
+
+    /**
+     * @return the snapshot of the configuration
+     * @throws IllegalArgumentException if the settings of a tag are invalid
+     */
+    public static RuntimeConfig compile(final Configuration configuration) {
+        final RuntimeConfig config = new RuntimeConfig(configuration);
+        config.validateTagSettings();
+        return config;
+    }
+
+    /**
+     * @return the snapshot of {@link Configuration#get()}, compiled on first use
+     */
+    public static RuntimeConfig get() {
+        RuntimeConfig config = current;
+        if (config == null) {
+            synchronized (RuntimeConfig.class) {
+                config = current;
+                if (config == null) {
+                    config = compile(Configuration.get());
+                    current = config;
+                }
+            }
+        }
+        return config;
+    }
+
+    /** Replaces the snapshot returned by {@link #get()}, on a reload of the configuration */
+    static void set(final RuntimeConfig config) {
+        current = config;
+    }
+
+    /**
+     * @return true if the measurements of the MAC address are handled
+     */
+    public boolean isAllowedMac(final String mac) {
+        if (allMacsAllowed) {
+            return true;
+        }
+        final long key = key(mac);
+        return key >= 0 && Arrays.binarySearch(allowedMacs, key) >= 0;
+    }
+
+    /**
+     * @return the configured name of the tag, null if it has none
+     */
+    public String getName(final String mac) {
+        if (namedMacs.length == 0) {
+            return null;
+        }
+        final long key = key(mac);
+        final int index = key >= 0 ? Arrays.binarySearch(namedMacs, key) : -1;
+        return index >= 0 ? names[index] : null;
+    }
+
+    /**
+     * @return the stored fields, an {@link java.util.EnumSet} underneath, so a bitmask
+     */
+    public Set<MeasurementField> getStoredFields() {
+        return storedFieldSet;
+    }
+
+    /**
+     * @return true if the field, or other value, of the name is stored
+     */
+    public boolean isStoredField(final String name) {
+        return storedFieldNames.contains(name);
+    }
+
+    /**
+     * @return the name of this receiver, for the measurements received here
+     */
+    public String getReceiver() {
+        return receiver;
+    }
+
+    /**
+     * @return the storage method, which selects the database connection
+     */
+    public String getStorageMethod() {
+        return storageMethod;
+    }
+
+    /**
+     * @return the settings of the tag from {@link Configuration.Sensor#tagSettings}, empty if it
+     *     has none
+     */
+    public Map<String, String> getTagSettings(final String mac) {
+        return tagSettings.getOrDefault(mac, Map.of());
+    }
+
+    /**
+     * @return the default of {@link Configuration.Sensor#measurementUpdateLimitMs}
+     */
+    public long getMeasurementUpdateLimitMs() {
+        return measurementUpdateLimitMs;
+    }
+
+    /**
+     * @return the default of {@link Configuration.Sensor#motionSensitivityStrategyThreshold}
+     */
+    public double getMotionSensitivityThreshold() {
+        return motionSensitivityThreshold;
+    }
+
+    /**
+     * @return the default number of previous measurements kept by the motion sensitivity strategy
+     */
+    public int getMotionSensitivityPreviousMeasurements() {
+        return motionSensitivityPreviousMeasurements;
+    }
+
+    /**
+     * @return the default deadbands by field name, see {@link Configuration.Sensor#deadbands}
+     */
+    public Map<String, String> getDeadbands() {
+        return deadbands;
+    }
+
+    /**
+     * @return the default of {@link Configuration.Sensor#deadbandHeartbeatMs}
+     */
+    public long getDeadbandHeartbeatMs() {
+        return deadbandHeartbeatMs;
+    }
+
+    /**
+     * @return the default of {@link Configuration.Sensor#alignedIntervalMs}
+     */
+    public long getAlignedIntervalMs() {
+        return alignedIntervalMs;
+    }
+
+    /** Builds the properties of every tag with settings, so that a mistake is found up front */
+    private void validateTagSettings() {
+        tagSettings.forEach(
+                (mac, settings) -> {
+                    try {
+                        final TagProperties.Builder builder = TagProperties.builder(mac, this);
+                        settings.forEach(builder::add);
+                        builder.build();
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException(
+                                "Invalid tagSettings of " + mac + ": " + ex.getMessage(), ex);
+                    }
+                });
+    }
+
+    /**
+     * @return the MAC address of 12 hexadecimal digits as a number, -1 if it isn't one
+     */
+    static long key(final String mac) {
+        if (mac == null || mac.length() != 12) {
+            return -1;
+        }
+        long key = 0;
+        for (int i = 0; i < 12; i++) {
+            final int digit = Character.digit(mac.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            key = key << 4 | digit;
+        }
+        return key;
+    }
+
+    private static long[] keys(final Collection<String> macs, final String setting) {
+        if (macs == null) {
+            return new long[0];
+        }
+        final long[] keys = new long[macs.size()];
+        int count = 0;
+        for (final String mac : macs) {
+            final long key = key(mac);
+            if (key >= 0) {
+                keys[count++] = key;
+            } else {
+                LOG.warn("Ignoring an invalid MAC address in " + setting + ": " + mac);
+            }
+        }
+        final long[] valid = Arrays.copyOf(keys, count);
+        Arrays.sort(valid);
+        return valid;
+    }
+}
@@ -1,24 +1,71 @@
 package fi.tkgwf.ruuvi.config;
 
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
 import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import fi.tkgwf.ruuvi.strategy.impl.DeadbandStrategy;
 import fi.tkgwf.ruuvi.strategy.impl.DefaultDiscardingWithMotionSensitivityStrategy;
+import fi.tkgwf.ruuvi.strategy.impl.WallClockAlignedStrategy;
+import fi.tkgwf.ruuvi.strategy.impl.WindowedAggregationStrategy;
+import io.prometheus.client.CollectorRegistry;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class TagProperties {
 
-    private static final Map<String, TagProperties> tagsInRange = new HashMap<>();
+    /** Created on first use, after the configuration has been read */
+    private static class Registry {
+        static final TagRegistry INSTANCE =
+                new TagRegistry(
+                        TagProperties::create,
+                        Configuration.get().sensor.tagIdleTimeoutMs,
+                        Configuration.get().sensor.maxTrackedTags,
+                        CollectorRegistry.defaultRegistry);
+    }
 
-    /** Get tagProperties for macAddress. If address is new, new tagProperties object is created. */
+    /**
+     * Get tagProperties for macAddress. If address is new, new tagProperties object is created from
+     * the settings of the tag in {@link Configuration.Sensor#tagSettings}. The tags not seen for
+     * {@link Configuration.Sensor#tagIdleTimeoutMs} are forgotten, see {@link TagRegistry}.
+     */
     public static TagProperties get(String macAddress) {
-        return tagsInRange.computeIfAbsent(
-                macAddress,
-                (absent) ->
-                        new TagProperties(
-                                macAddress, new DefaultDiscardingWithMotionSensitivityStrategy()));
+        return Registry.INSTANCE.get(macAddress);
+    }
+
+    /**
+     * Forgets the properties of the tags, they are created again from the current configuration
+     * when the tags are seen next.
+     *
+     * @return the number of tags forgotten
+     */
+    public static int forget(Predicate<String> macAddresses) {
+        return Registry.INSTANCE.forget(macAddresses);
+    }
+
+    /**
+     * Hands over the measurements the limiting strategies of the forgotten tags held back, to be
+     * stored.
+     */
+    public static void drainFlushed(Consumer<PrimitiveMeasurement> consumer) {
+        Registry.INSTANCE.drainFlushed(consumer);
+    }
+
+    /** Hands over the measurements the limiting strategies of all the tags hold back, on exit. */
+    public static void flushAll(Consumer<PrimitiveMeasurement> consumer) {
+        Registry.INSTANCE.flushAll(consumer);
+    }
+
+    private static TagProperties create(String macAddress) {
+        RuntimeConfig config = RuntimeConfig.get();
+        Builder builder = builder(macAddress, config);
+        config.getTagSettings(macAddress).forEach(builder::add);
+        return builder.build();
     }
 
     private final String mac;
     private final LimitingStrategy limitingStrategy;
+    /** Guarded by this */
+    private boolean released;
 
     private TagProperties(final String mac, final LimitingStrategy limitingStrategy) {
         this.mac = mac;
@@ -33,29 +80,103 @@ public class TagProperties {
         return limitingStrategy;
     }
 
+    /**
+     * @return true if the tag has been forgotten and its limiting strategy released. The strategy
+     *     is applied holding the lock of the properties, and only if this is false, so that it
+     *     isn't used while it is released.
+     */
+    public synchronized boolean isReleased() {
+        return released;
+    }
+
+    /** Hands over what the limiting strategy holds back, unless it has been released */
+    synchronized void flush(Consumer<PrimitiveMeasurement> consumer) {
+        if (!released) {
+            limitingStrategy.flush().ifPresent(consumer);
+        }
+    }
+
+    /** Hands over what the limiting strategy holds back and releases it, when forgotten */
+    synchronized void release(Consumer<PrimitiveMeasurement> consumer) {
+        if (!released) {
+            limitingStrategy.flush().ifPresent(consumer);
+            limitingStrategy.release();
+            released = true;
+        }
+    }
+
     public static Builder builder(final String mac) {
-        return new Builder(mac);
+        return new Builder(mac, RuntimeConfig.get());
+    }
+
+    /**
+     * @param defaults the snapshot the defaults of the limiting strategies are taken from
+     */
+    public static Builder builder(final String mac, final RuntimeConfig defaults) {
+        return new Builder(mac, defaults);
     }
 
     public static class Builder {
         private String mac;
-        private LimitingStrategy limitingStrategy;
+        private final RuntimeConfig defaults;
+        private String limitingStrategy;
+        private long aggregationWindowMs;
+        private final Map<String, String> deadbands;
+        private long deadbandHeartbeatMs;
+        private long alignedIntervalMs;
 
         public Builder(final String mac) {
+            this(mac, RuntimeConfig.get());
+        }
+
+        public Builder(final String mac, final RuntimeConfig defaults) {
             this.mac = mac;
+            this.defaults = defaults;
+            this.aggregationWindowMs = defaults.getMeasurementUpdateLimitMs();
+            this.deadbands = new HashMap<>(defaults.getDeadbands());
+            this.deadbandHeartbeatMs = defaults.getDeadbandHeartbeatMs();
+            this.alignedIntervalMs = defaults.getAlignedIntervalMs();
         }
 
         public Builder add(final String key, final String value) {
             if ("limitingStrategy".equals(key)) {
-                if ("onMovement".equals(value)) {
-                    this.limitingStrategy = new DefaultDiscardingWithMotionSensitivityStrategy();
+                if ("onMovement".equals(value)
+                        || "aggregate".equals(value)
+                        || "deadband".equals(value)
+                        || "aligned".equals(value)) {
+                    this.limitingStrategy = value;
+                } else {
+                    throw new IllegalArgumentException(
+                            "Invalid limiting strategy for " + mac + ": " + value);
                 }
+            } else if ("aggregationWindowMs".equals(key)) {
+                this.aggregationWindowMs = Long.parseLong(value);
+            } else if (key.startsWith("deadband.")) {
+                this.deadbands.put(key.substring("deadband.".length()), value);
+            } else if ("deadbandHeartbeatMs".equals(key)) {
+                this.deadbandHeartbeatMs = Long.parseLong(value);
+            } else if ("alignedIntervalMs".equals(key)) {
+                this.alignedIntervalMs = Long.parseLong(value);
             }
             return this;
         }
 
         public TagProperties build() {
-            return new TagProperties(mac, limitingStrategy);
+            if ("aggregate".equals(limitingStrategy)) {
+                return new TagProperties(mac, new WindowedAggregationStrategy(aggregationWindowMs));
+            }
+            if ("deadband".equals(limitingStrategy)) {
+                return new TagProperties(mac, new DeadbandStrategy(deadbands, deadbandHeartbeatMs));
+            }
+            if ("aligned".equals(limitingStrategy)) {
+                return new TagProperties(mac, new WallClockAlignedStrategy(alignedIntervalMs));
+            }
+            return new TagProperties(
+                    mac,
+                    new DefaultDiscardingWithMotionSensitivityStrategy(
+                            defaults.getMeasurementUpdateLimitMs(),
+                            defaults.getMotionSensitivityThreshold(),
+                            defaults.getMotionSensitivityPreviousMeasurements()));
         }
     }
 }
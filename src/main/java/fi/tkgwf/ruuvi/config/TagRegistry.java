@@ -0,0 +1,292 @@
+package fi.tkgwf.ruuvi.config;
+
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * The {@link TagProperties} of the tags in range, created when a tag is first seen and forgotten
+ * when it hasn't been seen for the idle timeout, or when there are too many tags, the least
+ * recently seen first. A forgotten tag starts over with new properties, and new limiting strategy
+ * state, when it is seen again. What the strategy of a forgotten tag held back is kept for {@link
+ * #drainFlushed(Consumer)}.
+ *
+ * <p>The limiting strategy of a tag is released holding the lock of its {@link TagProperties}, see
+ * {@link TagProperties#isReleased()}.
+ *
+ * <p>The tags are split into shards by the hash of the MAC address, each locked separately, so the
+ * threads looking up different tags rarely wait for each other. The idle tags of a shard are
+ * evicted when it is accessed, without a background thread.
+ *
+ * <p>Thread safe.
+ */
+public class TagRegistry {
+
+    private static final int SHARDS = 16;
+    /** The evicted tags are remembered by a bit per hash in each shard, for the re-admissions */
+    private static final int EVICTED_BITS_PER_SHARD = 4096;
+    /**
+     * The bits are cleared when this many are set, so that the new tags hashing like long gone ones
+     * aren't counted as re-admissions
+     */
+    private static final int MAX_EVICTED_PER_SHARD = EVICTED_BITS_PER_SHARD / 8;
+
+    private final Function<String, TagProperties> factory;
+    private final long idleTimeoutMs;
+    private final int maxTagsPerShard;
+    private final LongSupplier clock;
+    private final Shard[] shards = new Shard[SHARDS];
+
+    /** The measurements the strategies of the forgotten tags held back, to be stored */
+    private final Queue<PrimitiveMeasurement> flushed = new ConcurrentLinkedQueue<>();
+
+    private final Gauge liveTags =
+            Gauge.build()
+                    .namespace("ruuvi")
+                    .name("tag_registry_live_tags")
+                    .help("Tags whose properties and limiting strategy state are kept")
+                    .create();
+    private final Counter evictions =
+            Counter.build()
+                    .namespace("ruuvi")
+                    .name("tag_registry_evictions_total")
+                    .help("Tags forgotten because they were idle or there were too many")
+                    .create();
+    private final Counter readmissions =
+            Counter.build()
+                    .namespace("ruuvi")
+                    .name("tag_registry_readmissions_total")
+                    .help("Forgotten tags seen again, approximately")
+                    .create();
+
+    /**
+     * @param factory creates the properties of a tag from its MAC address
+     * @param idleTimeoutMs how long a tag is kept after it was last seen, 0 to keep it until there
+     *     are too many
+     * @param maxTags the most tags kept, rounded up to a multiple of the number of shards
+     */
+    public TagRegistry(
+            final Function<String, TagProperties> factory,
+            final long idleTimeoutMs,
+            final int maxTags) {
+        this(factory, idleTimeoutMs, maxTags, System::currentTimeMillis);
+    }
+
+    /**
+     * Like {@link #TagRegistry(Function, long, int)}, exporting the metrics of the tags.
+     *
+     * @param metrics the registry the metrics are registered in, once for the registry
+     */
+    public TagRegistry(
+            final Function<String, TagProperties> factory,
+            final long idleTimeoutMs,
+            final int maxTags,
+            final CollectorRegistry metrics) {
+        this(factory, idleTimeoutMs, maxTags);
+        if (metrics != null) {
+            liveTags.register(metrics);
+            evictions.register(metrics);
+            readmissions.register(metrics);
+        }
+    }
+
+    TagRegistry(
+            final Function<String, TagProperties> factory,
+            final long idleTimeoutMs,
+            final int maxTags,
+            final LongSupplier clock) {
+        if (maxTags <= 0) {
+            throw new IllegalArgumentException("The maximum number of tags must be positive");
+        }
+        this.factory = factory;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxTagsPerShard = (maxTags + SHARDS - 1) / SHARDS;
+        this.clock = clock;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * @return the properties of the tag, created if the tag isn't known
+     */
+    public TagProperties get(final String mac) {
+        final long now = clock.getAsLong();
+        final int hash = mac.hashCode() * 0x9E3779B9;
+        final Shard shard = shards[hash >>> 28];
+        synchronized (shard) {
+            evictIdle(shard, now);
+            Entry entry = shard.tags.get(mac);
+            if (entry == null) {
+                entry = new Entry(factory.apply(mac));
+                shard.tags.put(mac, entry);
+                liveTags.inc();
+                if (shard.readmitted(hash)) {
+                    readmissions.inc();
+                }
+                if (shard.tags.size() > maxTagsPerShard) {
+                    final Iterator<Map.Entry<String, Entry>> eldest =
+                            shard.tags.entrySet().iterator();
+                    evict(shard, eldest, eldest.next());
+                }
+            }
+            entry.lastSeen = now;
+            return entry.properties;
+        }
+    }
+
+    /**
+     * Forgets the tags, so that they start over with new properties when they are seen next, like
+     * after a change of their settings.
+     *
+     * @return the number of tags forgotten
+     */
+    public int forget(final Predicate<String> macs) {
+        int forgotten = 0;
+        for (final Shard shard : shards) {
+            synchronized (shard) {
+                final Iterator<Map.Entry<String, Entry>> tags = shard.tags.entrySet().iterator();
+                while (tags.hasNext()) {
+                    final Map.Entry<String, Entry> tag = tags.next();
+                    if (macs.test(tag.getKey())) {
+                        tags.remove();
+                        release(tag.getValue().properties);
+                        liveTags.dec();
+                        forgotten++;
+                    }
+                }
+            }
+        }
+        return forgotten;
+    }
+
+    /**
+     * Hands over the measurements the limiting strategies of the forgotten tags held back, see
+     * {@link LimitingStrategy#flush()}.
+     */
+    public void drainFlushed(final Consumer<PrimitiveMeasurement> consumer) {
+        PrimitiveMeasurement measurement;
+        while ((measurement = flushed.poll()) != null) {
+            consumer.accept(measurement);
+        }
+    }
+
+    /** Flushes the limiting strategies of all the tags kept, on exit. */
+    public void flushAll(final Consumer<PrimitiveMeasurement> consumer) {
+        for (final Shard shard : shards) {
+            synchronized (shard) {
+                for (final Entry entry : shard.tags.values()) {
+                    entry.properties.flush(consumer);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of tags kept
+     */
+    public int size() {
+        return (int) liveTags.get();
+    }
+
+    /**
+     * @return the number of tags forgotten
+     */
+    public long getEvictions() {
+        return (long) evictions.get();
+    }
+
+    /**
+     * @return the number of forgotten tags seen again, approximately: a new tag that hashes like a
+     *     forgotten one is counted too
+     */
+    public long getReadmissions() {
+        return (long) readmissions.get();
+    }
+
+    private void evictIdle(final Shard shard, final long now) {
+        if (idleTimeoutMs <= 0) {
+            return;
+        }
+        // in the order of access, so the idle ones are first
+        final Iterator<Map.Entry<String, Entry>> tags = shard.tags.entrySet().iterator();
+        while (tags.hasNext()) {
+            final Map.Entry<String, Entry> tag = tags.next();
+            if (now - tag.getValue().lastSeen < idleTimeoutMs) {
+                break;
+            }
+            evict(shard, tags, tag);
+        }
+    }
+
+    private void evict(
+            final Shard shard,
+            final Iterator<Map.Entry<String, Entry>> tags,
+            final Map.Entry<String, Entry> tag) {
+        tags.remove();
+        shard.remember(tag.getKey().hashCode() * 0x9E3779B9);
+        release(tag.getValue().properties);
+        liveTags.dec();
+        evictions.inc();
+    }
+
+    private void release(final TagProperties properties) {
+        properties.release(flushed::add);
+    }
+
+    private static class Entry {
+        final TagProperties properties;
+        long lastSeen;
+
+        Entry(final TagProperties properties) {
+            this.properties = properties;
+        }
+    }
+
+    /** Guarded by itself */
+    private static class Shard {
+        /** In the order of access, the least recently seen first */
+        final LinkedHashMap<String, Entry> tags = new LinkedHashMap<>(16, 0.75f, true);
+
+        final long[] evicted = new long[EVICTED_BITS_PER_SHARD / 64];
+        int evictedBits;
+
+        void remember(final int hash) {
+            final int bit = hash & (EVICTED_BITS_PER_SHARD - 1);
+            if ((evicted[bit >>> 6] & 1L << bit) != 0) {
+                return;
+            }
+            if (evictedBits >= MAX_EVICTED_PER_SHARD) {
+                Arrays.fill(evicted, 0);
+                evictedBits = 0;
+            }
+            evicted[bit >>> 6] |= 1L << bit;
+            evictedBits++;
+        }
+
+        /**
+         * @return true if a tag with the hash was evicted, forgetting it
+         */
+        boolean readmitted(final int hash) {
+            final int bit = hash & (EVICTED_BITS_PER_SHARD - 1);
+            if ((evicted[bit >>> 6] & 1L << bit) == 0) {
+                return false;
+            }
+            evicted[bit >>> 6] &= ~(1L << bit);
+            evictedBits--;
+            return true;
+        }
+    }
+}
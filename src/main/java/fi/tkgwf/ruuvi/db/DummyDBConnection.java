@@ -1,6 +1,7 @@
 package fi.tkgwf.ruuvi.db;
 
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
 import org.apache.log4j.Logger;
 
 public class DummyDBConnection implements RuuviDBConnection {
@@ -12,6 +13,11 @@ public class DummyDBConnection implements RuuviDBConnection {
         LOG.debug(measurement);
     }
 
+    @Override
+    public void save(PrimitiveMeasurement measurement) {
+        LOG.debug(measurement);
+    }
+
     @Override
     public void close() {}
 }
@@ -3,8 +3,14 @@ package fi.tkgwf.ruuvi.db;
 import com.influxdb.client.*;
 import com.influxdb.client.write.Point;
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
 import fi.tkgwf.ruuvi.config.Configuration;
 import fi.tkgwf.ruuvi.utils.InfluxDB2Converter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 public class InfluxDB2Connection implements RuuviDBConnection {
     private final InfluxDBClient client;
@@ -64,6 +70,35 @@ public class InfluxDB2Connection implements RuuviDBConnection {
         }
     }
 
+    @Override
+    public void save(PrimitiveMeasurement measurement) {
+        Point point = InfluxDB2Converter.toInflux(measurement);
+        if (writeApi != null) {
+            writeApi.writePoint(point);
+        } else {
+            writeApiBlocking.writePoint(point);
+        }
+    }
+
+    @Override
+    public void saveAll(MeasurementBatch batch) {
+        PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        List<Point> points = new ArrayList<>(batch.size());
+        for (int row = 0; row < batch.size(); row++) {
+            points.add(InfluxDB2Converter.toInflux(batch.get(row, measurement)));
+        }
+        if (writeApi != null) {
+            writeApi.writePoints(points);
+        } else {
+            writeApiBlocking.writePoints(points);
+        }
+    }
+
+    @Override
+    public Set<MeasurementField> getStoredFields() {
+        return MeasurementField.forNames(cfg.storage.fields);
+    }
+
     @Override
     public void close() {
         client.close();
@@ -1,8 +1,14 @@
 package fi.tkgwf.ruuvi.db;
 
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
 import fi.tkgwf.ruuvi.config.Configuration;
 import fi.tkgwf.ruuvi.utils.InfluxDBConverter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import org.influxdb.InfluxDB;
 import org.influxdb.InfluxDBFactory;
@@ -59,6 +65,28 @@ public class InfluxDBConnection implements RuuviDBConnection {
         influxDB.write(point);
     }
 
+    @Override
+    public void save(PrimitiveMeasurement measurement) {
+        Point point = InfluxDBConverter.toInflux(measurement);
+        influxDB.write(point);
+    }
+
+    /** Writes the batch as one line protocol request */
+    @Override
+    public void saveAll(MeasurementBatch batch) {
+        PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        List<String> lines = new ArrayList<>(batch.size());
+        for (int row = 0; row < batch.size(); row++) {
+            lines.add(InfluxDBConverter.toInflux(batch.get(row, measurement)).lineProtocol());
+        }
+        influxDB.write(lines);
+    }
+
+    @Override
+    public Set<MeasurementField> getStoredFields() {
+        return MeasurementField.forNames(cfg.storage.fields);
+    }
+
     @Override
     public void close() {
         influxDB.close();
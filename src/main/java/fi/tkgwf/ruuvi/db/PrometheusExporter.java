@@ -2,6 +2,9 @@ package fi.tkgwf.ruuvi.db;
 
 import fi.tkgwf.ruuvi.Main;
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
 import io.prometheus.client.SimpleCollector;
@@ -90,6 +93,36 @@ public final class PrometheusExporter implements RuuviDBConnection {
                     "Time at which the last update was collected for this measurement",
                     Gauge.build());
 
+    /** The gauge of each {@link MeasurementField} by ordinal, null for the data format label */
+    private final Gauge[] gaugesByField = new Gauge[MeasurementField.ALL.length];
+
+    {
+        gaugesByField[MeasurementField.RSSI.ordinal()] = rssi;
+        gaugesByField[MeasurementField.TEMPERATURE.ordinal()] = temperature;
+        gaugesByField[MeasurementField.HUMIDITY.ordinal()] = humidity;
+        gaugesByField[MeasurementField.PRESSURE.ordinal()] = pressure;
+        gaugesByField[MeasurementField.ACCELERATION_X.ordinal()] = accelerationX;
+        gaugesByField[MeasurementField.ACCELERATION_Y.ordinal()] = accelerationY;
+        gaugesByField[MeasurementField.ACCELERATION_Z.ordinal()] = accelerationZ;
+        gaugesByField[MeasurementField.BATTERY_VOLTAGE.ordinal()] = batteryVoltage;
+        gaugesByField[MeasurementField.TX_POWER.ordinal()] = txPower;
+        gaugesByField[MeasurementField.MEASUREMENT_SEQUENCE_NUMBER.ordinal()] =
+                measurementSequenceNumber;
+        gaugesByField[MeasurementField.MOVEMENT_COUNTER.ordinal()] = movementCounter;
+        gaugesByField[MeasurementField.ACCELERATION_TOTAL.ordinal()] = accelerationTotal;
+        gaugesByField[MeasurementField.ACCELERATION_ANGLE_FROM_X.ordinal()] =
+                accelerationAngleFromX;
+        gaugesByField[MeasurementField.ACCELERATION_ANGLE_FROM_Y.ordinal()] =
+                accelerationAngleFromY;
+        gaugesByField[MeasurementField.ACCELERATION_ANGLE_FROM_Z.ordinal()] =
+                accelerationAngleFromZ;
+        gaugesByField[MeasurementField.ABSOLUTE_HUMIDITY.ordinal()] = absoluteHumidity;
+        gaugesByField[MeasurementField.DEW_POINT.ordinal()] = dewPoint;
+        gaugesByField[MeasurementField.EQUILIBRIUM_VAPOR_PRESSURE.ordinal()] =
+                equilibriumVaporPressure;
+        gaugesByField[MeasurementField.AIR_DENSITY.ordinal()] = airDensity;
+    }
+
     public PrometheusExporter(int port) {
         LOG.debug("Initialising PrometheusExporter, serving metrics on port " + port);
         try {
@@ -160,6 +193,34 @@ public final class PrometheusExporter implements RuuviDBConnection {
         lastUpdate.labels(mac, name, dataFormat).setToCurrentTime();
     }
 
+    @Override
+    public void save(PrimitiveMeasurement measurement) {
+        String mac = measurement.getMac();
+        String name = measurement.getName() != null ? measurement.getName() : mac;
+        String dataFormat =
+                measurement.has(MeasurementField.DATA_FORMAT)
+                        ? String.valueOf(measurement.getInt(MeasurementField.DATA_FORMAT))
+                        : "unknown";
+
+        prometheusExportedCount.labels(mac, name, dataFormat).inc();
+        for (MeasurementField field : MeasurementField.ALL) {
+            Gauge gauge = gaugesByField[field.ordinal()];
+            if (gauge != null && measurement.has(field)) {
+                gauge.labels(mac, name, dataFormat).set(measurement.get(field));
+            }
+        }
+        lastUpdate.labels(mac, name, dataFormat).setToCurrentTime();
+    }
+
+    /** Sets the gauges row by row, reusing one measurement for the rows */
+    @Override
+    public void saveAll(MeasurementBatch batch) {
+        PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        for (int row = 0; row < batch.size(); row++) {
+            save(batch.get(row, measurement));
+        }
+    }
+
     private static void setValue(Gauge.Child gauge, Number value) {
         if (value != null) {
             gauge.set(value.doubleValue());
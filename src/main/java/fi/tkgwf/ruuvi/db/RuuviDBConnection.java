@@ -1,8 +1,17 @@
 package fi.tkgwf.ruuvi.db;
 
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
 import fi.tkgwf.ruuvi.config.Configuration;
+import fi.tkgwf.ruuvi.config.RuntimeConfig;
+import fi.tkgwf.ruuvi.relay.RelayConnection;
+import fi.tkgwf.ruuvi.store.LocalStoreConnection;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.EnumSet;
+import java.util.Set;
 import org.apache.log4j.Logger;
 
 public interface RuuviDBConnection {
@@ -10,7 +19,7 @@ public interface RuuviDBConnection {
     Logger LOG = Logger.getLogger(RuuviDBConnection.class);
 
     static RuuviDBConnection createDBConnection() {
-        var method = Configuration.get().storage.method;
+        var method = RuntimeConfig.get().getStorageMethod();
         LOG.info("Creating database connection for storageMethod: " + method);
         try {
             switch (method) {
@@ -22,12 +31,16 @@ public interface RuuviDBConnection {
                     return new InfluxDB2Connection();
                 case "prometheus":
                     return new PrometheusExporter(Configuration.get().prometheus.httpPort);
+                case "relay":
+                    return new RelayConnection();
+                case "local":
+                    return new LocalStoreConnection();
                 case "dummy":
                     return new DummyDBConnection();
                 default:
                     throw new IllegalArgumentException("Invalid storage method: " + method);
             }
-        } catch (SQLException e) {
+        } catch (SQLException | IOException e) {
             LOG.error("Unable to configure storage method", e);
             LOG.info("Switching to logging mode only");
             return new DummyDBConnection();
@@ -41,6 +54,40 @@ public interface RuuviDBConnection {
      */
     void save(EnhancedRuuviMeasurement measurement);
 
+    /**
+     * Saves the measurement. By default it is converted to a bean for {@link
+     * #save(EnhancedRuuviMeasurement)}, connections override this to save it without the
+     * conversion.
+     *
+     * @param measurement
+     */
+    default void save(PrimitiveMeasurement measurement) {
+        save(measurement.toEnhanced());
+    }
+
+    /**
+     * Saves all the measurements of the batch. By default they are saved one by one with {@link
+     * #save(PrimitiveMeasurement)}, connections override this to write the whole batch at once. The
+     * batch is reused after this returns, so it must not be kept.
+     *
+     * @param batch
+     */
+    default void saveAll(MeasurementBatch batch) {
+        for (int row = 0; row < batch.size(); row++) {
+            save(batch.get(row, new PrimitiveMeasurement()));
+        }
+    }
+
+    /**
+     * The fields this connection stores, the derived values of the other fields aren't calculated.
+     * All fields by default.
+     *
+     * @return the stored fields
+     */
+    default Set<MeasurementField> getStoredFields() {
+        return EnumSet.allOf(MeasurementField.class);
+    }
+
     /** Closes the DB connection */
     void close();
 }
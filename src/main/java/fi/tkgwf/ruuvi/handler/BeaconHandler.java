@@ -2,10 +2,12 @@ package fi.tkgwf.ruuvi.handler;
 
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
 import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
 import fi.tkgwf.ruuvi.common.bean.RuuviMeasurement;
 import fi.tkgwf.ruuvi.common.parser.DataFormatParser;
 import fi.tkgwf.ruuvi.common.parser.impl.AnyDataFormatParser;
-import fi.tkgwf.ruuvi.config.Configuration;
+import fi.tkgwf.ruuvi.config.RuntimeConfig;
 import java.util.Optional;
 import org.apache.log4j.Logger;
 
@@ -14,10 +16,28 @@ public class BeaconHandler {
 
     private final DataFormatParser parser = new AnyDataFormatParser();
 
-    private final Configuration cfg = Configuration.get();
+    private volatile RuntimeConfig config;
 
     private static final Logger LOG = Logger.getLogger(BeaconHandler.class);
 
+    public BeaconHandler() {
+        this(RuntimeConfig.get());
+    }
+
+    /**
+     * @param config the names of the tags and the receiver are looked up from
+     */
+    public BeaconHandler(final RuntimeConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * @param config the snapshot of a reloaded configuration
+     */
+    public void setConfig(final RuntimeConfig config) {
+        this.config = config;
+    }
+
     /**
      * Handles a packet and creates a {@link RuuviMeasurement} if the handler understands this
      * packet.
@@ -27,6 +47,23 @@ public class BeaconHandler {
      *     packet
      */
     public Optional<EnhancedRuuviMeasurement> handle(HCIData hciData) {
+        return decode(hciData).map(PrimitiveMeasurement::toEnhanced);
+    }
+
+    /**
+     * Like {@link #handle(HCIData)}, but creates a {@link PrimitiveMeasurement}.
+     *
+     * @param hciData the data parsed from hcidump
+     * @return the measurement if this handler can parse the packet
+     */
+    public Optional<PrimitiveMeasurement> decode(HCIData hciData) {
+        if (hciData.measurement != null) { // decoded by a relay already
+            PrimitiveMeasurement measurement = hciData.measurement;
+            measurement.setName(config.getName(hciData.mac));
+            measurement.setReceiver(
+                    hciData.receiver != null ? hciData.receiver : config.getReceiver());
+            return Optional.of(measurement);
+        }
         HCIData.Report.AdvertisementData adData =
                 hciData.findAdvertisementDataByType(
                         0xFF); // Manufacturer-specific data, raw dataformats
@@ -41,18 +78,18 @@ public class BeaconHandler {
         }
 
         if (adData.dataBytes()[0] == (byte) 0x99 && adData.dataBytes()[1] == (byte) 0x04) {
-            RuuviMeasurement measurement = parser.parse(adData.dataBytes());
-            if (measurement == null) {
+            RuuviMeasurement parsed = parser.parse(adData.dataBytes());
+            if (parsed == null) {
                 return Optional.empty();
             }
 
-            EnhancedRuuviMeasurement enhancedMeasurement =
-                    new EnhancedRuuviMeasurement(measurement);
-            enhancedMeasurement.setMac(hciData.mac);
-            enhancedMeasurement.setRssi(hciData.rssi);
-            enhancedMeasurement.setName(cfg.sensor.macAddressToName.get(hciData.mac));
-            enhancedMeasurement.setReceiver(Configuration.get().storage.receiver);
-            return Optional.of(enhancedMeasurement);
+            PrimitiveMeasurement measurement = PrimitiveMeasurement.from(parsed);
+            measurement.setMac(hciData.mac);
+            measurement.set(MeasurementField.RSSI, hciData.rssi);
+            measurement.setName(config.getName(hciData.mac));
+            measurement.setReceiver(
+                    hciData.receiver != null ? hciData.receiver : config.getReceiver());
+            return Optional.of(measurement);
         }
         // LOG.error("Data format 5 (RAWv2) is only supported format.");
         return Optional.empty();
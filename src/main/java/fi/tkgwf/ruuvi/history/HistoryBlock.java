@@ -0,0 +1,314 @@
+package fi.tkgwf.ruuvi.history;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A fixed size block of the measurements of one tag, compressed like in Facebook's Gorilla: the
+ * times as deltas of the deltas, the values XORed with the previous value of the same field, with
+ * only the meaningful bits written. The block is self-contained, its first row is written in full,
+ * so that it can be dropped or decoded independently of the other blocks.
+ *
+ * <p>A row is written as
+ *
+ * <ul>
+ *   <li>the time: 64 bits on the first row, then the delta of the delta: '0' for 0, '10' and 7
+ *       bits, '110' and 9 bits, '1110' and 12 bits, '11110' and 32 bits or '11111' and 64 bits
+ *   <li>the fields present: '0' if the same as on the previous row, otherwise '1' and a bit per
+ *       field
+ *   <li>the value of each field present, XORed with its previous value: '0' if the same, '10' and
+ *       the meaningful bits if they fit in the previous window of leading and trailing zeros,
+ *       otherwise '11', 5 bits for the leading zeros, 6 bits for the meaningful bits and the bits
+ * </ul>
+ *
+ * <p>Not thread safe, {@link MeasurementHistory} synchronizes the access.
+ */
+class HistoryBlock {
+
+    private static final int FIELDS = MeasurementField.ALL.length;
+    /** The most bits a row can take */
+    static final int MAX_ROW_BITS = 69 + 1 + FIELDS + FIELDS * (2 + 5 + 6 + 64);
+
+    final String mac;
+    final ByteBuffer buffer;
+    private final long capacityBits;
+    private long position;
+
+    private int rows;
+    private long minTime = Long.MAX_VALUE;
+    private long maxTime = Long.MIN_VALUE;
+    private String name;
+    /** Set when the buffer has been given to another block */
+    boolean evicted;
+
+    private final EncodingState state = new EncodingState();
+
+    HistoryBlock(final String mac, final ByteBuffer buffer) {
+        this.mac = mac;
+        this.buffer = buffer;
+        this.capacityBits = (long) buffer.capacity() * 8;
+    }
+
+    /**
+     * Appends the measurement to the block.
+     *
+     * @return false if the block is full, nothing is written then
+     */
+    boolean append(final PrimitiveMeasurement measurement, final long time) {
+        if (capacityBits - position < MAX_ROW_BITS) {
+            return false;
+        }
+        final long presence = measurement.getPresence();
+        if (rows == 0) {
+            write(time, 64);
+            write(1, 1);
+            write(presence, FIELDS);
+            state.time = time;
+        } else {
+            writeTime(time - state.time);
+            if (presence == state.presence) {
+                write(0, 1);
+            } else {
+                write(1, 1);
+                write(presence, FIELDS);
+            }
+            state.advance(time);
+        }
+        state.presence = presence;
+        for (final MeasurementField field : MeasurementField.ALL) {
+            if ((presence & field.bit()) != 0) {
+                writeValue(field.ordinal(), Double.doubleToLongBits(measurement.get(field)));
+            }
+        }
+        rows++;
+        minTime = Math.min(minTime, time);
+        maxTime = Math.max(maxTime, time);
+        name = measurement.getName();
+        return true;
+    }
+
+    int rows() {
+        return rows;
+    }
+
+    long minTime() {
+        return minTime;
+    }
+
+    long maxTime() {
+        return maxTime;
+    }
+
+    /**
+     * Copies the rows written so far into the buffer, which must be at least as large as this
+     * block's, to decode them without holding the lock of the history.
+     *
+     * @return a block reading the copied rows
+     */
+    HistoryBlock copyTo(final ByteBuffer copy) {
+        final int bytes = (int) ((position + 7) >>> 3);
+        for (int i = 0; i < bytes; i++) {
+            copy.put(i, buffer.get(i));
+        }
+        final HistoryBlock block = new HistoryBlock(mac, copy);
+        block.position = position;
+        block.rows = rows;
+        block.minTime = minTime;
+        block.maxTime = maxTime;
+        block.name = name;
+        return block;
+    }
+
+    /**
+     * Decodes the rows of the block with times from {@code from} to {@code to}, both inclusive.
+     *
+     * @param target the measurement the rows are decoded to, one after another
+     * @param action called with the target for each row
+     */
+    void forEach(
+            final long from,
+            final long to,
+            final PrimitiveMeasurement target,
+            final Consumer<? super PrimitiveMeasurement> action) {
+        if (rows == 0 || maxTime < from || minTime > to) {
+            return;
+        }
+        final EncodingState decoded = new EncodingState();
+        final long[] cursor = {0};
+        for (int row = 0; row < rows; row++) {
+            final long time;
+            if (row == 0) {
+                time = read(cursor, 64);
+                decoded.time = time;
+            } else {
+                time = decoded.time + readTimeDelta(cursor, decoded);
+                decoded.advance(time);
+            }
+            if (read(cursor, 1) != 0) {
+                decoded.presence = read(cursor, FIELDS);
+            }
+            for (final MeasurementField field : MeasurementField.ALL) {
+                if ((decoded.presence & field.bit()) != 0) {
+                    readValue(cursor, decoded, field.ordinal());
+                }
+            }
+            if (time >= from && time <= to) {
+                target.reset();
+                for (final MeasurementField field : MeasurementField.ALL) {
+                    if ((decoded.presence & field.bit()) != 0) {
+                        target.set(field, Double.longBitsToDouble(decoded.values[field.ordinal()]));
+                    }
+                }
+                target.setTime(time);
+                target.setMac(mac);
+                target.setName(name);
+                action.accept(target);
+            }
+        }
+    }
+
+    private void writeTime(final long delta) {
+        final long deltaOfDelta = delta - state.delta;
+        if (deltaOfDelta == 0) {
+            write(0, 1);
+        } else if (fits(deltaOfDelta, 7)) {
+            write(0b10, 2);
+            write(deltaOfDelta, 7);
+        } else if (fits(deltaOfDelta, 9)) {
+            write(0b110, 3);
+            write(deltaOfDelta, 9);
+        } else if (fits(deltaOfDelta, 12)) {
+            write(0b1110, 4);
+            write(deltaOfDelta, 12);
+        } else if (fits(deltaOfDelta, 32)) {
+            write(0b11110, 5);
+            write(deltaOfDelta, 32);
+        } else {
+            write(0b11111, 5);
+            write(deltaOfDelta, 64);
+        }
+    }
+
+    private long readTimeDelta(final long[] cursor, final EncodingState decoded) {
+        final long deltaOfDelta;
+        if (read(cursor, 1) == 0) {
+            deltaOfDelta = 0;
+        } else if (read(cursor, 1) == 0) {
+            deltaOfDelta = signed(read(cursor, 7), 7);
+        } else if (read(cursor, 1) == 0) {
+            deltaOfDelta = signed(read(cursor, 9), 9);
+        } else if (read(cursor, 1) == 0) {
+            deltaOfDelta = signed(read(cursor, 12), 12);
+        } else if (read(cursor, 1) == 0) {
+            deltaOfDelta = signed(read(cursor, 32), 32);
+        } else {
+            deltaOfDelta = read(cursor, 64);
+        }
+        return decoded.delta + deltaOfDelta;
+    }
+
+    private void writeValue(final int field, final long bits) {
+        final long xor = bits ^ state.values[field];
+        state.values[field] = bits;
+        if (xor == 0) {
+            write(0, 1);
+            return;
+        }
+        final int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        final int trailing = Long.numberOfTrailingZeros(xor);
+        if (state.leading[field] >= 0
+                && leading >= state.leading[field]
+                && trailing >= state.trailing[field]) {
+            write(0b10, 2);
+            write(xor >>> state.trailing[field], 64 - state.leading[field] - state.trailing[field]);
+        } else {
+            final int length = 64 - leading - trailing;
+            write(0b11, 2);
+            write(leading, 5);
+            write(length & 63, 6); // 64 is written as 0
+            write(xor >>> trailing, length);
+            state.leading[field] = leading;
+            state.trailing[field] = trailing;
+        }
+    }
+
+    private void readValue(final long[] cursor, final EncodingState decoded, final int field) {
+        if (read(cursor, 1) == 0) {
+            return;
+        }
+        if (read(cursor, 1) == 0) {
+            final int length = 64 - decoded.leading[field] - decoded.trailing[field];
+            decoded.values[field] ^= read(cursor, length) << decoded.trailing[field];
+        } else {
+            final int leading = (int) read(cursor, 5);
+            int length = (int) read(cursor, 6);
+            if (length == 0) {
+                length = 64;
+            }
+            final int trailing = 64 - leading - length;
+            decoded.values[field] ^= read(cursor, length) << trailing;
+            decoded.leading[field] = leading;
+            decoded.trailing[field] = trailing;
+        }
+    }
+
+    /** Writes the lowest bits of the value, most significant first */
+    private void write(final long value, int bits) {
+        while (bits > 0) {
+            final int index = (int) (position >>> 3);
+            final int offset = (int) (position & 7);
+            final int n = Math.min(8 - offset, bits);
+            final int chunk = (int) ((value >>> (bits - n)) & ((1 << n) - 1));
+            final int existing = offset == 0 ? 0 : buffer.get(index);
+            buffer.put(index, (byte) (existing | chunk << (8 - offset - n)));
+            position += n;
+            bits -= n;
+        }
+    }
+
+    /** Reads the bits at the cursor, advancing it */
+    private long read(final long[] cursor, int bits) {
+        long value = 0;
+        while (bits > 0) {
+            final int index = (int) (cursor[0] >>> 3);
+            final int offset = (int) (cursor[0] & 7);
+            final int n = Math.min(8 - offset, bits);
+            final int chunk = (buffer.get(index) >>> (8 - offset - n)) & ((1 << n) - 1);
+            value = value << n | chunk;
+            cursor[0] += n;
+            bits -= n;
+        }
+        return value;
+    }
+
+    private static boolean fits(final long value, final int bits) {
+        final long limit = 1L << (bits - 1);
+        return value >= -limit && value < limit;
+    }
+
+    private static long signed(final long value, final int bits) {
+        return value << (64 - bits) >> (64 - bits);
+    }
+
+    /** The previous values the next row is encoded against */
+    private static class EncodingState {
+        long time;
+        long delta;
+        long presence;
+        final long[] values = new long[FIELDS];
+        final int[] leading = new int[FIELDS];
+        final int[] trailing = new int[FIELDS];
+
+        EncodingState() {
+            Arrays.fill(leading, -1);
+        }
+
+        void advance(final long time) {
+            delta = time - this.time;
+            this.time = time;
+        }
+    }
+}
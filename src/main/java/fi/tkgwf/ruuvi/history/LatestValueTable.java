@@ -0,0 +1,336 @@
+package fi.tkgwf.ruuvi.history;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.config.Configuration;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import org.apache.log4j.Logger;
+
+/**
+ * The latest measurement received from each tag, as decoded, with the time it was received. The
+ * values are kept outside the heap in a table of fixed size slots, one per tag, allocated up front
+ * for the configured number of tags, so the memory used doesn't grow with the tags seen.
+ *
+ * <p>A slot is written like a seqlock: its sequence number is odd while the values are written and
+ * advanced to the next even number after them. The readers don't lock, they read the sequence
+ * number, the values and the sequence number again, and retry if a write overlapped. The writes are
+ * serialized with each other.
+ *
+ * <p>A slot is a row of longs:
+ *
+ * <ul>
+ *   <li>the sequence number
+ *   <li>the MAC address as a number plus one, 0 for a free slot, -1 for a slot freed in the middle
+ *       of a probe sequence
+ *   <li>the time the measurement was received
+ *   <li>the time of the measurement
+ *   <li>the fields present, bit {@link MeasurementField#bit()} for each
+ *   <li>the bits of the value of each field, in {@link MeasurementField#ALL} order
+ * </ul>
+ *
+ * The slot of a tag is found by linear probing from the hash of the MAC address. When the table is
+ * full, the slots of the tags not seen for the idle time are freed for the new tags. A freed slot
+ * is marked as such instead of emptied, so the lookups of the tags past it still find them, and it
+ * is taken by the next new tag probing through it.
+ */
+public class LatestValueTable {
+
+    private static final Logger LOG = Logger.getLogger(LatestValueTable.class);
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final int FIELDS = MeasurementField.ALL.length;
+    private static final long FREED = -1;
+    private static final int SEQUENCE = 0;
+    private static final int KEY = 8;
+    private static final int SEEN = 16;
+    private static final int TIME = 24;
+    private static final int PRESENCE = 32;
+    private static final int VALUES = 40;
+    static final int SLOT_BYTES = VALUES + FIELDS * 8;
+    private static final long FIELD_BITS = (1L << FIELDS) - 1;
+
+    private static LatestValueTable instance;
+
+    private final int maxTags;
+    private final long maxIdleMs;
+    private final LongSupplier clock;
+    private final int capacity;
+    private final ByteBuffer slots;
+    /** The MAC addresses of the slots, written and read like the values */
+    private final String[] macs;
+    /** The names of the slots, written and read like the values */
+    private final String[] names;
+
+    private int size;
+    private volatile long version;
+    private boolean fullWarned;
+    /** When the table is full, no slot is freed before this time */
+    private long nextReclaim;
+
+    /**
+     * @param maxTags the most tags kept, the measurements of the new tags beyond are not kept
+     * @param maxIdleMs how long a tag must have been unseen for its slot to be taken by a new tag
+     *     when the table is full, 0 to never free the slots
+     */
+    public LatestValueTable(final int maxTags, final long maxIdleMs) {
+        this(maxTags, maxIdleMs, System::currentTimeMillis);
+    }
+
+    LatestValueTable(final int maxTags, final long maxIdleMs, final LongSupplier clock) {
+        this.maxTags = Math.max(0, maxTags);
+        this.maxIdleMs = maxIdleMs;
+        this.clock = clock;
+        // a quarter of the slots are left free to keep the probe sequences short
+        this.capacity = this.maxTags + this.maxTags / 3 + 1;
+        this.slots =
+                ByteBuffer.allocateDirect(Math.multiplyExact(capacity, SLOT_BYTES))
+                        .order(ByteOrder.nativeOrder());
+        this.macs = new String[capacity];
+        this.names = new String[capacity];
+    }
+
+    /**
+     * @return the table of the process, sized by {@link Configuration.Storage#latestMaxTags}, the
+     *     tags idle for {@link Configuration.Sensor#tagIdleTimeoutMs} giving way to new ones
+     */
+    public static synchronized LatestValueTable get() {
+        if (instance == null) {
+            instance =
+                    new LatestValueTable(
+                            Configuration.get().storage.latestMaxTags,
+                            Configuration.get().sensor.tagIdleTimeoutMs);
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the latest measurement of its tag. The measurements without a MAC address, or with
+     * one that isn't 12 hexadecimal digits, are ignored, and those without a time are taken to be
+     * of the current time.
+     *
+     * @return false if the measurement wasn't kept
+     */
+    public synchronized boolean update(final PrimitiveMeasurement measurement) {
+        final long key = key(measurement.getMac());
+        if (key == 0) {
+            return false;
+        }
+        final long now = clock.getAsLong();
+        int slot = find(key);
+        if (slot < 0) {
+            if (size >= maxTags && reclaim(now) > 0) {
+                slot = find(key);
+            }
+            if (size >= maxTags) {
+                if (!fullWarned) {
+                    LOG.warn(
+                            "The latest values of "
+                                    + maxTags
+                                    + " tags are kept, ignoring the new tag "
+                                    + measurement.getMac());
+                    fullWarned = true;
+                }
+                return false;
+            }
+            slot = -slot - 1;
+            size++;
+        }
+        final int base = slot * SLOT_BYTES;
+        final long sequence = slots.getLong(base + SEQUENCE);
+        LONGS.setOpaque(slots, base + SEQUENCE, sequence + 1);
+        VarHandle.storeStoreFence();
+        slots.putLong(base + SEEN, now);
+        slots.putLong(base + TIME, measurement.hasTime() ? measurement.getTime() : now);
+        final long presence = measurement.getPresence() & FIELD_BITS;
+        slots.putLong(base + PRESENCE, presence);
+        for (final MeasurementField field : MeasurementField.ALL) {
+            if ((presence & field.bit()) != 0) {
+                slots.putLong(
+                        base + VALUES + field.ordinal() * 8,
+                        Double.doubleToRawLongBits(measurement.get(field)));
+            }
+        }
+        macs[slot] = measurement.getMac();
+        names[slot] = measurement.getName();
+        // published last, a reader finding the key reads the slot through the sequence number
+        LONGS.setRelease(slots, base + KEY, key);
+        LONGS.setRelease(slots, base + SEQUENCE, sequence + 2);
+        version++;
+        return true;
+    }
+
+    /**
+     * Reads the latest measurement of the tag without locking.
+     *
+     * @return false if there is no measurement of the tag, the target may have been overwritten
+     *     then
+     */
+    public boolean read(final String mac, final PrimitiveMeasurement target) {
+        final long key = key(mac);
+        final int slot = key != 0 ? find(key) : -1;
+        // the slot may have been freed and taken by another tag in between
+        return slot >= 0 && read(slot, target) == key;
+    }
+
+    /**
+     * Reads the latest measurement of every tag without locking. The same {@link
+     * PrimitiveMeasurement} is reused for every tag, so the action must copy whatever it keeps.
+     */
+    public void forEach(final Consumer<? super PrimitiveMeasurement> action) {
+        final PrimitiveMeasurement target = new PrimitiveMeasurement();
+        for (int slot = 0; slot < capacity; slot++) {
+            if (read(slot, target) > 0) {
+                action.accept(target);
+            }
+        }
+    }
+
+    /**
+     * @return the number of tags in the table
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return a number that changes whenever a measurement is updated
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the bytes allocated outside the heap for the slots
+     */
+    public long getAllocatedBytes() {
+        return slots.capacity();
+    }
+
+    /**
+     * Frees the slots of the tags not seen for the idle time.
+     *
+     * @return the number of slots freed
+     */
+    private int reclaim(final long now) {
+        if (maxIdleMs <= 0 || now < nextReclaim) {
+            return 0;
+        }
+        int freed = 0;
+        long oldest = now;
+        for (int slot = 0; slot < capacity; slot++) {
+            final int base = slot * SLOT_BYTES;
+            if (slots.getLong(base + KEY) <= 0) {
+                continue;
+            }
+            final long seen = slots.getLong(base + SEEN);
+            if (now - seen < maxIdleMs) {
+                oldest = Math.min(oldest, seen);
+                continue;
+            }
+            final long sequence = slots.getLong(base + SEQUENCE);
+            LONGS.setOpaque(slots, base + SEQUENCE, sequence + 1);
+            VarHandle.storeStoreFence();
+            LONGS.setRelease(slots, base + KEY, FREED);
+            macs[slot] = null;
+            names[slot] = null;
+            LONGS.setRelease(slots, base + SEQUENCE, sequence + 2);
+            freed++;
+        }
+        size -= freed;
+        // none of the remaining tags can be idle before the oldest of them
+        nextReclaim = oldest + maxIdleMs;
+        if (freed > 0) {
+            LOG.info(
+                    "Freed the latest values of "
+                            + freed
+                            + " tags not seen for "
+                            + maxIdleMs
+                            + " ms");
+            fullWarned = false;
+            version++;
+        }
+        return freed;
+    }
+
+    /**
+     * Reads the slot, retrying while a write overlaps.
+     *
+     * @return the key of the slot, 0 or less if the slot is free
+     */
+    private long read(final int slot, final PrimitiveMeasurement target) {
+        final int base = slot * SLOT_BYTES;
+        while (true) {
+            final long sequence = (long) LONGS.getAcquire(slots, base + SEQUENCE);
+            if ((sequence & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            final long key = slots.getLong(base + KEY);
+            target.reset();
+            final long presence = slots.getLong(base + PRESENCE);
+            for (final MeasurementField field : MeasurementField.ALL) {
+                if ((presence & field.bit()) != 0) {
+                    target.set(
+                            field,
+                            Double.longBitsToDouble(
+                                    slots.getLong(base + VALUES + field.ordinal() * 8)));
+                }
+            }
+            target.setTime(slots.getLong(base + TIME));
+            target.setMac(macs[slot]);
+            target.setName(names[slot]);
+            VarHandle.loadLoadFence();
+            if (slots.getLong(base + SEQUENCE) == sequence) {
+                return key;
+            }
+        }
+    }
+
+    /**
+     * @return the slot of the key, or if it isn't in the table, -1 - the free slot for it, the
+     *     first freed one on the way if any
+     */
+    private int find(final long key) {
+        int slot = Math.floorMod(Long.hashCode(key * 0x9E3779B97F4A7C15L), capacity);
+        int free = -1;
+        // a slot is always free, but all of them may have been freed in the middle of a sequence
+        for (int probes = 0; probes < capacity; probes++) {
+            final long existing = (long) LONGS.getAcquire(slots, slot * SLOT_BYTES + KEY);
+            if (existing == key) {
+                return slot;
+            }
+            if (existing == FREED && free < 0) {
+                free = slot;
+            } else if (existing == 0) {
+                return -(free < 0 ? slot : free) - 1;
+            }
+            slot = slot + 1 == capacity ? 0 : slot + 1;
+        }
+        return -free - 1;
+    }
+
+    /**
+     * @return the MAC address as a number plus one, 0 if it isn't 12 hexadecimal digits
+     */
+    private static long key(final String mac) {
+        if (mac == null || mac.length() != 12) {
+            return 0;
+        }
+        long key = 0;
+        for (int i = 0; i < 12; i++) {
+            final int digit = Character.digit(mac.charAt(i), 16);
+            if (digit < 0) {
+                return 0;
+            }
+            key = key << 4 | digit;
+        }
+        return key + 1;
+    }
+}
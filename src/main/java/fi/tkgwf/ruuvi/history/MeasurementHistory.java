@@ -0,0 +1,169 @@
+package fi.tkgwf.ruuvi.history;
+
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.config.Configuration;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The recent history of the stored measurements per tag, kept in memory so that it can be looked at
+ * when the database is not reachable. The measurements are compressed into fixed size {@link
+ * HistoryBlock}s allocated outside the heap, and the blocks of a tag are decoded without touching
+ * those of the other tags. When the memory budget is used up, the oldest block of all the tags is
+ * reused.
+ *
+ * <p>Thread safe.
+ */
+public class MeasurementHistory {
+
+    private static MeasurementHistory instance;
+
+    private final int blockBytes;
+    private final int maxBlocks;
+    private int allocatedBlocks;
+    private long version;
+
+    /** All the blocks, the oldest first */
+    private final ArrayDeque<HistoryBlock> blocks = new ArrayDeque<>();
+    /** The blocks of each tag, the oldest first */
+    private final Map<String, ArrayDeque<HistoryBlock>> blocksByMac = new HashMap<>();
+
+    /**
+     * @param memoryBytes the memory budget, 0 to keep no history
+     * @param blockBytes the size of a block
+     */
+    public MeasurementHistory(final long memoryBytes, final int blockBytes) {
+        if (blockBytes * 8L < HistoryBlock.MAX_ROW_BITS) {
+            throw new IllegalArgumentException("History block size is too small: " + blockBytes);
+        }
+        this.blockBytes = blockBytes;
+        this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, Math.max(0, memoryBytes / blockBytes));
+    }
+
+    /**
+     * @return the history of the process, sized by {@link Configuration.Storage#historyMemoryBytes}
+     */
+    public static synchronized MeasurementHistory get() {
+        if (instance == null) {
+            instance =
+                    new MeasurementHistory(
+                            Configuration.get().storage.historyMemoryBytes,
+                            Configuration.get().storage.historyBlockBytes);
+        }
+        return instance;
+    }
+
+    /**
+     * Adds the measurement to the history of its tag. The measurements without a MAC address are
+     * ignored, and those without a time are added with the current time.
+     */
+    public synchronized void record(final PrimitiveMeasurement measurement) {
+        final String mac = measurement.getMac();
+        if (maxBlocks == 0 || mac == null) {
+            return;
+        }
+        final long time =
+                measurement.hasTime() ? measurement.getTime() : System.currentTimeMillis();
+        final ArrayDeque<HistoryBlock> tagBlocks = blocksByMac.get(mac);
+        final HistoryBlock last = tagBlocks != null ? tagBlocks.peekLast() : null;
+        if (last == null || !last.append(measurement, time)) {
+            newBlock(mac).append(measurement, time);
+        }
+        version++;
+    }
+
+    /**
+     * Decodes the measurements of the tag with times from {@code from} to {@code to}, both
+     * inclusive, in the order they were recorded. The same {@link PrimitiveMeasurement} is reused
+     * for every measurement, so the action must copy whatever it keeps. The history is locked only
+     * while a block is copied, not while the action is called, and the blocks reused for newer
+     * measurements in the meantime are skipped.
+     */
+    public void forEach(
+            final String mac,
+            final long from,
+            final long to,
+            final Consumer<? super PrimitiveMeasurement> action) {
+        final List<HistoryBlock> tagBlocks;
+        synchronized (this) {
+            final ArrayDeque<HistoryBlock> blocks = blocksByMac.get(mac);
+            if (blocks == null) {
+                return;
+            }
+            tagBlocks = new ArrayList<>(blocks);
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(blockBytes);
+        final PrimitiveMeasurement target = new PrimitiveMeasurement();
+        for (final HistoryBlock block : tagBlocks) {
+            final HistoryBlock snapshot;
+            synchronized (this) {
+                if (block.evicted || block.maxTime() < from || block.minTime() > to) {
+                    continue;
+                }
+                snapshot = block.copyTo(copy);
+            }
+            snapshot.forEach(from, to, target, action);
+        }
+    }
+
+    /**
+     * @return a number that changes whenever a measurement is recorded
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the MAC addresses of the tags with a history
+     */
+    public synchronized List<String> getMacs() {
+        return new ArrayList<>(blocksByMac.keySet());
+    }
+
+    /**
+     * @return the number of measurements in the history of the tag
+     */
+    public synchronized int size(final String mac) {
+        final ArrayDeque<HistoryBlock> tagBlocks = blocksByMac.get(mac);
+        int size = 0;
+        if (tagBlocks != null) {
+            for (final HistoryBlock block : tagBlocks) {
+                size += block.rows();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the bytes allocated for the blocks
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long) allocatedBlocks * blockBytes;
+    }
+
+    private HistoryBlock newBlock(final String mac) {
+        final ByteBuffer buffer;
+        if (allocatedBlocks < maxBlocks) {
+            buffer = ByteBuffer.allocateDirect(blockBytes);
+            allocatedBlocks++;
+        } else {
+            final HistoryBlock oldest = blocks.removeFirst();
+            final ArrayDeque<HistoryBlock> oldestTagBlocks = blocksByMac.get(oldest.mac);
+            oldestTagBlocks.remove(oldest);
+            if (oldestTagBlocks.isEmpty()) {
+                blocksByMac.remove(oldest.mac);
+            }
+            oldest.evicted = true;
+            buffer = oldest.buffer;
+        }
+        final HistoryBlock block = new HistoryBlock(mac, buffer);
+        blocks.addLast(block);
+        blocksByMac.computeIfAbsent(mac, absent -> new ArrayDeque<>()).addLast(block);
+        return block;
+    }
+}
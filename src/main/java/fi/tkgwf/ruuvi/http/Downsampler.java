@@ -0,0 +1,142 @@
+package fi.tkgwf.ruuvi.http;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Reduces the measurements to a row per step of time, with the average, minimum or maximum of each
+ * field over the step. The running sums are kept by the start of the step, so the measurements may
+ * arrive in any order, like the chunks of a tag written out of order. The rows are passed on in
+ * time order: those of the steps ending before the time given to {@link #advance(long)}, and the
+ * rest by {@link #finish()}. So only the steps the coming measurements may still fall in are kept.
+ *
+ * <p>With a step of 0 every measurement is passed on as is, in the order it arrives, so the rows
+ * are in time order only if the measurements are.
+ */
+class Downsampler implements Consumer<PrimitiveMeasurement> {
+
+    enum Aggregate {
+        AVG,
+        MIN,
+        MAX
+    }
+
+    /** Receives the rows, the values are NaN for the fields without a value */
+    @FunctionalInterface
+    interface RowSink {
+        void row(long time, double[] values);
+    }
+
+    /** The running sums of a step */
+    private static class Bucket {
+        final double[] sums;
+        final double[] mins;
+        final double[] maxs;
+        final int[] counts;
+
+        Bucket(final int fields) {
+            sums = new double[fields];
+            mins = new double[fields];
+            maxs = new double[fields];
+            counts = new int[fields];
+            Arrays.fill(mins, Double.POSITIVE_INFINITY);
+            Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+        }
+    }
+
+    private final MeasurementField[] fields;
+    private final long step;
+    private final Aggregate aggregate;
+    private final RowSink sink;
+
+    private final double[] values;
+    private final TreeMap<Long, Bucket> buckets = new TreeMap<>();
+    /** The bucket of the previous measurement, looked up only when the step changes */
+    private Bucket current;
+
+    private long currentStart;
+
+    Downsampler(
+            final MeasurementField[] fields,
+            final long step,
+            final Aggregate aggregate,
+            final RowSink sink) {
+        this.fields = fields;
+        this.step = step;
+        this.aggregate = aggregate;
+        this.sink = sink;
+        this.values = new double[fields.length];
+    }
+
+    @Override
+    public void accept(final PrimitiveMeasurement measurement) {
+        final long time = measurement.getTime();
+        if (step == 0) {
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = measurement.get(fields[i]);
+            }
+            sink.row(time, values);
+            return;
+        }
+        final long start = Math.floorDiv(time, step) * step;
+        if (current == null || start != currentStart) {
+            current = buckets.computeIfAbsent(start, key -> new Bucket(fields.length));
+            currentStart = start;
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (measurement.has(fields[i])) {
+                final double value = measurement.get(fields[i]);
+                current.sums[i] += value;
+                current.mins[i] = Math.min(current.mins[i], value);
+                current.maxs[i] = Math.max(current.maxs[i], value);
+                current.counts[i]++;
+            }
+        }
+    }
+
+    /**
+     * Passes on the rows of the steps that end before the time.
+     *
+     * @param time a time none of the following measurements is before
+     */
+    void advance(final long time) {
+        if (step == 0 || buckets.isEmpty()) {
+            return;
+        }
+        // the start of the step of the time, the steps before it have ended
+        emit(buckets.headMap(Math.floorDiv(time, step) * step).entrySet().iterator());
+    }
+
+    /** Passes on the rows of the steps with measurements, in time order */
+    void finish() {
+        emit(buckets.entrySet().iterator());
+    }
+
+    private void emit(final Iterator<Map.Entry<Long, Bucket>> entries) {
+        while (entries.hasNext()) {
+            final Map.Entry<Long, Bucket> entry = entries.next();
+            final Bucket bucket = entry.getValue();
+            for (int i = 0; i < fields.length; i++) {
+                if (bucket.counts[i] == 0) {
+                    values[i] = Double.NaN;
+                } else if (aggregate == Aggregate.MIN) {
+                    values[i] = bucket.mins[i];
+                } else if (aggregate == Aggregate.MAX) {
+                    values[i] = bucket.maxs[i];
+                } else {
+                    values[i] = bucket.sums[i] / bucket.counts[i];
+                }
+            }
+            sink.row(entry.getKey(), values);
+            if (bucket == current) {
+                current = null;
+            }
+            entries.remove();
+        }
+    }
+}
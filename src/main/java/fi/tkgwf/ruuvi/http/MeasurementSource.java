@@ -0,0 +1,102 @@
+package fi.tkgwf.ruuvi.http;
+
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.history.MeasurementHistory;
+import fi.tkgwf.ruuvi.store.LocalStore;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/** The measurements kept locally that the {@link QueryServer} answers from */
+public interface MeasurementSource {
+
+    /**
+     * @return the MAC addresses of the tags that may have measurements in the range
+     */
+    Collection<String> getMacs(long from, long to) throws IOException;
+
+    /**
+     * Decodes the measurements of the tag with times from {@code from} to {@code to}, both
+     * inclusive. The same {@link PrimitiveMeasurement} may be reused for every measurement.
+     */
+    void forEach(String mac, long from, long to, Consumer<? super PrimitiveMeasurement> action)
+            throws IOException;
+
+    /**
+     * Like {@link #forEach(String, long, long, Consumer)}, calling {@code progress} with a time
+     * none of the following measurements is before whenever that is known. By default it never is.
+     */
+    default void forEach(
+            final String mac,
+            final long from,
+            final long to,
+            final Consumer<? super PrimitiveMeasurement> action,
+            final LongConsumer progress)
+            throws IOException {
+        forEach(mac, from, to, action);
+    }
+
+    /**
+     * @return a number that changes whenever measurements are added
+     */
+    long getVersion();
+
+    static MeasurementSource of(final MeasurementHistory history) {
+        return new MeasurementSource() {
+            @Override
+            public Collection<String> getMacs(final long from, final long to) {
+                return history.getMacs();
+            }
+
+            @Override
+            public void forEach(
+                    final String mac,
+                    final long from,
+                    final long to,
+                    final Consumer<? super PrimitiveMeasurement> action) {
+                history.forEach(mac, from, to, action);
+            }
+
+            @Override
+            public long getVersion() {
+                return history.getVersion();
+            }
+        };
+    }
+
+    static MeasurementSource of(final LocalStore store) {
+        return new MeasurementSource() {
+            @Override
+            public Collection<String> getMacs(final long from, final long to) throws IOException {
+                return store.getMacs(from, to);
+            }
+
+            @Override
+            public void forEach(
+                    final String mac,
+                    final long from,
+                    final long to,
+                    final Consumer<? super PrimitiveMeasurement> action)
+                    throws IOException {
+                store.forEach(mac, from, to, action);
+            }
+
+            @Override
+            public void forEach(
+                    final String mac,
+                    final long from,
+                    final long to,
+                    final Consumer<? super PrimitiveMeasurement> action,
+                    final LongConsumer progress)
+                    throws IOException {
+                store.forEach(mac, from, to, action, progress);
+            }
+
+            @Override
+            public long getVersion() {
+                return store.getVersion();
+            }
+        };
+    }
+}
@@ -0,0 +1,525 @@
+package fi.tkgwf.ruuvi.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.config.Configuration;
+import fi.tkgwf.ruuvi.config.RuntimeConfig;
+import fi.tkgwf.ruuvi.db.RuuviDBConnection;
+import fi.tkgwf.ruuvi.history.LatestValueTable;
+import fi.tkgwf.ruuvi.history.MeasurementHistory;
+import fi.tkgwf.ruuvi.store.LocalStoreConnection;
+import fi.tkgwf.ruuvi.utils.DerivedValuePlan;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * A small HTTP API over the measurements kept locally, for dashboards like Grafana on the gateway
+ * itself. All the responses are JSON, or CSV with {@code format=csv}:
+ *
+ * <ul>
+ *   <li>{@code /api/tags}: the MAC addresses of the tags with measurements
+ *   <li>{@code /api/latest}: the latest measurement of each tag within the configured age, from the
+ *       {@link LatestValueTable} if given
+ *   <li>{@code /api/range?mac=&from=&to=&step=&agg=&fields=}: the measurements of a tag in the
+ *       order they were stored, or with a step, their average, minimum or maximum over each step in
+ *       time order, at most {@link #MAX_STEPS} steps
+ * </ul>
+ *
+ * The times are milliseconds since the epoch or ISO-8601 instants, the steps milliseconds or
+ * durations like {@code 5m}. The responses are written while the measurements are decoded, with
+ * chunked encoding, and compressed with gzip when the client accepts it. An ETag derived from the
+ * version of the measurements lets polling clients skip unchanged responses.
+ */
+public class QueryServer implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(QueryServer.class);
+
+    /** Requests are answered by this many threads, the rest wait */
+    private static final int THREADS = 2;
+
+    /** The most steps of a range, like the points of a Prometheus query */
+    private static final long MAX_STEPS = 11_000;
+
+    private static final Pattern DURATION = Pattern.compile("(\\d+)(ms|s|m|h|d)?");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final MeasurementSource source;
+    private final MeasurementField[] defaultFields;
+    private final long latestMaxAgeMs;
+    private final LatestValueTable latestValues;
+
+    /**
+     * @param latestValues the latest measurements, null to look for them in the source
+     * @param defaultFields the fields returned when the request doesn't name them
+     * @param latestMaxAgeMs how far back the latest measurements and the ranges without a start
+     *     reach
+     */
+    public QueryServer(
+            final InetSocketAddress address,
+            final MeasurementSource source,
+            final LatestValueTable latestValues,
+            final Collection<MeasurementField> defaultFields,
+            final long latestMaxAgeMs)
+            throws IOException {
+        this.source = source;
+        this.latestValues = latestValues;
+        this.defaultFields = defaultFields.toArray(new MeasurementField[0]);
+        this.latestMaxAgeMs = latestMaxAgeMs;
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor =
+                Executors.newFixedThreadPool(
+                        THREADS,
+                        r -> {
+                            final Thread thread =
+                                    new Thread(r, "api-server-" + threads.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        this.server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/api/", this::handle);
+        server.start();
+        LOG.info("Serving the API on " + server.getAddress());
+    }
+
+    /**
+     * Starts the server configured in {@link Configuration.Api}, answering from the local store if
+     * the measurements are stored there, otherwise from the recent history.
+     *
+     * @return the server, null if it isn't enabled
+     */
+    public static QueryServer start(final RuuviDBConnection db) throws IOException {
+        final Configuration.Api api = Configuration.get().api;
+        if (api == null || api.port <= 0) {
+            return null;
+        }
+        final InetSocketAddress address =
+                StringUtils.isBlank(api.bindAddress)
+                        ? new InetSocketAddress(api.port)
+                        : new InetSocketAddress(api.bindAddress, api.port);
+        final MeasurementSource source =
+                db instanceof LocalStoreConnection
+                        ? MeasurementSource.of(((LocalStoreConnection) db).getStore())
+                        : MeasurementSource.of(MeasurementHistory.get());
+        return new QueryServer(
+                address,
+                source,
+                LatestValueTable.get(),
+                RuntimeConfig.get().getStoredFields(),
+                api.latestMaxAgeMs);
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /** Writes the body of a response */
+    @FunctionalInterface
+    private interface Body {
+        void write(ResponseWriter out) throws IOException;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                sendError(exchange, 405, "Only GET is supported");
+                return;
+            }
+            final Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            final boolean csv = "csv".equals(params.get("format"));
+            // read before the measurements, a measurement added meanwhile changes the next ETag
+            final long version =
+                    source.getVersion() + (latestValues != null ? latestValues.getVersion() : 0);
+            final Body body;
+            try {
+                switch (exchange.getRequestURI().getPath()) {
+                    case "/api/tags":
+                        body = tags(params, csv);
+                        break;
+                    case "/api/latest":
+                        body = latest(params, csv);
+                        break;
+                    case "/api/range":
+                        body = range(params, csv);
+                        break;
+                    default:
+                        sendError(exchange, 404, "Unknown path");
+                        return;
+                }
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+            respond(exchange, version, csv, body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void respond(
+            final HttpExchange exchange, final long version, final boolean csv, final Body body)
+            throws IOException {
+        final String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        final boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        // the same query over the same measurements gives the same response, the ranges relative
+        // to the current time are close enough while no new measurements arrive
+        final String etag =
+                '"'
+                        + Long.toHexString(version)
+                        + '-'
+                        + Integer.toHexString(exchange.getRequestURI().toString().hashCode())
+                        + (gzip ? "-gz" : "")
+                        + '"';
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        final String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.contains(etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        exchange.getResponseHeaders()
+                .set(
+                        "Content-Type",
+                        csv ? "text/csv; charset=utf-8" : "application/json; charset=utf-8");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, 0);
+        final OutputStream stream =
+                gzip
+                        ? new GZIPOutputStream(exchange.getResponseBody(), 8192)
+                        : exchange.getResponseBody();
+        try (ResponseWriter out = new ResponseWriter(stream)) {
+            body.write(out);
+        } catch (IOException | UncheckedIOException e) {
+            // the status is already sent, the client sees a truncated response
+            LOG.warn("Failed to answer " + exchange.getRequestURI() + ": " + e.getMessage());
+        }
+    }
+
+    private Body tags(final Map<String, String> params, final boolean csv) {
+        final long to = parseTime(params.get("to"), System.currentTimeMillis());
+        final long from = parseTime(params.get("from"), to - latestMaxAgeMs);
+        return out -> {
+            final Collection<String> macs = source.getMacs(from, to);
+            if (csv) {
+                out.text("mac\n");
+                for (final String mac : macs) {
+                    out.text(mac).text('\n');
+                }
+                return;
+            }
+            out.text('[');
+            boolean first = true;
+            for (final String mac : macs) {
+                if (!first) {
+                    out.text(',');
+                }
+                first = false;
+                out.jsonString(mac);
+            }
+            out.text("]\n");
+        };
+    }
+
+    private Body latest(final Map<String, String> params, final boolean csv) {
+        final MeasurementField[] fields = parseFields(params.get("fields"));
+        final long to = System.currentTimeMillis();
+        final long from = to - latestMaxAgeMs;
+        return out -> {
+            if (csv) {
+                out.text("mac,name,time");
+                for (final MeasurementField field : fields) {
+                    out.text(',').text(field.getFieldName());
+                }
+                out.text('\n');
+            } else {
+                out.text('[');
+            }
+            final boolean[] first = {true};
+            // the history and the table keep the values as received, so the derived values are
+            // calculated here
+            final DerivedValuePlan plan = DerivedValuePlan.forFields(Arrays.asList(fields));
+            if (latestValues != null) {
+                latestValues.forEach(
+                        measurement -> {
+                            if (measurement.getTime() >= from) {
+                                writeLatest(out, plan.apply(measurement), fields, csv, first[0]);
+                                first[0] = false;
+                            }
+                        });
+            } else {
+                final PrimitiveMeasurement latest = new PrimitiveMeasurement();
+                for (final String mac : source.getMacs(from, to)) {
+                    latest.reset();
+                    source.forEach(
+                            mac,
+                            from,
+                            to,
+                            measurement -> {
+                                if (!latest.hasTime()
+                                        || measurement.getTime() >= latest.getTime()) {
+                                    copy(measurement, latest);
+                                }
+                            });
+                    if (latest.hasTime()) {
+                        writeLatest(out, plan.apply(latest), fields, csv, first[0]);
+                        first[0] = false;
+                    }
+                }
+            }
+            if (!csv) {
+                out.text("\n]\n");
+            }
+        };
+    }
+
+    private static void writeLatest(
+            final ResponseWriter out,
+            final PrimitiveMeasurement latest,
+            final MeasurementField[] fields,
+            final boolean csv,
+            final boolean first) {
+        if (csv) {
+            out.text(latest.getMac()).text(',').csvString(latest.getName()).text(',');
+            out.number(latest.getTime());
+            for (final MeasurementField field : fields) {
+                out.text(',').number(latest.get(field), field.isInteger());
+            }
+            out.text('\n');
+            return;
+        }
+        out.text(first ? "\n{\"mac\":" : ",\n{\"mac\":").jsonString(latest.getMac());
+        out.text(",\"name\":").jsonString(latest.getName());
+        out.text(",\"time\":").number(latest.getTime());
+        for (final MeasurementField field : fields) {
+            if (latest.has(field)) {
+                out.text(",\"").text(field.getFieldName()).text("\":");
+                out.number(latest.get(field), field.isInteger());
+            }
+        }
+        out.text('}');
+    }
+
+    private Body range(final Map<String, String> params, final boolean csv) {
+        final String mac = params.get("mac");
+        if (StringUtils.isBlank(mac)) {
+            throw new IllegalArgumentException("mac is required");
+        }
+        final String tag = mac.replace(":", "").toUpperCase(Locale.ROOT);
+        final long to = parseTime(params.get("to"), System.currentTimeMillis());
+        final long from = parseTime(params.get("from"), to - latestMaxAgeMs);
+        if (from > to) {
+            throw new IllegalArgumentException("from is after to");
+        }
+        final long step = parseDuration(params.get("step"));
+        if (step > 0 && (to - from) / step >= MAX_STEPS) {
+            throw new IllegalArgumentException(
+                    "More than " + MAX_STEPS + " steps, use a longer step or a shorter range");
+        }
+        final Downsampler.Aggregate aggregate = parseAggregate(params.get("agg"));
+        final MeasurementField[] fields = parseFields(params.get("fields"));
+        return out -> {
+            if (csv) {
+                out.text("time");
+                for (final MeasurementField field : fields) {
+                    out.text(',').text(field.getFieldName());
+                }
+                out.text('\n');
+            } else {
+                out.text("{\"mac\":").jsonString(tag).text(",\"fields\":[");
+                for (int i = 0; i < fields.length; i++) {
+                    out.text(i == 0 ? "" : ",").jsonString(fields[i].getFieldName());
+                }
+                out.text("],\"rows\":[");
+            }
+            final boolean[] first = {true};
+            final Downsampler downsampler =
+                    new Downsampler(
+                            fields,
+                            step,
+                            aggregate,
+                            (time, values) -> {
+                                if (csv) {
+                                    out.number(time);
+                                    for (int i = 0; i < fields.length; i++) {
+                                        out.text(',')
+                                                .number(
+                                                        values[i],
+                                                        fields[i].isInteger() && step == 0);
+                                    }
+                                    out.text('\n');
+                                    return;
+                                }
+                                out.text(first[0] ? "\n[" : ",\n[").number(time);
+                                for (int i = 0; i < fields.length; i++) {
+                                    out.text(',');
+                                    if (Double.isNaN(values[i])) {
+                                        out.text("null");
+                                    } else {
+                                        out.number(values[i], fields[i].isInteger() && step == 0);
+                                    }
+                                }
+                                out.text(']');
+                                first[0] = false;
+                            });
+            final DerivedValuePlan plan = DerivedValuePlan.forFields(Arrays.asList(fields));
+            final String[] name = {null};
+            source.forEach(
+                    tag,
+                    from,
+                    to,
+                    measurement -> {
+                        name[0] = measurement.getName();
+                        downsampler.accept(plan.apply(measurement));
+                    },
+                    downsampler::advance);
+            downsampler.finish();
+            if (!csv) {
+                // the name is known only after the measurements have been read
+                out.text("\n],\"name\":").jsonString(name[0]).text("}\n");
+            }
+        };
+    }
+
+    private MeasurementField[] parseFields(final String names) {
+        if (StringUtils.isBlank(names)) {
+            return defaultFields;
+        }
+        final String[] split = names.split(",");
+        final MeasurementField[] fields = new MeasurementField[split.length];
+        for (int i = 0; i < split.length; i++) {
+            fields[i] = MeasurementField.forName(split[i].trim());
+            if (fields[i] == null) {
+                throw new IllegalArgumentException("Unknown field: " + split[i]);
+            }
+        }
+        return fields;
+    }
+
+    private static Downsampler.Aggregate parseAggregate(final String aggregate) {
+        if (StringUtils.isBlank(aggregate)) {
+            return Downsampler.Aggregate.AVG;
+        }
+        try {
+            return Downsampler.Aggregate.valueOf(aggregate.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("agg must be avg, min or max: " + aggregate);
+        }
+    }
+
+    private static long parseTime(final String time, final long defaultTime) {
+        if (StringUtils.isBlank(time)) {
+            return defaultTime;
+        }
+        try {
+            return StringUtils.isNumeric(time)
+                    ? Long.parseLong(time)
+                    : Instant.parse(time).toEpochMilli();
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Not a time: " + time);
+        }
+    }
+
+    /**
+     * @return the duration in milliseconds, 0 if blank
+     */
+    static long parseDuration(final String duration) {
+        if (StringUtils.isBlank(duration)) {
+            return 0;
+        }
+        final Matcher matcher = DURATION.matcher(duration);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not a duration: " + duration);
+        }
+        final long value;
+        try {
+            value = Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a duration: " + duration);
+        }
+        final String unit = matcher.group(2);
+        if (unit == null || "ms".equals(unit)) {
+            return value;
+        }
+        switch (unit) {
+            case "s":
+                return value * 1000;
+            case "m":
+                return value * 60_000;
+            case "h":
+                return value * 3_600_000;
+            default:
+                return value * 86_400_000;
+        }
+    }
+
+    private static Map<String, String> parseQuery(final String query) {
+        final Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (final String pair : query.split("&")) {
+            final int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(
+                        URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static void copy(final PrimitiveMeasurement from, final PrimitiveMeasurement to) {
+        to.reset();
+        for (final MeasurementField field : MeasurementField.ALL) {
+            if (from.has(field)) {
+                to.set(field, from.get(field));
+            }
+        }
+        to.setTime(from.getTime());
+        to.setMac(from.getMac());
+        to.setName(from.getName());
+    }
+
+    private static void sendError(final HttpExchange exchange, final int status, final String text)
+            throws IOException {
+        final byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+}
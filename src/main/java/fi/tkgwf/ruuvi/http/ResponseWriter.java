@@ -0,0 +1,103 @@
+package fi.tkgwf.ruuvi.http;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the JSON or CSV of a response as it is produced, through a fixed buffer, without building
+ * strings for the numbers. The write failures, usually a client that went away, are thrown as
+ * {@link UncheckedIOException} so that the writer can be used from the measurement callbacks.
+ */
+class ResponseWriter implements AutoCloseable {
+
+    private final Writer out;
+    private final StringBuilder number = new StringBuilder(32);
+    private final char[] chars = new char[32];
+
+    ResponseWriter(final OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    ResponseWriter text(final String text) {
+        try {
+            out.write(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    ResponseWriter text(final char c) {
+        try {
+            out.write(c);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    ResponseWriter number(final long value) {
+        number.setLength(0);
+        return flushNumber(number.append(value));
+    }
+
+    /** Writes the value, whole if the field is an integer, nothing if it is NaN */
+    ResponseWriter number(final double value, final boolean integer) {
+        if (Double.isNaN(value)) {
+            return this;
+        }
+        number.setLength(0);
+        return flushNumber(integer ? number.append((long) value) : number.append(value));
+    }
+
+    /** Writes the value as a JSON string, or null */
+    ResponseWriter jsonString(final String value) {
+        if (value == null) {
+            return text("null");
+        }
+        text('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                text('\\').text(c);
+            } else if (c < 0x20) {
+                text(String.format("\\u%04x", (int) c));
+            } else {
+                text(c);
+            }
+        }
+        return text('"');
+    }
+
+    /** Writes the value as a CSV field, quoted if needed, nothing if it is null */
+    ResponseWriter csvString(final String value) {
+        if (value == null) {
+            return this;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return text(value);
+        }
+        return text('"').text(value.replace("\"", "\"\"")).text('"');
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private ResponseWriter flushNumber(final StringBuilder value) {
+        final int length = value.length();
+        value.getChars(0, length, chars, 0);
+        try {
+            out.write(chars, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+}
@@ -0,0 +1,149 @@
+package fi.tkgwf.ruuvi.input;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds advertisements for a short window to drop the copies of the same advertisement received
+ * through other adapters or receivers, keeping the copy with the best RSSI. Data format 5
+ * advertisements and measurements decoded by relays are identified by the MAC address and the
+ * measurement sequence number, other advertisements by the MAC address and the advertised data. Not
+ * thread safe.
+ */
+class AdvertisementDeduplicator {
+
+    private static final int MANUFACTURER_SPECIFIC_DATA = 0xFF;
+    /** Manufacturer ID 0x0499 (little endian) and data format 5 */
+    private static final byte[] RUUVI_DATA_FORMAT_5 = {(byte) 0x99, 0x04, 0x05};
+
+    private static final int SEQUENCE_OFFSET = 18;
+
+    private final long windowMs;
+    /** In insertion order, which is also deadline order */
+    private final Map<Object, Pending> pending = new LinkedHashMap<>();
+
+    private long duplicates;
+
+    static final class Pending {
+        HCIData data;
+        int source;
+        final long deadline;
+
+        Pending(HCIData data, int source, long deadline) {
+            this.data = data;
+            this.source = source;
+            this.deadline = deadline;
+        }
+    }
+
+    AdvertisementDeduplicator(long windowMs) {
+        this.windowMs = windowMs;
+    }
+
+    /**
+     * @param data an advertisement
+     * @param source index of the adapter the advertisement was received through
+     * @param now current time in milliseconds
+     * @return true if this was a copy of an advertisement already being held
+     */
+    boolean offer(HCIData data, int source, long now) {
+        Object key = key(data);
+        Pending existing = pending.get(key);
+        if (existing != null) {
+            duplicates++;
+            if (rssi(data) > rssi(existing.data)) {
+                existing.data = data;
+                existing.source = source;
+            }
+            return true;
+        }
+        pending.put(key, new Pending(data, source, now + windowMs));
+        return false;
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @return the oldest advertisement whose window has ended, or null if there is none
+     */
+    Pending poll(long now) {
+        Iterator<Pending> iterator = pending.values().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        Pending first = iterator.next();
+        if (first.deadline > now) {
+            return null;
+        }
+        iterator.remove();
+        return first;
+    }
+
+    /**
+     * @return the time the window of the oldest advertisement ends, or Long.MAX_VALUE if there are
+     *     no advertisements being held
+     */
+    long nextDeadline() {
+        Iterator<Pending> iterator = pending.values().iterator();
+        return iterator.hasNext() ? iterator.next().deadline : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the number of copies dropped so far
+     */
+    long getDuplicates() {
+        return duplicates;
+    }
+
+    static Object key(HCIData data) {
+        if (data.measurement != null) {
+            return data.measurement.has(MeasurementField.MEASUREMENT_SEQUENCE_NUMBER)
+                    ? Arrays.asList(
+                            data.mac,
+                            data.measurement.getInt(MeasurementField.MEASUREMENT_SEQUENCE_NUMBER))
+                    : Arrays.asList(data.mac, data.measurement.getTime());
+        }
+        HCIData.Report.AdvertisementData manufacturerData =
+                data.findAdvertisementDataByType(MANUFACTURER_SPECIFIC_DATA);
+        if (manufacturerData != null && isDataFormat5(manufacturerData.data)) {
+            int sequence =
+                    (manufacturerData.data.get(SEQUENCE_OFFSET) & 0xFF) << 8
+                            | manufacturerData.data.get(SEQUENCE_OFFSET + 1) & 0xFF;
+            return Arrays.asList(data.mac, sequence);
+        }
+        List<Object> key = new ArrayList<>();
+        key.add(data.mac);
+        if (data.reports != null) {
+            for (HCIData.Report report : data.reports) {
+                if (report.advertisements != null) {
+                    for (HCIData.Report.AdvertisementData advertisement : report.advertisements) {
+                        key.add(advertisement.type);
+                        key.add(advertisement.data);
+                    }
+                }
+            }
+        }
+        return key;
+    }
+
+    private static boolean isDataFormat5(List<Byte> data) {
+        if (data == null || data.size() < SEQUENCE_OFFSET + 2) {
+            return false;
+        }
+        for (int i = 0; i < RUUVI_DATA_FORMAT_5.length; i++) {
+            if (data.get(i) != RUUVI_DATA_FORMAT_5[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int rssi(HCIData data) {
+        return data.rssi != null ? data.rssi : Integer.MIN_VALUE;
+    }
+}
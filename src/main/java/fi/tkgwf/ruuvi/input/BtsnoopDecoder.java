@@ -0,0 +1,135 @@
+package fi.tkgwf.ruuvi.input;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.utils.HCIParser;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the btsnoop format, as written by "btmon -w" or "hcidump --btsnoop -w", straight from
+ * bytes into {@link HCIData}. Only LE Advertising Report events are decoded, everything else is
+ * skipped without parsing.
+ *
+ * <p>The decoder is incremental: it consumes as many complete records as it can from the buffer
+ * given to {@link #next(ByteBuffer)} and leaves a partial record for the next call, once more data
+ * has been read into the buffer. Like {@link HCIParser}, this is not thread safe.
+ *
+ * <p>The HCI UART (H4), un-encapsulated HCI and Linux monitor (btmon) datalinks are supported.
+ */
+public class BtsnoopDecoder implements PacketDecoder {
+
+    static final byte[] MAGIC = "btsnoop\0".getBytes(StandardCharsets.US_ASCII);
+    static final int HEADER_LENGTH = 16;
+    static final int RECORD_HEADER_LENGTH = 24;
+    /** Largest possible HCI packet, anything larger means the stream is corrupted */
+    static final int MAX_RECORD_LENGTH = 4 + 65535;
+
+    static final int DATALINK_HCI = 1001;
+    static final int DATALINK_H4 = 1002;
+    static final int DATALINK_MONITOR = 2001;
+
+    private static final int HCI_FLAG_COMMAND_OR_EVENT = 0x02;
+    private static final int HCI_FLAG_RECEIVED = 0x01;
+    private static final int MONITOR_OPCODE_EVENT = 3;
+    private static final int HCI_EVENT = 0x04;
+    private static final int LE_META_EVENT = 0x3E;
+    private static final int LE_ADVERTISING_REPORT = 0x02;
+
+    private final HCIParser parser = new HCIParser();
+    private int datalink = -1;
+    private long records;
+    private long drops;
+
+    @Override
+    public HCIData next(ByteBuffer in) throws IOException {
+        if (datalink < 0 && !readHeader(in)) {
+            return null;
+        }
+        while (in.remaining() >= RECORD_HEADER_LENGTH) {
+            int start = in.position();
+            int includedLength = in.getInt(start + 4);
+            int flags = in.getInt(start + 8);
+            if (includedLength < 0 || includedLength > MAX_RECORD_LENGTH) {
+                throw new IOException("Corrupted btsnoop record, length " + includedLength);
+            }
+            if (in.remaining() < RECORD_HEADER_LENGTH + includedLength) {
+                return null;
+            }
+            drops = Integer.toUnsignedLong(in.getInt(start + 12));
+            records++;
+            int packetStart = start + RECORD_HEADER_LENGTH;
+            int packetEnd = packetStart + includedLength;
+            in.position(packetEnd);
+            HCIData data = decode(in, packetStart, packetEnd, flags);
+            if (data != null) {
+                return data;
+            }
+        }
+        return null;
+    }
+
+    private boolean readHeader(ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER_LENGTH) {
+            return false;
+        }
+        int start = in.position();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (in.get(start + i) != MAGIC[i]) {
+                throw new IOException("Not in btsnoop format");
+            }
+        }
+        int version = in.getInt(start + 8);
+        int link = in.getInt(start + 12);
+        if (version != 1) {
+            throw new IOException("Unsupported btsnoop version " + version);
+        }
+        if (link != DATALINK_HCI && link != DATALINK_H4 && link != DATALINK_MONITOR) {
+            throw new IOException("Unsupported btsnoop datalink " + link);
+        }
+        datalink = link;
+        in.position(start + HEADER_LENGTH);
+        return true;
+    }
+
+    private HCIData decode(ByteBuffer in, int from, int to, int flags) {
+        switch (datalink) {
+            case DATALINK_H4:
+                if (from == to || in.get(from) != HCI_EVENT) {
+                    return null;
+                }
+                from++;
+                break;
+            case DATALINK_HCI:
+                if ((flags & HCI_FLAG_COMMAND_OR_EVENT) == 0 || (flags & HCI_FLAG_RECEIVED) == 0) {
+                    return null; // ACL data or a command sent to the controller
+                }
+                break;
+            default: // monitor: the opcode is in the lower half of the flags
+                if ((flags & 0xFFFF) != MONITOR_OPCODE_EVENT) {
+                    return null;
+                }
+                break;
+        }
+        if (to - from < 3
+                || in.get(from) != LE_META_EVENT
+                || in.get(from + 2) != LE_ADVERTISING_REPORT) {
+            return null;
+        }
+        return parser.readPacket(HCI_EVENT, in, from, to);
+    }
+
+    /**
+     * @return the number of btsnoop records read so far, including those that were skipped
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the cumulative number of packets dropped by the writer, as it reports it
+     */
+    public long getDrops() {
+        return drops;
+    }
+}
@@ -0,0 +1,71 @@
+package fi.tkgwf.ruuvi.input;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import org.apache.log4j.Logger;
+
+/**
+ * Reads LE Advertising Reports from a btsnoop stream, such as a FIFO written by "btmon -w", through
+ * a channel into a reusable direct buffer.
+ */
+public class BtsnoopReader implements HciPacketReader {
+
+    private static final Logger LOG = Logger.getLogger(BtsnoopReader.class);
+
+    private static final int BUFFER_SIZE = 128 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final BtsnoopDecoder decoder = new BtsnoopDecoder();
+    private boolean dataReceived;
+
+    public BtsnoopReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        buffer.flip(); // nothing to read yet
+    }
+
+    @Override
+    public HCIData next() throws IOException {
+        while (true) {
+            HCIData data = decoder.next(buffer);
+            if (data != null) {
+                if (!dataReceived) {
+                    LOG.info("Successfully reading data from btsnoop");
+                    dataReceived = true;
+                }
+                return data;
+            }
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // can't happen, the decoder rejects records larger than this
+                throw new IOException("btsnoop record does not fit into the read buffer");
+            }
+            int read = channel.read(buffer);
+            buffer.flip();
+            if (read < 0) {
+                if (buffer.hasRemaining()) {
+                    LOG.warn(
+                            "Ignoring " + buffer.remaining() + " bytes at the end of btsnoop data");
+                }
+                return null;
+            }
+        }
+    }
+
+    public BtsnoopDecoder getDecoder() {
+        return decoder;
+    }
+
+    @Override
+    public void close() throws IOException {
+        LOG.info(
+                "Read "
+                        + decoder.getRecords()
+                        + " btsnoop records, the writer reported "
+                        + decoder.getDrops()
+                        + " dropped packets");
+        channel.close();
+    }
+}
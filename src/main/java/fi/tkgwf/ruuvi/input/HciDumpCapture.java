@@ -0,0 +1,205 @@
+package fi.tkgwf.ruuvi.input;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.apache.log4j.Logger;
+
+/**
+ * Records the raw "hcidump --raw" stream into a compact, timestamped binary capture file, which can
+ * be replayed later with {@link HciDumpReplayReader}.
+ *
+ * <p>The hex lines are stored as the bytes they represent, which makes the file roughly a third of
+ * the size of the text. The file format is:
+ *
+ * <pre>
+ * header:  "RUUVICAP" (8 bytes), format version (1 byte), capture start time (8 bytes, epoch ms)
+ * records: time since previous record in ms (varint), record type (1 byte),
+ *          payload length (varint), payload
+ * </pre>
+ *
+ * The record type is one of {@link #PACKET_START} (a line starting with "&gt;", payload is the
+ * bytes after it), {@link #CONTINUATION} (a line of hex continuing a packet) or {@link #TEXT} (any
+ * other line, payload is the line as US-ASCII). Varints are unsigned LEB128.
+ */
+public final class HciDumpCapture {
+
+    private static final Logger LOG = Logger.getLogger(HciDumpCapture.class);
+
+    static final byte[] MAGIC = "RUUVICAP".getBytes(StandardCharsets.US_ASCII);
+    static final byte VERSION = 1;
+    static final int HEADER_LENGTH = MAGIC.length + 1 + 8;
+
+    static final byte PACKET_START = 0;
+    static final byte CONTINUATION = 1;
+    static final byte TEXT = 2;
+
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private HciDumpCapture() {}
+
+    /**
+     * Wraps a reader so that every line read from it is also written to a capture file. The capture
+     * file is closed when the returned reader is closed.
+     *
+     * @param source the hcidump output
+     * @param file the capture file to create, an existing file is overwritten
+     * @return a reader returning the same lines as the source
+     */
+    public static BufferedReader capturing(BufferedReader source, Path file) throws IOException {
+        LOG.info("Capturing hcidump output to " + file.toAbsolutePath());
+        return new CapturingReader(source, new CaptureWriter(file));
+    }
+
+    /** Writes capture records, not thread safe. */
+    static final class CaptureWriter implements AutoCloseable {
+        private final DataOutputStream out;
+        private final byte[] lineBytes = new byte[128];
+        private long previousTime;
+        private long lastFlush;
+
+        CaptureWriter(Path file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+            previousTime = System.currentTimeMillis();
+            lastFlush = previousTime;
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(previousTime);
+        }
+
+        void write(String line, long time) throws IOException {
+            writeVarint(Math.max(0, time - previousTime));
+            previousTime = Math.max(previousTime, time);
+            int length = -1;
+            byte type = TEXT;
+            if (line.startsWith(">")) {
+                length = decodeHex(line, 1);
+                type = PACKET_START;
+            } else if (!line.isBlank()) {
+                length = decodeHex(line, 0);
+                type = CONTINUATION;
+            }
+            if (length < 0) {
+                byte[] text = line.getBytes(StandardCharsets.US_ASCII);
+                out.writeByte(TEXT);
+                writeVarint(text.length);
+                out.write(text);
+            } else {
+                out.writeByte(type);
+                writeVarint(length);
+                out.write(lineBytes, 0, length);
+            }
+            if (time - lastFlush >= FLUSH_INTERVAL_MS) {
+                out.flush(); // keep the capture usable even if the collector is killed
+                lastFlush = time;
+            }
+        }
+
+        /**
+         * @return the number of bytes decoded, or -1 if the line is not just space separated hex
+         */
+        private int decodeHex(String line, int from) {
+            int count = 0;
+            int i = from;
+            while (i < line.length()) {
+                char c = line.charAt(i);
+                if (c == ' ' || c == '\t') {
+                    i++;
+                    continue;
+                }
+                if (i + 1 >= line.length() || count == lineBytes.length) {
+                    return -1;
+                }
+                int high = Character.digit(c, 16);
+                int low = Character.digit(line.charAt(i + 1), 16);
+                if (high < 0 || low < 0) {
+                    return -1;
+                }
+                lineBytes[count++] = (byte) ((high << 4) | low);
+                i += 2;
+            }
+            return count;
+        }
+
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class CapturingReader extends BufferedReader {
+        private final BufferedReader source;
+        private final CaptureWriter writer;
+
+        CapturingReader(BufferedReader source, CaptureWriter writer) {
+            super(source, 1);
+            this.source = source;
+            this.writer = writer;
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            String line = source.readLine();
+            if (line != null) {
+                writer.write(line, System.currentTimeMillis());
+            }
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                writer.close();
+            } finally {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Writes a capture file to stdout as hcidump text, so that a capture can be replayed with
+     * {@code sensor.dumpCommand} or inspected.
+     *
+     * <pre>
+     * java -cp ruuvi-collector.jar fi.tkgwf.ruuvi.input.HciDumpCapture capture.bin [speed]
+     * </pre>
+     *
+     * The speed is 1 for the original pace, N for N times faster and 0 for as fast as possible.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: HciDumpCapture <capture file> [speed]");
+            System.exit(1);
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        try (BufferedReader reader =
+                        new BufferedReader(new HciDumpReplayReader(Paths.get(args[0]), speed));
+                BufferedWriter stdout =
+                        new BufferedWriter(
+                                new OutputStreamWriter(System.out, StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                stdout.write(line);
+                stdout.write('\n');
+                if (speed > 0 && !reader.ready()) {
+                    stdout.flush();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package fi.tkgwf.ruuvi.input;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import org.apache.log4j.Logger;
+
+/**
+ * Generates synthetic "hcidump --raw" output for soak and scale testing without real radios. The
+ * output is framed like hcidump does it: 20 bytes per line, the first line of a packet prefixed
+ * with "&gt; " and the continuation lines indented with two spaces.
+ *
+ * <p>The generated traffic is a mix of RuuviTags sending data formats 3 and 5, non-Ruuvi
+ * advertisements, duplicated packets and malformed lines, in configurable proportions. The
+ * generator can be used in-process as a {@link Reader} for {@code Main.run(BufferedReader)}, or as
+ * a standalone process configured as {@code sensor.dumpCommand}, for example:
+ *
+ * <pre>
+ * java -cp ruuvi-collector.jar fi.tkgwf.ruuvi.input.HciDumpGenerator --tags=10000 --rate=2000
+ * </pre>
+ *
+ * <p>Packets are produced at the target rate. If the consumer falls behind by more than {@link
+ * Options#maxBacklogMs} worth of packets, the excess packets are dropped, much like the kernel
+ * drops advertisements when hcidump is not read fast enough. The delivered and dropped packets are
+ * reported as the sustained throughput and drop rate of the collector.
+ */
+public class HciDumpGenerator {
+
+    private static final Logger LOG = Logger.getLogger(HciDumpGenerator.class);
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final int BYTES_PER_LINE = 20;
+
+    /** Generator settings, see {@link #parse(String[])} for the command line equivalents. */
+    public static class Options {
+        /** Number of simulated RuuviTags */
+        public int tags = 10_000;
+        /** Target packets per second, 0 for as fast as the consumer can read */
+        public double packetsPerSecond = 1000;
+        /** Total number of packets to generate, 0 for unlimited */
+        public long packets = 0;
+        /** Share of the packets that are from other BLE devices */
+        public double nonRuuviRatio = 0.3;
+        /** Share of the RuuviTags that send data format 5, the rest send data format 3 */
+        public double dataFormat5Ratio = 0.8;
+        /** Probability of repeating the previous packet as-is */
+        public double duplicateRate = 0.05;
+        /** Probability of a malformed line */
+        public double malformedRate = 0.001;
+        /** How far the consumer may fall behind before packets are dropped */
+        public long maxBacklogMs = 1000;
+        /** Seed for the random generator, to make runs repeatable */
+        public long seed = 1;
+        /** Interval for logging the statistics, 0 to disable */
+        public long reportIntervalMs = 10_000;
+    }
+
+    private final Options options;
+    private final SplittableRandom random;
+    private final int[] sequenceNumbers;
+    private final StringBuilder packet = new StringBuilder(256);
+    private final byte[] bytes = new byte[64];
+    private String previousPacket;
+    private Consumer<String> reportSink = LOG::info;
+
+    private long startNanos;
+    private long lastReportNanos;
+    private long delivered;
+    private long dropped;
+    private long reportedDelivered;
+
+    public HciDumpGenerator(Options options) {
+        this.options = options;
+        this.random = new SplittableRandom(options.seed);
+        this.sequenceNumbers = new int[options.tags];
+    }
+
+    /**
+     * Generates the next packet, regardless of the target rate.
+     *
+     * @return one or more lines of hcidump output, each ending with a newline
+     */
+    public String nextPacket() {
+        if (previousPacket != null && random.nextDouble() < options.duplicateRate) {
+            return previousPacket;
+        }
+        packet.setLength(0);
+        if (random.nextDouble() < options.malformedRate) {
+            appendMalformed();
+            return packet.toString(); // malformed lines are never duplicated
+        }
+        int length;
+        if (random.nextDouble() < options.nonRuuviRatio) {
+            length = nonRuuvi();
+        } else {
+            int tag = random.nextInt(options.tags);
+            length = isDataFormat5(tag) ? dataFormat5(tag) : dataFormat3(tag);
+        }
+        appendLines(length);
+        previousPacket = packet.toString();
+        return previousPacket;
+    }
+
+    /**
+     * Returns a reader producing the generated packets at the target rate. Reading ends after
+     * {@link Options#packets} packets, or never if that is 0.
+     */
+    public Reader reader() {
+        return new PacedReader();
+    }
+
+    /**
+     * Waits until the next packet is due and accounts for the packets dropped because the consumer
+     * fell behind.
+     *
+     * @param beforeWaiting called before waiting for the next packet, e.g. to flush the output
+     * @return false when all the packets have been generated
+     */
+    private boolean awaitNextPacket(Runnable beforeWaiting) {
+        long now = System.nanoTime();
+        if (startNanos == 0) {
+            startNanos = now;
+            lastReportNanos = now;
+        }
+        if (options.packets > 0 && delivered + dropped >= options.packets) {
+            return false;
+        }
+        if (options.packetsPerSecond > 0) {
+            long due = (long) ((now - startNanos) * options.packetsPerSecond / 1e9);
+            long backlog = due - delivered - dropped;
+            long maxBacklog = (long) (options.packetsPerSecond * options.maxBacklogMs / 1000);
+            if (backlog > maxBacklog) {
+                dropped += backlog - maxBacklog;
+            } else if (backlog <= 0) {
+                beforeWaiting.run();
+                long dueAt =
+                        startNanos
+                                + (long) ((delivered + dropped) * 1e9 / options.packetsPerSecond);
+                LockSupport.parkNanos(dueAt - System.nanoTime());
+            }
+        }
+        delivered++;
+        if (options.reportIntervalMs > 0
+                && now - lastReportNanos
+                        > TimeUnit.MILLISECONDS.toNanos(options.reportIntervalMs)) {
+            reportSink.accept(report());
+            lastReportNanos = now;
+            reportedDelivered = delivered;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of packets handed to the consumer
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return the number of packets dropped because the consumer could not keep up
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the sustained throughput of the consumer since the first packet, in packets/s
+     */
+    public double getThroughput() {
+        long elapsed = System.nanoTime() - startNanos;
+        return startNanos == 0 || elapsed <= 0 ? 0 : delivered * 1e9 / elapsed;
+    }
+
+    /**
+     * @return the share of the generated packets that were dropped, between 0 and 1
+     */
+    public double getDropRate() {
+        long total = delivered + dropped;
+        return total == 0 ? 0 : (double) dropped / total;
+    }
+
+    public String report() {
+        return String.format(
+                "Delivered %d packets (%d since last report), %.1f packets/s sustained, target"
+                        + " %.1f packets/s, dropped %d packets (%.2f%%)",
+                delivered,
+                delivered - reportedDelivered,
+                getThroughput(),
+                options.packetsPerSecond,
+                dropped,
+                getDropRate() * 100);
+    }
+
+    private boolean isDataFormat5(int tag) {
+        // Stable per tag, independent of the order the tags happen to be picked in
+        return (tag * 0x9E3779B1 >>> 8) % 1000 < options.dataFormat5Ratio * 1000;
+    }
+
+    private int header(int tag, int dataLength) {
+        int i = 0;
+        bytes[i++] = 0x04; // HCI event
+        bytes[i++] = 0x3E; // LE meta event
+        bytes[i++] = (byte) (dataLength + 12); // parameter length
+        bytes[i++] = 0x02; // LE advertising report
+        bytes[i++] = 0x01; // number of reports
+        bytes[i++] = 0x03; // non-connectable undirected advertising
+        bytes[i++] = 0x01; // random address
+        // MAC address, least significant byte first. Static random address: top bits set
+        bytes[i++] = (byte) tag;
+        bytes[i++] = (byte) (tag >>> 8);
+        bytes[i++] = (byte) (tag >>> 16);
+        bytes[i++] = (byte) (tag >>> 24);
+        bytes[i++] = 0x00;
+        bytes[i++] = (byte) 0xC0;
+        bytes[i++] = (byte) dataLength; // report length
+        bytes[i++] = 0x02; // flags
+        bytes[i++] = 0x01;
+        bytes[i++] = 0x06;
+        return i;
+    }
+
+    private int dataFormat3(int tag) {
+        int i = header(tag, 21);
+        i = manufacturerData(i, 0x11, 0x0499, 0x03);
+        double temperature = temperature(tag);
+        int whole = (int) Math.abs(temperature);
+        bytes[i++] = (byte) Math.round(humidity(tag) * 2);
+        bytes[i++] = (byte) (whole | (temperature < 0 ? 0x80 : 0));
+        bytes[i++] = (byte) Math.round((Math.abs(temperature) - whole) * 100);
+        i = putShort(i, pressure(tag) - 50000);
+        i = acceleration(i);
+        i = putShort(i, 2900 + random.nextInt(100));
+        bytes[i++] = rssi();
+        return i;
+    }
+
+    private int dataFormat5(int tag) {
+        int i = header(tag, 31);
+        i = manufacturerData(i, 0x1B, 0x0499, 0x05);
+        int sequence = sequenceNumbers[tag]++ & 0xFFFF;
+        i = putShort(i, (int) Math.round(temperature(tag) / 0.005));
+        i = putShort(i, (int) Math.round(humidity(tag) / 0.0025));
+        i = putShort(i, pressure(tag) - 50000);
+        i = acceleration(i);
+        int txPower = 4;
+        i = putShort(i, (1300 + random.nextInt(100)) << 5 | (txPower + 40) / 2);
+        bytes[i++] = (byte) (sequence / 100); // movement counter
+        i = putShort(i, sequence);
+        for (int m = 12; m >= 7; m--) { // MAC address, most significant byte first
+            bytes[i++] = bytes[m];
+        }
+        bytes[i++] = rssi();
+        return i;
+    }
+
+    private int nonRuuvi() {
+        // Manufacturer specific data from random other devices, e.g. phones and other beacons
+        int dataLength = 4 + random.nextInt(24);
+        int i = header(options.tags + random.nextInt(1 << 20), dataLength + 5);
+        bytes[i++] = (byte) (dataLength + 1);
+        bytes[i++] = (byte) 0xFF;
+        int manufacturer = random.nextBoolean() ? 0x004C : 0x0006 + random.nextInt(0x400);
+        bytes[i++] = (byte) manufacturer;
+        bytes[i++] = (byte) (manufacturer >>> 8);
+        for (int d = 2; d < dataLength; d++) {
+            bytes[i++] = (byte) random.nextInt(256);
+        }
+        bytes[i++] = rssi();
+        return i;
+    }
+
+    private int manufacturerData(int i, int length, int manufacturer, int dataFormat) {
+        bytes[i++] = (byte) length;
+        bytes[i++] = (byte) 0xFF;
+        bytes[i++] = (byte) manufacturer; // least significant byte first
+        bytes[i++] = (byte) (manufacturer >>> 8);
+        bytes[i++] = (byte) dataFormat;
+        return i;
+    }
+
+    private int acceleration(int i) {
+        boolean moving = random.nextInt(20) == 0;
+        int spread = moving ? 1000 : 20;
+        i = putShort(i, random.nextInt(spread) - spread / 2);
+        i = putShort(i, random.nextInt(spread) - spread / 2);
+        return putShort(i, 1000 + random.nextInt(spread) - spread / 2);
+    }
+
+    private double temperature(int tag) {
+        return 21 + (tag % 40) - 20 + random.nextInt(100) * 0.005;
+    }
+
+    private double humidity(int tag) {
+        return 20 + tag % 60 + random.nextInt(40) * 0.0025;
+    }
+
+    private int pressure(int tag) {
+        return 100_000 + tag % 2000 - 1000 + random.nextInt(10);
+    }
+
+    private byte rssi() {
+        return (byte) (-40 - random.nextInt(60));
+    }
+
+    private int putShort(int i, int value) {
+        bytes[i++] = (byte) (value >>> 8);
+        bytes[i++] = (byte) value;
+        return i;
+    }
+
+    private void appendLines(int length) {
+        for (int i = 0; i < length; i++) {
+            if (i == 0) {
+                packet.append("> ");
+            } else if (i % BYTES_PER_LINE == 0) {
+                packet.append("\n  ");
+            }
+            packet.append(HEX[(bytes[i] >>> 4) & 0xF]).append(HEX[bytes[i] & 0xF]).append(' ');
+        }
+        packet.append('\n');
+    }
+
+    private void appendMalformed() {
+        switch (random.nextInt(3)) {
+            case 0: // packet cut short, as if part of the output was lost
+                appendLines(dataFormat5(random.nextInt(options.tags)));
+                packet.setLength(packet.indexOf("\n") + 1);
+                break;
+            case 1: // not hex
+                packet.append("> 04 3E 2B 02 01 03 01 ZZ ?? \n");
+                break;
+            default: // a stray diagnostic print
+                packet.append("HCI sniffer - Bluetooth packet analyzer ver 5.50\n");
+                break;
+        }
+    }
+
+    private class PacedReader extends Reader {
+        private String current = "";
+        private int position;
+        private boolean finished;
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (position == current.length()) {
+                if (finished || !awaitNextPacket(() -> {})) {
+                    finished = true;
+                    return -1;
+                }
+                current = nextPacket();
+                position = 0;
+            }
+            int count = Math.min(len, current.length() - position);
+            current.getChars(position, position + count, cbuf, off);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            if (!finished) {
+                reportSink.accept(report());
+            }
+            finished = true;
+        }
+    }
+
+    /**
+     * Parses options from arguments such as {@code --tags=10000 --rate=2000}. The supported
+     * arguments are tags, rate, packets, nonRuuvi, dataFormat5, duplicates, malformed, backlogMs,
+     * seed and reportMs.
+     */
+    public static Options parse(String[] args) {
+        Options options = new Options();
+        for (String arg : args) {
+            String[] keyValue = arg.replaceFirst("^--", "").split("=", 2);
+            if (keyValue.length != 2) {
+                throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+            }
+            String value = keyValue[1];
+            switch (keyValue[0]) {
+                case "tags":
+                    options.tags = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    options.packetsPerSecond = Double.parseDouble(value);
+                    break;
+                case "packets":
+                    options.packets = Long.parseLong(value);
+                    break;
+                case "nonRuuvi":
+                    options.nonRuuviRatio = Double.parseDouble(value);
+                    break;
+                case "dataFormat5":
+                    options.dataFormat5Ratio = Double.parseDouble(value);
+                    break;
+                case "duplicates":
+                    options.duplicateRate = Double.parseDouble(value);
+                    break;
+                case "malformed":
+                    options.malformedRate = Double.parseDouble(value);
+                    break;
+                case "backlogMs":
+                    options.maxBacklogMs = Long.parseLong(value);
+                    break;
+                case "seed":
+                    options.seed = Long.parseLong(value);
+                    break;
+                case "reportMs":
+                    options.reportIntervalMs = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Writes the generated traffic to stdout, so that this can be used as the dump command of the
+     * collector. Statistics are written to stderr to keep them out of the dump.
+     */
+    public static void main(String[] args) throws IOException {
+        HciDumpGenerator generator = new HciDumpGenerator(parse(args));
+        generator.reportSink = System.err::println;
+        Writer out =
+                new BufferedWriter(
+                        new OutputStreamWriter(System.out, StandardCharsets.US_ASCII), 1 << 16);
+        out.write("HCI sniffer - Bluetooth packet analyzer ver 5.50\n");
+        out.write("device: hci0 snap_len: 1500 filter: 0xffffffffffffffff\n");
+        Runnable flush =
+                () -> {
+                    try {
+                        out.flush();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                };
+        try {
+            while (generator.awaitNextPacket(flush)) {
+                out.write(generator.nextPacket());
+            }
+            out.flush();
+        } finally {
+            System.err.println(generator.report());
+        }
+    }
+}
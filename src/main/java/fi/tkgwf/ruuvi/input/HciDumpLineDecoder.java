@@ -0,0 +1,151 @@
+package fi.tkgwf.ruuvi.input;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.utils.HCIParser;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.apache.log4j.Logger;
+
+/**
+ * Decodes "hcidump --raw" output straight from bytes. Line and packet boundaries are found in the
+ * bytes and the lines are handed to {@link HCIParser#readLine(ByteBuffer, int, int)} as is, so no
+ * charset decoding is done and no String is created per line. Only the rare lines that are not hex,
+ * such as the hcidump banner or error messages, are turned into Strings.
+ *
+ * <p>The decoder is incremental: it consumes as many complete lines as it can from the buffer given
+ * to {@link #next(ByteBuffer)} and leaves a partial line for the next call, once more data has been
+ * read into the buffer. Like {@link HCIParser}, this is not thread safe.
+ */
+public class HciDumpLineDecoder implements PacketDecoder {
+
+    private static final Logger LOG = Logger.getLogger(HciDumpLineDecoder.class);
+
+    private final HCIParser parser = new HCIParser();
+    /** Number of bytes after the position already known not to contain a line break */
+    private int scanned;
+    /** Whether the rest of an overly long line is being skipped */
+    private boolean discarding;
+    /** Whether a received packet is being read, continuation lines are ignored otherwise */
+    private boolean packetStarted;
+
+    private boolean dataReceived;
+    private boolean healthy = true;
+
+    /**
+     * {@inheritDoc} If the buffer is full and doesn't contain a single line break, the bytes are
+     * discarded as they can't be hcidump output.
+     */
+    @Override
+    public HCIData next(ByteBuffer in) {
+        while (true) {
+            int end = findLineBreak(in);
+            if (end < 0) {
+                if (in.position() == 0 && in.limit() == in.capacity()) {
+                    LOG.warn("Discarding " + in.remaining() + " bytes without a line break");
+                    in.position(in.limit());
+                    scanned = 0;
+                    discarding = true;
+                    packetStarted = false;
+                }
+                return null;
+            }
+            int start = in.position();
+            in.position(end + 1);
+            if (discarding) {
+                discarding = false;
+                continue;
+            }
+            HCIData data = readLine(in, start, end);
+            if (data != null) {
+                return data;
+            }
+        }
+    }
+
+    /**
+     * Handles the last line of the stream, which doesn't end with a line break.
+     *
+     * @param in a buffer in read mode, all of its remaining bytes are consumed
+     * @return the last packet, or null if the remaining bytes don't complete one
+     */
+    public HCIData finish(ByteBuffer in) {
+        if (!in.hasRemaining() || discarding) {
+            in.position(in.limit());
+            return null;
+        }
+        int start = in.position();
+        int end = in.limit();
+        in.position(end);
+        scanned = 0;
+        return readLine(in, start, end);
+    }
+
+    private int findLineBreak(ByteBuffer in) {
+        int limit = in.limit();
+        for (int i = in.position() + scanned; i < limit; i++) {
+            if (in.get(i) == '\n') {
+                scanned = 0;
+                return i;
+            }
+        }
+        scanned = in.remaining();
+        return -1;
+    }
+
+    private HCIData readLine(ByteBuffer in, int start, int end) {
+        if (end > start && in.get(end - 1) == '\r') {
+            end--;
+        }
+        if (start == end) {
+            return null;
+        }
+        byte first = in.get(start);
+        if (first == '>' || first == '<') {
+            packetStarted = first == '>';
+            if (packetStarted && !dataReceived) {
+                LOG.info("Successfully reading data from hcidump");
+                dataReceived = true;
+                healthy = true;
+            }
+        } else if (first != ' ' && first != '\t') {
+            textLine(in, start, end);
+            return null;
+        }
+        if (!packetStarted) {
+            return null; // an outgoing packet, or the middle of a packet before the first one
+        }
+        HCIData data = parser.readLine(in, start, end);
+        if (data != null) {
+            packetStarted = false;
+            healthy = true;
+        }
+        return data;
+    }
+
+    private void textLine(ByteBuffer in, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = in.get(start + i);
+        }
+        String line = new String(bytes, StandardCharsets.US_ASCII);
+        if (line.contains("device: disconnected")) {
+            LOG.error(
+                    line
+                            + ": Either the bluetooth device was externally disabled or"
+                            + " physically disconnected");
+            healthy = false;
+        }
+        if (line.contains("No such device")) {
+            LOG.error(line + ": Check that your bluetooth adapter is enabled and working properly");
+            healthy = false;
+        }
+    }
+
+    /**
+     * @return false if hcidump has reported a problem with the bluetooth device since the last
+     *     packet
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+}
@@ -0,0 +1,56 @@
+package fi.tkgwf.ruuvi.input;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads "hcidump --raw" output from a channel, such as the stdout of the dump process, into a
+ * reusable buffer and decodes it with a {@link HciDumpLineDecoder}, without creating a String per
+ * line.
+ */
+public class HciDumpLineReader implements HciPacketReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final HciDumpLineDecoder decoder = new HciDumpLineDecoder();
+    private boolean endOfStream;
+
+    public HciDumpLineReader(ReadableByteChannel channel) {
+        this(channel, BUFFER_SIZE);
+    }
+
+    HciDumpLineReader(ReadableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        buffer.flip(); // nothing to read yet
+    }
+
+    @Override
+    public HCIData next() throws IOException {
+        while (!endOfStream) {
+            HCIData data = decoder.next(buffer);
+            if (data != null) {
+                return data;
+            }
+            buffer.compact();
+            int read = channel.read(buffer);
+            buffer.flip();
+            endOfStream = read < 0;
+        }
+        return decoder.finish(buffer);
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return decoder.isHealthy();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
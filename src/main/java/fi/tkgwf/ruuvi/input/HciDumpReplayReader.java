@@ -0,0 +1,180 @@
+package fi.tkgwf.ruuvi.input;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.Logger;
+
+/**
+ * Replays a capture file written by {@link HciDumpCapture} as "hcidump --raw" text. The file is
+ * memory mapped, and the records are turned back into lines only as they are read.
+ *
+ * <p>The replay speed is relative to the pace the data was captured at: 1 replays at the original
+ * pace, N at N times the original pace and 0 (or less) as fast as the reader is consumed.
+ */
+public class HciDumpReplayReader extends Reader {
+
+    private static final Logger LOG = Logger.getLogger(HciDumpReplayReader.class);
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final MappedByteBuffer buffer;
+    private final double speed;
+    private final Path file;
+    private char[] line = new char[256];
+    private int lineLength;
+    private int linePosition;
+    private long captureTime;
+    private long firstCaptureTime;
+    private long startNanos;
+    private long lines;
+
+    public HciDumpReplayReader(Path file, double speed) throws IOException {
+        this.file = file;
+        this.speed = speed;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Capture files over 2 GB are not supported: " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        byte[] magic = new byte[HciDumpCapture.MAGIC.length];
+        if (buffer.remaining() < HciDumpCapture.HEADER_LENGTH) {
+            throw new IOException("Not a capture file: " + file);
+        }
+        buffer.get(magic);
+        if (!Arrays.equals(magic, HciDumpCapture.MAGIC)) {
+            throw new IOException("Not a capture file: " + file);
+        }
+        byte version = buffer.get();
+        if (version != HciDumpCapture.VERSION) {
+            throw new IOException("Unsupported capture file version " + version + ": " + file);
+        }
+        captureTime = buffer.getLong();
+        LOG.info("Replaying " + file + " at " + (speed > 0 ? speed + "x speed" : "full speed"));
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (linePosition == lineLength && !nextLine()) {
+            return -1;
+        }
+        int count = Math.min(len, lineLength - linePosition);
+        System.arraycopy(line, linePosition, cbuf, off, count);
+        linePosition += count;
+        return count;
+    }
+
+    /** Decodes the next record into the line buffer, waiting until it's due. */
+    private boolean nextLine() throws IOException {
+        if (!buffer.hasRemaining()) {
+            return false;
+        }
+        if (startNanos == 0) {
+            startNanos = System.nanoTime();
+        }
+        long timeDelta;
+        byte type;
+        int length;
+        try {
+            timeDelta = readVarint();
+            type = buffer.get();
+            length = (int) readVarint();
+        } catch (BufferUnderflowException e) {
+            length = Integer.MAX_VALUE;
+            timeDelta = 0;
+            type = HciDumpCapture.TEXT;
+        }
+        if (length > buffer.remaining()) {
+            // Expected if the capturing collector was killed in the middle of a write
+            LOG.warn("Ignoring a truncated record at the end of " + file);
+            buffer.position(buffer.limit());
+            return false;
+        }
+        captureTime += timeDelta;
+        lineLength = 0;
+        linePosition = 0;
+        ensureCapacity(length * 3 + 3);
+        if (type == HciDumpCapture.TEXT) {
+            for (int i = 0; i < length; i++) {
+                line[lineLength++] = (char) (buffer.get() & 0xFF);
+            }
+        } else {
+            line[lineLength++] = type == HciDumpCapture.PACKET_START ? '>' : ' ';
+            for (int i = 0; i < length; i++) {
+                int b = buffer.get() & 0xFF;
+                line[lineLength++] = ' ';
+                line[lineLength++] = HEX[b >>> 4];
+                line[lineLength++] = HEX[b & 0xF];
+            }
+        }
+        line[lineLength++] = '\n';
+        lines++;
+        awaitCaptureTime();
+        return true;
+    }
+
+    private void awaitCaptureTime() {
+        if (speed <= 0) {
+            return;
+        }
+        if (lines == 1) {
+            firstCaptureTime = captureTime;
+            return;
+        }
+        long dueNanos =
+                startNanos
+                        + (long)
+                                (TimeUnit.MILLISECONDS.toNanos(captureTime - firstCaptureTime)
+                                        / speed);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            LockSupport.parkNanos(waitNanos);
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupted capture file: " + file);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (line.length < capacity) {
+            line = new char[capacity];
+        }
+    }
+
+    /**
+     * @return the number of lines replayed so far
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    @Override
+    public void close() {
+        if (startNanos != 0) {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            LOG.info(
+                    String.format(
+                            "Replayed %d lines in %.1f s (%.0f lines/s)",
+                            lines, seconds, lines / Math.max(seconds, 1e-9)));
+            startNanos = 0;
+        }
+    }
+}
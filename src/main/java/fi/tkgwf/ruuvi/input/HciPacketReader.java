@@ -0,0 +1,26 @@
+package fi.tkgwf.ruuvi.input;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import java.io.IOException;
+
+/** A source of parsed HCI packets, such as the output of a dump process. Not thread safe. */
+public interface HciPacketReader extends AutoCloseable {
+
+    /**
+     * Blocks until the next packet is available.
+     *
+     * @return the next packet, or null at the end of the stream
+     */
+    HCIData next() throws IOException;
+
+    /**
+     * @return false if the source has reported a problem with the bluetooth device since the last
+     *     packet
+     */
+    default boolean isHealthy() {
+        return true;
+    }
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,434 @@
+package fi.tkgwf.ruuvi.input;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.relay.ProcessedFrames;
+import fi.tkgwf.ruuvi.relay.RelayDecoder;
+import fi.tkgwf.ruuvi.relay.RelayProtocol;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Accepts remote receivers over TCP and merges their packets into a single stream. All connections
+ * are served by a single thread on a {@link Selector}, each with its own buffer and decoder.
+ *
+ * <p>A receiver streams either "hcidump --raw" output, btsnoop data or measurements from a relay
+ * (see {@link RelayProtocol}), the format is recognized from the first bytes. The stream may start
+ * with a line "receiver: &lt;name&gt;", otherwise the receiver is named by its IP address. The
+ * packets are tagged with the name of the receiver. Copies of the same advertisement received by
+ * several receivers are dropped, keeping the one with the best RSSI.
+ *
+ * <p>When the packets are not consumed fast enough, the connections whose packets don't fit into
+ * the queue are not read until there is room again, so TCP flow control slows down the receivers
+ * rather than the packets piling up in memory.
+ */
+public class HciServer implements HciPacketReader {
+
+    private static final Logger LOG = Logger.getLogger(HciServer.class);
+
+    static final byte[] RECEIVER_PREFIX = "receiver:".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int QUEUE_CAPACITY = 10_000;
+    private static final long PAUSED_RETRY_MS = 10;
+    /** How long the frames processed in a relay session are remembered, to skip those resent */
+    private static final long SESSION_EXPIRY_MS = 60 * 60 * 1000;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final int maxConnections;
+    private final Map<String, String> receiverNames;
+    private final BlockingQueue<HCIData> queue;
+    private final List<Connection> paused = new ArrayList<>();
+    /** Only used by the server thread */
+    private final ProcessedFrames processedFrames = new ProcessedFrames(SESSION_EXPIRY_MS);
+    /** Only used by the consuming thread */
+    private final AdvertisementDeduplicator deduplicator;
+
+    private final Thread thread;
+    private volatile boolean closed;
+    private int connections;
+
+    /**
+     * Starts accepting connections.
+     *
+     * @param address the address to listen on
+     * @param maxConnections the maximum number of concurrent connections, more are refused
+     * @param receiverNames names of the receivers that don't send their name, by IP address
+     * @param deduplicationWindowMs how long to wait for copies of an advertisement from the other
+     *     receivers
+     */
+    public HciServer(
+            InetSocketAddress address,
+            int maxConnections,
+            Map<String, String> receiverNames,
+            long deduplicationWindowMs)
+            throws IOException {
+        this(address, maxConnections, receiverNames, deduplicationWindowMs, QUEUE_CAPACITY);
+    }
+
+    HciServer(
+            InetSocketAddress address,
+            int maxConnections,
+            Map<String, String> receiverNames,
+            long deduplicationWindowMs,
+            int queueCapacity)
+            throws IOException {
+        this.maxConnections = maxConnections;
+        this.receiverNames = receiverNames;
+        this.deduplicator = new AdvertisementDeduplicator(deduplicationWindowMs);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        LOG.info("Accepting remote receivers on " + serverChannel.getLocalAddress());
+        thread = new Thread(this::serve, "hci-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    private void serve() {
+        try {
+            while (!closed) {
+                selector.select(paused.isEmpty() ? 0 : PAUSED_RETRY_MS);
+                resumePaused();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        ((Connection) key.attachment()).read();
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            if (!closed) {
+                LOG.error("Remote receiver server failed", ex);
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close("server closed");
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                LOG.debug("Failed to close the selector", ex);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        SocketAddress address = channel.getRemoteAddress();
+        if (connections >= maxConnections) {
+            LOG.warn("Refusing a connection from " + address + ", too many receivers connected");
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, address);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections++;
+        LOG.debug("Connection from " + address);
+    }
+
+    private void resumePaused() {
+        if (paused.isEmpty() || queue.remainingCapacity() == 0) {
+            return;
+        }
+        List<Connection> resumed = new ArrayList<>(paused);
+        paused.clear();
+        for (Connection connection : resumed) {
+            if (connection.key.isValid()) {
+                connection.key.interestOps(SelectionKey.OP_READ);
+                connection.process();
+            }
+        }
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SocketAddress address;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private SelectionKey key;
+        private String receiver;
+        private PacketDecoder decoder;
+        private HciDumpLineDecoder lineDecoder;
+        private RelayDecoder relayDecoder;
+        private final ByteBuffer ack = ByteBuffer.allocate(8);
+        private long acknowledged;
+        /** A packet that didn't fit into the queue */
+        private HCIData pending;
+
+        private boolean endOfStream;
+        private long packets;
+
+        Connection(SocketChannel channel, SocketAddress address) {
+            this.channel = channel;
+            this.address = address;
+            buffer.flip(); // nothing to read yet
+        }
+
+        void read() {
+            buffer.compact();
+            try {
+                endOfStream = channel.read(buffer) < 0;
+            } catch (IOException ex) {
+                buffer.flip();
+                close("connection failed: " + ex.getMessage());
+                return;
+            }
+            buffer.flip();
+            process();
+        }
+
+        /** Queues the packets in the buffer, until it needs more data or the queue is full. */
+        void process() {
+            if (pending != null) {
+                if (!queue.offer(pending)) {
+                    pause();
+                    return;
+                }
+                pending = null;
+            }
+            try {
+                decode();
+            } finally {
+                acknowledge();
+            }
+        }
+
+        private void decode() {
+            if (decoder == null && !recognize()) {
+                if (endOfStream || buffer.remaining() == buffer.capacity()) {
+                    close("unrecognized data");
+                }
+                return;
+            }
+            try {
+                HCIData data;
+                while ((data = decoder.next(buffer)) != null) {
+                    if (!offer(data)) {
+                        return;
+                    }
+                }
+                if (endOfStream && lineDecoder != null) {
+                    data = lineDecoder.finish(buffer); // a last line without a line break
+                    if (data != null && !offer(data)) {
+                        return;
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                close("invalid data: " + ex);
+                return;
+            }
+            if (endOfStream) {
+                close("disconnected");
+            } else if (buffer.remaining() == buffer.capacity()) {
+                close("a packet larger than " + BUFFER_SIZE + " bytes");
+            }
+        }
+
+        /** Lets a relay know which of its frames have been queued, so it can drop them. */
+        private void acknowledge() {
+            if (relayDecoder == null
+                    || relayDecoder.getCompletedFrame() <= acknowledged
+                    || !channel.isOpen()) {
+                return;
+            }
+            acknowledged = relayDecoder.getCompletedFrame();
+            ack.clear();
+            ack.putLong(acknowledged).flip();
+            try {
+                // the relay reads the acks promptly, so a full send buffer means it's gone
+                channel.write(ack);
+                if (ack.hasRemaining()) {
+                    close("acknowledgement not sent");
+                }
+            } catch (IOException ex) {
+                close("connection failed: " + ex.getMessage());
+            }
+        }
+
+        /**
+         * @return false if the queue was full and the connection was paused
+         */
+        private boolean offer(HCIData data) {
+            if (data.receiver == null) {
+                data.receiver = receiver;
+            }
+            packets++;
+            if (queue.offer(data)) {
+                return true;
+            }
+            pending = data;
+            pause();
+            return false;
+        }
+
+        private void pause() {
+            key.interestOps(0);
+            paused.add(this);
+        }
+
+        /** Reads the optional receiver name and recognizes the format of the stream. */
+        private boolean recognize() {
+            if (receiver == null) {
+                int match = startsWith(RECEIVER_PREFIX);
+                if (match < 0 && !endOfStream) {
+                    return false;
+                }
+                if (match > 0) {
+                    int lineBreak = indexOf('\n');
+                    if (lineBreak < 0) {
+                        return false;
+                    }
+                    byte[] name = new byte[lineBreak - buffer.position() - RECEIVER_PREFIX.length];
+                    buffer.position(buffer.position() + RECEIVER_PREFIX.length);
+                    buffer.get(name);
+                    buffer.get(); // the line break
+                    receiver = new String(name, StandardCharsets.US_ASCII).trim();
+                } else {
+                    receiver = defaultName();
+                }
+            }
+            int btsnoop = startsWith(BtsnoopDecoder.MAGIC);
+            int relay = startsWith(RelayProtocol.MAGIC);
+            if ((btsnoop < 0 || relay < 0) && !endOfStream) {
+                return false;
+            }
+            String format;
+            if (btsnoop > 0) {
+                decoder = new BtsnoopDecoder();
+                format = "btsnoop";
+            } else if (relay > 0) {
+                relayDecoder = new RelayDecoder(processedFrames);
+                decoder = relayDecoder;
+                format = "relay measurements";
+            } else {
+                lineDecoder = new HciDumpLineDecoder();
+                decoder = lineDecoder;
+                format = "hcidump";
+            }
+            LOG.info("Receiver " + receiver + " connected from " + address + ", sending " + format);
+            return true;
+        }
+
+        private String defaultName() {
+            if (address instanceof InetSocketAddress) {
+                String ip = ((InetSocketAddress) address).getAddress().getHostAddress();
+                return receiverNames.getOrDefault(ip, ip);
+            }
+            return String.valueOf(address);
+        }
+
+        /**
+         * @return 1 if the buffer starts with the prefix, 0 if not, -1 if it's too short to tell
+         */
+        private int startsWith(byte[] prefix) {
+            int length = Math.min(prefix.length, buffer.remaining());
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(buffer.position() + i) != prefix[i]) {
+                    return 0;
+                }
+            }
+            return length == prefix.length ? 1 : -1;
+        }
+
+        private int indexOf(char c) {
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                if (buffer.get(i) == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void close(String reason) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            key.cancel();
+            paused.remove(this);
+            connections--;
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOG.debug("Failed to close the connection from " + address, ex);
+            }
+            LOG.info(
+                    "Receiver "
+                            + (receiver != null ? receiver : address)
+                            + " disconnected after "
+                            + packets
+                            + " packets: "
+                            + reason);
+        }
+    }
+
+    @Override
+    public HCIData next() throws IOException {
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                AdvertisementDeduplicator.Pending due =
+                        deduplicator.poll(closed ? Long.MAX_VALUE : now);
+                if (due != null) {
+                    return due.data;
+                }
+                if (closed && queue.isEmpty()) {
+                    return null;
+                }
+                long wait = Math.min(deduplicator.nextDeadline() - now, 1000);
+                HCIData data = queue.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+                if (data != null) {
+                    deduplicator.offer(data, 0, System.currentTimeMillis());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for packets");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        serverChannel.close();
+    }
+}
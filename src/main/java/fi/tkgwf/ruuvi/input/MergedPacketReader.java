@@ -0,0 +1,209 @@
+package fi.tkgwf.ruuvi.input;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.log4j.Logger;
+
+/**
+ * Merges the packets of several adapters into a single stream. Every adapter is read by its own
+ * thread, with its own reader and parser, and the copies of an advertisement received through
+ * several adapters are dropped with an {@link AdvertisementDeduplicator}. The packet rates of the
+ * adapters are logged periodically.
+ */
+public class MergedPacketReader implements HciPacketReader {
+
+    private static final Logger LOG = Logger.getLogger(MergedPacketReader.class);
+
+    private static final int QUEUE_CAPACITY = 10_000;
+    private static final long REPORT_INTERVAL_MS = 60_000;
+
+    private final List<String> names;
+    private final List<HciPacketReader> sources;
+    private final BlockingQueue<Packet> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AdvertisementDeduplicator deduplicator;
+    private final Thread[] threads;
+    private final AtomicLongArray received;
+    private final long[] selected;
+    private final long[] receivedAtReport;
+    private final long[] selectedAtReport;
+    private long reportTime;
+    private int ended;
+
+    private static final class Packet {
+        final int source;
+        /** null when the source has ended */
+        final HCIData data;
+
+        Packet(int source, HCIData data) {
+            this.source = source;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Starts reading the sources.
+     *
+     * @param names names of the adapters, for logging
+     * @param sources readers of the adapters, closed when this reader is closed
+     * @param deduplicationWindowMs how long to wait for copies of an advertisement from the other
+     *     adapters
+     */
+    public MergedPacketReader(
+            List<String> names, List<HciPacketReader> sources, long deduplicationWindowMs) {
+        this.names = names;
+        this.sources = sources;
+        this.deduplicator = new AdvertisementDeduplicator(deduplicationWindowMs);
+        this.received = new AtomicLongArray(sources.size());
+        this.selected = new long[sources.size()];
+        this.receivedAtReport = new long[sources.size()];
+        this.selectedAtReport = new long[sources.size()];
+        this.reportTime = now();
+        this.threads = new Thread[sources.size()];
+        for (int i = 0; i < threads.length; i++) {
+            final int source = i;
+            threads[i] = new Thread(() -> read(source), "adapter-" + names.get(i));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    private void read(int source) {
+        HciPacketReader reader = sources.get(source);
+        try {
+            while (true) {
+                HCIData data;
+                try {
+                    data = reader.next();
+                } catch (RuntimeException ex) {
+                    LOG.warn("Failed to parse a packet from adapter " + names.get(source), ex);
+                    continue;
+                }
+                if (data == null) {
+                    break;
+                }
+                received.incrementAndGet(source);
+                queue.put(new Packet(source, data));
+            }
+            LOG.info("Adapter " + names.get(source) + " has no more data");
+        } catch (IOException ex) {
+            if (!Thread.currentThread().isInterrupted()) {
+                LOG.error("Failed to read from adapter " + names.get(source), ex);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return; // closed
+        }
+        try {
+            queue.put(new Packet(source, null));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public HCIData next() throws IOException {
+        try {
+            while (true) {
+                long now = now();
+                if (now - reportTime >= REPORT_INTERVAL_MS) {
+                    report(now);
+                }
+                boolean allEnded = ended == sources.size();
+                AdvertisementDeduplicator.Pending due =
+                        deduplicator.poll(allEnded ? Long.MAX_VALUE : now);
+                if (due != null) {
+                    selected[due.source]++;
+                    return due.data;
+                }
+                if (allEnded) {
+                    return null;
+                }
+                long until = Math.min(deduplicator.nextDeadline(), reportTime + REPORT_INTERVAL_MS);
+                Packet packet = queue.poll(Math.max(0, until - now), TimeUnit.MILLISECONDS);
+                if (packet == null) {
+                    continue;
+                }
+                if (packet.data == null) {
+                    ended++;
+                } else {
+                    deduplicator.offer(packet.data, packet.source, now());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for packets");
+        }
+    }
+
+    private void report(long now) {
+        double seconds = Math.max(now - reportTime, 1) / 1000.0;
+        StringBuilder sb = new StringBuilder("Packets per second by adapter (received/selected):");
+        for (int i = 0; i < sources.size(); i++) {
+            long receivedNow = received.get(i);
+            sb.append(' ')
+                    .append(names.get(i))
+                    .append(' ')
+                    .append(String.format("%.1f", (receivedNow - receivedAtReport[i]) / seconds))
+                    .append('/')
+                    .append(String.format("%.1f", (selected[i] - selectedAtReport[i]) / seconds));
+            receivedAtReport[i] = receivedNow;
+            selectedAtReport[i] = selected[i];
+        }
+        sb.append(", ").append(deduplicator.getDuplicates()).append(" duplicates dropped in total");
+        LOG.info(sb);
+        reportTime = now;
+    }
+
+    /**
+     * @return the number of packets received through the given adapter so far
+     */
+    public long getReceived(int source) {
+        return received.get(source);
+    }
+
+    /**
+     * @return the number of packets passed on from the given adapter so far
+     */
+    public long getSelected(int source) {
+        return selected[source];
+    }
+
+    /**
+     * @return the number of copies of advertisements dropped so far
+     */
+    public long getDuplicates() {
+        return deduplicator.getDuplicates();
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return sources.stream().allMatch(HciPacketReader::isHealthy);
+    }
+
+    @Override
+    public void close() throws IOException {
+        report(now());
+        IOException failure = null;
+        for (int i = 0; i < sources.size(); i++) {
+            threads[i].interrupt();
+            try {
+                sources.get(i).close();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
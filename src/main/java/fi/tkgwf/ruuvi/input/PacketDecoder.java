@@ -0,0 +1,21 @@
+package fi.tkgwf.ruuvi.input;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes packets incrementally from a buffer that more data is read into between the calls. Not
+ * thread safe.
+ */
+public interface PacketDecoder {
+
+    /**
+     * Decodes the next packet from the buffer.
+     *
+     * @param in a buffer in read mode, its position is advanced past the consumed data
+     * @return the next packet, or null if the buffer doesn't contain a complete one
+     * @throws IOException if the data is invalid
+     */
+    HCIData next(ByteBuffer in) throws IOException;
+}
@@ -0,0 +1,65 @@
+package fi.tkgwf.ruuvi.relay;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The sequence number of the last frame processed by relay session, shared by the connections of
+ * the upstream collector so that the frames a relay sends again after a reconnection are skipped. A
+ * session is forgotten when no frame of it has been processed for the expiry time, so the sessions
+ * of restarted relays don't pile up. Not thread safe.
+ */
+public class ProcessedFrames {
+
+    private final long expiryMs;
+    /** In the order of the last update, the least recently updated first */
+    private final Map<Long, Session> sessions = new LinkedHashMap<>();
+
+    private static class Session {
+        final long frame;
+        final long updated;
+
+        Session(long frame, long updated) {
+            this.frame = frame;
+            this.updated = updated;
+        }
+    }
+
+    /**
+     * @param expiryMs how long a session is remembered after its last processed frame
+     */
+    public ProcessedFrames(long expiryMs) {
+        this.expiryMs = expiryMs;
+    }
+
+    /**
+     * @return the sequence number of the last frame processed in the session, 0 if none
+     */
+    public long getLast(long session) {
+        Session s = sessions.get(session);
+        return s != null ? s.frame : 0;
+    }
+
+    /**
+     * Records a processed frame and forgets the expired sessions.
+     *
+     * @param now current time in milliseconds
+     */
+    public void processed(long session, long frame, long now) {
+        Session previous = sessions.remove(session);
+        long last = previous != null ? Math.max(previous.frame, frame) : frame;
+        sessions.put(session, new Session(last, now));
+        Iterator<Session> oldest = sessions.values().iterator();
+        while (oldest.hasNext() && now - oldest.next().updated > expiryMs) {
+            oldest.remove();
+        }
+    }
+
+    /**
+     * @return the number of sessions remembered
+     */
+    public int size() {
+        return sessions.size();
+    }
+}
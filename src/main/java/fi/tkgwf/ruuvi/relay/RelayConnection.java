@@ -0,0 +1,371 @@
+package fi.tkgwf.ruuvi.relay;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.config.Configuration;
+import fi.tkgwf.ruuvi.db.RuuviDBConnection;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.zip.Deflater;
+import org.apache.log4j.Logger;
+
+/**
+ * Sends the measurements to an upstream collector instead of storing them, see {@link
+ * RelayProtocol}. The measurements are collected into batches which are compressed and sent by a
+ * background thread, so saving a measurement never waits for the network.
+ *
+ * <p>The batches are kept in an in-memory spool until the upstream acknowledges them, and the
+ * unacknowledged ones are sent again after a reconnection. When the upstream is unreachable for
+ * long, the oldest batches are dropped to keep the spool within its maximum size.
+ */
+public class RelayConnection implements RuuviDBConnection {
+
+    private static final Logger LOG = Logger.getLogger(RelayConnection.class);
+
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private final String host;
+    private final int port;
+    private final String receiver;
+    private final long flushIntervalMs;
+    private final int maxBatchSize;
+    private final long spoolMaxBytes;
+    private final long reconnectIntervalMs;
+    private final long session = new SecureRandom().nextLong();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Thread sender;
+
+    // everything below is guarded by lock
+    private final Object lock = new Object();
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private final RelayProtocol.Deltas batchDeltas = new RelayProtocol.Deltas();
+    private int batchSize;
+    private long batchDeadline;
+    private final Deque<Frame> spool = new ArrayDeque<>();
+    private long spoolBytes;
+    private long nextSequence = 1;
+    private Socket socket;
+    /** The last frame sent through the current connection */
+    private long sent;
+
+    private long reconnectAt;
+    private long dropped;
+    private boolean connectFailing;
+    private boolean closed;
+
+    private static final class Frame {
+        final long sequence;
+        final int measurements;
+        final byte[] bytes;
+
+        Frame(long sequence, int measurements, byte[] bytes) {
+            this.sequence = sequence;
+            this.measurements = measurements;
+            this.bytes = bytes;
+        }
+    }
+
+    public RelayConnection() {
+        this(
+                Configuration.get().relay.host,
+                Configuration.get().relay.port,
+                Configuration.get().storage.receiver,
+                Configuration.get().relay.flushIntervalMs,
+                Configuration.get().relay.maxBatchSize,
+                Configuration.get().relay.spoolMaxBytes,
+                Configuration.get().relay.reconnectIntervalMs);
+    }
+
+    /**
+     * @param receiver the name sent to the upstream for the measurements, null to let the upstream
+     *     name them by the address of the relay
+     */
+    public RelayConnection(
+            String host,
+            int port,
+            String receiver,
+            long flushIntervalMs,
+            int maxBatchSize,
+            long spoolMaxBytes,
+            long reconnectIntervalMs) {
+        this.host = host;
+        this.port = port;
+        this.receiver = receiver;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, RelayProtocol.MAX_BATCH_SIZE));
+        this.spoolMaxBytes = spoolMaxBytes;
+        this.reconnectIntervalMs = reconnectIntervalMs;
+        LOG.info("Relaying measurements to " + host + ":" + port);
+        sender = new Thread(this::send, "relay-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @Override
+    public void save(EnhancedRuuviMeasurement measurement) {
+        save(PrimitiveMeasurement.from(measurement));
+    }
+
+    @Override
+    public void save(PrimitiveMeasurement measurement) {
+        if (!measurement.hasTime()) {
+            measurement.setTime(System.currentTimeMillis());
+        }
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            RelayProtocol.writeMeasurement(batch, measurement, batchDeltas);
+            if (batchSize++ == 0) {
+                batchDeadline = System.currentTimeMillis() + flushIntervalMs;
+                lock.notifyAll();
+            }
+            if (batchSize >= maxBatchSize || batch.size() >= RelayProtocol.MAX_BATCH_BYTES) {
+                sealBatch();
+            }
+        }
+    }
+
+    /** Compresses the current batch into a frame and adds it to the spool. */
+    private void sealBatch() {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(batch.size() + 5);
+        RelayProtocol.writeVarint(payload, batchSize);
+        payload.writeBytes(batch.toByteArray());
+        byte[] compressed = RelayProtocol.deflate(deflater, payload.toByteArray());
+        ByteBuffer frame =
+                ByteBuffer.allocate(RelayProtocol.FRAME_HEADER_LENGTH + compressed.length);
+        frame.putInt(compressed.length).putLong(nextSequence).put(compressed);
+        spool.addLast(new Frame(nextSequence++, batchSize, frame.array()));
+        spoolBytes += frame.capacity();
+        batch.reset();
+        batchSize = 0;
+        batchDeltas.reset();
+        while (spoolBytes > spoolMaxBytes && spool.size() > 1) {
+            Frame oldest = spool.removeFirst();
+            spoolBytes -= oldest.bytes.length;
+            if (dropped == 0) {
+                LOG.warn("Relay spool full, dropping the oldest measurements");
+            }
+            dropped += oldest.measurements;
+        }
+        lock.notifyAll();
+    }
+
+    private void send() {
+        long closeDeadline = Long.MAX_VALUE;
+        while (true) {
+            Socket current;
+            Frame frame = null;
+            synchronized (lock) {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    if (closed && closeDeadline == Long.MAX_VALUE) {
+                        closeDeadline = now + CLOSE_TIMEOUT_MS;
+                    }
+                    if (batchSize > 0 && (closed || now >= batchDeadline)) {
+                        sealBatch();
+                    }
+                    if (closed && (spool.isEmpty() || now >= closeDeadline)) {
+                        shutdown();
+                        return;
+                    }
+                    if (socket != null) {
+                        frame = nextUnsent();
+                        if (frame != null) {
+                            sent = frame.sequence;
+                            break;
+                        }
+                    } else if (now >= reconnectAt) {
+                        break;
+                    }
+                    long until = closeDeadline;
+                    if (batchSize > 0) {
+                        until = Math.min(until, batchDeadline);
+                    }
+                    if (socket == null) {
+                        until = Math.min(until, reconnectAt);
+                    }
+                    try {
+                        lock.wait(until == Long.MAX_VALUE ? 0 : Math.max(1, until - now));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                current = socket;
+            }
+            if (current == null) {
+                connect();
+                continue;
+            }
+            try {
+                current.getOutputStream().write(frame.bytes);
+            } catch (IOException ex) {
+                disconnect(current, ex.getMessage());
+            }
+        }
+    }
+
+    /** The upstream calculates the derived values */
+    @Override
+    public Set<MeasurementField> getStoredFields() {
+        return RelayProtocol.fields();
+    }
+
+    /** Holds the lock */
+    private Frame nextUnsent() {
+        for (Frame frame : spool) {
+            if (frame.sequence > sent) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    private void connect() {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            s.setTcpNoDelay(true);
+            s.getOutputStream().write(hello());
+        } catch (IOException ex) {
+            close(s);
+            synchronized (lock) {
+                if (!connectFailing) {
+                    LOG.warn(
+                            "Failed to connect to the upstream collector "
+                                    + upstream()
+                                    + ": "
+                                    + ex);
+                    connectFailing = true;
+                }
+                reconnectAt = System.currentTimeMillis() + reconnectIntervalMs;
+            }
+            return;
+        }
+        synchronized (lock) {
+            socket = s;
+            sent = 0; // the unacknowledged frames are sent again
+            connectFailing = false;
+            LOG.info(
+                    "Connected to the upstream collector "
+                            + upstream()
+                            + (spool.isEmpty() ? "" : ", resending " + spool.size() + " batches")
+                            + (dropped == 0 ? "" : ", " + dropped + " measurements were dropped"));
+            dropped = 0;
+        }
+        Thread acks = new Thread(() -> readAcks(s), "relay-acks");
+        acks.setDaemon(true);
+        acks.start();
+    }
+
+    private String upstream() {
+        return host + ":" + port;
+    }
+
+    private byte[] hello() {
+        byte[] name = receiver != null ? receiver.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(RelayProtocol.MAGIC);
+        out.write(RelayProtocol.VERSION);
+        out.writeBytes(ByteBuffer.allocate(8).putLong(session).array());
+        RelayProtocol.writeVarint(out, name.length);
+        out.writeBytes(name);
+        return out.toByteArray();
+    }
+
+    private void readAcks(Socket s) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            while (true) {
+                long acknowledged = in.readLong();
+                synchronized (lock) {
+                    while (!spool.isEmpty() && spool.peekFirst().sequence <= acknowledged) {
+                        spoolBytes -= spool.removeFirst().bytes.length;
+                    }
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException ex) {
+            disconnect(s, ex.toString());
+        }
+    }
+
+    private void disconnect(Socket s, String reason) {
+        synchronized (lock) {
+            if (socket != s) {
+                return;
+            }
+            socket = null;
+            reconnectAt = System.currentTimeMillis() + reconnectIntervalMs;
+            if (!closed) {
+                LOG.warn(
+                        "Lost the connection to the upstream collector "
+                                + upstream()
+                                + ": "
+                                + reason);
+            }
+            lock.notifyAll();
+        }
+        close(s);
+    }
+
+    /** Holds the lock */
+    private void shutdown() {
+        if (!spool.isEmpty()) {
+            int measurements = spool.stream().mapToInt(f -> f.measurements).sum();
+            LOG.warn(
+                    measurements
+                            + " measurements not acknowledged by the upstream collector were"
+                            + " dropped");
+        }
+        if (socket != null) {
+            close(socket);
+            socket = null;
+        }
+        deflater.end();
+    }
+
+    private static void close(Socket s) {
+        try {
+            s.close();
+        } catch (IOException ex) {
+            LOG.debug("Failed to close the connection to the upstream collector", ex);
+        }
+    }
+
+    /**
+     * @return the number of measurements waiting for an acknowledgement from the upstream
+     */
+    int getUnacknowledged() {
+        synchronized (lock) {
+            return batchSize + spool.stream().mapToInt(f -> f.measurements).sum();
+        }
+    }
+
+    /** Sends the remaining measurements, waiting a few seconds for the upstream to acknowledge. */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            sender.join(CLOSE_TIMEOUT_MS + CONNECT_TIMEOUT_MS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package fi.tkgwf.ruuvi.relay;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.input.PacketDecoder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.Inflater;
+import org.apache.log4j.Logger;
+
+/**
+ * Decodes the measurements a relay sends, see {@link RelayProtocol}, on the upstream collector. The
+ * measurements are returned as {@link HCIData} carrying the already decoded measurement.
+ */
+public class RelayDecoder implements PacketDecoder {
+
+    private static final Logger LOG = Logger.getLogger(RelayDecoder.class);
+
+    private static final int HELLO_LENGTH = RelayProtocol.MAGIC.length + 1 + 8;
+    private static final int MAX_NAME_LENGTH = 256;
+
+    private final ProcessedFrames processedFrames;
+    private final Inflater inflater = new Inflater(true);
+    private boolean helloRead;
+    private long session;
+    private String receiver;
+    private List<PrimitiveMeasurement> batch = List.of();
+    private int batchIndex;
+    private long frame;
+    private long completedFrame;
+
+    /**
+     * @param processedFrames the last frames processed by session, shared by the connections so
+     *     that the frames sent again after a reconnection are skipped
+     */
+    public RelayDecoder(ProcessedFrames processedFrames) {
+        this.processedFrames = processedFrames;
+    }
+
+    @Override
+    public HCIData next(ByteBuffer in) throws IOException {
+        if (!helloRead && !readHello(in)) {
+            return null;
+        }
+        while (true) {
+            if (batchIndex < batch.size()) {
+                return toHciData(batch.get(batchIndex++));
+            }
+            if (frame > completedFrame) {
+                completedFrame = frame;
+                processedFrames.processed(session, frame, System.currentTimeMillis());
+            }
+            if (in.remaining() < RelayProtocol.FRAME_HEADER_LENGTH) {
+                return null;
+            }
+            int start = in.position();
+            int length = in.getInt(start);
+            long sequence = in.getLong(start + 4);
+            if (length < 0 || length > RelayProtocol.MAX_FRAME_LENGTH) {
+                throw new IOException("Corrupted relay frame, length " + length);
+            }
+            int payloadStart = start + RelayProtocol.FRAME_HEADER_LENGTH;
+            if (in.limit() - payloadStart < length) {
+                return null;
+            }
+            in.position(payloadStart + length);
+            frame = sequence;
+            if (sequence <= processedFrames.getLast(session)) {
+                batch = List.of(); // sent again after a reconnection, already processed
+                continue;
+            }
+            ByteBuffer payload = in.duplicate().position(payloadStart).limit(payloadStart + length);
+            batch =
+                    RelayProtocol.readBatch(
+                            RelayProtocol.inflate(
+                                    inflater, payload, RelayProtocol.MAX_BATCH_BYTES * 2));
+            batchIndex = 0;
+        }
+    }
+
+    private boolean readHello(ByteBuffer in) throws IOException {
+        int start = in.position();
+        if (in.remaining() < HELLO_LENGTH + 1) {
+            return false;
+        }
+        for (int i = 0; i < RelayProtocol.MAGIC.length; i++) {
+            if (in.get(start + i) != RelayProtocol.MAGIC[i]) {
+                throw new IOException("Not a relay");
+            }
+        }
+        byte version = in.get(start + RelayProtocol.MAGIC.length);
+        if (version != RelayProtocol.VERSION) {
+            throw new IOException("Unsupported relay protocol version " + version);
+        }
+        in.position(start + HELLO_LENGTH);
+        long nameLength;
+        try {
+            nameLength = RelayProtocol.readVarint(in);
+        } catch (RuntimeException ex) {
+            in.position(start);
+            return false; // the varint is incomplete
+        }
+        if (nameLength > MAX_NAME_LENGTH) {
+            throw new IOException("Relay receiver name too long");
+        }
+        if (in.remaining() < nameLength) {
+            in.position(start);
+            return false;
+        }
+        byte[] name = new byte[(int) nameLength];
+        in.get(name);
+        session = in.getLong(start + RelayProtocol.MAGIC.length + 1);
+        receiver = nameLength > 0 ? new String(name, StandardCharsets.UTF_8) : null;
+        helloRead = true;
+        LOG.info(
+                "Relay "
+                        + (receiver != null ? receiver : "without a name")
+                        + " connected, session "
+                        + Long.toHexString(session));
+        return true;
+    }
+
+    private HCIData toHciData(PrimitiveMeasurement measurement) {
+        HCIData data = new HCIData();
+        data.mac = measurement.getMac();
+        data.rssi =
+                measurement.has(MeasurementField.RSSI)
+                        ? measurement.getInt(MeasurementField.RSSI)
+                        : null;
+        data.receiver = receiver;
+        data.measurement = measurement;
+        return data;
+    }
+
+    /**
+     * @return the sequence number of the last frame whose measurements have all been returned, 0 if
+     *     none
+     */
+    public long getCompletedFrame() {
+        return completedFrame;
+    }
+}
@@ -0,0 +1,244 @@
+package fi.tkgwf.ruuvi.relay;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary protocol a relay sends measurements to an upstream collector with.
+ *
+ * <pre>
+ * hello: "RUUVIRLY" (8 bytes), version (1 byte), session id (8 bytes),
+ *        receiver name (varint length, UTF-8)
+ * frame: payload length (4 bytes), frame sequence number (8 bytes), payload (raw deflate)
+ * ack:   sequence number of the last frame processed (8 bytes), sent back by the upstream
+ * </pre>
+ *
+ * The payload is a batch of measurements: their count (varint) and the measurements. A measurement
+ * is a field presence bitmask (varint), the packed MAC address (6 bytes), the time as a delta to
+ * the previous measurement of the batch (zigzag varint, milliseconds) and the present fields in the
+ * order of {@link #FIELDS} as zigzag varints. Decimal fields are scaled to integers with the
+ * resolution of the Ruuvi data formats, and sent as deltas to the same field of the previous
+ * measurement of the same tag in the batch, so that a batch decodes without the ones before it.
+ * Derived values are not sent, the upstream calculates them.
+ *
+ * <p>The frame sequence numbers of a session start from 1. Unacknowledged frames are sent again
+ * after a reconnection, and the upstream skips the frames of the session it has already processed.
+ * Varints are unsigned LEB128.
+ */
+public final class RelayProtocol {
+
+    public static final byte[] MAGIC = "RUUVIRLY".getBytes(StandardCharsets.US_ASCII);
+    public static final byte VERSION = 1;
+    public static final int FRAME_HEADER_LENGTH = 4 + 8;
+    /** Frames must fit into the receive buffer of the upstream */
+    public static final int MAX_FRAME_LENGTH = 60 * 1024;
+    /** Batches are sealed at this size, so that they compress into a frame */
+    public static final int MAX_BATCH_BYTES = 32 * 1024;
+
+    static final int MAX_BATCH_SIZE = 10_000;
+
+    /** The fields sent, in the order of their bits in the presence bitmask */
+    private static final MeasurementField[] FIELDS = {
+        MeasurementField.DATA_FORMAT,
+        MeasurementField.TEMPERATURE,
+        MeasurementField.HUMIDITY,
+        MeasurementField.PRESSURE,
+        MeasurementField.ACCELERATION_X,
+        MeasurementField.ACCELERATION_Y,
+        MeasurementField.ACCELERATION_Z,
+        MeasurementField.BATTERY_VOLTAGE,
+        MeasurementField.TX_POWER,
+        MeasurementField.MOVEMENT_COUNTER,
+        MeasurementField.MEASUREMENT_SEQUENCE_NUMBER,
+        MeasurementField.RSSI
+    };
+    /** The values are multiplied by these and rounded to integers */
+    private static final double[] SCALES = {1, 200, 400, 1, 1000, 1000, 1000, 1000, 1, 1, 1, 1};
+
+    private RelayProtocol() {}
+
+    /** The previous time of a batch and the previous scaled field values of each tag in it */
+    public static final class Deltas {
+        private final Map<String, long[]> values = new HashMap<>();
+        private long time;
+
+        private long[] of(String mac) {
+            return values.computeIfAbsent(mac, k -> new long[FIELDS.length]);
+        }
+
+        /** Starts a new batch */
+        public void reset() {
+            values.clear();
+            time = 0;
+        }
+    }
+
+    /**
+     * @return the fields sent
+     */
+    public static Set<MeasurementField> fields() {
+        return EnumSet.copyOf(Arrays.asList(FIELDS));
+    }
+
+    /**
+     * Writes a measurement of a batch.
+     *
+     * @param m the measurement, its MAC address and time must be set
+     * @param deltas the previous values of the batch, updated with the measurement
+     */
+    public static void writeMeasurement(
+            ByteArrayOutputStream out, PrimitiveMeasurement m, Deltas deltas) {
+        String mac = m.getMac();
+        if (mac == null || mac.length() != 12) {
+            throw new IllegalArgumentException("Invalid MAC address: " + mac);
+        }
+        long packedMac = Long.parseLong(mac, 16); // parsed before writing anything
+        long presence = 0;
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (m.has(FIELDS[i])) {
+                presence |= 1L << i;
+            }
+        }
+        writeVarint(out, presence);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            out.write((int) (packedMac >>> shift));
+        }
+        writeVarint(out, zigzag(m.getTime() - deltas.time));
+        deltas.time = m.getTime();
+        long[] previous = deltas.of(mac);
+        for (int i = 0; i < FIELDS.length; i++) {
+            if ((presence & (1L << i)) != 0) {
+                long value = Math.round(m.get(FIELDS[i]) * SCALES[i]);
+                writeVarint(out, zigzag(value - previous[i]));
+                previous[i] = value;
+            }
+        }
+    }
+
+    /**
+     * Reads a batch of measurements.
+     *
+     * @param in the uncompressed payload of a frame
+     */
+    public static List<PrimitiveMeasurement> readBatch(ByteBuffer in) throws IOException {
+        try {
+            long count = readVarint(in);
+            if (count > MAX_BATCH_SIZE) {
+                throw new IOException("Too many measurements in a batch: " + count);
+            }
+            List<PrimitiveMeasurement> batch = new ArrayList<>((int) count);
+            Deltas deltas = new Deltas();
+            for (int n = 0; n < count; n++) {
+                PrimitiveMeasurement m = new PrimitiveMeasurement();
+                long presence = readVarint(in);
+                StringBuilder mac = new StringBuilder(12);
+                for (int i = 0; i < 6; i++) {
+                    int b = in.get() & 0xFF;
+                    mac.append(Character.toUpperCase(Character.forDigit(b >>> 4, 16)))
+                            .append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+                }
+                m.setMac(mac.toString());
+                deltas.time += unzigzag(readVarint(in));
+                m.setTime(deltas.time);
+                long[] previous = deltas.of(m.getMac());
+                for (int i = 0; i < FIELDS.length; i++) {
+                    if ((presence & (1L << i)) != 0) {
+                        previous[i] += unzigzag(readVarint(in));
+                        m.set(FIELDS[i], previous[i] / SCALES[i]);
+                    }
+                }
+                batch.add(m);
+            }
+            return batch;
+        } catch (RuntimeException ex) {
+            throw new IOException("Corrupted relay batch", ex);
+        }
+    }
+
+    /**
+     * Inflates the payload of a frame.
+     *
+     * @param inflater a raw (nowrap) inflater, reset before use
+     * @param compressed the compressed payload, from its position to its limit
+     * @param maxLength the maximum length of the uncompressed payload
+     */
+    static ByteBuffer inflate(Inflater inflater, ByteBuffer compressed, int maxLength)
+            throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed);
+        ByteBuffer out = ByteBuffer.allocate(maxLength);
+        try {
+            while (!inflater.finished()) {
+                if (!out.hasRemaining()) {
+                    throw new IOException("Relay batch larger than " + maxLength + " bytes");
+                }
+                if (inflater.inflate(out) == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated relay batch");
+                }
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupted relay batch", ex);
+        }
+        return out.flip();
+    }
+
+    /**
+     * Compresses the payload of a frame.
+     *
+     * @param deflater a raw (nowrap) deflater, reset before use
+     */
+    static byte[] deflate(Deflater deflater, byte[] payload) {
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + 64);
+        byte[] chunk = new byte[4096];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(chunk);
+            out.write(chunk, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupted varint");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -1,32 +1,230 @@
 package fi.tkgwf.ruuvi.service;
 
+import fi.tkgwf.ruuvi.bean.AggregatedMeasurement;
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.config.Configuration;
 import fi.tkgwf.ruuvi.config.TagProperties;
 import fi.tkgwf.ruuvi.db.RuuviDBConnection;
+import fi.tkgwf.ruuvi.history.LatestValueTable;
+import fi.tkgwf.ruuvi.history.MeasurementHistory;
 import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import fi.tkgwf.ruuvi.utils.DerivedValuePlan;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
 
+/**
+ * Applies the limiting strategies to the measurements and saves the ones they accept. The derived
+ * values of the accepted {@link PrimitiveMeasurement}s are calculated here, only those the database
+ * connection stores, so that no time is spent on the measurements the strategies discard. With a
+ * batch size above one the accepted measurements are collected into a {@link MeasurementBatch},
+ * which is saved with {@link RuuviDBConnection#saveAll(MeasurementBatch)} when it is full or when
+ * its oldest measurement has waited for the maximum batch time, in which case a failure to save it
+ * is thrown from the next store. The accepted measurements are also recorded in the {@link
+ * MeasurementHistory}, and all the measurements, before the strategies, in the {@link
+ * LatestValueTable}. What the strategies of the forgotten tags held back is saved with the next
+ * measurement, and what all the strategies hold back on {@link #close()}.
+ */
 public class PersistenceService implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(PersistenceService.class);
+
     private final RuuviDBConnection db;
+    private final DerivedValuePlan plan;
+    private final MeasurementHistory history = MeasurementHistory.get();
+    private final LatestValueTable latest = LatestValueTable.get();
+    private final long batchMaxTimeMs;
+    /** null if the measurements are saved one by one, guarded by itself otherwise */
+    private final MeasurementBatch batch;
+
+    private final ScheduledExecutorService flusher;
+    private long batchStarted;
+    /** Why the flusher failed to save the last batch, thrown from the next store */
+    private volatile RuntimeException flushFailure;
 
     public PersistenceService() {
         this(RuuviDBConnection.createDBConnection());
     }
 
     public PersistenceService(final RuuviDBConnection db) {
+        this(db, Configuration.get().storage.batchSize, Configuration.get().storage.batchMaxTimeMs);
+    }
+
+    /**
+     * @param batchSize the maximum number of measurements saved at once, 1 or less to save them as
+     *     they are stored
+     * @param batchMaxTimeMs how long a measurement may wait for the batch to fill
+     */
+    public PersistenceService(
+            final RuuviDBConnection db, final int batchSize, final long batchMaxTimeMs) {
         this.db = db;
+        this.plan =
+                DerivedValuePlan.forFields(
+                        db.getStoredFields(), Configuration.get().storage.approximateDerivedValues);
+        this.batchMaxTimeMs = batchMaxTimeMs;
+        if (batchSize > 1) {
+            batch = new MeasurementBatch(batchSize);
+            flusher =
+                    Executors.newSingleThreadScheduledExecutor(
+                            r -> {
+                                final Thread thread = new Thread(r, "batch-flusher");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+            final long period = Math.max(1, batchMaxTimeMs / 10);
+            flusher.scheduleWithFixedDelay(this::flushIfDue, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            batch = null;
+            flusher = null;
+        }
     }
 
     @Override
     public void close() {
+        try {
+            TagProperties.flushAll(this::save);
+            TagProperties.drainFlushed(this::save);
+        } catch (RuntimeException ex) {
+            LOG.error("Failed to save the measurements held back by the limiting strategies", ex);
+        }
+        if (flusher != null) {
+            flusher.shutdownNow();
+            if (flushFailure != null) {
+                LOG.error("Failed to save a batch of measurements", flushFailure);
+            }
+            try {
+                flush();
+            } catch (RuntimeException ex) {
+                LOG.error("Failed to save the last batch of measurements", ex);
+            }
+        }
         db.close();
     }
 
     public void store(final EnhancedRuuviMeasurement measurement) {
-        Optional.ofNullable(measurement.getMac())
-                .map(mac -> TagProperties.get(mac).getLimitingStrategy())
-                .orElse(LimitingStrategy.DEFAULT)
-                .apply(measurement)
-                .ifPresent(db::save);
+        latest.update(PrimitiveMeasurement.from(measurement));
+        limit(measurement).map(PrimitiveMeasurement::from).ifPresent(this::save);
+        TagProperties.drainFlushed(this::save);
+        throwFlushFailure();
+    }
+
+    /**
+     * Stores the measurement if its limiting strategy accepts it, calculating the derived values
+     * first.
+     *
+     * @throws RuntimeException if saving fails, also if the flusher failed to save the batch since
+     *     the previous store
+     */
+    public void store(final PrimitiveMeasurement measurement) {
+        latest.update(measurement);
+        limit(measurement).ifPresent(this::save);
+        TagProperties.drainFlushed(this::save);
+        throwFlushFailure();
+    }
+
+    /** Throws the failure of the flusher to the caller of the store, which handles the others */
+    private void throwFlushFailure() {
+        final RuntimeException failure = flushFailure;
+        if (failure != null) {
+            flushFailure = null;
+            throw failure;
+        }
+    }
+
+    /** Applies the limiting strategy of the tag, looked up again if it's forgotten in between */
+    private static Optional<EnhancedRuuviMeasurement> limit(
+            final EnhancedRuuviMeasurement measurement) {
+        if (measurement.getMac() == null) {
+            return LimitingStrategy.DEFAULT.apply(measurement);
+        }
+        while (true) {
+            final TagProperties tag = TagProperties.get(measurement.getMac());
+            synchronized (tag) {
+                if (!tag.isReleased()) {
+                    return tag.getLimitingStrategy().apply(measurement);
+                }
+            }
+        }
+    }
+
+    private static Optional<PrimitiveMeasurement> limit(final PrimitiveMeasurement measurement) {
+        if (measurement.getMac() == null) {
+            return LimitingStrategy.DEFAULT.apply(measurement);
+        }
+        while (true) {
+            final TagProperties tag = TagProperties.get(measurement.getMac());
+            synchronized (tag) {
+                if (!tag.isReleased()) {
+                    return tag.getLimitingStrategy().apply(measurement);
+                }
+            }
+        }
+    }
+
+    /** Saves an accepted measurement, or adds it to the batch */
+    private void save(final PrimitiveMeasurement measurement) {
+        history.record(measurement);
+        if (batch == null) {
+            db.save(plan.apply(measurement));
+        } else {
+            addToBatch(measurement); // calculated for the whole batch when saved
+        }
+    }
+
+    private void addToBatch(final PrimitiveMeasurement measurement) {
+        if (measurement instanceof AggregatedMeasurement) {
+            // a batch only holds the values, the aggregates are few so they are saved as is, after
+            // the measurements before them
+            synchronized (batch) {
+                flush();
+                db.save(plan.apply(measurement));
+            }
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (!measurement.hasTime()) {
+            // saved later, so the time of saving isn't the time of the measurement anymore
+            measurement.setTime(now);
+        }
+        synchronized (batch) {
+            if (batch.isEmpty()) {
+                batchStarted = now;
+            }
+            batch.add(measurement);
+            if (batch.isFull()) {
+                flush();
+            }
+        }
+    }
+
+    private void flushIfDue() {
+        try {
+            synchronized (batch) {
+                if (!batch.isEmpty()
+                        && System.currentTimeMillis() - batchStarted >= batchMaxTimeMs) {
+                    flush();
+                }
+            }
+        } catch (RuntimeException ex) {
+            flushFailure = ex;
+        }
+    }
+
+    /** Saves the measurements in the batch, they are discarded if saving fails. */
+    private void flush() {
+        synchronized (batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                db.saveAll(plan.apply(batch));
+            } finally {
+                batch.clear();
+            }
+        }
     }
 }
@@ -0,0 +1,236 @@
+package fi.tkgwf.ruuvi.store;
+
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Encodes the measurements of one tag column by column:
+ *
+ * <pre>
+ * rows (varint), times, fields present on any row (varint bitmask), the column of each such field
+ * times:  the first time and the deltas of the deltas (zigzag varints, milliseconds)
+ * column: 1 if every row has a value, else 0 and a bitmap of the rows that do (a bit per row),
+ *         then the values of those rows
+ * </pre>
+ *
+ * The values of the whole number fields are deltas to the previous value (zigzag varints). The
+ * decimal values are XORed with the previous value: a header byte of 0x80 if the result is zero,
+ * otherwise the number of leading zero bytes in the high and of trailing zero bytes in the low four
+ * bits, followed by the bytes in between. Varints are unsigned LEB128.
+ */
+final class ColumnChunk {
+
+    private ColumnChunk() {}
+
+    /**
+     * Encodes the given rows of the batch.
+     *
+     * @param stored the fields encoded, bit {@link MeasurementField#bit()} for each
+     */
+    static void encode(
+            final MeasurementBatch batch,
+            final int[] rows,
+            final int count,
+            final long stored,
+            final ByteArrayOutputStream out) {
+        writeVarint(out, count);
+        long previousTime = 0;
+        long previousDelta = 0;
+        long fields = 0;
+        for (int i = 0; i < count; i++) {
+            final long time = batch.getTime(rows[i]);
+            final long delta = i == 0 ? time : time - previousTime;
+            writeVarint(out, zigzag(i == 0 ? time : delta - previousDelta));
+            previousDelta = i == 0 ? 0 : delta;
+            previousTime = time;
+            fields |= batch.getPresence(rows[i]);
+        }
+        fields &= stored;
+        writeVarint(out, fields);
+        for (final MeasurementField field : MeasurementField.ALL) {
+            if ((fields & field.bit()) != 0) {
+                encodeColumn(batch, rows, count, field, out);
+            }
+        }
+    }
+
+    private static void encodeColumn(
+            final MeasurementBatch batch,
+            final int[] rows,
+            final int count,
+            final MeasurementField field,
+            final ByteArrayOutputStream out) {
+        boolean all = true;
+        for (int i = 0; i < count && all; i++) {
+            all = batch.has(rows[i], field);
+        }
+        if (all) {
+            out.write(1);
+        } else {
+            out.write(0);
+            final byte[] bitmap = new byte[(count + 7) / 8];
+            for (int i = 0; i < count; i++) {
+                if (batch.has(rows[i], field)) {
+                    bitmap[i >>> 3] |= 1 << (i & 7);
+                }
+            }
+            out.writeBytes(bitmap);
+        }
+        long previous = 0;
+        final double[] column = batch.column(field);
+        for (int i = 0; i < count; i++) {
+            if (!batch.has(rows[i], field)) {
+                continue;
+            }
+            final double value = column[rows[i]];
+            if (field.isInteger()) {
+                final long integer = (long) value;
+                writeVarint(out, zigzag(integer - previous));
+                previous = integer;
+            } else {
+                final long bits = Double.doubleToLongBits(value);
+                writeXor(out, bits ^ previous);
+                previous = bits;
+            }
+        }
+    }
+
+    /**
+     * Decodes the rows with times from {@code from} to {@code to}, both inclusive.
+     *
+     * @param in the encoded chunk, read to its end
+     * @param mac the MAC address of the tag
+     * @param name the name of the tag
+     * @param target the measurement the rows are decoded to, one after another
+     * @param action called with the target for each row
+     */
+    static void decode(
+            final ByteBuffer in,
+            final String mac,
+            final String name,
+            final long from,
+            final long to,
+            final PrimitiveMeasurement target,
+            final Consumer<? super PrimitiveMeasurement> action)
+            throws IOException {
+        final int count = (int) readVarint(in);
+        final long[] times = new long[count];
+        long delta = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                times[i] = unzigzag(readVarint(in));
+            } else {
+                delta += unzigzag(readVarint(in));
+                times[i] = times[i - 1] + delta;
+            }
+        }
+        final long fields = readVarint(in);
+        final long[] presence = new long[count];
+        final double[][] columns = new double[MeasurementField.ALL.length][];
+        for (final MeasurementField field : MeasurementField.ALL) {
+            if ((fields & field.bit()) == 0) {
+                continue;
+            }
+            final double[] column = new double[count];
+            columns[field.ordinal()] = column;
+            final boolean all = in.get() != 0;
+            byte[] bitmap = null;
+            if (!all) {
+                bitmap = new byte[(count + 7) / 8];
+                in.get(bitmap);
+            }
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                if (!all && (bitmap[i >>> 3] & 1 << (i & 7)) == 0) {
+                    continue;
+                }
+                presence[i] |= field.bit();
+                if (field.isInteger()) {
+                    previous += unzigzag(readVarint(in));
+                    column[i] = previous;
+                } else {
+                    previous ^= readXor(in);
+                    column[i] = Double.longBitsToDouble(previous);
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (times[i] < from || times[i] > to) {
+                continue;
+            }
+            target.reset();
+            for (final MeasurementField field : MeasurementField.ALL) {
+                if ((presence[i] & field.bit()) != 0) {
+                    target.set(field, columns[field.ordinal()][i]);
+                }
+            }
+            target.setTime(times[i]);
+            target.setMac(mac);
+            target.setName(name);
+            action.accept(target);
+        }
+    }
+
+    private static void writeXor(final ByteArrayOutputStream out, final long xor) {
+        if (xor == 0) {
+            out.write(0x80);
+            return;
+        }
+        final int leading = Long.numberOfLeadingZeros(xor) / 8;
+        final int trailing = Long.numberOfTrailingZeros(xor) / 8;
+        out.write(leading << 4 | trailing);
+        for (int shift = (7 - leading) * 8; shift >= trailing * 8; shift -= 8) {
+            out.write((int) (xor >>> shift));
+        }
+    }
+
+    private static long readXor(final ByteBuffer in) throws IOException {
+        final int header = in.get() & 0xFF;
+        if (header == 0x80) {
+            return 0;
+        }
+        final int leading = header >>> 4;
+        final int trailing = header & 0xF;
+        if (leading + trailing > 7) {
+            throw new IOException("Invalid value header: " + header);
+        }
+        long xor = 0;
+        for (int shift = (7 - leading) * 8; shift >= trailing * 8; shift -= 8) {
+            xor |= (long) (in.get() & 0xFF) << shift;
+        }
+        return xor;
+    }
+
+    static void writeVarint(final ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(final ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,333 @@
+package fi.tkgwf.ruuvi.store;
+
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+import org.apache.log4j.Logger;
+
+/**
+ * An embedded store of measurements in a directory, with a {@link LocalStorePartition} file per day
+ * (UTC) named like {@code ruuvi-2020-09-13.lts}. The measurements of each tag are written as column
+ * compressed chunks, and reading the measurements of a tag only reads its chunks.
+ *
+ * <p>Thread safe.
+ */
+public class LocalStore implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(LocalStore.class);
+
+    static final String PREFIX = "ruuvi-";
+    static final String SUFFIX = ".lts";
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+    /** The most partitions kept open for reading, the least recently used are closed */
+    private static final int MAX_OPEN_PARTITIONS = 4;
+
+    private final Path directory;
+    private final Map<Long, LocalStorePartition> open =
+            new LinkedHashMap<>(MAX_OPEN_PARTITIONS * 2, 0.75f, true);
+    /** The partition of the latest day written, kept open outside {@link #open} */
+    private LocalStorePartition writing;
+
+    private long writingDay = Long.MIN_VALUE;
+    private long version;
+
+    /**
+     * @param directory the directory of the partition files, created if it doesn't exist
+     */
+    public LocalStore(final Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Appends the measurements of the batch to the partitions of their days, as a chunk per tag and
+     * day. They are written to the files, but not forced to the disk until {@link #sync()}. The
+     * measurements without a time or MAC address are skipped.
+     *
+     * @param fields the fields stored, bit {@link MeasurementField#bit()} for each
+     */
+    public synchronized void append(final MeasurementBatch batch, final long fields)
+            throws IOException {
+        final Integer[] order = new Integer[batch.size()];
+        int count = 0;
+        for (int row = 0; row < batch.size(); row++) {
+            if (batch.hasTime(row) && batch.getMac(row) != null) {
+                order[count++] = row;
+            }
+        }
+        final Comparator<Integer> byTag =
+                Comparator.<Integer>comparingLong(row -> day(batch.getTime(row)))
+                        .thenComparing(batch::getMac)
+                        .thenComparing(
+                                batch::getName, Comparator.nullsFirst(Comparator.naturalOrder()));
+        Arrays.sort(order, 0, count, byTag.thenComparingLong(batch::getTime));
+        final int[] rows = new int[count];
+        int start = 0;
+        while (start < count) {
+            int end = start + 1;
+            while (end < count && byTag.compare(order[start], order[end]) == 0) {
+                end++;
+            }
+            for (int i = start; i < end; i++) {
+                rows[i - start] = order[i];
+            }
+            final int first = order[start];
+            final long day = day(batch.getTime(first));
+            (day >= writingDay ? writing(day) : partition(day))
+                    .append(
+                            batch.getMac(first),
+                            batch.getName(first),
+                            batch,
+                            rows,
+                            end - start,
+                            fields);
+            start = end;
+        }
+        for (final LocalStorePartition partition : open.values()) {
+            partition.flush();
+        }
+        if (writing != null) {
+            writing.flush();
+        }
+        version++;
+    }
+
+    /** Forces the appended measurements to the disk */
+    public synchronized void sync() throws IOException {
+        for (final LocalStorePartition partition : open.values()) {
+            partition.sync();
+        }
+        if (writing != null) {
+            writing.sync();
+        }
+    }
+
+    /**
+     * Decodes the measurements with times from {@code from} to {@code to}, both inclusive, of the
+     * tag, or of all the tags if the MAC address is null. The measurements are in time order per
+     * chunk, the chunks in the order they were written. The same {@link PrimitiveMeasurement} is
+     * reused for every measurement, so the action must copy whatever it keeps.
+     *
+     * <p>The store is locked only while a chunk is read, not while the action is called, so a slow
+     * reader doesn't hold up the writes.
+     */
+    public void forEach(
+            final String mac,
+            final long from,
+            final long to,
+            final Consumer<? super PrimitiveMeasurement> action)
+            throws IOException {
+        forEach(mac, from, to, action, time -> {});
+    }
+
+    /**
+     * Like {@link #forEach(String, long, long, Consumer)}, telling before each chunk the earliest
+     * time of the measurements still to come, so that a reader can finish with the earlier times.
+     *
+     * @param progress called with a time none of the following measurements is before
+     */
+    public void forEach(
+            final String mac,
+            final long from,
+            final long to,
+            final Consumer<? super PrimitiveMeasurement> action,
+            final LongConsumer progress)
+            throws IOException {
+        final PrimitiveMeasurement target = new PrimitiveMeasurement();
+        final List<Long> days;
+        synchronized (this) {
+            days = days(from, to);
+        }
+        for (final long day : days) {
+            final List<LocalStorePartition.ChunkRef> chunks;
+            synchronized (this) {
+                chunks = partition(day).chunks(mac, from, to);
+            }
+            // the chunks of the later days are of the later days only
+            final long[] earliest = new long[chunks.size()];
+            for (int i = chunks.size() - 1; i >= 0; i--) {
+                final long first = chunks.get(i).firstTime;
+                earliest[i] = i + 1 < chunks.size() ? Math.min(first, earliest[i + 1]) : first;
+            }
+            for (int i = 0; i < chunks.size(); i++) {
+                final LocalStorePartition.ChunkRef chunk = chunks.get(i);
+                progress.accept(earliest[i]);
+                final ByteBuffer bytes;
+                final String chunkMac;
+                final String chunkName;
+                synchronized (this) {
+                    // the partition may have been closed and opened again in between
+                    final LocalStorePartition partition = partition(day);
+                    bytes = partition.read(chunk);
+                    chunkMac = partition.getMac(chunk);
+                    chunkName = partition.getName(chunk);
+                }
+                ColumnChunk.decode(bytes, chunkMac, chunkName, from, to, target, action);
+            }
+        }
+    }
+
+    /**
+     * @return a number that changes whenever measurements are appended
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the MAC addresses of the tags with measurements in the days of the range
+     */
+    public synchronized Set<String> getMacs(final long from, final long to) throws IOException {
+        final Set<String> macs = new TreeSet<>();
+        for (final long day : days(from, to)) {
+            macs.addAll(partition(day).getMacs());
+        }
+        return macs;
+    }
+
+    /**
+     * @return the partition files of the directory, the oldest first
+     */
+    public static List<Path> partitionFiles(final Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            final List<Path> partitions = new ArrayList<>();
+            files.filter(LocalStore::isPartitionFile).sorted().forEach(partitions::add);
+            return partitions;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (final LocalStorePartition partition : open.values()) {
+            try {
+                partition.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        open.clear();
+        if (writing != null) {
+            try {
+                writing.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+            writing = null;
+            writingDay = Long.MIN_VALUE;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** The days with a partition file within the range */
+    private List<Long> days(final long from, final long to) throws IOException {
+        final List<Long> days = new ArrayList<>();
+        for (final Path file : partitionFiles(directory)) {
+            final long day = dayOf(file);
+            if (day >= day(from) && day <= day(to)) {
+                days.add(day);
+            }
+        }
+        return days;
+    }
+
+    private LocalStorePartition partition(final long day) throws IOException {
+        if (day == writingDay) {
+            return writing;
+        }
+        LocalStorePartition partition = open.get(day);
+        if (partition == null) {
+            partition = LocalStorePartition.open(directory.resolve(fileName(day)));
+            open.put(day, partition);
+            closeEldest();
+        }
+        return partition;
+    }
+
+    /**
+     * The partition of the latest day written isn't closed by the reads of the older days. When the
+     * day changes, the previous one is left to the least recently used partitions.
+     */
+    private LocalStorePartition writing(final long day) throws IOException {
+        if (day != writingDay) {
+            LocalStorePartition partition = open.remove(day);
+            if (partition == null) {
+                partition = LocalStorePartition.open(directory.resolve(fileName(day)));
+            }
+            if (writing != null) {
+                open.put(writingDay, writing);
+                closeEldest();
+            }
+            writing = partition;
+            writingDay = day;
+        }
+        return writing;
+    }
+
+    private void closeEldest() {
+        if (open.size() > MAX_OPEN_PARTITIONS) {
+            final Iterator<LocalStorePartition> eldest = open.values().iterator();
+            final LocalStorePartition closed = eldest.next();
+            eldest.remove();
+            try {
+                closed.close();
+            } catch (IOException e) {
+                LOG.error("Failed to close " + closed.getPath(), e);
+            }
+        }
+    }
+
+    /**
+     * @return true if the partition of the day of the time is open
+     */
+    synchronized boolean isOpen(final long time) {
+        final long day = day(time);
+        return day == writingDay || open.containsKey(day);
+    }
+
+    private static long day(final long time) {
+        return Math.floorDiv(time, DAY_MS);
+    }
+
+    static String fileName(final long day) {
+        return PREFIX + LocalDate.ofEpochDay(day) + SUFFIX;
+    }
+
+    private static boolean isPartitionFile(final Path file) {
+        final String name = file.getFileName().toString();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return false;
+        }
+        try {
+            dayOf(file);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static long dayOf(final Path file) {
+        final String name = file.getFileName().toString();
+        return LocalDate.parse(name.substring(PREFIX.length(), name.length() - SUFFIX.length()))
+                .toEpochDay();
+    }
+}
@@ -0,0 +1,162 @@
+package fi.tkgwf.ruuvi.store;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.config.Configuration;
+import fi.tkgwf.ruuvi.config.RuntimeConfig;
+import fi.tkgwf.ruuvi.db.RuuviDBConnection;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Stores the measurements into a {@link LocalStore} on the local disk, for gateways without a
+ * network. The measurements are buffered and written, and forced to the disk, every flush interval,
+ * or when the buffer is full. A power loss can lose at most the measurements of the last interval,
+ * the partially written chunks are dropped when the store is opened again.
+ */
+public class LocalStoreConnection implements RuuviDBConnection {
+
+    private static final Logger LOG = Logger.getLogger(LocalStoreConnection.class);
+
+    private final LocalStore store;
+    private final Set<MeasurementField> storedFields;
+    /** The stored fields, bit {@link MeasurementField#bit()} for each */
+    private final long storedBits;
+    /** Guarded by itself */
+    private final MeasurementBatch buffer;
+
+    private final PrimitiveMeasurement row = new PrimitiveMeasurement();
+    private final ScheduledExecutorService flusher;
+
+    public LocalStoreConnection() throws IOException {
+        this(
+                Paths.get(Configuration.get().localStore.directory),
+                Configuration.get().localStore.flushIntervalMs,
+                Configuration.get().localStore.maxBufferedMeasurements,
+                RuntimeConfig.get().getStoredFields());
+    }
+
+    /**
+     * @param flushIntervalMs how often the buffered measurements are written and synced
+     * @param maxBufferedMeasurements the buffer is written when it has this many measurements
+     * @param storedFields the fields stored
+     */
+    public LocalStoreConnection(
+            final Path directory,
+            final long flushIntervalMs,
+            final int maxBufferedMeasurements,
+            final Set<MeasurementField> storedFields)
+            throws IOException {
+        this.store = new LocalStore(directory);
+        this.storedFields = storedFields;
+        long bits = 0;
+        for (final MeasurementField field : storedFields) {
+            bits |= field.bit();
+        }
+        this.storedBits = bits;
+        this.buffer = new MeasurementBatch(Math.max(1, maxBufferedMeasurements));
+        LOG.info("Storing measurements to " + directory.toAbsolutePath());
+        flusher =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            final Thread thread = new Thread(r, "local-store-flusher");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        flusher.scheduleWithFixedDelay(
+                this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the store the measurements are written to, for reading them
+     */
+    public LocalStore getStore() {
+        return store;
+    }
+
+    @Override
+    public void save(final EnhancedRuuviMeasurement measurement) {
+        save(PrimitiveMeasurement.from(measurement));
+    }
+
+    @Override
+    public void save(final PrimitiveMeasurement measurement) {
+        if (!measurement.hasTime()) {
+            measurement.setTime(System.currentTimeMillis());
+        }
+        synchronized (buffer) {
+            add(measurement);
+        }
+    }
+
+    @Override
+    public void saveAll(final MeasurementBatch batch) {
+        synchronized (buffer) {
+            for (int i = 0; i < batch.size(); i++) {
+                add(batch.get(i, row));
+            }
+        }
+    }
+
+    @Override
+    public Set<MeasurementField> getStoredFields() {
+        return storedFields;
+    }
+
+    /** Writes the buffered measurements and forces them to the disk */
+    public void flush() throws IOException {
+        synchronized (buffer) {
+            writeBuffer();
+            store.sync();
+        }
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flush();
+            store.close();
+        } catch (IOException e) {
+            LOG.error("Failed to close the local store", e);
+        }
+    }
+
+    private void add(final PrimitiveMeasurement measurement) {
+        if (buffer.isFull()) {
+            try {
+                writeBuffer();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write to the local store", e);
+            }
+        }
+        buffer.add(measurement);
+    }
+
+    private void writeBuffer() throws IOException {
+        if (!buffer.isEmpty()) {
+            try {
+                store.append(buffer, storedBits);
+            } finally {
+                buffer.clear();
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Failed to write to the local store", e);
+        }
+    }
+}
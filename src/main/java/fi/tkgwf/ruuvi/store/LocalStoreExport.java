@@ -0,0 +1,119 @@
+package fi.tkgwf.ruuvi.store;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.utils.InfluxDBConverter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Exports the measurements of local store partition files as CSV or InfluxDB line protocol, for
+ * uploading them later:
+ *
+ * <pre>
+ * java -cp ruuvi-collector.jar fi.tkgwf.ruuvi.store.LocalStoreExport csv|line FILE|DIRECTORY...
+ * </pre>
+ *
+ * The line protocol is written like {@link fi.tkgwf.ruuvi.db.InfluxDBConnection} writes it, with
+ * the measurement name of the configuration.
+ */
+public class LocalStoreExport {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !("csv".equals(args[0]) || "line".equals(args[0]))) {
+            System.err.println(
+                    "Usage: LocalStoreExport csv|line FILE|DIRECTORY... (writes to stdout)");
+            System.exit(2);
+        }
+        List<Path> files = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            Path path = Paths.get(args[i]);
+            if (Files.isDirectory(path)) {
+                files.addAll(LocalStore.partitionFiles(path));
+            } else {
+                files.add(path);
+            }
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        if ("csv".equals(args[0])) {
+            exportCsv(files, out);
+        } else {
+            exportLineProtocol(files, out);
+        }
+        out.flush();
+    }
+
+    /** Writes the measurements as CSV with a header row, the missing values as empty */
+    public static void exportCsv(List<Path> files, Writer out) throws IOException {
+        StringBuilder header = new StringBuilder("time,mac,name");
+        for (MeasurementField field : MeasurementField.ALL) {
+            header.append(',').append(field.getFieldName());
+        }
+        out.write(header.append('\n').toString());
+        StringBuilder line = new StringBuilder();
+        export(
+                files,
+                measurement -> {
+                    line.setLength(0);
+                    line.append(measurement.getTime())
+                            .append(',')
+                            .append(measurement.getMac())
+                            .append(',');
+                    if (measurement.getName() != null) {
+                        line.append(quote(measurement.getName()));
+                    }
+                    for (MeasurementField field : MeasurementField.ALL) {
+                        line.append(',');
+                        if (measurement.has(field)) {
+                            line.append(measurement.getValue(field));
+                        }
+                    }
+                    write(out, line.append('\n').toString());
+                });
+    }
+
+    /** Writes the measurements as InfluxDB line protocol */
+    public static void exportLineProtocol(List<Path> files, Writer out) throws IOException {
+        export(
+                files,
+                measurement ->
+                        write(out, InfluxDBConverter.toInflux(measurement).lineProtocol() + "\n"));
+    }
+
+    private static void export(List<Path> files, Consumer<PrimitiveMeasurement> action)
+            throws IOException {
+        PrimitiveMeasurement target = new PrimitiveMeasurement();
+        for (Path file : files) {
+            try (LocalStorePartition partition = LocalStorePartition.open(file)) {
+                partition.forEach(null, Long.MIN_VALUE, Long.MAX_VALUE, target, action);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static void write(Writer out, String text) {
+        try {
+            out.write(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String quote(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,413 @@
+package fi.tkgwf.ruuvi.store;
+
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only file of the measurements of one day:
+ *
+ * <pre>
+ * file:   "RUUVILTS" (8 bytes), version (1 byte), records
+ * record: payload length (4 bytes), CRC32 of the payload (4 bytes), payload
+ * tag:    'T', tag id (varint), MAC address and name (varint length, UTF-8, empty for no name)
+ * chunk:  'C', tag id (varint), first and last time (8 bytes each), {@link ColumnChunk}
+ * </pre>
+ *
+ * The tags are a dictionary of the MAC addresses and names, written before the first chunk
+ * referring to them. When the file is opened, the records are checked and the index from the tags
+ * to the chunks is built. A record cut short or corrupted by a power loss ends the file, and it is
+ * truncated there.
+ *
+ * <p>Not thread safe, {@link LocalStore} synchronizes the access.
+ */
+class LocalStorePartition implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(LocalStorePartition.class);
+
+    private static final byte[] MAGIC = "RUUVILTS".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 1;
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+    private static final byte TAG = 'T';
+    private static final byte CHUNK = 'C';
+
+    private static final class Tag {
+        final String mac;
+        final String name;
+
+        Tag(String mac, String name) {
+            this.mac = mac;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Tag
+                    && mac.equals(((Tag) o).mac)
+                    && Objects.equals(name, ((Tag) o).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mac, name);
+        }
+    }
+
+    /** The location of a chunk in the file, valid for as long as the file exists */
+    static final class ChunkRef {
+        final int tag;
+        final long offset;
+        final int length;
+        final long firstTime;
+        final long lastTime;
+
+        ChunkRef(int tag, long offset, int length, long firstTime, long lastTime) {
+            this.tag = tag;
+            this.offset = offset;
+            this.length = length;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private long size;
+
+    private final List<Tag> tags = new ArrayList<>();
+    private final Map<Tag, Integer> tagIds = new HashMap<>();
+    /** The chunks of each MAC address in the order they were written */
+    private final Map<String, List<ChunkRef>> chunksByMac = new HashMap<>();
+    /** All the chunks in the order they were written */
+    private final List<ChunkRef> chunks = new ArrayList<>();
+
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    private final CRC32 crc = new CRC32();
+
+    private LocalStorePartition(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the file, creating it if it doesn't exist, and truncates an incomplete or corrupted
+     * last record.
+     *
+     * @throws IOException if the file can't be read or isn't a partition file
+     */
+    static LocalStorePartition open(Path path) throws IOException {
+        FileChannel channel =
+                FileChannel.open(
+                        path,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+        LocalStorePartition partition = new LocalStorePartition(path, channel);
+        try {
+            partition.load();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return partition;
+    }
+
+    private void load() throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < HEADER_LENGTH) {
+            // new, or the header was cut short
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).put(MAGIC).put(VERSION).flip();
+            channel.truncate(0);
+            writeFully(header, 0);
+            channel.force(true);
+            size = HEADER_LENGTH;
+            return;
+        }
+        ByteBuffer header = readFully(0, HEADER_LENGTH);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(MAGIC, magic) || header.get() != VERSION) {
+            throw new IOException("Not a local store partition: " + path);
+        }
+        long position = HEADER_LENGTH;
+        while (position < fileSize) {
+            int length = loadRecord(position, fileSize);
+            if (length < 0) {
+                LOG.warn(
+                        "Truncating "
+                                + path
+                                + " at "
+                                + position
+                                + ", dropping "
+                                + (fileSize - position)
+                                + " bytes of an incomplete record");
+                channel.truncate(position);
+                channel.force(true);
+                break;
+            }
+            position += RECORD_HEADER_LENGTH + length;
+        }
+        size = position;
+    }
+
+    /**
+     * @return the length of the record's payload, -1 if it is incomplete or corrupted
+     */
+    private int loadRecord(long position, long fileSize) throws IOException {
+        if (fileSize - position < RECORD_HEADER_LENGTH) {
+            return -1;
+        }
+        ByteBuffer recordHeader = readFully(position, RECORD_HEADER_LENGTH);
+        int length = recordHeader.getInt();
+        int checksum = recordHeader.getInt();
+        if (length < 1
+                || length > MAX_RECORD_LENGTH
+                || length > fileSize - position - RECORD_HEADER_LENGTH) {
+            return -1;
+        }
+        ByteBuffer record = readFully(position + RECORD_HEADER_LENGTH, length);
+        crc.reset();
+        crc.update(record.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return -1;
+        }
+        try {
+            byte type = record.get();
+            if (type == TAG) {
+                int id = (int) ColumnChunk.readVarint(record);
+                String mac = readString(record);
+                String name = readString(record);
+                if (id != tags.size()) {
+                    return -1;
+                }
+                addTag(new Tag(mac, name.isEmpty() ? null : name));
+            } else if (type == CHUNK) {
+                int tag = (int) ColumnChunk.readVarint(record);
+                if (tag >= tags.size()) {
+                    return -1;
+                }
+                long firstTime = record.getLong();
+                long lastTime = record.getLong();
+                int offset = record.position();
+                addChunk(
+                        new ChunkRef(
+                                tag,
+                                position + RECORD_HEADER_LENGTH + offset,
+                                length - offset,
+                                firstTime,
+                                lastTime));
+            } else {
+                return -1;
+            }
+        } catch (RuntimeException e) {
+            // e.g. BufferUnderflowException, an intact record that can't be parsed
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * Appends the rows as a chunk of the tag. They are written when {@link #flush()} is called.
+     *
+     * @param rows the rows of the batch, all of the tag and sorted by time
+     * @param fields the fields stored, bit {@link MeasurementField#bit()} for each
+     */
+    void append(
+            String mac, String name, MeasurementBatch batch, int[] rows, int count, long fields) {
+        Tag tag = new Tag(mac, name);
+        Integer id = tagIds.get(tag);
+        if (id == null) {
+            id = tags.size();
+            payload.reset();
+            payload.write(TAG);
+            ColumnChunk.writeVarint(payload, id);
+            writeString(payload, mac);
+            writeString(payload, name != null ? name : "");
+            writeRecord();
+            addTag(tag);
+        }
+        long firstTime = batch.getTime(rows[0]);
+        long lastTime = batch.getTime(rows[count - 1]);
+        payload.reset();
+        payload.write(CHUNK);
+        ColumnChunk.writeVarint(payload, id);
+        ByteBuffer times = ByteBuffer.allocate(16).putLong(firstTime).putLong(lastTime);
+        payload.write(times.array(), 0, 16);
+        int offset = payload.size();
+        ColumnChunk.encode(batch, rows, count, fields, payload);
+        long position = size + pending.size();
+        writeRecord();
+        addChunk(
+                new ChunkRef(
+                        id,
+                        position + RECORD_HEADER_LENGTH + offset,
+                        payload.size() - offset,
+                        firstTime,
+                        lastTime));
+    }
+
+    /** Writes the appended chunks to the end of the file */
+    void flush() throws IOException {
+        if (pending.size() == 0) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(pending.toByteArray());
+        pending.reset();
+        writeFully(bytes, size);
+        size += bytes.capacity();
+    }
+
+    /** Flushes and forces the file to the disk */
+    void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    /**
+     * Decodes the measurements with times from {@code from} to {@code to}, both inclusive, of the
+     * tag, or of all the tags if the MAC address is null, in the order they were written. The
+     * chunks of the other tags aren't read.
+     *
+     * @param target the measurement the rows are decoded to, one after another
+     */
+    void forEach(
+            String mac,
+            long from,
+            long to,
+            PrimitiveMeasurement target,
+            Consumer<? super PrimitiveMeasurement> action)
+            throws IOException {
+        for (ChunkRef ref : chunks(mac, from, to)) {
+            Tag tag = tags.get(ref.tag);
+            ColumnChunk.decode(read(ref), tag.mac, tag.name, from, to, target, action);
+        }
+    }
+
+    /**
+     * @return the chunks of the tag, or of all the tags if the MAC address is null, with
+     *     measurements in the range, in the order they were written
+     */
+    List<ChunkRef> chunks(String mac, long from, long to) throws IOException {
+        flush();
+        List<ChunkRef> refs = new ArrayList<>();
+        for (ChunkRef ref : mac == null ? chunks : chunksByMac.getOrDefault(mac, List.of())) {
+            if (ref.lastTime >= from && ref.firstTime <= to) {
+                refs.add(ref);
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * @return the encoded {@link ColumnChunk}
+     */
+    ByteBuffer read(ChunkRef ref) throws IOException {
+        return readFully(ref.offset, ref.length);
+    }
+
+    String getMac(ChunkRef ref) {
+        return tags.get(ref.tag).mac;
+    }
+
+    String getName(ChunkRef ref) {
+        return tags.get(ref.tag).name;
+    }
+
+    /**
+     * @return the MAC addresses of the tags in the file
+     */
+    Set<String> getMacs() {
+        return chunksByMac.keySet();
+    }
+
+    /**
+     * @return the size of the file, including the chunks not yet flushed
+     */
+    long size() {
+        return size + pending.size();
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void addTag(Tag tag) {
+        tagIds.put(tag, tags.size());
+        tags.add(tag);
+    }
+
+    private void addChunk(ChunkRef ref) {
+        chunks.add(ref);
+        chunksByMac.computeIfAbsent(tags.get(ref.tag).mac, mac -> new ArrayList<>()).add(ref);
+    }
+
+    /** Adds the payload as a record to the pending bytes */
+    private void writeRecord() {
+        byte[] bytes = payload.toByteArray();
+        crc.reset();
+        crc.update(bytes);
+        ByteBuffer recordHeader =
+                ByteBuffer.allocate(RECORD_HEADER_LENGTH)
+                        .putInt(bytes.length)
+                        .putInt((int) crc.getValue());
+        pending.writeBytes(recordHeader.array());
+        pending.writeBytes(bytes);
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + path);
+            }
+        }
+        return buffer.flip();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ColumnChunk.writeVarint(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[(int) ColumnChunk.readVarint(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
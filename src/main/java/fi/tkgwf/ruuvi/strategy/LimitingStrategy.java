@@ -1,6 +1,7 @@
 package fi.tkgwf.ruuvi.strategy;
 
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
 import java.util.Optional;
 import java.util.function.Function;
 
@@ -21,4 +22,33 @@ public interface LimitingStrategy
      */
     @Override
     Optional<EnhancedRuuviMeasurement> apply(EnhancedRuuviMeasurement measurement);
+
+    /**
+     * Applies the limiting strategy to a {@link PrimitiveMeasurement}. By default it is converted
+     * to a bean for {@link #apply(EnhancedRuuviMeasurement)} and back, strategies override this to
+     * apply themselves without the conversion.
+     *
+     * @param measurement A measurement considered for persisting.
+     * @return An {@link Optional#empty()} if the strategy is to not store this measurement, or a
+     *     non-empty {@link Optional} item to be stored.
+     */
+    default Optional<PrimitiveMeasurement> apply(PrimitiveMeasurement measurement) {
+        return apply(measurement.toEnhanced()).map(PrimitiveMeasurement::from);
+    }
+
+    /**
+     * Returns the measurement the strategy holds back, if any, so that it isn't lost when the tag
+     * is forgotten or the collector stops. Called before {@link #release()}, and on exit.
+     *
+     * @return the held back measurement to be stored, empty if there is none
+     */
+    default Optional<PrimitiveMeasurement> flush() {
+        return Optional.empty();
+    }
+
+    /**
+     * Called when the tag of the strategy is forgotten, the strategy isn't used after this.
+     * Releases what is kept for the tag outside the strategy, like metrics.
+     */
+    default void release() {}
 }
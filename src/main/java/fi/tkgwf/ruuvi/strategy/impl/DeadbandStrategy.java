@@ -0,0 +1,178 @@
+package fi.tkgwf.ruuvi.strategy.impl;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import fi.tkgwf.ruuvi.utils.DerivedValuePlan;
+import io.prometheus.client.Gauge;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Stores a measurement only when it differs from the last stored one: when a value of a field with
+ * a deadband moves beyond the deadband, or a field with a deadband gets or loses its value, or when
+ * the heartbeat interval has passed since the last stored measurement. The fields without a
+ * deadband are stored along, but their changes don't cause a store.
+ *
+ * <p>A deadband is either absolute, e.g. "0.1" for a change of more than 0.1, or relative to the
+ * last stored value, e.g. "2%". The derived fields with a deadband, like the dew point, are
+ * calculated here, before the values are compared. The heartbeat is measured with the time of the
+ * measurements, or the current time if they have none. The ratio of the received and the stored
+ * measurements is published as the Prometheus gauge {@code ruuvi_deadband_compression_ratio}.
+ *
+ * <p>The limit is applied separately to all the different devices sending data, i.e. per MAC
+ * address.
+ */
+public class DeadbandStrategy implements LimitingStrategy {
+
+    private static final int FIELDS = MeasurementField.ALL.length;
+
+    private static final Gauge COMPRESSION_RATIO =
+            Gauge.build()
+                    .namespace("ruuvi")
+                    .name("deadband_compression_ratio")
+                    .help("Received measurements per stored measurement of the deadband strategy")
+                    .labelNames("tag_mac")
+                    .register();
+
+    private final long heartbeatMs;
+    /** The fields with a deadband, bit {@link MeasurementField#bit()} for each */
+    private final long deadbandFields;
+    /** Calculates the derived fields with a deadband, which aren't calculated before storing */
+    private final DerivedValuePlan derived;
+    /** The absolute deadbands by field ordinal */
+    private final double[] absolute = new double[FIELDS];
+    /** The relative deadbands by field ordinal */
+    private final double[] relative = new double[FIELDS];
+
+    private boolean stored;
+    private long lastStoredTime;
+    private long lastStoredPresence;
+    private final double[] lastStored = new double[FIELDS];
+    private long received;
+    private long emitted;
+    /** The MAC address the compression ratio is published for */
+    private String mac;
+
+    /**
+     * @param deadbands the deadbands by field name, absolute or percentages relative to the last
+     *     stored value
+     * @param heartbeatMs the longest time between the stored measurements
+     * @throws IllegalArgumentException if a field or deadband is invalid
+     */
+    public DeadbandStrategy(final Map<String, String> deadbands, final long heartbeatMs) {
+        if (heartbeatMs <= 0) {
+            throw new IllegalArgumentException("Heartbeat must be positive: " + heartbeatMs);
+        }
+        this.heartbeatMs = heartbeatMs;
+        Arrays.fill(absolute, Double.POSITIVE_INFINITY);
+        Arrays.fill(relative, Double.POSITIVE_INFINITY);
+        long fields = 0;
+        for (final Map.Entry<String, String> deadband : deadbands.entrySet()) {
+            final MeasurementField field = MeasurementField.forName(deadband.getKey());
+            if (field == null) {
+                throw new IllegalArgumentException("Unknown field: " + deadband.getKey());
+            }
+            final String value = deadband.getValue().trim();
+            final boolean percentage = value.endsWith("%");
+            final double band =
+                    Double.parseDouble(
+                            percentage ? value.substring(0, value.length() - 1).trim() : value);
+            if (!(band >= 0)) {
+                throw new IllegalArgumentException(
+                        "Invalid deadband for " + deadband.getKey() + ": " + value);
+            }
+            if (percentage) {
+                relative[field.ordinal()] = band / 100;
+            } else {
+                absolute[field.ordinal()] = band;
+            }
+            fields |= field.bit();
+        }
+        this.deadbandFields = fields;
+        final List<MeasurementField> withDeadband = new ArrayList<>();
+        for (final MeasurementField field : MeasurementField.ALL) {
+            if ((fields & field.bit()) != 0) {
+                withDeadband.add(field);
+            }
+        }
+        this.derived = DerivedValuePlan.forFields(withDeadband);
+    }
+
+    @Override
+    public Optional<EnhancedRuuviMeasurement> apply(final EnhancedRuuviMeasurement measurement) {
+        return apply(PrimitiveMeasurement.from(measurement)).map(PrimitiveMeasurement::toEnhanced);
+    }
+
+    @Override
+    public Optional<PrimitiveMeasurement> apply(final PrimitiveMeasurement measurement) {
+        final long time =
+                measurement.hasTime() ? measurement.getTime() : System.currentTimeMillis();
+        received++;
+        if (!derived.isEmpty()) {
+            derived.apply(measurement);
+        }
+        final boolean store =
+                !stored
+                        || time - lastStoredTime >= heartbeatMs
+                        || time < lastStoredTime
+                        || changed(measurement);
+        if (store) {
+            remember(measurement, time);
+            emitted++;
+        }
+        if (measurement.getMac() != null) {
+            mac = measurement.getMac();
+            COMPRESSION_RATIO.labels(mac).set(getCompressionRatio());
+        }
+        return store ? Optional.of(measurement) : Optional.empty();
+    }
+
+    @Override
+    public void release() {
+        if (mac != null) {
+            COMPRESSION_RATIO.remove(mac);
+        }
+    }
+
+    /**
+     * @return the number of measurements received per measurement stored, 0 before the first one
+     */
+    public double getCompressionRatio() {
+        return emitted == 0 ? 0 : (double) received / emitted;
+    }
+
+    private boolean changed(final PrimitiveMeasurement measurement) {
+        final long presence = measurement.getPresence() & deadbandFields;
+        if (presence != lastStoredPresence) {
+            return true;
+        }
+        for (final MeasurementField field : MeasurementField.ALL) {
+            if ((presence & field.bit()) == 0) {
+                continue;
+            }
+            final int i = field.ordinal();
+            final double last = lastStored[i];
+            final double change = Math.abs(measurement.get(field) - last);
+            if (change > absolute[i] || change > relative[i] * Math.abs(last)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remember(final PrimitiveMeasurement measurement, final long time) {
+        stored = true;
+        lastStoredTime = time;
+        lastStoredPresence = measurement.getPresence() & deadbandFields;
+        for (final MeasurementField field : MeasurementField.ALL) {
+            if ((lastStoredPresence & field.bit()) != 0) {
+                lastStored[field.ordinal()] = measurement.get(field);
+            }
+        }
+    }
+}
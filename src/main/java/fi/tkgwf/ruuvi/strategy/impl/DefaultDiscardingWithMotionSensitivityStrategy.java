@@ -1,9 +1,11 @@
 package fi.tkgwf.ruuvi.strategy.impl;
 
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
-import fi.tkgwf.ruuvi.config.Configuration;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.config.RuntimeConfig;
 import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
-import java.util.*;
+import java.util.Optional;
 
 /**
  * Normally discard measurements that are coming in too fast, except when a sudden acceleration
@@ -17,40 +19,85 @@ import java.util.*;
  * address.
  */
 public class DefaultDiscardingWithMotionSensitivityStrategy implements LimitingStrategy {
-    private final DiscardUntilEnoughTimeHasElapsedStrategy defaultStrategy =
-            new DiscardUntilEnoughTimeHasElapsedStrategy();
+    private final DiscardUntilEnoughTimeHasElapsedStrategy defaultStrategy;
 
-    private final Double threshold = Configuration.get().sensor.motionSensitivityStrategyThreshold;
-    private final List<EnhancedRuuviMeasurement> previousMeasurements = new ArrayList<>();
+    private final double threshold;
+    /**
+     * The accelerations of the previous measurements as X, Y, Z triples in a ring, NaN for the
+     * missing values. The latest one is at {@link #latest}.
+     */
+    private final double[] previousAccelerations;
+
+    private int latest = -3;
+    private int previousCount;
     private boolean previousOutsideOfRange = false;
 
+    public DefaultDiscardingWithMotionSensitivityStrategy() {
+        this(
+                RuntimeConfig.get().getMeasurementUpdateLimitMs(),
+                RuntimeConfig.get().getMotionSensitivityThreshold(),
+                RuntimeConfig.get().getMotionSensitivityPreviousMeasurements());
+    }
+
+    /**
+     * @param updateLimit the time after a stored measurement the next ones are discarded for
+     * @param threshold the change of an acceleration that is stored regardless
+     * @param keep the number of previous measurements kept
+     */
+    public DefaultDiscardingWithMotionSensitivityStrategy(
+            final long updateLimit, final double threshold, final int keep) {
+        this.defaultStrategy = new DiscardUntilEnoughTimeHasElapsedStrategy(updateLimit);
+        this.threshold = threshold;
+        previousAccelerations = new double[3 * Math.max(1, keep)];
+    }
+
     @Override
     public Optional<EnhancedRuuviMeasurement> apply(final EnhancedRuuviMeasurement measurement) {
-        previousMeasurements.add(measurement);
-        if (previousMeasurements.size()
-                > Configuration.get()
-                        .sensor
-                        .motionSensitivityStrategyNumberOfPreviousMeasurementsToKeep) {
-            previousMeasurements.remove(0);
+        return shouldStore(
+                        valueOf(measurement.getAccelerationX()),
+                        valueOf(measurement.getAccelerationY()),
+                        valueOf(measurement.getAccelerationZ()))
+                ? Optional.of(measurement)
+                : Optional.empty();
+    }
+
+    @Override
+    public Optional<PrimitiveMeasurement> apply(final PrimitiveMeasurement measurement) {
+        return shouldStore(
+                        measurement.get(MeasurementField.ACCELERATION_X),
+                        measurement.get(MeasurementField.ACCELERATION_Y),
+                        measurement.get(MeasurementField.ACCELERATION_Z))
+                ? Optional.of(measurement)
+                : Optional.empty();
+    }
+
+    private static double valueOf(final Double value) {
+        return value != null ? value : Double.NaN;
+    }
+
+    private boolean shouldStore(final double x, final double y, final double z) {
+        final int previous = latest;
+        latest = (latest + 3) % previousAccelerations.length;
+        previousAccelerations[latest] = x;
+        previousAccelerations[latest + 1] = y;
+        previousAccelerations[latest + 2] = z;
+        if (previousCount < previousAccelerations.length / 3) {
+            previousCount++;
         }
         // Always apply the default strategy to keep the timestamps updated there:
-        Optional<EnhancedRuuviMeasurement> result = defaultStrategy.apply(measurement);
+        boolean result = defaultStrategy.shouldUpdate();
 
         // Apply the motion sensing strategy only if the base strategy says "no":
-        if (result.isEmpty() && previousMeasurements.size() > 1) {
-            final EnhancedRuuviMeasurement previous =
-                    previousMeasurements.get(previousMeasurements.size() - 2);
-            if (isOutsideThreshold(measurement.getAccelerationX(), previous.getAccelerationX())
-                    || isOutsideThreshold(
-                            measurement.getAccelerationY(), previous.getAccelerationY())
-                    || isOutsideThreshold(
-                            measurement.getAccelerationZ(), previous.getAccelerationZ())) {
-                result = Optional.of(measurement);
+        if (!result && previousCount > 1) {
+            if (isOutsideThreshold(x, previousAccelerations[previous])
+                    || isOutsideThreshold(y, previousAccelerations[previous + 1])
+                    || isOutsideThreshold(z, previousAccelerations[previous + 2])) {
+                result = true;
                 previousOutsideOfRange = true;
             } else if (previousOutsideOfRange) {
                 // Reset the measurements: store one more event after the values have returned to
                 // within the threshold
-                result = Optional.of(measurement);
+                result = true;
                 previousOutsideOfRange = false;
             }
         }
@@ -58,12 +105,8 @@ public class DefaultDiscardingWithMotionSensitivityStrategy implements LimitingS
         return result;
     }
 
-    private boolean isOutsideThreshold(final Double current, final Double previous) {
-        if (current == null || previous == null) {
-            return false;
-        }
-        final double upperBound = previous + threshold;
-        final double lowerBound = previous - threshold;
-        return current > upperBound || current < lowerBound;
+    /** False if either value is missing, as NaN compares false */
+    private boolean isOutsideThreshold(final double current, final double previous) {
+        return current > previous + threshold || current < previous - threshold;
     }
 }
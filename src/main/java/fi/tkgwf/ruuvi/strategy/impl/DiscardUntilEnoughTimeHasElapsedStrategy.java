@@ -1,7 +1,8 @@
 package fi.tkgwf.ruuvi.strategy.impl;
 
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
-import fi.tkgwf.ruuvi.config.Configuration;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.config.RuntimeConfig;
 import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
 import java.util.Optional;
 
@@ -14,7 +15,18 @@ public class DiscardUntilEnoughTimeHasElapsedStrategy implements LimitingStrateg
     /** Contains the MAC address as key, and the timestamp of last sent update as value */
     long lastUpdateTime = System.currentTimeMillis();
 
-    private final long updateLimit = Configuration.get().sensor.measurementUpdateLimitMs;
+    private final long updateLimit;
+
+    public DiscardUntilEnoughTimeHasElapsedStrategy() {
+        this(RuntimeConfig.get().getMeasurementUpdateLimitMs());
+    }
+
+    /**
+     * @param updateLimit the time after a stored measurement the next ones are discarded for
+     */
+    public DiscardUntilEnoughTimeHasElapsedStrategy(final long updateLimit) {
+        this.updateLimit = updateLimit;
+    }
 
     @Override
     public Optional<EnhancedRuuviMeasurement> apply(final EnhancedRuuviMeasurement measurement) {
@@ -24,7 +36,15 @@ public class DiscardUntilEnoughTimeHasElapsedStrategy implements LimitingStrateg
         return Optional.of(measurement);
     }
 
-    private boolean shouldUpdate() {
+    @Override
+    public Optional<PrimitiveMeasurement> apply(final PrimitiveMeasurement measurement) {
+        if (!shouldUpdate()) {
+            return Optional.empty();
+        }
+        return Optional.of(measurement);
+    }
+
+    boolean shouldUpdate() {
         final long currentTime = System.currentTimeMillis();
         if (lastUpdateTime + updateLimit < currentTime) {
             lastUpdateTime = currentTime;
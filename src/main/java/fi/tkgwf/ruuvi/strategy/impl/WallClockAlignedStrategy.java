@@ -0,0 +1,87 @@
+package fi.tkgwf.ruuvi.strategy.impl;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import java.util.Optional;
+
+/**
+ * Stores one measurement per wall clock aligned interval, e.g. at :00, :10, :20... seconds with an
+ * interval of 10 seconds: the measurement nearest to each boundary, with its time snapped to the
+ * boundary. The stored times of all the tags are then the same, unlike with {@link
+ * DiscardUntilEnoughTimeHasElapsedStrategy}, whose interval wanders off relative to the clock.
+ *
+ * <p>The best measurement so far is held in a pending slot, and there are no timers: the
+ * measurement is returned once the first one at or after the boundary arrives, as the later ones
+ * can only be further away, or the strategy is flushed. A boundary without any measurements within
+ * half an interval of it is skipped.
+ *
+ * <p>The boundaries are measured with the time of the measurements, or the current time if they
+ * have none. The limit is applied separately to all the different devices sending data, i.e. per
+ * MAC address.
+ */
+public class WallClockAlignedStrategy implements LimitingStrategy {
+
+    private final long intervalMs;
+
+    private PrimitiveMeasurement pending;
+    private long pendingBoundary;
+    private long pendingDistance;
+    private long lastBoundary = Long.MIN_VALUE;
+
+    public WallClockAlignedStrategy(final long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException(
+                    "Alignment interval must be positive: " + intervalMs);
+        }
+        this.intervalMs = intervalMs;
+    }
+
+    @Override
+    public Optional<EnhancedRuuviMeasurement> apply(final EnhancedRuuviMeasurement measurement) {
+        return apply(PrimitiveMeasurement.from(measurement)).map(PrimitiveMeasurement::toEnhanced);
+    }
+
+    @Override
+    public Optional<PrimitiveMeasurement> apply(final PrimitiveMeasurement measurement) {
+        final long time =
+                measurement.hasTime() ? measurement.getTime() : System.currentTimeMillis();
+        final long boundary = Math.floorDiv(time + intervalMs / 2, intervalMs) * intervalMs;
+        PrimitiveMeasurement result = null;
+        if (pending != null && pendingBoundary != boundary) {
+            // no more candidates for the pending boundary, or the clock went back
+            result = takePending();
+        }
+        if (lastBoundary != Long.MIN_VALUE && boundary < lastBoundary - intervalMs) {
+            // the clock went back more than an interval, start over
+            lastBoundary = Long.MIN_VALUE;
+        }
+        if (boundary <= lastBoundary) {
+            return Optional.ofNullable(result);
+        }
+        final long distance = Math.abs(time - boundary);
+        if (pending == null || distance < pendingDistance) {
+            pending = measurement;
+            pendingBoundary = boundary;
+            pendingDistance = distance;
+        }
+        if (time >= boundary && result == null) {
+            // the measurements after this one are further from the boundary
+            result = takePending();
+        }
+        return Optional.ofNullable(result);
+    }
+
+    @Override
+    public Optional<PrimitiveMeasurement> flush() {
+        return pending != null ? Optional.of(takePending()) : Optional.empty();
+    }
+
+    private PrimitiveMeasurement takePending() {
+        final PrimitiveMeasurement measurement = pending;
+        measurement.setTime(pendingBoundary);
+        lastBoundary = pendingBoundary;
+        pending = null;
+        return measurement;
+    }
+}
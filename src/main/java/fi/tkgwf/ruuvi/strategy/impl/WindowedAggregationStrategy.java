@@ -0,0 +1,113 @@
+package fi.tkgwf.ruuvi.strategy.impl;
+
+import fi.tkgwf.ruuvi.bean.AggregatedMeasurement;
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Stores one {@link AggregatedMeasurement} per time window instead of discarding the measurements
+ * between the stored ones, so that the spikes between them aren't lost. Every measurement is added
+ * to running sums, minimums and maximums, and the aggregate of a window is returned when the first
+ * measurement of the next window arrives, or the strategy is flushed.
+ *
+ * <p>The windows are measured with the time of the measurements, or the current time if they have
+ * none. The limit is applied separately to all the different devices sending data, i.e. per MAC
+ * address.
+ */
+public class WindowedAggregationStrategy implements LimitingStrategy {
+
+    private static final int FIELDS = MeasurementField.ALL.length;
+
+    private final long windowMs;
+
+    private long windowStart;
+    private int count;
+    private final int[] counts = new int[FIELDS];
+    private final double[] sums = new double[FIELDS];
+    private final double[] min = new double[FIELDS];
+    private final double[] max = new double[FIELDS];
+    private final double[] last = new double[FIELDS];
+    private String mac;
+    private String name;
+    private String receiver;
+
+    public WindowedAggregationStrategy(final long windowMs) {
+        if (windowMs <= 0) {
+            throw new IllegalArgumentException("Aggregation window must be positive: " + windowMs);
+        }
+        this.windowMs = windowMs;
+    }
+
+    @Override
+    public Optional<EnhancedRuuviMeasurement> apply(final EnhancedRuuviMeasurement measurement) {
+        return apply(PrimitiveMeasurement.from(measurement)).map(PrimitiveMeasurement::toEnhanced);
+    }
+
+    @Override
+    public Optional<PrimitiveMeasurement> apply(final PrimitiveMeasurement measurement) {
+        final long time =
+                measurement.hasTime() ? measurement.getTime() : System.currentTimeMillis();
+        AggregatedMeasurement aggregate = null;
+        if (count > 0 && (time >= windowStart + windowMs || time < windowStart)) {
+            aggregate = aggregate();
+        }
+        if (count == 0) {
+            windowStart = time;
+        }
+        add(measurement);
+        return Optional.ofNullable(aggregate);
+    }
+
+    @Override
+    public Optional<PrimitiveMeasurement> flush() {
+        return count > 0 ? Optional.of(aggregate()) : Optional.empty();
+    }
+
+    private void add(final PrimitiveMeasurement measurement) {
+        count++;
+        final long presence = measurement.getPresence();
+        for (final MeasurementField field : MeasurementField.ALL) {
+            if ((presence & field.bit()) == 0) {
+                continue;
+            }
+            final int i = field.ordinal();
+            final double value = measurement.get(field);
+            if (counts[i]++ == 0) {
+                sums[i] = value;
+                min[i] = value;
+                max[i] = value;
+            } else {
+                sums[i] += value;
+                min[i] = Math.min(min[i], value);
+                max[i] = Math.max(max[i], value);
+            }
+            last[i] = value;
+        }
+        mac = measurement.getMac();
+        name = measurement.getName();
+        receiver = measurement.getReceiver();
+    }
+
+    /** Returns the aggregate of the current window and starts a new one */
+    private AggregatedMeasurement aggregate() {
+        final AggregatedMeasurement aggregate = new AggregatedMeasurement();
+        for (final MeasurementField field : MeasurementField.ALL) {
+            final int i = field.ordinal();
+            if (counts[i] > 0) {
+                aggregate.setAggregates(field, sums[i] / counts[i], min[i], max[i], last[i]);
+            }
+        }
+        aggregate.setCount(count);
+        aggregate.setTime(windowStart);
+        aggregate.setMac(mac);
+        aggregate.setName(name);
+        aggregate.setReceiver(receiver);
+        count = 0;
+        Arrays.fill(counts, 0);
+        return aggregate;
+    }
+}
@@ -0,0 +1,253 @@
+package fi.tkgwf.ruuvi.utils;
+
+import static fi.tkgwf.ruuvi.bean.MeasurementField.ABSOLUTE_HUMIDITY;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.ACCELERATION_ANGLE_FROM_X;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.ACCELERATION_ANGLE_FROM_Y;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.ACCELERATION_ANGLE_FROM_Z;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.ACCELERATION_TOTAL;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.ACCELERATION_X;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.ACCELERATION_Y;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.ACCELERATION_Z;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.AIR_DENSITY;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.DEW_POINT;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.EQUILIBRIUM_VAPOR_PRESSURE;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.HUMIDITY;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.PRESSURE;
+import static fi.tkgwf.ruuvi.bean.MeasurementField.TEMPERATURE;
+
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.util.Collection;
+
+/**
+ * Calculates the derived values of {@link MeasurementValueCalculator} that are needed, compiled
+ * from the fields the database connection stores. The intermediate results shared by several
+ * values, the vapor pressure and the total acceleration, are calculated once, and nothing is
+ * calculated for the values that aren't stored.
+ *
+ * <p>An approximate plan calculates the psychrometric values with the lookup tables of {@link
+ * PsychrometricTables} instead of {@code exp} and {@code log}, see there for the maximum errors.
+ */
+public class DerivedValuePlan {
+
+    private static final long PSYCHROMETRIC =
+            ABSOLUTE_HUMIDITY.bit()
+                    | DEW_POINT.bit()
+                    | EQUILIBRIUM_VAPOR_PRESSURE.bit()
+                    | AIR_DENSITY.bit();
+    private static final long ANGLES =
+            ACCELERATION_ANGLE_FROM_X.bit()
+                    | ACCELERATION_ANGLE_FROM_Y.bit()
+                    | ACCELERATION_ANGLE_FROM_Z.bit();
+    private static final long DERIVED = PSYCHROMETRIC | ACCELERATION_TOTAL.bit() | ANGLES;
+
+    /** Calculates all the derived values */
+    public static final DerivedValuePlan ALL = new DerivedValuePlan(DERIVED, false);
+
+    /** The derived fields to calculate, bit {@link MeasurementField#bit()} for each */
+    private final long fields;
+
+    private final boolean approximate;
+
+    private DerivedValuePlan(long fields, boolean approximate) {
+        this.fields = fields;
+        this.approximate = approximate;
+    }
+
+    /**
+     * @param stored the fields that are stored
+     * @return a plan calculating the derived values among the fields
+     */
+    public static DerivedValuePlan forFields(Collection<MeasurementField> stored) {
+        return forFields(stored, false);
+    }
+
+    /**
+     * @param stored the fields that are stored
+     * @param approximate true to use the lookup tables of {@link PsychrometricTables}
+     * @return a plan calculating the derived values among the fields
+     */
+    public static DerivedValuePlan forFields(
+            Collection<MeasurementField> stored, boolean approximate) {
+        long fields = 0;
+        for (MeasurementField field : stored) {
+            fields |= field.bit();
+        }
+        return new DerivedValuePlan(fields & DERIVED, approximate);
+    }
+
+    /**
+     * @return true if the plan calculates nothing
+     */
+    public boolean isEmpty() {
+        return fields == 0;
+    }
+
+    /**
+     * @return true if the plan calculates the field
+     */
+    public boolean calculates(MeasurementField field) {
+        return (fields & field.bit()) != 0;
+    }
+
+    /**
+     * Calculates the derived values of the plan. Like {@link
+     * MeasurementValueCalculator#calculateAllValues(PrimitiveMeasurement)}, a value that can't be
+     * calculated is cleared.
+     *
+     * @param measurement the measurement
+     * @return The supplied Measurement
+     */
+    public PrimitiveMeasurement apply(PrimitiveMeasurement measurement) {
+        // The missing values are NaN, which propagates through the formulas and clears the field
+        if ((fields & PSYCHROMETRIC) != 0) {
+            double t = measurement.get(TEMPERATURE);
+            double rh = measurement.get(HUMIDITY);
+            double vaporPressure = vaporPressure(t);
+            if (calculates(ABSOLUTE_HUMIDITY)) {
+                measurement.set(
+                        ABSOLUTE_HUMIDITY,
+                        MeasurementValueCalculator.absoluteHumidity(t, rh, vaporPressure));
+            }
+            if (calculates(DEW_POINT)) {
+                measurement.set(DEW_POINT, dewPoint(vaporPressure, rh));
+            }
+            if (calculates(EQUILIBRIUM_VAPOR_PRESSURE)) {
+                measurement.set(EQUILIBRIUM_VAPOR_PRESSURE, vaporPressure);
+            }
+            if (calculates(AIR_DENSITY)) {
+                measurement.set(
+                        AIR_DENSITY,
+                        MeasurementValueCalculator.airDensity(
+                                t, rh, measurement.get(PRESSURE), vaporPressure));
+            }
+        }
+        if ((fields & (ACCELERATION_TOTAL.bit() | ANGLES)) != 0) {
+            double x = measurement.get(ACCELERATION_X);
+            double y = measurement.get(ACCELERATION_Y);
+            double z = measurement.get(ACCELERATION_Z);
+            double total = Math.sqrt(x * x + y * y + z * z);
+            if (calculates(ACCELERATION_TOTAL)) {
+                measurement.set(ACCELERATION_TOTAL, total);
+            }
+            double length = total == 0 ? Double.NaN : total;
+            if (calculates(ACCELERATION_ANGLE_FROM_X)) {
+                measurement.set(ACCELERATION_ANGLE_FROM_X, angle(x, length));
+            }
+            if (calculates(ACCELERATION_ANGLE_FROM_Y)) {
+                measurement.set(ACCELERATION_ANGLE_FROM_Y, angle(y, length));
+            }
+            if (calculates(ACCELERATION_ANGLE_FROM_Z)) {
+                measurement.set(ACCELERATION_ANGLE_FROM_Z, angle(z, length));
+            }
+        }
+        return measurement;
+    }
+
+    /**
+     * Calculates the derived values of the plan for all the measurements of the batch. The values
+     * are calculated a field at a time in plain loops over the columns, which the JIT compiler can
+     * unroll and vectorize, with the same formulas as {@link #apply(PrimitiveMeasurement)}, so the
+     * results are identical to calculating the measurements one by one.
+     *
+     * @param batch the batch
+     * @return The supplied batch
+     */
+    public MeasurementBatch apply(MeasurementBatch batch) {
+        int n = batch.size();
+        if (n == 0) {
+            return batch;
+        }
+        double[] result = new double[n];
+        if ((fields & PSYCHROMETRIC) != 0) {
+            double[] t = batch.get(TEMPERATURE, new double[n]);
+            double[] rh = batch.get(HUMIDITY, new double[n]);
+            double[] vaporPressure = new double[n];
+            for (int i = 0; i < n; i++) {
+                vaporPressure[i] = vaporPressure(t[i]);
+            }
+            if (calculates(ABSOLUTE_HUMIDITY)) {
+                for (int i = 0; i < n; i++) {
+                    result[i] =
+                            MeasurementValueCalculator.absoluteHumidity(
+                                    t[i], rh[i], vaporPressure[i]);
+                }
+                batch.set(ABSOLUTE_HUMIDITY, result);
+            }
+            if (calculates(DEW_POINT)) {
+                for (int i = 0; i < n; i++) {
+                    result[i] = dewPoint(vaporPressure[i], rh[i]);
+                }
+                batch.set(DEW_POINT, result);
+            }
+            if (calculates(EQUILIBRIUM_VAPOR_PRESSURE)) {
+                batch.set(EQUILIBRIUM_VAPOR_PRESSURE, vaporPressure);
+            }
+            if (calculates(AIR_DENSITY)) {
+                double[] p = batch.get(PRESSURE, new double[n]);
+                for (int i = 0; i < n; i++) {
+                    result[i] =
+                            MeasurementValueCalculator.airDensity(
+                                    t[i], rh[i], p[i], vaporPressure[i]);
+                }
+                batch.set(AIR_DENSITY, result);
+            }
+        }
+        if ((fields & (ACCELERATION_TOTAL.bit() | ANGLES)) != 0) {
+            double[] x = batch.get(ACCELERATION_X, new double[n]);
+            double[] y = batch.get(ACCELERATION_Y, new double[n]);
+            double[] z = batch.get(ACCELERATION_Z, new double[n]);
+            double[] length = new double[n];
+            for (int i = 0; i < n; i++) {
+                result[i] = Math.sqrt(x[i] * x[i] + y[i] * y[i] + z[i] * z[i]);
+                length[i] = result[i] == 0 ? Double.NaN : result[i];
+            }
+            if (calculates(ACCELERATION_TOTAL)) {
+                batch.set(ACCELERATION_TOTAL, result);
+            }
+            if (calculates(ACCELERATION_ANGLE_FROM_X)) {
+                applyAngles(batch, ACCELERATION_ANGLE_FROM_X, x, length, result);
+            }
+            if (calculates(ACCELERATION_ANGLE_FROM_Y)) {
+                applyAngles(batch, ACCELERATION_ANGLE_FROM_Y, y, length, result);
+            }
+            if (calculates(ACCELERATION_ANGLE_FROM_Z)) {
+                applyAngles(batch, ACCELERATION_ANGLE_FROM_Z, z, length, result);
+            }
+        }
+        return batch;
+    }
+
+    private static void applyAngles(
+            MeasurementBatch batch,
+            MeasurementField field,
+            double[] component,
+            double[] length,
+            double[] result) {
+        for (int i = 0; i < batch.size(); i++) {
+            result[i] = angle(component[i], length[i]);
+        }
+        batch.set(field, result);
+    }
+
+    private double vaporPressure(double temperature) {
+        return approximate
+                ? PsychrometricTables.equilibriumVaporPressure(temperature)
+                : MeasurementValueCalculator.equilibriumVaporPressure(temperature);
+    }
+
+    private double dewPoint(double vaporPressure, double relativeHumidity) {
+        if (relativeHumidity == 0) {
+            return Double.NaN;
+        }
+        return approximate
+                ? PsychrometricTables.dewPointFromVaporPressure(vaporPressure, relativeHumidity)
+                : MeasurementValueCalculator.dewPointFromVaporPressure(
+                        vaporPressure, relativeHumidity);
+    }
+
+    private static double angle(double component, double length) {
+        return Math.toDegrees(Math.acos(component / length));
+    }
+}
@@ -1,6 +1,7 @@
 package fi.tkgwf.ruuvi.utils;
 
 import fi.tkgwf.ruuvi.bean.HCIData;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import org.apache.commons.lang3.StringUtils;
 
@@ -52,6 +53,84 @@ public class HCIParser {
         for (; i < lineData.length; i++, indexInPacket++) {
             handleByte(lineData[i]);
         }
+        return completeData();
+    }
+
+    /**
+     * Same as {@link #readLine(String)}, but reads the line straight from the US-ASCII bytes of the
+     * hcidump output, without decoding them into a String first. The buffer is read with absolute
+     * gets, so its position is not changed. The hex bytes are separated by spaces, a line with any
+     * other character is malformed and the packet is dropped.
+     *
+     * @param line the buffer containing the line
+     * @param from index of the first byte of the line
+     * @param to index after the last byte of the line, not including the line break
+     * @return An instance of HCIData containing the parsed data from this line and the previous
+     *     ones
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    public HCIData readLine(ByteBuffer line, int from, int to) {
+        while (from < to && isWhitespace(line.get(from))) {
+            from++;
+        }
+        if (from == to) {
+            return null; // ignore blank lines
+        }
+        if (line.get(from) == '>') { // new incoming packet begins
+            reset();
+            from++;
+        } else if (line.get(from) == '<') { // new outgoing packet begins
+            sendingData = true;
+        }
+        if (sendingData) {
+            return null;
+        }
+        int high = -1;
+        for (int i = from; i < to; i++) {
+            byte b = line.get(i);
+            if (b == ' ') {
+                continue; // separator
+            }
+            int digit = Character.digit(b & 0xFF, 16);
+            if (digit < 0) {
+                sendingData = true; // drop the rest of the packet
+                throw new IllegalArgumentException(
+                        "Malformed hcidump line, not hex at " + (i - from) + ": " + (char) b);
+            }
+            if (high < 0) {
+                high = digit;
+            } else {
+                handleByte((byte) ((high << 4) | digit));
+                indexInPacket++;
+                high = -1;
+            }
+        }
+        return completeData();
+    }
+
+    /**
+     * Parses a complete binary HCI packet, such as a record of a btsnoop file, rather than lines of
+     * hex. The buffer is read with absolute gets, so its position is not changed.
+     *
+     * @param packetType the HCI packet type (0x04 for events), which binary formats often carry
+     *     outside of the packet itself
+     * @param packet the buffer containing the packet, without the packet type byte
+     * @param from index of the first byte of the packet
+     * @param to index after the last byte of the packet
+     * @return An instance of HCIData containing the parsed data, or null if the packet is
+     *     incomplete
+     */
+    public HCIData readPacket(int packetType, ByteBuffer packet, int from, int to) {
+        reset();
+        handleByte((byte) packetType);
+        indexInPacket++;
+        for (int i = from; i < to; i++, indexInPacket++) {
+            handleByte(packet.get(i));
+        }
+        return completeData();
+    }
+
+    private HCIData completeData() {
         // the packet length is actually the length AFTER the length byte, which is the 3rd byte
         if (data.packetLength != null && indexInPacket >= data.packetLength + 3) {
             return data;
@@ -161,6 +240,10 @@ public class HCIParser {
         }
     }
 
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
     private int unsigned(byte b) {
         return b & 0xFF;
     }
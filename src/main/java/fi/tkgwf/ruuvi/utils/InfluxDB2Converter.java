@@ -2,9 +2,13 @@ package fi.tkgwf.ruuvi.utils;
 
 import com.influxdb.client.domain.WritePrecision;
 import com.influxdb.client.write.Point;
+import fi.tkgwf.ruuvi.bean.AggregatedMeasurement;
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
 // import fi.tkgwf.ruuvi.config.Config;
 import fi.tkgwf.ruuvi.config.Configuration;
+import fi.tkgwf.ruuvi.config.RuntimeConfig;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -15,8 +19,7 @@ import org.apache.commons.lang3.StringUtils;
 public class InfluxDB2Converter {
     public static final Collection<String> RAW_STORAGE_VALUES;
 
-    private static final Predicate<String> FIELD_FILTER =
-            s -> Configuration.get().storage.fields.contains(s);
+    private static final Predicate<String> FIELD_FILTER = s -> RuntimeConfig.get().isStoredField(s);
 
     static {
         final Collection<String> rawStorageValues = new HashSet<>();
@@ -163,6 +166,65 @@ public class InfluxDB2Converter {
         return p;
     }
 
+    public static Point toInflux(PrimitiveMeasurement measurement) {
+        return toInflux(measurement, FIELD_FILTER);
+    }
+
+    /**
+     * Converts a {@link PrimitiveMeasurement} into an {@link Point}, like {@link
+     * #toInflux(EnhancedRuuviMeasurement, Predicate)} but without boxing the values. The min, max
+     * and last values of an {@link AggregatedMeasurement} are added as fields suffixed with "Min",
+     * "Max" and "Last", and the number of samples as "count".
+     *
+     * @param measurement The measurement to convert
+     * @param allowField A function that tells whether any given field of the given {@code
+     *     RuuviMeasurement} should be included in the resulting {@code Point} or not
+     * @return A {@code Point}, ready to be saved into InfluxDB
+     */
+    public static Point toInflux(PrimitiveMeasurement measurement, Predicate<String> allowField) {
+        Point p =
+                Point.measurement(Configuration.get().influxCommon.measurement)
+                        .addTag("mac", measurement.getMac());
+        if (measurement.getName() != null) {
+            p.addTag("name", measurement.getName());
+        }
+        if (measurement.has(MeasurementField.DATA_FORMAT)) {
+            p.addTag(
+                    "dataFormat", String.valueOf(measurement.getInt(MeasurementField.DATA_FORMAT)));
+        }
+        if (StringUtils.isNotBlank(measurement.getReceiver())) {
+            p.addTag("receiver", measurement.getReceiver());
+        }
+        if (measurement.hasTime()) {
+            p.time(measurement.getTime(), WritePrecision.MS);
+        }
+        for (MeasurementField field : MeasurementField.ALL) {
+            if (field == MeasurementField.DATA_FORMAT // a tag
+                    || !measurement.has(field)
+                    || !allowField.test(field.getFieldName())) {
+                continue;
+            }
+            if (field.isInteger()) {
+                p.addField(field.getFieldName(), (long) measurement.getInt(field));
+            } else {
+                p.addField(field.getFieldName(), measurement.get(field));
+            }
+            if (measurement instanceof AggregatedMeasurement
+                    && ((AggregatedMeasurement) measurement).hasAggregates(field)) {
+                AggregatedMeasurement aggregate = (AggregatedMeasurement) measurement;
+                p.addField(field.getFieldName() + "Min", aggregate.getMin(field));
+                p.addField(field.getFieldName() + "Max", aggregate.getMax(field));
+                if (!field.isInteger()) {
+                    p.addField(field.getFieldName() + "Last", aggregate.getLast(field));
+                }
+            }
+        }
+        if (measurement instanceof AggregatedMeasurement) {
+            p.addField("count", (long) ((AggregatedMeasurement) measurement).getCount());
+        }
+        return p;
+    }
+
     private static void addValueIfAllowed(
             Point point,
             String name,
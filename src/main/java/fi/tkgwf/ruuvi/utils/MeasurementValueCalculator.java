@@ -1,6 +1,8 @@
 package fi.tkgwf.ruuvi.utils;
 
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
 
 public class MeasurementValueCalculator {
 
@@ -13,16 +15,19 @@ public class MeasurementValueCalculator {
      */
     public static EnhancedRuuviMeasurement calculateAllValues(
             EnhancedRuuviMeasurement measurement) {
+        final Double t = measurement.getTemperature();
+        final Double rh = measurement.getHumidity();
+        final Double p = measurement.getPressure();
+        // calculated once for all the values based on it
+        final Double vaporPressure = equilibriumVaporPressure(t);
+        final boolean humidityKnown = t != null && rh != null;
         measurement.setAbsoluteHumidity(
-                absoluteHumidity(measurement.getTemperature(), measurement.getHumidity()));
-        measurement.setDewPoint(dewPoint(measurement.getTemperature(), measurement.getHumidity()));
-        measurement.setEquilibriumVaporPressure(
-                equilibriumVaporPressure(measurement.getTemperature()));
+                humidityKnown ? absoluteHumidity(t, rh, vaporPressure) : null);
+        measurement.setDewPoint(
+                humidityKnown && rh != 0 ? dewPointFromVaporPressure(vaporPressure, rh) : null);
+        measurement.setEquilibriumVaporPressure(vaporPressure);
         measurement.setAirDensity(
-                airDensity(
-                        measurement.getTemperature(),
-                        measurement.getHumidity(),
-                        measurement.getPressure()));
+                humidityKnown && p != null ? airDensity(t, rh, p, vaporPressure) : null);
         measurement.setAccelerationTotal(
                 totalAcceleration(
                         measurement.getAccelerationX(),
@@ -40,6 +45,29 @@ public class MeasurementValueCalculator {
         return measurement;
     }
 
+    /**
+     * Calculates the same values as {@link #calculateAllValues(EnhancedRuuviMeasurement)} without
+     * boxing. A value that can't be calculated, because a value it is based on is missing, is
+     * cleared.
+     *
+     * @param measurement the measurement
+     * @return The supplied Measurement
+     */
+    public static PrimitiveMeasurement calculateAllValues(PrimitiveMeasurement measurement) {
+        return DerivedValuePlan.ALL.apply(measurement);
+    }
+
+    /**
+     * Calculates the same values as {@link #calculateAllValues(PrimitiveMeasurement)} for all the
+     * measurements of the batch, with identical results.
+     *
+     * @param batch the measurements
+     * @return The supplied batch
+     */
+    public static MeasurementBatch calculateAllValues(MeasurementBatch batch) {
+        return DerivedValuePlan.ALL.apply(batch);
+    }
+
     /**
      * Calculates the total acceleration strength
      *
@@ -85,10 +113,13 @@ public class MeasurementValueCalculator {
         if (temperature == null || relativeHumidity == null) {
             return null;
         }
-        return equilibriumVaporPressure(temperature)
-                * relativeHumidity
-                * 0.021674
-                / (273.15 + temperature);
+        return absoluteHumidity(
+                temperature, relativeHumidity, equilibriumVaporPressure(temperature.doubleValue()));
+    }
+
+    static double absoluteHumidity(
+            double temperature, double relativeHumidity, double vaporPressure) {
+        return vaporPressure * relativeHumidity * 0.021674 / (273.15 + temperature);
     }
 
     /**
@@ -102,7 +133,12 @@ public class MeasurementValueCalculator {
         if (temperature == null || relativeHumidity == null || relativeHumidity == 0) {
             return null;
         }
-        double v = Math.log(relativeHumidity / 100 * equilibriumVaporPressure(temperature) / 611.2);
+        return dewPointFromVaporPressure(
+                equilibriumVaporPressure(temperature.doubleValue()), relativeHumidity);
+    }
+
+    static double dewPointFromVaporPressure(double vaporPressure, double relativeHumidity) {
+        double v = Math.log(relativeHumidity / 100 * vaporPressure / 611.2);
         return -243.5 * v / (v - 17.67);
     }
 
@@ -116,6 +152,10 @@ public class MeasurementValueCalculator {
         if (temperature == null) {
             return null;
         }
+        return equilibriumVaporPressure(temperature.doubleValue());
+    }
+
+    static double equilibriumVaporPressure(double temperature) {
         return 611.2 * Math.exp(17.67 * temperature / (243.5 + temperature));
     }
 
@@ -131,11 +171,19 @@ public class MeasurementValueCalculator {
         if (temperature == null || relativeHumidity == null || pressure == null) {
             return null;
         }
+        return airDensity(
+                temperature,
+                relativeHumidity,
+                pressure,
+                equilibriumVaporPressure(temperature.doubleValue()));
+    }
+
+    static double airDensity(
+            double temperature, double relativeHumidity, double pressure, double vaporPressure) {
         return 1.2929
                 * 273.15
                 / (temperature + 273.15)
-                * (pressure
-                        - 0.3783 * relativeHumidity / 100 * equilibriumVaporPressure(temperature))
+                * (pressure - 0.3783 * relativeHumidity / 100 * vaporPressure)
                 / 101300;
     }
 }
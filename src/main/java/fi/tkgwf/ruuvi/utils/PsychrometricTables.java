@@ -0,0 +1,85 @@
+package fi.tkgwf.ruuvi.utils;
+
+/**
+ * Lookup tables with linear interpolation replacing the {@code exp} and {@code log} of the
+ * psychrometric formulas of {@link MeasurementValueCalculator}, for gateways where those are slow.
+ *
+ * <ul>
+ *   <li>The equilibrium vapor pressure is tabulated over the operating range of the sensor, -40 to
+ *       +85 Celsius, every 1/32 degree. Its relative error is below {@link #MAX_RELATIVE_ERROR},
+ *       and so is that of the absolute humidity and the air density calculated from it.
+ *       Temperatures out of the range are calculated exactly.
+ *   <li>The logarithm of the dew point is split into the exponent and the mantissa of the double,
+ *       and the logarithm of the mantissa is tabulated with 1024 intervals. Its absolute error is
+ *       below 2e-7, which keeps the error of the dew point below {@link #MAX_DEW_POINT_ERROR}
+ *       degrees.
+ * </ul>
+ */
+final class PsychrometricTables {
+
+    /** Maximum relative error of the vapor pressure, the absolute humidity and the air density */
+    static final double MAX_RELATIVE_ERROR = 5e-6;
+    /** Maximum error of the dew point in degrees */
+    static final double MAX_DEW_POINT_ERROR = 1e-4;
+
+    static final double MIN_TEMPERATURE = -40;
+    static final double MAX_TEMPERATURE = 85;
+    private static final int STEPS_PER_DEGREE = 32;
+    private static final double[] VAPOR_PRESSURE =
+            new double[(int) (MAX_TEMPERATURE - MIN_TEMPERATURE) * STEPS_PER_DEGREE + 2];
+
+    private static final int LOG_BITS = 10;
+    private static final int LOG_STEPS = 1 << LOG_BITS;
+    private static final double[] LOG_MANTISSA = new double[LOG_STEPS + 2];
+    private static final double LN_2 = Math.log(2);
+
+    static {
+        for (int i = 0; i < VAPOR_PRESSURE.length; i++) {
+            VAPOR_PRESSURE[i] =
+                    MeasurementValueCalculator.equilibriumVaporPressure(
+                            MIN_TEMPERATURE + (double) i / STEPS_PER_DEGREE);
+        }
+        for (int i = 0; i < LOG_MANTISSA.length; i++) {
+            LOG_MANTISSA[i] = Math.log(1 + (double) i / LOG_STEPS);
+        }
+    }
+
+    private PsychrometricTables() {}
+
+    /**
+     * @see MeasurementValueCalculator#equilibriumVaporPressure(double)
+     */
+    static double equilibriumVaporPressure(double temperature) {
+        if (!(temperature >= MIN_TEMPERATURE && temperature < MAX_TEMPERATURE)) {
+            // out of the range, or NaN
+            return MeasurementValueCalculator.equilibriumVaporPressure(temperature);
+        }
+        double position = (temperature - MIN_TEMPERATURE) * STEPS_PER_DEGREE;
+        int index = (int) position;
+        double fraction = position - index;
+        return VAPOR_PRESSURE[index]
+                + fraction * (VAPOR_PRESSURE[index + 1] - VAPOR_PRESSURE[index]);
+    }
+
+    /**
+     * @see MeasurementValueCalculator#dewPointFromVaporPressure(double, double)
+     */
+    static double dewPointFromVaporPressure(double vaporPressure, double relativeHumidity) {
+        double v = log(relativeHumidity / 100 * vaporPressure / 611.2);
+        return -243.5 * v / (v - 17.67);
+    }
+
+    /** Natural logarithm, exact for the arguments that aren't positive normal numbers */
+    static double log(double x) {
+        if (!(x >= Double.MIN_NORMAL && x <= Double.MAX_VALUE)) {
+            return Math.log(x);
+        }
+        int exponent = Math.getExponent(x);
+        double position = (Math.scalb(x, -exponent) - 1) * LOG_STEPS;
+        int index = (int) position;
+        double fraction = position - index;
+        return exponent * LN_2
+                + LOG_MANTISSA[index]
+                + fraction * (LOG_MANTISSA[index + 1] - LOG_MANTISSA[index]);
+    }
+}
@@ -0,0 +1,131 @@
+package fi.tkgwf.ruuvi;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import fi.tkgwf.ruuvi.db.DummyDBConnection;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.function.IntFunction;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Keeps the memory churn of the per-packet path in check: runs hcidump output through {@link
+ * Main#run(BufferedReader, fi.tkgwf.ruuvi.db.RuuviDBConnection)} with the dummy sink and fails if
+ * the bytes allocated per packet exceed the budget. The budgets can be overridden with the system
+ * properties {@code allocationBudget.accepted}, {@code allocationBudget.discarded} and {@code
+ * allocationBudget.nonRuuvi}, e.g. when tightening them after an optimization. The budgets are
+ * about 5% above the measured allocations.
+ */
+class AllocationBudgetTest {
+
+    private static final long ACCEPTED_BUDGET = Long.getLong("allocationBudget.accepted", 13_400);
+    private static final long DISCARDED_BUDGET = Long.getLong("allocationBudget.discarded", 13_000);
+    private static final long NON_RUUVI_BUDGET = Long.getLong("allocationBudget.nonRuuvi", 13_400);
+
+    private static final int PACKETS = 5_000;
+    private static final int WARMUP_ROUNDS = 5;
+
+    private static final Logger LOG = Logger.getLogger(AllocationBudgetTest.class);
+    private static final Logger DUMMY_LOG = Logger.getLogger(DummyDBConnection.class);
+    private static Level dummyLogLevel;
+
+    @BeforeAll
+    static void silenceDummySink() {
+        // Logging every accepted measurement is not part of the pipeline being measured
+        dummyLogLevel = DUMMY_LOG.getLevel();
+        DUMMY_LOG.setLevel(Level.INFO);
+    }
+
+    @AfterAll
+    static void restoreDummySink() {
+        DUMMY_LOG.setLevel(dummyLogLevel);
+    }
+
+    @Test
+    void acceptedRuuviPacketsStayWithinBudget() {
+        // Acceleration changes on every packet, so the motion sensitive strategy keeps them all
+        final String moving = TestFixture.getDataFormat3Message().replace("AA", "A1");
+        assertWithinBudget(
+                "accepted Ruuvi packet",
+                ACCEPTED_BUDGET,
+                i -> i % 2 == 0 ? moving : moving.replace("FF EA", "03 E8"));
+    }
+
+    @Test
+    void discardedRuuviPacketsStayWithinBudget() {
+        final String still = TestFixture.getDataFormat3Message().replace("AA", "A2");
+        assertWithinBudget("discarded Ruuvi packet", DISCARDED_BUDGET, i -> still);
+    }
+
+    @Test
+    void nonRuuviPacketsStayWithinBudget() {
+        final String iBeacon = TestFixture.getIBeaconMessage();
+        assertWithinBudget("non-Ruuvi packet", NON_RUUVI_BUDGET, i -> iBeacon);
+    }
+
+    private static void assertWithinBudget(
+            final String description, final long budget, final IntFunction<String> packet) {
+        final com.sun.management.ThreadMXBean threadMXBean = threadMXBean();
+        final String input = hcidump(packet);
+        final Main main = new Main();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            main.run(reader(input), new DummyDBConnection());
+        }
+
+        final BufferedReader reader = reader(input);
+        final DummyDBConnection db = new DummyDBConnection();
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        main.run(reader, db);
+        final long perPacket = (threadMXBean.getThreadAllocatedBytes(threadId) - before) / PACKETS;
+
+        LOG.info(
+                "Allocated "
+                        + perPacket
+                        + " bytes per "
+                        + description
+                        + " (budget "
+                        + budget
+                        + ")");
+        assertTrue(
+                perPacket <= budget,
+                "Allocated "
+                        + perPacket
+                        + " bytes per "
+                        + description
+                        + ", budget is "
+                        + budget
+                        + " bytes");
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        assumeTrue(
+                ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "Thread allocation counters are not available on this JVM");
+        final com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(
+                threadMXBean.isThreadAllocatedMemorySupported(),
+                "Thread allocation counters are not supported on this JVM");
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        return threadMXBean;
+    }
+
+    private static String hcidump(final IntFunction<String> packet) {
+        final StringBuilder sb = new StringBuilder("HCI sniffer - Bluetooth packet analyzer\n");
+        for (int i = 0; i < PACKETS; i++) {
+            sb.append(packet.apply(i)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static BufferedReader reader(final String input) {
+        return new BufferedReader(new StringReader(input));
+    }
+}
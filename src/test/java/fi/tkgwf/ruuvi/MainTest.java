@@ -6,6 +6,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
 import fi.tkgwf.ruuvi.db.RuuviDBConnection;
+import fi.tkgwf.ruuvi.input.HciDumpGenerator;
 import java.io.BufferedReader;
 import java.io.StringReader;
 import java.util.ArrayList;
@@ -71,6 +72,19 @@ class MainTest {
         assertTrue(mockConnection.isCloseCalled());
     }
 
+    @Test
+    void syntheticTrafficTest() {
+        final HciDumpGenerator.Options options = new HciDumpGenerator.Options();
+        options.tags = 1000;
+        options.packets = 20_000;
+        options.packetsPerSecond = 0;
+        final HciDumpGenerator generator = new HciDumpGenerator(options);
+
+        assertTrue(new Main().run(new BufferedReader(generator.reader()), new MockConnection()));
+        assertEquals(20_000, generator.getDelivered());
+        assertEquals(0, generator.getDropped());
+    }
+
     private void setClockToMilliseconds(final Long... millis) {
         TestFixture.setClockToMilliseconds(new FixedInstantsProvider(Arrays.asList(millis)));
     }
@@ -0,0 +1,58 @@
+package fi.tkgwf.ruuvi.bean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class MeasurementBatchTest {
+
+    @Test
+    void rowsAreCopiedBack() {
+        final MeasurementBatch batch = new MeasurementBatch(2);
+        final PrimitiveMeasurement first = createMeasurement("AABBCCDDEE01", 21.5);
+        first.setTime(1600000000000L);
+        final PrimitiveMeasurement second = createMeasurement("AABBCCDDEE02", -3.25);
+        second.clear(MeasurementField.HUMIDITY);
+        batch.add(first);
+        first.set(MeasurementField.TEMPERATURE, 0d); // the batch has a copy
+        batch.add(second);
+
+        assertTrue(batch.isFull());
+        assertEquals(21.5, batch.get(0, MeasurementField.TEMPERATURE));
+        assertEquals(-3.25, batch.column(MeasurementField.TEMPERATURE)[1]);
+        assertEquals(5, batch.getInt(1, MeasurementField.DATA_FORMAT));
+        assertFalse(batch.has(1, MeasurementField.HUMIDITY));
+        assertTrue(Double.isNaN(batch.get(1, MeasurementField.HUMIDITY)));
+        assertEquals(1600000000000L, batch.getTime(0));
+        assertFalse(batch.hasTime(1));
+        assertEquals("AABBCCDDEE02", batch.getMac(1));
+        assertEquals(second.toString(), batch.get(1, first).toString());
+    }
+
+    @Test
+    void clearedBatchIsReused() {
+        final MeasurementBatch batch = new MeasurementBatch(1);
+        batch.add(createMeasurement("AABBCCDDEE01", 1d));
+        assertThrows(IllegalStateException.class, () -> batch.add(new PrimitiveMeasurement()));
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        assertThrows(IndexOutOfBoundsException.class, () -> batch.getMac(0));
+        batch.add(createMeasurement("AABBCCDDEE02", 2d));
+        assertEquals(1, batch.size());
+        assertEquals(2d, batch.get(0, MeasurementField.TEMPERATURE));
+    }
+
+    private static PrimitiveMeasurement createMeasurement(String mac, double temperature) {
+        final PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        measurement.setMac(mac);
+        measurement.setName("sauna");
+        measurement.set(MeasurementField.DATA_FORMAT, 5);
+        measurement.set(MeasurementField.TEMPERATURE, temperature);
+        measurement.set(MeasurementField.HUMIDITY, 45.5);
+        measurement.set(MeasurementField.RSSI, -70);
+        return measurement;
+    }
+}
@@ -0,0 +1,73 @@
+package fi.tkgwf.ruuvi.bean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.utils.MeasurementValueCalculator;
+import org.junit.jupiter.api.Test;
+
+class PrimitiveMeasurementTest {
+
+    @Test
+    void beanRoundTrip() {
+        final EnhancedRuuviMeasurement bean = createMeasurement();
+        final PrimitiveMeasurement measurement = PrimitiveMeasurement.from(bean);
+        assertEquals(Integer.valueOf(5), measurement.getValue(MeasurementField.DATA_FORMAT));
+        assertEquals(21.5, measurement.get(MeasurementField.TEMPERATURE));
+        assertFalse(measurement.has(MeasurementField.DEW_POINT));
+        assertTrue(Double.isNaN(measurement.get(MeasurementField.DEW_POINT)));
+        assertEquals(bean.toString(), measurement.toEnhanced().toString());
+    }
+
+    @Test
+    void derivedValuesAreTheSameAsForTheBean() {
+        final EnhancedRuuviMeasurement bean = createMeasurement();
+        final PrimitiveMeasurement measurement = PrimitiveMeasurement.from(bean);
+        MeasurementValueCalculator.calculateAllValues(bean);
+        MeasurementValueCalculator.calculateAllValues(measurement);
+        assertEquals(bean.toString(), measurement.toEnhanced().toString());
+    }
+
+    @Test
+    void derivedValuesOfMissingValuesAreCleared() {
+        final EnhancedRuuviMeasurement bean = createMeasurement();
+        bean.setHumidity(null);
+        bean.setAccelerationX(0d);
+        bean.setAccelerationY(0d);
+        bean.setAccelerationZ(0d);
+        final PrimitiveMeasurement measurement = PrimitiveMeasurement.from(bean);
+        measurement.set(MeasurementField.DEW_POINT, 10); // stale, must be cleared
+
+        final EnhancedRuuviMeasurement calculated =
+                MeasurementValueCalculator.calculateAllValues(measurement).toEnhanced();
+        assertNull(calculated.getDewPoint());
+        assertNull(calculated.getAbsoluteHumidity());
+        assertNull(calculated.getAccelerationAngleFromX());
+        assertEquals(0d, calculated.getAccelerationTotal());
+        assertEquals(
+                MeasurementValueCalculator.equilibriumVaporPressure(21.5),
+                calculated.getEquilibriumVaporPressure());
+    }
+
+    private static EnhancedRuuviMeasurement createMeasurement() {
+        final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.setTime(1_600_000_000_000L);
+        measurement.setReceiver("kitchen");
+        measurement.setDataFormat(5);
+        measurement.setTemperature(21.5);
+        measurement.setHumidity(45.25);
+        measurement.setPressure(100650d);
+        measurement.setAccelerationX(0.012);
+        measurement.setAccelerationY(-0.02);
+        measurement.setAccelerationZ(1.004);
+        measurement.setBatteryVoltage(2.95);
+        measurement.setTxPower(4);
+        measurement.setMovementCounter(12);
+        measurement.setMeasurementSequenceNumber(34567);
+        measurement.setRssi(-70);
+        return measurement;
+    }
+}
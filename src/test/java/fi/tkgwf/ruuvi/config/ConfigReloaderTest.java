@@ -0,0 +1,134 @@
+package fi.tkgwf.ruuvi.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.utils.InfluxDBConverter;
+import fi.tkgwf.ruuvi.utils.Utils;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class ConfigReloaderTest {
+
+    @Test
+    void testLookupsAreSwappedAndOtherChangesNeedARestart() throws IOException {
+        final Configuration original = Configuration.get();
+        final RuntimeConfig originalRuntime = RuntimeConfig.get();
+        try {
+            final ConfigReloader reloader = new ConfigReloader(null);
+            final List<RuntimeConfig> notified = new ArrayList<>();
+            reloader.addListener(notified::add);
+
+            final Configuration next = Utils.readYamlConfig(Configuration.class);
+            next.sensor.allowedMac = Set.of("AABBCCDDEEFF");
+            next.sensor.scanCommand = "hcitool -i hci1 lescan --duplicates --passive";
+            final ConfigReloader.Changes changes = reloader.apply(next);
+
+            assertEquals(List.of("allowed MAC addresses"), changes.getRebuilt());
+            assertEquals(List.of("sensor.scanCommand"), changes.getRestartNeeded());
+            assertSame(next, Configuration.get());
+            assertEquals(original.sensor.scanCommand, Configuration.get().sensor.scanCommand);
+            assertEquals(List.of(RuntimeConfig.get()), notified);
+            assertTrue(RuntimeConfig.get().isAllowedMac("AABBCCDDEEFF"));
+            assertFalse(RuntimeConfig.get().isAllowedMac("112233445566"));
+
+            // the same configuration read again
+            final Configuration same = Utils.readYamlConfig(Configuration.class);
+            same.sensor.allowedMac = Set.of("AABBCCDDEEFF");
+            same.sensor.scanCommand = next.sensor.scanCommand;
+            assertTrue(reloader.apply(same).isEmpty());
+        } finally {
+            Configuration.set(original);
+            RuntimeConfig.set(originalRuntime);
+        }
+    }
+
+    @Test
+    void testOnlyTheTagsWhoseSettingsChangedAreRebuilt() throws IOException {
+        final Configuration original = Configuration.get();
+        final RuntimeConfig originalRuntime = RuntimeConfig.get();
+        try {
+            final TagProperties changed = TagProperties.get("C0FFEE000001");
+            final TagProperties unchanged = TagProperties.get("C0FFEE000002");
+
+            final Configuration next = Utils.readYamlConfig(Configuration.class);
+            final Map<String, Map<String, Object>> tagSettings = new HashMap<>();
+            tagSettings.put("C0FFEE000001", Map.of("limitingStrategy", "aggregate"));
+            next.sensor.tagSettings = tagSettings;
+            final ConfigReloader.Changes changes = new ConfigReloader(null).apply(next);
+
+            assertEquals(List.of("limiting strategies of [C0FFEE000001]"), changes.getRebuilt());
+            assertTrue(changes.getRestartNeeded().isEmpty());
+            assertNotSame(changed, TagProperties.get("C0FFEE000001"));
+            assertSame(unchanged, TagProperties.get("C0FFEE000002"));
+        } finally {
+            Configuration.set(original);
+            RuntimeConfig.set(originalRuntime);
+        }
+    }
+
+    @Test
+    void testTheRunningSinksKeepTheStoredFields() throws IOException {
+        final Configuration original = Configuration.get();
+        final RuntimeConfig originalRuntime = RuntimeConfig.get();
+        try {
+            final List<String> fields = original.storage.fields;
+            final Configuration next = Utils.readYamlConfig(Configuration.class);
+            next.storage.fields = List.of("temperature");
+            next.influxCommon.measurement = "other";
+            final ConfigReloader.Changes changes = new ConfigReloader(null).apply(next);
+
+            assertEquals(List.of("influxCommon", "storage.fields"), changes.getRestartNeeded());
+            assertEquals(fields, Configuration.get().storage.fields);
+            assertEquals(
+                    original.influxCommon.measurement,
+                    Configuration.get().influxCommon.measurement);
+            assertEquals(originalRuntime.getStoredFields(), RuntimeConfig.get().getStoredFields());
+            final EnhancedRuuviMeasurement measurement = new EnhancedRuuviMeasurement();
+            measurement.setMac("AABBCCDDEEFF");
+            measurement.setTemperature(20.0);
+            measurement.setHumidity(50.0);
+            assertTrue(
+                    InfluxDBConverter.toInflux(measurement).lineProtocol().contains("humidity="));
+        } finally {
+            Configuration.set(original);
+            RuntimeConfig.set(originalRuntime);
+        }
+    }
+
+    @Test
+    void testInvalidTagSettingsKeepTheConfiguration() throws IOException {
+        final Configuration original = Configuration.get();
+        final RuntimeConfig originalRuntime = RuntimeConfig.get();
+        final Configuration next = Utils.readYamlConfig(Configuration.class);
+        next.sensor.tagSettings = Map.of("C0FFEE000001", Map.of("limitingStrategy", "nonsense"));
+        assertThrows(IllegalArgumentException.class, () -> new ConfigReloader(null).apply(next));
+        assertSame(original, Configuration.get());
+        assertSame(originalRuntime, RuntimeConfig.get());
+    }
+
+    @Test
+    void testAnInvalidFileKeepsTheConfiguration() throws IOException {
+        final Configuration original = Configuration.get();
+        final Path file = Files.createTempFile("configuration", ".yml");
+        try {
+            Files.writeString(file, "api:\n    port: 0\n");
+            assertThrows(IOException.class, () -> new ConfigReloader(file).reload());
+            assertSame(original, Configuration.get());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package fi.tkgwf.ruuvi.config;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class RuntimeConfigTest {
+
+    @Test
+    void testLookupsMatchTheConfiguration() {
+        final Configuration configuration = configuration();
+        configuration.sensor.allowedMac = Set.of("AABBCCDDEEFF", "112233445566");
+        configuration.sensor.macAddressToName =
+                Map.of("AABBCCDDEEFF", "sauna", "000000000001", "fridge");
+        configuration.sensor.tagSettings =
+                Map.of(
+                        "AABBCCDDEEFF",
+                        Map.of("limitingStrategy", "deadband", "deadband.humidity", 1));
+        configuration.storage.fields = List.of("temperature", "humidity", "receiver");
+        final RuntimeConfig config = RuntimeConfig.compile(configuration);
+
+        assertTrue(config.isAllowedMac("AABBCCDDEEFF"));
+        assertTrue(config.isAllowedMac("112233445566"));
+        assertFalse(config.isAllowedMac("112233445567"));
+        assertFalse(config.isAllowedMac(null));
+        assertEquals("sauna", config.getName("AABBCCDDEEFF"));
+        assertEquals("fridge", config.getName("000000000001"));
+        assertNull(config.getName("112233445566"));
+        assertEquals(
+                Set.of(MeasurementField.TEMPERATURE, MeasurementField.HUMIDITY),
+                config.getStoredFields());
+        assertTrue(config.isStoredField("receiver"));
+        assertFalse(config.isStoredField("pressure"));
+        assertEquals(
+                Map.of("limitingStrategy", "deadband", "deadband.humidity", "1"),
+                config.getTagSettings("AABBCCDDEEFF"));
+        assertEquals(Map.of(), config.getTagSettings("112233445566"));
+    }
+
+    @Test
+    void testInvalidAllowedMacsDontAllowAll() {
+        final Configuration configuration = configuration();
+        assertTrue(RuntimeConfig.compile(configuration).isAllowedMac("AABBCCDDEEFF"));
+        configuration.sensor.allowedMac = Set.of("AA:BB:CC:DD:EE:FF");
+        assertFalse(RuntimeConfig.compile(configuration).isAllowedMac("AABBCCDDEEFF"));
+    }
+
+    @Test
+    void testInvalidTagSettingsAreFoundUpFront() {
+        final Configuration configuration = configuration();
+        configuration.sensor.deadbandHeartbeatMs = 60_000;
+        configuration.sensor.tagSettings =
+                Map.of(
+                        "AABBCCDDEEFF",
+                        Map.of("limitingStrategy", "deadband", "deadband.temperature", 0.5));
+        assertDoesNotThrow(() -> RuntimeConfig.compile(configuration));
+
+        configuration.sensor.tagSettings =
+                Map.of("AABBCCDDEEFF", Map.of("limitingStrategy", "onMovment"));
+        final IllegalArgumentException ex =
+                assertThrows(
+                        IllegalArgumentException.class, () -> RuntimeConfig.compile(configuration));
+        assertTrue(ex.getMessage().contains("AABBCCDDEEFF"));
+        configuration.sensor.tagSettings =
+                Map.of("AABBCCDDEEFF", Map.of("aggregationWindowMs", "1m"));
+        assertThrows(IllegalArgumentException.class, () -> RuntimeConfig.compile(configuration));
+        configuration.sensor.tagSettings =
+                Map.of(
+                        "AABBCCDDEEFF",
+                        Map.of("limitingStrategy", "deadband", "deadband.temprature", 0.5));
+        assertThrows(IllegalArgumentException.class, () -> RuntimeConfig.compile(configuration));
+    }
+
+    @Test
+    void testTheStrategiesAreBuiltWithTheDefaultsOfTheSnapshot() {
+        final Configuration configuration = configuration();
+        configuration.sensor.alignedIntervalMs = 1000;
+        configuration.sensor.deadbands = Map.of("temperature", 0.5);
+        configuration.sensor.deadbandHeartbeatMs = 60_000;
+        final RuntimeConfig config = RuntimeConfig.compile(configuration);
+        assertEquals(1000, config.getAlignedIntervalMs());
+        assertEquals(Map.of("temperature", "0.5"), config.getDeadbands());
+
+        final TagProperties.Builder builder = TagProperties.builder("AABBCCDDEEFF", config);
+        builder.add("limitingStrategy", "deadband");
+        assertDoesNotThrow(builder::build);
+        // not the defaults of Configuration.get()
+        configuration.sensor.deadbands = Map.of("nonsense", 0.5);
+        final TagProperties.Builder invalid =
+                TagProperties.builder("AABBCCDDEEFF", RuntimeConfig.compile(configuration));
+        invalid.add("limitingStrategy", "deadband");
+        assertThrows(IllegalArgumentException.class, invalid::build);
+    }
+
+    private static Configuration configuration() {
+        final Configuration configuration = new Configuration();
+        configuration.sensor = new Configuration.Sensor();
+        configuration.storage = new Configuration.Storage();
+        return configuration;
+    }
+}
@@ -0,0 +1,135 @@
+package fi.tkgwf.ruuvi.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import io.prometheus.client.CollectorRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class TagRegistryTest {
+
+    @Test
+    void testIdleTagsAreForgottenAndReadmitted() {
+        final AtomicLong now = new AtomicLong(1_000_000);
+        final TagRegistry registry =
+                new TagRegistry(mac -> TagProperties.builder(mac).build(), 60_000, 100, now::get);
+        final TagProperties first = registry.get("AABBCCDDEEFF");
+        now.addAndGet(30_000);
+        assertSame(first, registry.get("AABBCCDDEEFF"));
+        assertEquals(0, registry.getEvictions());
+
+        // last seen 30 s in, idle for a minute now
+        now.addAndGet(60_000);
+        assertNotSame(first, registry.get("AABBCCDDEEFF"));
+        assertEquals(1, registry.getEvictions());
+        assertEquals(1, registry.getReadmissions());
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    void testAReadmissionIsCountedOncePerEviction() {
+        final AtomicLong now = new AtomicLong(1_000_000);
+        final TagRegistry registry =
+                new TagRegistry(mac -> TagProperties.builder(mac).build(), 60_000, 100, now::get);
+        final TagProperties first = registry.get("AABBCCDDEEFF");
+        now.addAndGet(60_000);
+        registry.get("AABBCCDDEEFF");
+        assertTrue(first.isReleased());
+        assertEquals(1, registry.getReadmissions());
+
+        // forgotten like on a reload, not evicted
+        registry.forget(mac -> true);
+        registry.get("AABBCCDDEEFF");
+        assertEquals(1, registry.getReadmissions());
+        assertEquals(1, registry.getEvictions());
+    }
+
+    @Test
+    void testEachRegistryExportsItsOwnMetrics() {
+        final CollectorRegistry metrics = new CollectorRegistry();
+        final TagRegistry registry =
+                new TagRegistry(mac -> TagProperties.builder(mac).build(), 0, 16, metrics);
+        final TagRegistry other = new TagRegistry(mac -> TagProperties.builder(mac).build(), 0, 16);
+        registry.get("AABBCCDDEEFF");
+        other.get("AABBCCDDEEFF");
+        other.get("112233445566");
+        assertEquals(1, metrics.getSampleValue("ruuvi_tag_registry_live_tags"));
+        assertEquals(2, other.size());
+    }
+
+    @Test
+    void testTheLeastRecentlySeenAreForgottenBeyondTheMaximum() {
+        final TagRegistry registry =
+                new TagRegistry(mac -> TagProperties.builder(mac).build(), 0, 16, () -> 0);
+        final List<String> macs = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            macs.add(String.format("AABBCC%06X", i));
+            registry.get(macs.get(i));
+        }
+        // one tag per shard
+        assertEquals(16, registry.size());
+        assertEquals(1000 - 16, registry.getEvictions());
+    }
+
+    @Test
+    void testWhatForgottenTagsHeldBackIsFlushed() {
+        final TagRegistry registry =
+                new TagRegistry(
+                        mac ->
+                                TagProperties.builder(mac)
+                                        .add("limitingStrategy", "aggregate")
+                                        .build(),
+                        0,
+                        100,
+                        () -> 0);
+        final PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.setTime(1_000);
+        measurement.set(MeasurementField.TEMPERATURE, 20);
+        registry.get("AABBCCDDEEFF").getLimitingStrategy().apply(measurement);
+
+        final List<PrimitiveMeasurement> flushed = new ArrayList<>();
+        registry.flushAll(flushed::add);
+        assertEquals(1, flushed.size());
+        registry.get("AABBCCDDEEFF").getLimitingStrategy().apply(measurement);
+        assertEquals(1, registry.forget(mac -> true));
+        registry.drainFlushed(flushed::add);
+        assertEquals(2, flushed.size());
+        assertEquals("AABBCCDDEEFF", flushed.get(1).getMac());
+        assertEquals(20, flushed.get(1).get(MeasurementField.TEMPERATURE));
+    }
+
+    @Test
+    void testConcurrentLookupsShareTheProperties() throws InterruptedException {
+        final TagRegistry registry =
+                new TagRegistry(mac -> TagProperties.builder(mac).build(), 60_000, 1000);
+        final Set<TagProperties> seen = ConcurrentHashMap.newKeySet();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Thread thread =
+                    new Thread(
+                            () -> {
+                                for (int i = 0; i < 10_000; i++) {
+                                    seen.add(registry.get(String.format("AABBCC%06X", i % 100)));
+                                }
+                            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(100, seen.size());
+        assertEquals(100, registry.size());
+        assertEquals(0, registry.getEvictions());
+    }
+}
@@ -0,0 +1,122 @@
+package fi.tkgwf.ruuvi.history;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+class LatestValueTableTest {
+
+    private static final long START = 1_600_000_000_000L;
+
+    @Test
+    void testLatestMeasurementOfEachTagIsKept() {
+        final LatestValueTable table = new LatestValueTable(100, 0);
+        for (int i = 0; i < 100; i++) {
+            final PrimitiveMeasurement measurement = measurement(String.format("AABBCC%06X", i));
+            measurement.set(MeasurementField.TEMPERATURE, i);
+            measurement.set(MeasurementField.RSSI, -i);
+            assertTrue(table.update(measurement));
+        }
+        final PrimitiveMeasurement update = measurement("AABBCC000007");
+        update.set(MeasurementField.HUMIDITY, 50.5);
+        update.setName("sauna");
+        table.update(update);
+
+        final PrimitiveMeasurement read = new PrimitiveMeasurement();
+        assertTrue(table.read("AABBCC000007", read));
+        assertEquals(50.5, read.get(MeasurementField.HUMIDITY));
+        assertFalse(read.has(MeasurementField.TEMPERATURE));
+        assertEquals("sauna", read.getName());
+        assertEquals(START, read.getTime());
+        assertTrue(table.read("AABBCC000063", read));
+        assertEquals(99, read.get(MeasurementField.TEMPERATURE));
+        assertEquals(-99, read.getInt(MeasurementField.RSSI));
+
+        // full, and the MAC addresses that can't be keys
+        assertFalse(table.update(measurement("112233445566")));
+        assertFalse(table.read("112233445566", read));
+        assertFalse(table.update(measurement("AA:BB:CC:DD:EE:FF")));
+        assertEquals(100, table.size());
+
+        final List<String> macs = new ArrayList<>();
+        table.forEach(measurement -> macs.add(measurement.getMac()));
+        assertEquals(100, macs.size());
+        // a quarter of the slots are spare
+        assertEquals(134L * LatestValueTable.SLOT_BYTES, table.getAllocatedBytes());
+    }
+
+    @Test
+    void testSlotsOfIdleTagsAreTakenByNewTags() {
+        final long[] now = {START};
+        final LatestValueTable table = new LatestValueTable(3, 60_000, () -> now[0]);
+        table.update(measurement("AABBCC000001"));
+        table.update(measurement("AABBCC000002"));
+        now[0] += 30_000;
+        table.update(measurement("AABBCC000003"));
+        assertFalse(table.update(measurement("AABBCC000004")));
+
+        // the first two are idle
+        now[0] += 30_000;
+        assertTrue(table.update(measurement("AABBCC000004")));
+        assertTrue(table.update(measurement("AABBCC000005")));
+        final PrimitiveMeasurement read = new PrimitiveMeasurement();
+        assertFalse(table.read("AABBCC000001", read));
+        assertFalse(table.read("AABBCC000002", read));
+        assertTrue(table.read("AABBCC000003", read));
+        assertTrue(table.read("AABBCC000005", read));
+        assertEquals(3, table.size());
+
+        // the third isn't idle yet
+        assertFalse(table.update(measurement("AABBCC000006")));
+        now[0] += 30_000;
+        assertTrue(table.update(measurement("AABBCC000006")));
+        assertFalse(table.read("AABBCC000003", read));
+        assertTrue(table.read("AABBCC000004", read));
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    void testReadersNeverSeeAPartialWrite() throws InterruptedException {
+        final LatestValueTable table = new LatestValueTable(1, 0);
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread writer =
+                new Thread(
+                        () -> {
+                            final PrimitiveMeasurement measurement = measurement("AABBCCDDEEFF");
+                            for (int i = 0; i < 200_000; i++) {
+                                for (final MeasurementField field : MeasurementField.ALL) {
+                                    measurement.set(field, i);
+                                }
+                                measurement.setTime(i);
+                                table.update(measurement);
+                            }
+                            done.set(true);
+                        });
+        writer.start();
+        final PrimitiveMeasurement read = new PrimitiveMeasurement();
+        int reads = 0;
+        while (!done.get() || reads == 0) {
+            if (table.read("AABBCCDDEEFF", read)) {
+                for (final MeasurementField field : MeasurementField.ALL) {
+                    assertEquals(read.getTime(), read.get(field), field.name());
+                }
+                reads++;
+            }
+        }
+        writer.join();
+    }
+
+    private static PrimitiveMeasurement measurement(final String mac) {
+        final PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        measurement.setMac(mac);
+        measurement.setTime(START);
+        return measurement;
+    }
+}
@@ -0,0 +1,128 @@
+package fi.tkgwf.ruuvi.history;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class MeasurementHistoryTest {
+
+    private static final long START = 1_600_000_000_000L;
+
+    @Test
+    void testMeasurementsAreDecodedExactly() {
+        final MeasurementHistory history = new MeasurementHistory(1024 * 1024, 4096);
+        final Random random = new Random(42);
+        final List<PrimitiveMeasurement> recorded = new ArrayList<>();
+        long time = START;
+        for (int i = 0; i < 5000; i++) {
+            // jittery intervals, values with sensor resolution, now and then a missing field
+            time += 1000 + random.nextInt(200) - 100 + (i % 1000 == 999 ? 3_600_000 : 0);
+            final PrimitiveMeasurement measurement = measurement("AABBCCDDEEFF", time);
+            measurement.set(
+                    MeasurementField.TEMPERATURE, Math.round(random.nextGaussian() * 200) / 200.0);
+            measurement.set(MeasurementField.HUMIDITY, 40 + random.nextInt(1000) / 400.0);
+            if (i % 7 != 0) {
+                measurement.set(MeasurementField.PRESSURE, 100_000 + random.nextInt(10));
+            }
+            measurement.set(MeasurementField.ACCELERATION_X, random.nextDouble());
+            measurement.set(MeasurementField.MOVEMENT_COUNTER, i / 100);
+            history.record(measurement);
+            recorded.add(measurement);
+        }
+
+        final List<PrimitiveMeasurement> decoded = decode(history, "AABBCCDDEEFF", 0, time);
+        assertEquals(recorded.size(), decoded.size());
+        for (int i = 0; i < recorded.size(); i++) {
+            final PrimitiveMeasurement expected = recorded.get(i);
+            final PrimitiveMeasurement actual = decoded.get(i);
+            assertEquals(expected.getTime(), actual.getTime());
+            assertEquals(expected.getPresence(), actual.getPresence());
+            for (final MeasurementField field : MeasurementField.ALL) {
+                assertEquals(expected.get(field), actual.get(field), field.name() + " " + i);
+            }
+        }
+        assertEquals("AABBCCDDEEFF", decoded.get(0).getMac());
+        // less than the 8 bytes of the time and of each value, even with random values
+        assertTrue(history.getAllocatedBytes() < recorded.size() * 6 * 8 * 2 / 3, "compressed");
+    }
+
+    @Test
+    void testRangesAndTags() {
+        final MeasurementHistory history = new MeasurementHistory(1024 * 1024, 4096);
+        for (int i = 0; i < 100; i++) {
+            history.record(measurement("AABBCCDDEEFF", START + i * 1000));
+            history.record(measurement("112233445566", START + i * 1000 + 500));
+        }
+
+        final List<PrimitiveMeasurement> range =
+                decode(history, "AABBCCDDEEFF", START + 10_000, START + 19_000);
+        assertEquals(10, range.size());
+        assertEquals(START + 10_000, range.get(0).getTime());
+        assertEquals(START + 19_000, range.get(9).getTime());
+        assertEquals(100, history.size("112233445566"));
+        assertTrue(decode(history, "000000000000", 0, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    void testOldestBlocksAreReusedWhenTheBudgetIsUsedUp() {
+        final MeasurementHistory history = new MeasurementHistory(4 * 4096, 4096);
+        final Random random = new Random(1);
+        for (int i = 0; i < 10_000; i++) {
+            final PrimitiveMeasurement measurement =
+                    measurement(i % 2 == 0 ? "AABBCCDDEEFF" : "112233445566", START + i * 1000);
+            measurement.set(MeasurementField.ACCELERATION_X, random.nextDouble());
+            history.record(measurement);
+        }
+
+        assertEquals(4 * 4096, history.getAllocatedBytes());
+        final List<PrimitiveMeasurement> kept = decode(history, "AABBCCDDEEFF", 0, Long.MAX_VALUE);
+        assertFalse(kept.isEmpty());
+        assertTrue(kept.size() < 5000);
+        // the newest are kept
+        assertEquals(START + 9998 * 1000, kept.get(kept.size() - 1).getTime());
+    }
+
+    @Test
+    void testNoHistoryWithoutBudget() {
+        final MeasurementHistory history = new MeasurementHistory(0, 4096);
+        history.record(measurement("AABBCCDDEEFF", START));
+        assertEquals(0, history.size("AABBCCDDEEFF"));
+        assertTrue(history.getMacs().isEmpty());
+    }
+
+    private static List<PrimitiveMeasurement> decode(
+            final MeasurementHistory history, final String mac, final long from, final long to) {
+        final List<PrimitiveMeasurement> decoded = new ArrayList<>();
+        history.forEach(
+                mac,
+                from,
+                to,
+                measurement -> {
+                    final PrimitiveMeasurement copy = new PrimitiveMeasurement();
+                    for (final MeasurementField field : MeasurementField.ALL) {
+                        if (measurement.has(field)) {
+                            copy.set(field, measurement.get(field));
+                        }
+                    }
+                    copy.setTime(measurement.getTime());
+                    copy.setMac(measurement.getMac());
+                    decoded.add(copy);
+                });
+        return decoded;
+    }
+
+    private static PrimitiveMeasurement measurement(final String mac, final long time) {
+        final PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        measurement.setMac(mac);
+        measurement.setTime(time);
+        measurement.set(MeasurementField.TEMPERATURE, 21.5);
+        return measurement;
+    }
+}
@@ -0,0 +1,44 @@
+package fi.tkgwf.ruuvi.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class DownsamplerTest {
+
+    @Test
+    void testTheStepsEndedBeforeTheProgressArePassedOn() {
+        final List<String> rows = new ArrayList<>();
+        final Downsampler downsampler =
+                new Downsampler(
+                        new MeasurementField[] {MeasurementField.TEMPERATURE},
+                        1000,
+                        Downsampler.Aggregate.AVG,
+                        (time, values) -> rows.add(time + "=" + values[0]));
+        // a chunk written late, before the earlier one
+        downsampler.advance(2000);
+        downsampler.accept(measurement(2000, 2));
+        downsampler.accept(measurement(3500, 3));
+        downsampler.advance(0);
+        downsampler.accept(measurement(0, 0));
+        downsampler.accept(measurement(2500, 4));
+        assertEquals(List.of(), rows);
+
+        downsampler.advance(3000);
+        assertEquals(List.of("0=0.0", "2000=3.0"), rows);
+        downsampler.accept(measurement(3000, 5));
+        downsampler.finish();
+        assertEquals(List.of("0=0.0", "2000=3.0", "3000=4.0"), rows);
+    }
+
+    private static PrimitiveMeasurement measurement(final long time, final double temperature) {
+        final PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        measurement.setTime(time);
+        measurement.set(MeasurementField.TEMPERATURE, temperature);
+        return measurement;
+    }
+}
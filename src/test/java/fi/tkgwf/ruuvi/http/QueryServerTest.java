@@ -0,0 +1,186 @@
+package fi.tkgwf.ruuvi.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.history.MeasurementHistory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+
+class QueryServerTest {
+
+    private static final long START = 1_600_000_000_000L;
+
+    @Test
+    void testRangeIsDownsampledPerStep() throws IOException {
+        final MeasurementHistory history = new MeasurementHistory(1024 * 1024, 4096);
+        for (int i = 0; i < 10; i++) {
+            history.record(measurement("AABBCCDDEEFF", START + i * 1000, i));
+        }
+        try (QueryServer server = server(history)) {
+            final String range =
+                    "/api/range?mac=AA:BB:CC:DD:EE:FF&from=" + START + "&to=" + (START + 9000);
+            assertEquals(
+                    "{\"mac\":\"AABBCCDDEEFF\",\"fields\":[\"temperature\",\"humidity\"],\"rows\":["
+                            + "\n[1600000000000,2.0,null],\n[1600000005000,7.0,null]\n],"
+                            + "\"name\":\"sauna\"}\n",
+                    get(server, range + "&step=5s", null).body);
+            assertEquals(
+                    "time,temperature\n1600000000000,4.0\n1600000005000,9.0\n",
+                    get(server, range + "&step=5000&agg=max&fields=temperature&format=csv", null)
+                            .body);
+            assertEquals(10, get(server, range + "&format=csv", null).body.split("\n").length - 1);
+            assertEquals(400, get(server, range + "&fields=nonsense", null).status);
+            assertEquals(
+                    400,
+                    get(server, range.replace("from=" + START, "from=0") + "&step=1s", null)
+                            .status);
+            assertEquals(400, get(server, "/api/range", null).status);
+            assertEquals(404, get(server, "/api/nonsense", null).status);
+        }
+    }
+
+    @Test
+    void testUnsortedMeasurementsAreDownsampledToOneRowPerStep() throws IOException {
+        final MeasurementHistory history = new MeasurementHistory(1024 * 1024, 4096);
+        for (final int second : new int[] {6, 7, 1, 8, 2}) {
+            history.record(measurement("AABBCCDDEEFF", START + second * 1000, second));
+        }
+        try (QueryServer server = server(history)) {
+            assertEquals(
+                    "time,temperature\n1600000000000,1.5\n1600000005000,7.0\n",
+                    get(
+                                    server,
+                                    "/api/range?mac=AABBCCDDEEFF&from="
+                                            + START
+                                            + "&to="
+                                            + (START + 9000)
+                                            + "&step=5s&fields=temperature&format=csv",
+                                    null)
+                            .body);
+        }
+    }
+
+    @Test
+    void testDerivedValuesAreCalculatedForTheRange() throws IOException {
+        final MeasurementHistory history = new MeasurementHistory(1024 * 1024, 4096);
+        for (int i = 0; i < 2; i++) {
+            final PrimitiveMeasurement measurement =
+                    measurement("AABBCCDDEEFF", START + i * 1000, 20);
+            measurement.set(MeasurementField.HUMIDITY, 50);
+            history.record(measurement);
+        }
+        try (QueryServer server = server(history)) {
+            final String body =
+                    get(
+                                    server,
+                                    "/api/range?mac=AABBCCDDEEFF&from="
+                                            + START
+                                            + "&to="
+                                            + (START + 1000)
+                                            + "&fields=dewPoint&format=csv",
+                                    null)
+                            .body;
+            final String[] rows = body.split("\n");
+            assertEquals(3, rows.length);
+            assertEquals(9.3, Double.parseDouble(rows[1].split(",")[1]), 0.1);
+        }
+    }
+
+    @Test
+    void testLatestIsCachedUntilNewMeasurements() throws IOException {
+        final MeasurementHistory history = new MeasurementHistory(1024 * 1024, 4096);
+        final long now = System.currentTimeMillis();
+        history.record(measurement("AABBCCDDEEFF", now - 2000, 20.5));
+        history.record(measurement("AABBCCDDEEFF", now - 1000, 21.5));
+        try (QueryServer server = server(history)) {
+            final Response latest = get(server, "/api/latest", null);
+            assertEquals(200, latest.status);
+            assertEquals(
+                    "[\n{\"mac\":\"AABBCCDDEEFF\",\"name\":\"sauna\",\"time\":"
+                            + (now - 1000)
+                            + ",\"temperature\":21.5}\n]\n",
+                    latest.body);
+            assertEquals(304, get(server, "/api/latest", latest.etag).status);
+
+            history.record(measurement("112233445566", now, 5));
+            final Response changed = get(server, "/api/latest", latest.etag);
+            assertEquals(200, changed.status);
+            assertTrue(changed.body.contains("\"mac\":\"112233445566\""));
+            assertTrue(changed.body.contains("\"mac\":\"AABBCCDDEEFF\""));
+        }
+    }
+
+    @Test
+    void testResponseIsGzippedWhenAccepted() throws IOException {
+        final MeasurementHistory history = new MeasurementHistory(1024 * 1024, 4096);
+        history.record(measurement("AABBCCDDEEFF", System.currentTimeMillis(), 1));
+        try (QueryServer server = server(history)) {
+            final HttpURLConnection connection = open(server, "/api/tags?format=csv");
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+            try (InputStream in = new GZIPInputStream(connection.getInputStream())) {
+                assertEquals(
+                        "mac\nAABBCCDDEEFF\n",
+                        new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static QueryServer server(final MeasurementHistory history) throws IOException {
+        return new QueryServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                MeasurementSource.of(history),
+                null,
+                EnumSet.of(MeasurementField.TEMPERATURE, MeasurementField.HUMIDITY),
+                3_600_000);
+    }
+
+    private static HttpURLConnection open(final QueryServer server, final String path)
+            throws IOException {
+        return (HttpURLConnection)
+                new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+    }
+
+    private static Response get(final QueryServer server, final String path, final String etag)
+            throws IOException {
+        final HttpURLConnection connection = open(server, path);
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        final Response response = new Response();
+        response.status = connection.getResponseCode();
+        response.etag = connection.getHeaderField("ETag");
+        final InputStream in =
+                response.status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        response.body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        in.close();
+        return response;
+    }
+
+    private static PrimitiveMeasurement measurement(
+            final String mac, final long time, final double temperature) {
+        final PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        measurement.setMac(mac);
+        measurement.setName("sauna");
+        measurement.setTime(time);
+        measurement.set(MeasurementField.TEMPERATURE, temperature);
+        return measurement;
+    }
+
+    private static class Response {
+        int status;
+        String etag;
+        String body;
+    }
+}
@@ -0,0 +1,156 @@
+package fi.tkgwf.ruuvi.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.utils.HCIParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BtsnoopReaderTest {
+
+    private static final String[] DF5 = {
+        "> 04 3E 2B 02 01 03 01 EF C0 45 EB B7 C9 1F 02 01 06 1B FF 99",
+        "  04 05 12 FC 53 94 C3 7C 00 04 FF FC 04 0C AC 36 42 00 CD CB",
+        "  B8 33 4C 88 4F B4"
+    };
+    /** Command Complete event, not an advertising report */
+    private static final byte[] COMMAND_COMPLETE = hex("04 0E 04 01 0C 20 00");
+    /** Some ACL data */
+    private static final byte[] ACL = hex("02 40 20 05 00 01 00 04 00 0A");
+
+    @TempDir Path tempDir;
+
+    @Test
+    void h4RecordsAreDecodedLikeTheTextFormat() throws IOException {
+        final byte[] advertisement = hex(String.join(" ", DF5).replace(">", ""));
+        final byte[] snoop =
+                btsnoop(
+                        BtsnoopDecoder.DATALINK_H4,
+                        new int[] {2, 0, 3},
+                        COMMAND_COMPLETE,
+                        ACL,
+                        advertisement);
+
+        final BtsnoopReader reader = reader(snoop);
+        assertSameAsText(reader.next());
+        assertNull(reader.next());
+        assertEquals(3, reader.getDecoder().getRecords());
+    }
+
+    @Test
+    void monitorRecordsAreDecodedLikeTheTextFormat() throws IOException {
+        // The monitor datalink has no packet type byte and the opcode in the flags
+        final byte[] advertisement = hex(String.join(" ", DF5).replace(">", ""));
+        final byte[] event = Arrays.copyOfRange(advertisement, 1, advertisement.length);
+        final byte[] command = hex("0C 20 02 00 00");
+        final byte[] snoop =
+                btsnoop(
+                        BtsnoopDecoder.DATALINK_MONITOR,
+                        new int[] {2, 3, 3},
+                        command,
+                        event,
+                        event);
+
+        final BtsnoopReader reader = reader(snoop);
+        assertSameAsText(reader.next());
+        assertSameAsText(reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test
+    void fileIsReadInParts() throws IOException {
+        final byte[] advertisement = hex(String.join(" ", DF5).replace(">", ""));
+        final int count = 10_000; // more than fits into the read buffer at once
+        final byte[][] packets = new byte[count][];
+        final int[] flags = new int[count];
+        Arrays.fill(packets, advertisement);
+        final Path file = tempDir.resolve("snoop.log");
+        Files.write(file, btsnoop(BtsnoopDecoder.DATALINK_H4, flags, packets));
+
+        int read = 0;
+        try (BtsnoopReader reader =
+                new BtsnoopReader(FileChannel.open(file, StandardOpenOption.READ))) {
+            HCIData data;
+            while ((data = reader.next()) != null) {
+                assertEquals("C9B7EB45C0EF", data.mac);
+                read++;
+            }
+        }
+        assertEquals(count, read);
+    }
+
+    @Test
+    void truncatedRecordAtTheEndIsIgnored() throws IOException {
+        final byte[] advertisement = hex(String.join(" ", DF5).replace(">", ""));
+        final byte[] snoop =
+                btsnoop(BtsnoopDecoder.DATALINK_H4, new int[] {3, 3}, advertisement, advertisement);
+
+        final BtsnoopReader reader = reader(Arrays.copyOf(snoop, snoop.length - 5));
+        assertSameAsText(reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test
+    void otherFormatsAreRejected() {
+        final byte[] text = String.join("\n", DF5).getBytes(StandardCharsets.US_ASCII);
+        assertThrows(IOException.class, () -> reader(text).next());
+    }
+
+    private static void assertSameAsText(final HCIData data) {
+        final HCIParser parser = new HCIParser();
+        HCIData expected = null;
+        for (final String line : DF5) {
+            expected = parser.readLine(line);
+        }
+        assertEquals("C9B7EB45C0EF", data.mac);
+        assertEquals(-76, data.rssi);
+        assertEquals(expected.toString(), data.toString());
+    }
+
+    private static BtsnoopReader reader(final byte[] bytes) {
+        final ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(bytes));
+        return new BtsnoopReader(channel);
+    }
+
+    private static byte[] btsnoop(final int datalink, final int[] flags, final byte[]... packets)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.write(BtsnoopDecoder.MAGIC);
+        out.writeInt(1);
+        out.writeInt(datalink);
+        for (int i = 0; i < packets.length; i++) {
+            out.writeInt(packets[i].length); // original length
+            out.writeInt(packets[i].length); // included length
+            out.writeInt(flags[i]);
+            out.writeInt(0); // cumulative drops
+            out.writeLong(0x00dcddb30f2f8000L + i); // timestamp
+            out.write(packets[i]);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] hex(final String hex) {
+        final String[] parts = hex.trim().split("\\s+");
+        final byte[] bytes = new byte[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(parts[i], 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,70 @@
+package fi.tkgwf.ruuvi.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HciDumpCaptureTest {
+
+    private static final List<String> DUMP =
+            List.of(
+                    "HCI sniffer - Bluetooth packet analyzer ver 5.50",
+                    "device: hci0 snap_len: 1500 filter: 0xffffffffffffffff",
+                    TestFixture.getDataFormat3Message(),
+                    "> 04 3E 2B 02 01 03 01 EF C0 45 EB B7 C9 1F 02 01 06 1B FF 99",
+                    "  04 05 12 FC 53 94 C3 7C 00 04 FF FC 04 0C AC 36 42 00 CD CB",
+                    "  B8 33 4C 88 4F B4",
+                    "< 01 0C 20 02 00 00",
+                    "> 04 3E ZZ");
+
+    @TempDir Path tempDir;
+
+    @Test
+    void replayReproducesTheCapturedLines() throws IOException {
+        final Path file = tempDir.resolve("capture.bin");
+        assertEquals(DUMP, readAll(HciDumpCapture.capturing(reader(DUMP), file)));
+
+        final List<String> replayed = readAll(new BufferedReader(new HciDumpReplayReader(file, 0)));
+        assertEquals(DUMP, replayed);
+        assertTrue(Files.size(file) < String.join("\n", DUMP).length());
+    }
+
+    @Test
+    void truncatedRecordAtTheEndIsIgnored() throws IOException {
+        final Path file = tempDir.resolve("capture.bin");
+        readAll(HciDumpCapture.capturing(reader(DUMP), file));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        final List<String> replayed = readAll(new BufferedReader(new HciDumpReplayReader(file, 0)));
+        assertEquals(DUMP.subList(0, DUMP.size() - 1), replayed);
+    }
+
+    private static BufferedReader reader(final List<String> lines) {
+        return new BufferedReader(new StringReader(String.join("\n", lines)));
+    }
+
+    private static List<String> readAll(final BufferedReader reader) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        try (reader) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,85 @@
+package fi.tkgwf.ruuvi.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.handler.BeaconHandler;
+import fi.tkgwf.ruuvi.utils.HCIParser;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+class HciDumpGeneratorTest {
+
+    @Test
+    void generatedPacketsAreParseable() throws IOException {
+        final HciDumpGenerator.Options options = new HciDumpGenerator.Options();
+        options.tags = 100;
+        options.packets = 2000;
+        options.packetsPerSecond = 0;
+        options.duplicateRate = 0;
+        options.malformedRate = 0;
+        options.nonRuuviRatio = 0.25;
+        final HciDumpGenerator generator = new HciDumpGenerator(options);
+
+        final HCIParser parser = new HCIParser();
+        final BeaconHandler handler = new BeaconHandler();
+        final Map<Integer, Integer> dataFormats = new HashMap<>();
+        int packets = 0;
+        int nonRuuvi = 0;
+        try (BufferedReader reader = new BufferedReader(generator.reader())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final HCIData data = parser.readLine(line);
+                if (data == null) {
+                    continue;
+                }
+                packets++;
+                final Optional<EnhancedRuuviMeasurement> measurement = handler.handle(data);
+                if (measurement.isEmpty()) {
+                    nonRuuvi++;
+                    continue;
+                }
+                final EnhancedRuuviMeasurement m = measurement.get();
+                assertTrue(m.getMac().startsWith("C000"), m.getMac());
+                assertNotNull(m.getTemperature());
+                assertTrue(m.getTemperature() > 0 && m.getTemperature() < 42, m.toString());
+                assertTrue(m.getHumidity() >= 20 && m.getHumidity() < 81, m.toString());
+                assertTrue(m.getPressure() > 98_000 && m.getPressure() < 102_000, m.toString());
+                dataFormats.merge(m.getDataFormat(), 1, Integer::sum);
+            }
+        }
+
+        assertEquals(2000, packets);
+        assertTrue(nonRuuvi > 400 && nonRuuvi < 600, "non-Ruuvi packets: " + nonRuuvi);
+        assertTrue(dataFormats.get(5) > dataFormats.get(3), dataFormats.toString());
+        assertEquals(2000, generator.getDelivered());
+        assertEquals(0, generator.getDropped());
+    }
+
+    @Test
+    void packetsAreDroppedWhenTheConsumerFallsBehind() throws Exception {
+        final HciDumpGenerator.Options options = new HciDumpGenerator.Options();
+        options.packetsPerSecond = 10_000;
+        options.maxBacklogMs = 10;
+        options.reportIntervalMs = 0;
+        final HciDumpGenerator generator = new HciDumpGenerator(options);
+
+        try (BufferedReader reader = new BufferedReader(generator.reader())) {
+            reader.readLine();
+            Thread.sleep(100);
+            for (int i = 0; i < 10; i++) {
+                reader.readLine();
+            }
+        }
+
+        assertTrue(generator.getDropped() > 0);
+        assertTrue(generator.getDropRate() > 0 && generator.getDropRate() < 1);
+    }
+}
@@ -0,0 +1,148 @@
+package fi.tkgwf.ruuvi.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.utils.HCIParser;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class HciDumpLineReaderTest {
+
+    private static final List<String> DUMP =
+            List.of(
+                    "HCI sniffer - Bluetooth packet analyzer ver 5.50",
+                    "device: hci0 snap_len: 1500 filter: 0xffffffffffffffff",
+                    "  04 05 12 FC 53 94 C3 7C 00 04 FF FC 04 0C AC 36 42 00 CD CB",
+                    TestFixture.getDataFormat3Message(),
+                    "< 01 0C 20 02 00 00",
+                    "  00 00",
+                    "> 04 3E 2B 02 01 03 01 EF C0 45 EB B7 C9 1F 02 01 06 1B FF 99",
+                    "  04 05 12 FC 53 94 C3 7C 00 04 FF FC 04 0C AC 36 42 00 CD CB",
+                    "  B8 33 4C 88 4F B4",
+                    "",
+                    TestFixture.getIBeaconMessage());
+
+    @Test
+    void linesAreParsedLikeStrings() throws IOException {
+        final String text = String.join("\n", DUMP) + "\n";
+        final List<String> expected = parseStrings(DUMP);
+        assertEquals(3, expected.size());
+
+        assertEquals(expected, readAll(new HciDumpLineReader(channel(text, 4096))));
+        // Line breaks in every possible position of a read
+        assertEquals(expected, readAll(new HciDumpLineReader(channel(text, 7))));
+        assertEquals(expected, readAll(new HciDumpLineReader(channel(text, 1))));
+    }
+
+    @Test
+    void carriageReturnsAndMissingLastLineBreakAreAccepted() throws IOException {
+        final String text = String.join("\r\n", DUMP);
+        assertEquals(parseStrings(DUMP), readAll(new HciDumpLineReader(channel(text, 4096))));
+    }
+
+    @Test
+    void overlyLongLinesAreDiscarded() throws IOException {
+        final String text =
+                TestFixture.getDataFormat3Message()
+                        + "\n"
+                        + "x".repeat(300)
+                        + "\n"
+                        + TestFixture.getDataFormat3Message()
+                        + "\n";
+        final HciDumpLineReader reader = new HciDumpLineReader(channel(text, 64), 128);
+        assertEquals(2, readAll(reader).size());
+    }
+
+    @Test
+    void generatedTrafficIsParsedLikeStrings() throws IOException {
+        final HciDumpGenerator.Options options = new HciDumpGenerator.Options();
+        options.tags = 100;
+        options.malformedRate = 0;
+        final HciDumpGenerator generator = new HciDumpGenerator(options);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append(generator.nextPacket());
+        }
+        final List<String> lines = List.of(text.toString().split("\n"));
+
+        final List<String> expected = parseStrings(lines);
+        assertEquals(2000, expected.size());
+        assertEquals(expected, readAll(new HciDumpLineReader(channel(text.toString(), 1000))));
+    }
+
+    @Test
+    void deviceErrorsMakeTheReaderUnhealthy() throws IOException {
+        final String text =
+                TestFixture.getDataFormat3Message() + "\nCan't read: device: disconnected\n";
+        final HciDumpLineReader reader = new HciDumpLineReader(channel(text, 4096));
+        assertTrue(reader.isHealthy());
+        reader.next();
+        assertNull(reader.next());
+        assertFalse(reader.isHealthy());
+    }
+
+    private static List<String> parseStrings(final List<String> lines) {
+        final HCIParser parser = new HCIParser();
+        final List<String> packets = new ArrayList<>();
+        boolean started = false;
+        for (final String line : lines) {
+            started |= line.startsWith(">");
+            final HCIData data = started ? parser.readLine(line) : null;
+            if (data != null) {
+                packets.add(data.toString());
+            }
+        }
+        return packets;
+    }
+
+    private static List<String> readAll(final HciDumpLineReader reader) throws IOException {
+        final List<String> packets = new ArrayList<>();
+        try (reader) {
+            HCIData data;
+            while ((data = reader.next()) != null) {
+                packets.add(data.toString());
+            }
+        }
+        return packets;
+    }
+
+    /** A channel returning at most the given number of bytes per read, like a pipe may do. */
+    private static ReadableByteChannel channel(final String text, final int chunk) {
+        final ByteBuffer source = ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+        return new ReadableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int read(final ByteBuffer dst) {
+                if (!source.hasRemaining()) {
+                    return -1;
+                }
+                final int count = Math.min(chunk, Math.min(dst.remaining(), source.remaining()));
+                for (int i = 0; i < count; i++) {
+                    dst.put(source.get());
+                }
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+}
@@ -0,0 +1,129 @@
+package fi.tkgwf.ruuvi.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import fi.tkgwf.ruuvi.bean.HCIData;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+@Timeout(30)
+class HciServerTest {
+
+    private static final String DF5 =
+            "> 04 3E 2B 02 01 03 01 EF C0 45 EB B7 C9 1F 02 01 06 1B FF 99\n"
+                    + "  04 05 12 FC 53 94 C3 7C 00 04 FF FC 04 0C AC 36 42 00 CD CB\n"
+                    + "  B8 33 4C 88 4F B4\n";
+
+    @Test
+    void packetsAreTaggedWithTheReceiver() throws IOException {
+        try (HciServer server = server(100, Map.of("127.0.0.1", "hallway"))) {
+            try (SocketChannel named = connect(server);
+                    SocketChannel unnamed = connect(server);
+                    SocketChannel btsnoop = connect(server)) {
+                write(named, "receiver: kitchen\nHCI sniffer - Bluetooth packet analyzer\n" + DF5);
+                write(unnamed, DF5.substring(0, 30));
+                write(unnamed, DF5.substring(30));
+                write(btsnoop, "receiver: garage\n".getBytes(StandardCharsets.US_ASCII));
+                write(btsnoop, btsnoop(DF5));
+
+                final Set<String> receivers = new HashSet<>();
+                for (int i = 0; i < 3; i++) {
+                    final HCIData data = server.next();
+                    assertNotNull(data);
+                    assertEquals("C9B7EB45C0EF", data.mac);
+                    assertEquals(-76, data.rssi);
+                    receivers.add(data.receiver);
+                }
+                assertEquals(Set.of("kitchen", "hallway", "garage"), receivers);
+            }
+        }
+    }
+
+    @Test
+    void slowConsumerPausesTheConnections() throws Exception {
+        final int count = 2000;
+        try (HciServer server = server(4, Map.of())) {
+            final Thread writer =
+                    new Thread(
+                            () -> {
+                                try (SocketChannel channel = connect(server)) {
+                                    write(channel, DF5.repeat(count));
+                                } catch (IOException ex) {
+                                    throw new RuntimeException(ex);
+                                }
+                            });
+            writer.start();
+            for (int i = 0; i < count; i++) {
+                assertNotNull(server.next());
+            }
+            writer.join();
+        }
+    }
+
+    @Test
+    void lastLineWithoutLineBreakIsRead() throws IOException {
+        try (HciServer server = server(100, Map.of())) {
+            try (SocketChannel channel = connect(server)) {
+                write(channel, DF5.trim());
+            }
+            assertEquals("127.0.0.1", server.next().receiver);
+        }
+    }
+
+    private static HciServer server(final int queueCapacity, final Map<String, String> names)
+            throws IOException {
+        return new HciServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                10,
+                names,
+                0,
+                queueCapacity);
+    }
+
+    private static SocketChannel connect(final HciServer server) throws IOException {
+        return SocketChannel.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+    }
+
+    private static void write(final SocketChannel channel, final String text) throws IOException {
+        write(channel, text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void write(final SocketChannel channel, final byte[] bytes) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /** The packet in a btsnoop stream using the H4 datalink */
+    private static byte[] btsnoop(final String hcidump) throws IOException {
+        final String[] hex = hcidump.replace(">", "").trim().split("\\s+");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.write(BtsnoopDecoder.MAGIC);
+        out.writeInt(1);
+        out.writeInt(BtsnoopDecoder.DATALINK_H4);
+        out.writeInt(hex.length);
+        out.writeInt(hex.length);
+        out.writeInt(3);
+        out.writeInt(0);
+        out.writeLong(0);
+        for (final String b : hex) {
+            out.write(Integer.parseInt(b, 16));
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,103 @@
+package fi.tkgwf.ruuvi.input;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import fi.tkgwf.ruuvi.TestFixture;
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.utils.HCIParser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MergedPacketReaderTest {
+
+    @Test
+    void copiesFromOtherAdaptersAreDroppedKeepingTheBestRssi() throws IOException {
+        final MergedPacketReader reader =
+                new MergedPacketReader(
+                        List.of("hci0", "hci1"),
+                        List.of(
+                                source(dataFormat5(0x00CD, "B4"), dataFormat3()),
+                                source(dataFormat5(0x00CD, "C0"), dataFormat5(0x00CE, "C0"))),
+                        200);
+
+        final List<HCIData> packets = readAll(reader);
+
+        assertEquals(3, packets.size());
+        assertEquals(1, reader.getDuplicates());
+        final HCIData first = packets.stream().filter(p -> p.rssi == -64).findFirst().get();
+        assertEquals("C9B7EB45C0EF", first.mac);
+        assertEquals(2, reader.getReceived(0));
+        assertEquals(2, reader.getReceived(1));
+        assertEquals(1, reader.getSelected(0));
+        assertEquals(2, reader.getSelected(1));
+    }
+
+    @Test
+    void sequenceNumberIdentifiesDataFormat5Advertisements() {
+        assertEquals(
+                AdvertisementDeduplicator.key(dataFormat5(0x00CD, "B4")),
+                AdvertisementDeduplicator.key(dataFormat5(0x00CD, "C0")));
+        assertEquals(
+                List.of("C9B7EB45C0EF", 0x00CD),
+                AdvertisementDeduplicator.key(dataFormat5(0x00CD, "B4")));
+        assertEquals(
+                AdvertisementDeduplicator.key(dataFormat3()),
+                AdvertisementDeduplicator.key(dataFormat3()));
+    }
+
+    @Test
+    void advertisementsAreHeldForTheWindow() {
+        final AdvertisementDeduplicator deduplicator = new AdvertisementDeduplicator(100);
+        deduplicator.offer(dataFormat5(1, "B4"), 0, 1000);
+        deduplicator.offer(dataFormat5(2, "B4"), 0, 1050);
+
+        assertNull(deduplicator.poll(1099));
+        assertEquals(1100, deduplicator.nextDeadline());
+        assertEquals(0, deduplicator.poll(1100).source);
+        assertNull(deduplicator.poll(1100));
+        assertEquals(0, deduplicator.poll(1150).source);
+        assertEquals(Long.MAX_VALUE, deduplicator.nextDeadline());
+    }
+
+    private static HCIData dataFormat5(final int sequence, final String rssi) {
+        final HCIParser parser = new HCIParser();
+        parser.readLine("> 04 3E 2B 02 01 03 01 EF C0 45 EB B7 C9 1F 02 01 06 1B FF 99");
+        parser.readLine(
+                String.format(
+                        "  04 05 12 FC 53 94 C3 7C 00 04 FF FC 04 0C AC 36 42 %02X %02X CB",
+                        sequence >> 8, sequence & 0xFF));
+        return parser.readLine("  B8 33 4C 88 4F " + rssi);
+    }
+
+    private static HCIData dataFormat3() {
+        return new HCIParser().readLine(TestFixture.getDataFormat3Message());
+    }
+
+    private static List<HCIData> readAll(final MergedPacketReader reader) throws IOException {
+        final List<HCIData> packets = new ArrayList<>();
+        try (reader) {
+            HCIData data;
+            while ((data = reader.next()) != null) {
+                packets.add(data);
+            }
+        }
+        return packets;
+    }
+
+    private static HciPacketReader source(final HCIData... packets) {
+        final Iterator<HCIData> iterator = List.of(packets).iterator();
+        return new HciPacketReader() {
+            @Override
+            public HCIData next() {
+                return iterator.hasNext() ? iterator.next() : null;
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+}
@@ -0,0 +1,26 @@
+package fi.tkgwf.ruuvi.relay;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class ProcessedFramesTest {
+
+    @Test
+    void testIdleSessionsExpire() {
+        final ProcessedFrames frames = new ProcessedFrames(60_000);
+        frames.processed(1, 5, 0);
+        frames.processed(1, 3, 10_000);
+        assertEquals(5, frames.getLast(1));
+        assertEquals(0, frames.getLast(2));
+
+        for (long session = 2; session < 1000; session++) {
+            frames.processed(session, 1, 50_000 + session);
+        }
+        // session 1 was last updated a minute before
+        frames.processed(1000, 1, 70_001);
+        assertEquals(0, frames.getLast(1));
+        assertEquals(1, frames.getLast(999));
+        assertEquals(999, frames.size());
+    }
+}
@@ -0,0 +1,112 @@
+package fi.tkgwf.ruuvi.relay;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.input.HciServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+@Timeout(30)
+class RelayConnectionTest {
+
+    private static final String HOST = InetAddress.getLoopbackAddress().getHostAddress();
+
+    @Test
+    void measurementsAreRelayedUpstream() throws IOException {
+        try (HciServer server = server(0, 0)) {
+            final RelayConnection relay = relay(server.getPort(), "attic");
+            for (int i = 0; i < 1000; i++) {
+                relay.save(measurement("C9B7EB45C0EF", i, -70));
+            }
+            for (int i = 0; i < 1000; i++) {
+                final HCIData data = server.next();
+                assertNotNull(data);
+                assertEquals("attic", data.receiver);
+                assertEquals(
+                        i, data.measurement.getInt(MeasurementField.MEASUREMENT_SEQUENCE_NUMBER));
+                assertEquals(21.5, data.measurement.get(MeasurementField.TEMPERATURE));
+            }
+            relay.close();
+            assertEquals(0, relay.getUnacknowledged());
+        }
+    }
+
+    @Test
+    void copiesFromSeveralRelaysAreDropped() throws IOException {
+        try (HciServer server = server(0, 500)) {
+            final RelayConnection near = relay(server.getPort(), "near");
+            final RelayConnection far = relay(server.getPort(), "far");
+            far.save(measurement("C9B7EB45C0EF", 7, -90));
+            near.save(measurement("C9B7EB45C0EF", 7, -60));
+            far.save(measurement("AABBCCDDEEFF", 7, -80));
+
+            final Map<String, HCIData> received = new HashMap<>();
+            for (int i = 0; i < 2; i++) {
+                final HCIData data = server.next();
+                received.put(data.mac, data);
+            }
+            assertEquals("near", received.get("C9B7EB45C0EF").receiver);
+            assertEquals(-60, received.get("C9B7EB45C0EF").rssi);
+            assertEquals("far", received.get("AABBCCDDEEFF").receiver);
+            near.close();
+            far.close();
+        }
+    }
+
+    @Test
+    void measurementsAreSpooledUntilTheUpstreamIsReachable() throws IOException {
+        final int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        final RelayConnection relay = relay(port, "shed");
+        for (int i = 0; i < 10; i++) {
+            relay.save(measurement("C9B7EB45C0EF", i, -70));
+        }
+        try (HciServer server = server(port, 0)) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(
+                        i,
+                        server.next()
+                                .measurement
+                                .getInt(MeasurementField.MEASUREMENT_SEQUENCE_NUMBER));
+            }
+            relay.close();
+            assertEquals(0, relay.getUnacknowledged());
+        }
+    }
+
+    private static HciServer server(final int port, final long deduplicationWindowMs)
+            throws IOException {
+        return new HciServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                10,
+                Map.of(),
+                deduplicationWindowMs);
+    }
+
+    private static RelayConnection relay(final int port, final String receiver) {
+        return new RelayConnection(HOST, port, receiver, 50, 100, 1024 * 1024, 100);
+    }
+
+    private static EnhancedRuuviMeasurement measurement(
+            final String mac, final int sequence, final int rssi) {
+        final EnhancedRuuviMeasurement m = new EnhancedRuuviMeasurement();
+        m.setMac(mac);
+        m.setDataFormat(5);
+        m.setTemperature(21.5);
+        m.setMeasurementSequenceNumber(sequence);
+        m.setRssi(rssi);
+        return m;
+    }
+}
@@ -0,0 +1,112 @@
+package fi.tkgwf.ruuvi.relay;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.junit.jupiter.api.Test;
+
+class RelayProtocolTest {
+
+    @Test
+    void batchRoundTrip() throws IOException {
+        final PrimitiveMeasurement full = measurement("C9B7EB45C0EF", 1_600_000_000_000L);
+        full.set(MeasurementField.DATA_FORMAT, 5);
+        full.set(MeasurementField.TEMPERATURE, 24.3);
+        full.set(MeasurementField.HUMIDITY, 53.49);
+        full.set(MeasurementField.PRESSURE, 100044);
+        full.set(MeasurementField.ACCELERATION_X, 0.004);
+        full.set(MeasurementField.ACCELERATION_Y, -0.004);
+        full.set(MeasurementField.ACCELERATION_Z, 1.036);
+        full.set(MeasurementField.BATTERY_VOLTAGE, 2.977);
+        full.set(MeasurementField.TX_POWER, 4);
+        full.set(MeasurementField.MOVEMENT_COUNTER, 66);
+        full.set(MeasurementField.MEASUREMENT_SEQUENCE_NUMBER, 205);
+        full.set(MeasurementField.RSSI, -76);
+        final PrimitiveMeasurement partial = measurement("AABBCCDDEEFF", 1_599_999_999_000L);
+        partial.set(MeasurementField.TEMPERATURE, -40.5);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RelayProtocol.Deltas deltas = new RelayProtocol.Deltas();
+        RelayProtocol.writeVarint(out, 2);
+        RelayProtocol.writeMeasurement(out, full, deltas);
+        RelayProtocol.writeMeasurement(out, partial, deltas);
+        final byte[] compressed =
+                RelayProtocol.deflate(
+                        new Deflater(Deflater.DEFAULT_COMPRESSION, true), out.toByteArray());
+        final List<PrimitiveMeasurement> batch =
+                RelayProtocol.readBatch(
+                        RelayProtocol.inflate(
+                                new Inflater(true), ByteBuffer.wrap(compressed), 1024));
+
+        assertEquals(2, batch.size());
+        assertEquals(full.toString(), batch.get(0).toString());
+        final PrimitiveMeasurement read = batch.get(1);
+        assertEquals("AABBCCDDEEFF", read.getMac());
+        assertEquals(1_599_999_999_000L, read.getTime());
+        assertEquals(-40.5, read.get(MeasurementField.TEMPERATURE));
+        assertEquals(MeasurementField.TEMPERATURE.bit(), read.getPresence());
+    }
+
+    @Test
+    void fieldsAreDeltasToThePreviousMeasurementOfTheTag() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RelayProtocol.Deltas deltas = new RelayProtocol.Deltas();
+        RelayProtocol.writeVarint(out, 4);
+        for (int i = 0; i < 4; i++) {
+            final PrimitiveMeasurement m =
+                    measurement(i % 2 == 0 ? "C9B7EB45C0EF" : "AABBCCDDEEFF", 1000L * i);
+            m.set(MeasurementField.TEMPERATURE, i % 2 == 0 ? 24.3 : -40.5);
+            m.set(MeasurementField.PRESSURE, 100044 + i);
+            final int before = out.size();
+            RelayProtocol.writeMeasurement(out, m, deltas);
+            if (i >= 2) {
+                // presence, MAC, time and a byte for each field
+                assertEquals(1 + 6 + 2 + 2, out.size() - before);
+            }
+        }
+        final List<PrimitiveMeasurement> batch =
+                RelayProtocol.readBatch(ByteBuffer.wrap(out.toByteArray()));
+
+        assertEquals(4, batch.size());
+        assertEquals(24.3, batch.get(2).get(MeasurementField.TEMPERATURE));
+        assertEquals(-40.5, batch.get(3).get(MeasurementField.TEMPERATURE));
+        assertEquals(100047.0, batch.get(3).get(MeasurementField.PRESSURE));
+    }
+
+    @Test
+    void invalidMacIsRejectedBeforeWriting() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThrows(
+                IllegalArgumentException.class,
+                () ->
+                        RelayProtocol.writeMeasurement(
+                                out, measurement("C9:B7:EB", 0L), new RelayProtocol.Deltas()));
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    void truncatedBatchIsRejected() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RelayProtocol.writeVarint(out, 3);
+        RelayProtocol.writeMeasurement(
+                out, measurement("C9B7EB45C0EF", 1000L), new RelayProtocol.Deltas());
+        assertThrows(
+                IOException.class,
+                () -> RelayProtocol.readBatch(ByteBuffer.wrap(out.toByteArray())));
+    }
+
+    private static PrimitiveMeasurement measurement(final String mac, final long time) {
+        final PrimitiveMeasurement m = new PrimitiveMeasurement();
+        m.setMac(mac);
+        m.setTime(time);
+        return m;
+    }
+}
@@ -1,16 +1,23 @@
 package fi.tkgwf.ruuvi.service;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import fi.tkgwf.ruuvi.TestFixture;
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
 import fi.tkgwf.ruuvi.bean.HCIData;
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
 import fi.tkgwf.ruuvi.db.RuuviDBConnection;
 import fi.tkgwf.ruuvi.handler.BeaconHandler;
 import fi.tkgwf.ruuvi.strategy.LimitingStrategy;
 import fi.tkgwf.ruuvi.utils.HCIParser;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
@@ -134,6 +141,87 @@ class PersistenceServiceTest {
         assertEquals(13, results.get(7).getRssi().intValue());
     }
 
+    @Test
+    void testBatchesAreSavedWhenFullAndAfterTheMaxTime() throws InterruptedException {
+        final HCIData hciData = new HCIParser().readLine(TestFixture.getDataFormat3Message());
+        final BeaconHandler handler = new BeaconHandler();
+        final MockConnection mockConnection = new MockConnection();
+        final PersistenceService service = new PersistenceService(mockConnection, 3, 100);
+
+        hciData.mac = "AABBCCDDEEFF";
+        for (int i = 0; i < 5; i++) {
+            // moving all the time, so all but the first measurement are stored
+            final PrimitiveMeasurement measurement = handler.decode(hciData).get();
+            measurement.set(MeasurementField.ACCELERATION_X, i % 2 * 10d);
+            service.store(measurement);
+        }
+        assertEquals(List.of(3), mockConnection.getBatchSizes());
+        assertEquals(3, mockConnection.getMeasurements().size());
+        assertNotNull(mockConnection.getMeasurements().get(0).getTime());
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (mockConnection.getBatchSizes().size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of(3, 1), mockConnection.getBatchSizes());
+        assertEquals(0d, mockConnection.getMeasurements().get(3).getAccelerationX());
+        service.close();
+        assertTrue(mockConnection.isCloseCalled());
+    }
+
+    @Test
+    void testFailureToSaveTheBatchAfterTheMaxTimeIsThrownFromTheNextStore()
+            throws InterruptedException {
+        final HCIData hciData = new HCIParser().readLine(TestFixture.getDataFormat3Message());
+        final BeaconHandler handler = new BeaconHandler();
+        final IllegalStateException failure = new IllegalStateException("Database down");
+        final MockConnection mockConnection =
+                new MockConnection() {
+                    @Override
+                    public void saveAll(final MeasurementBatch batch) {
+                        super.saveAll(batch);
+                        throw failure;
+                    }
+                };
+        final PersistenceService service = new PersistenceService(mockConnection, 100, 50);
+
+        hciData.mac = "AABBCCDDEE02";
+        RuntimeException thrown = null;
+        final long deadline = System.currentTimeMillis() + 5000;
+        for (int i = 0; thrown == null && System.currentTimeMillis() < deadline; i++) {
+            final PrimitiveMeasurement measurement = handler.decode(hciData).get();
+            measurement.set(MeasurementField.ACCELERATION_X, i % 2 * 10d);
+            try {
+                service.store(measurement);
+            } catch (RuntimeException ex) {
+                thrown = ex;
+            }
+            Thread.sleep(10);
+        }
+        assertSame(failure, thrown);
+        assertEquals(1, mockConnection.getBatchSizes().size());
+        service.close();
+    }
+
+    @Test
+    void testDerivedValuesAreCalculatedWithoutBatching() {
+        final HCIData hciData = new HCIParser().readLine(TestFixture.getDataFormat3Message());
+        final BeaconHandler handler = new BeaconHandler();
+        final MockConnection mockConnection = new MockConnection();
+        final PersistenceService service = new PersistenceService(mockConnection, 1, 100);
+
+        hciData.mac = "AABBCCDDEE01";
+        for (int i = 0; i < 3; i++) {
+            // moving all the time, so all but the first measurement are stored
+            service.store(withAcceleration(handler.handle(hciData).get(), i % 2 * 10d));
+        }
+        assertEquals(2, mockConnection.getMeasurements().size());
+        for (final EnhancedRuuviMeasurement measurement : mockConnection.getMeasurements()) {
+            assertNotNull(measurement.getDewPoint());
+            assertNotNull(measurement.getAccelerationTotal());
+        }
+    }
+
     private EnhancedRuuviMeasurement withAcceleration(
             final EnhancedRuuviMeasurement measurement, double accelerationX) {
         measurement.setAccelerationX(accelerationX);
@@ -152,7 +240,9 @@ class PersistenceServiceTest {
 
     public static class MockConnection implements RuuviDBConnection {
 
-        private final ArrayList<EnhancedRuuviMeasurement> measurements = new ArrayList<>();
+        private final List<EnhancedRuuviMeasurement> measurements =
+                Collections.synchronizedList(new ArrayList<>());
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
         private boolean closeCalled = false;
 
         @Override
@@ -160,6 +250,12 @@ class PersistenceServiceTest {
             this.measurements.add(measurement);
         }
 
+        @Override
+        public void saveAll(final MeasurementBatch batch) {
+            this.batchSizes.add(batch.size());
+            RuuviDBConnection.super.saveAll(batch);
+        }
+
         @Override
         public void close() {
             this.closeCalled = true;
@@ -169,6 +265,10 @@ class PersistenceServiceTest {
             return measurements;
         }
 
+        List<Integer> getBatchSizes() {
+            return batchSizes;
+        }
+
         boolean isCloseCalled() {
             return closeCalled;
         }
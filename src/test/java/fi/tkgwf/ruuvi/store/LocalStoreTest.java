@@ -0,0 +1,208 @@
+package fi.tkgwf.ruuvi.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LocalStoreTest {
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000;
+    // 2020-09-13T12:26:40Z
+    private static final long START = 1_600_000_000_000L;
+
+    @TempDir Path directory;
+
+    @Test
+    void testMeasurementsAreReadBackExactlyByTagAndRange() throws IOException {
+        final List<PrimitiveMeasurement> written = new ArrayList<>();
+        final Random random = new Random(7);
+        try (LocalStore store = new LocalStore(directory)) {
+            final MeasurementBatch batch = new MeasurementBatch(100);
+            for (int i = 0; i < 1000; i++) {
+                final PrimitiveMeasurement measurement =
+                        measurement(i % 2 == 0 ? "AABBCCDDEEFF" : "112233445566", i);
+                measurement.set(MeasurementField.TEMPERATURE, 20 + random.nextInt(400) / 200.0);
+                if (i % 5 != 0) {
+                    measurement.set(MeasurementField.HUMIDITY, random.nextDouble() * 100);
+                }
+                measurement.set(MeasurementField.MEASUREMENT_SEQUENCE_NUMBER, 60_000 + i);
+                measurement.set(MeasurementField.ACCELERATION_X, -random.nextDouble());
+                batch.add(measurement);
+                written.add(measurement);
+                if (batch.isFull()) {
+                    store.append(batch, -1L);
+                    batch.clear();
+                }
+            }
+            store.sync();
+
+            final List<PrimitiveMeasurement> read =
+                    read(store, "AABBCCDDEEFF", Long.MIN_VALUE, Long.MAX_VALUE);
+            assertEquals(500, read.size());
+            for (int i = 0; i < read.size(); i++) {
+                assertSameMeasurement(written.get(i * 2), read.get(i));
+            }
+            assertEquals(Set.of("AABBCCDDEEFF", "112233445566"), store.getMacs(START, START));
+        }
+
+        // reopened, with a range over midnight
+        try (LocalStore store = new LocalStore(directory)) {
+            final long from = START + 10 * 60_000;
+            final List<PrimitiveMeasurement> read =
+                    read(store, "112233445566", from, from + DAY_MS);
+            assertSameMeasurement(written.get(11), read.get(0));
+            assertEquals(500 - 5, read.size());
+            assertEquals(2, LocalStore.partitionFiles(directory).size());
+        }
+    }
+
+    @Test
+    void testReadingPastDaysDoesNotCloseThePartitionWritten() throws IOException {
+        try (LocalStore store = new LocalStore(directory)) {
+            final MeasurementBatch batch = new MeasurementBatch(10);
+            for (int day = 6; day >= 0; day--) {
+                batch.add(measurement("AABBCCDDEEFF", -day * 24 * 60));
+            }
+            store.append(batch, -1L);
+            assertTrue(store.isOpen(START));
+
+            assertEquals(6, read(store, null, START - 6 * DAY_MS, START - DAY_MS).size());
+            assertTrue(store.isOpen(START));
+            assertFalse(store.isOpen(START - 6 * DAY_MS));
+
+            batch.clear();
+            batch.add(measurement("AABBCCDDEEFF", 1));
+            store.append(batch, -1L);
+            assertEquals(2, read(store, null, START, START + 60_000).size());
+        }
+    }
+
+    @Test
+    void testProgressIsTheEarliestTimeOfTheChunksToCome() throws IOException {
+        try (LocalStore store = new LocalStore(directory)) {
+            final MeasurementBatch batch = new MeasurementBatch(10);
+            for (final int[] minutes : new int[][] {{10, 20}, {0, 5}, {30, 40}}) {
+                batch.clear();
+                for (final int minute : minutes) {
+                    batch.add(measurement("AABBCCDDEEFF", minute));
+                }
+                store.append(batch, -1L);
+            }
+            final List<Long> progress = new ArrayList<>();
+            store.forEach("AABBCCDDEEFF", START, START + DAY_MS, measurement -> {}, progress::add);
+            assertEquals(List.of(START, START, START + 30 * 60_000L), progress);
+        }
+    }
+
+    @Test
+    void testTornTailIsTruncated() throws IOException {
+        try (LocalStore store = new LocalStore(directory)) {
+            final MeasurementBatch batch = new MeasurementBatch(10);
+            batch.add(measurement("AABBCCDDEEFF", 0));
+            store.append(batch, -1L);
+            batch.clear();
+            batch.add(measurement("AABBCCDDEEFF", 1));
+            store.append(batch, -1L);
+        }
+        final Path file = LocalStore.partitionFiles(directory).get(0);
+        final long size = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            // a power loss in the middle of the last chunk
+            channel.truncate(size - 3);
+        }
+
+        try (LocalStore store = new LocalStore(directory)) {
+            final List<PrimitiveMeasurement> read =
+                    read(store, "AABBCCDDEEFF", Long.MIN_VALUE, Long.MAX_VALUE);
+            assertEquals(1, read.size());
+            assertEquals(START, read.get(0).getTime());
+
+            // appending continues after the last intact record
+            final MeasurementBatch batch = new MeasurementBatch(10);
+            batch.add(measurement("AABBCCDDEEFF", 2));
+            store.append(batch, -1L);
+            assertEquals(2, read(store, "AABBCCDDEEFF", Long.MIN_VALUE, Long.MAX_VALUE).size());
+        }
+    }
+
+    @Test
+    void testConnectionStoresOnlyTheStoredFieldsAndExports() throws IOException {
+        final LocalStoreConnection connection =
+                new LocalStoreConnection(
+                        directory, 60_000, 100, EnumSet.of(MeasurementField.TEMPERATURE));
+        final PrimitiveMeasurement measurement = measurement("AABBCCDDEEFF", 0);
+        measurement.setName("sauna");
+        measurement.set(MeasurementField.TEMPERATURE, 80.5);
+        measurement.set(MeasurementField.RSSI, -70);
+        connection.save(measurement);
+        connection.close();
+
+        final StringWriter csv = new StringWriter();
+        LocalStoreExport.exportCsv(LocalStore.partitionFiles(directory), csv);
+        final String[] lines = csv.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("time,mac,name,"));
+        assertTrue(lines[1].startsWith(START + ",AABBCCDDEEFF,sauna,"));
+        assertTrue(lines[1].contains(",80.5,"));
+        assertFalse(lines[1].contains("-70"));
+    }
+
+    private static List<PrimitiveMeasurement> read(
+            final LocalStore store, final String mac, final long from, final long to)
+            throws IOException {
+        final List<PrimitiveMeasurement> read = new ArrayList<>();
+        store.forEach(
+                mac,
+                from,
+                to,
+                measurement -> {
+                    final PrimitiveMeasurement copy = new PrimitiveMeasurement();
+                    for (final MeasurementField field : MeasurementField.ALL) {
+                        if (measurement.has(field)) {
+                            copy.set(field, measurement.get(field));
+                        }
+                    }
+                    copy.setTime(measurement.getTime());
+                    copy.setMac(measurement.getMac());
+                    copy.setName(measurement.getName());
+                    read.add(copy);
+                });
+        return read;
+    }
+
+    private static void assertSameMeasurement(
+            final PrimitiveMeasurement expected, final PrimitiveMeasurement actual) {
+        assertEquals(expected.getTime(), actual.getTime());
+        assertEquals(expected.getMac(), actual.getMac());
+        assertEquals(expected.getPresence(), actual.getPresence());
+        for (final MeasurementField field : MeasurementField.ALL) {
+            assertEquals(expected.get(field), actual.get(field), field.name());
+        }
+        assertEquals(expected.getName(), actual.getName());
+    }
+
+    /** A measurement every minute, from {@link #START} on */
+    private static PrimitiveMeasurement measurement(final String mac, final int minute) {
+        final PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        measurement.setMac(mac);
+        measurement.setTime(START + minute * 60_000L);
+        return measurement;
+    }
+}
@@ -0,0 +1,100 @@
+package fi.tkgwf.ruuvi.strategy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.config.TagProperties;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class DeadbandStrategyTest {
+
+    private static final long START = 1_600_000_000_000L;
+
+    @Test
+    void testStoresOnlyChangesBeyondTheDeadband() {
+        final DeadbandStrategy strategy =
+                new DeadbandStrategy(Map.of("temperature", "0.5", "humidity", "10%"), 60_000);
+
+        assertTrue(strategy.apply(measurement(0, 20, 50, -70)).isPresent());
+        assertFalse(strategy.apply(measurement(1_000, 20.5, 50, -70)).isPresent());
+        assertFalse(strategy.apply(measurement(2_000, 19.6, 54.9, -70)).isPresent());
+        // the fields without a deadband don't matter
+        assertFalse(strategy.apply(measurement(3_000, 20, 50, -90)).isPresent());
+        // compared to the last stored value, not the previous one
+        assertTrue(strategy.apply(measurement(4_000, 20.6, 50, -70)).isPresent());
+        assertFalse(strategy.apply(measurement(5_000, 20.2, 50, -70)).isPresent());
+        assertTrue(strategy.apply(measurement(6_000, 20.6, 55.1, -70)).isPresent());
+
+        final PrimitiveMeasurement withoutHumidity = measurement(7_000, 20.6, 0, -70);
+        withoutHumidity.clear(MeasurementField.HUMIDITY);
+        assertTrue(strategy.apply(withoutHumidity).isPresent());
+
+        assertEquals(8 / 4.0, strategy.getCompressionRatio());
+    }
+
+    @Test
+    void testStoresAtLeastEveryHeartbeat() {
+        final DeadbandStrategy strategy =
+                new DeadbandStrategy(Map.of("temperature", "0.5"), 60_000);
+
+        assertTrue(strategy.apply(measurement(0, 20, 50, -70)).isPresent());
+        assertFalse(strategy.apply(measurement(59_999, 20, 50, -70)).isPresent());
+        assertTrue(strategy.apply(measurement(60_000, 20, 50, -70)).isPresent());
+        assertFalse(strategy.apply(measurement(61_000, 20, 50, -70)).isPresent());
+    }
+
+    @Test
+    void testDeadbandsOfDerivedFields() {
+        final DeadbandStrategy strategy = new DeadbandStrategy(Map.of("dewPoint", "1"), 60_000);
+
+        assertTrue(strategy.apply(measurement(0, 20, 50, -70)).isPresent());
+        // about 0.3 degrees higher dew point
+        assertFalse(strategy.apply(measurement(1_000, 20, 51, -70)).isPresent());
+        // about 1.3 degrees higher
+        final PrimitiveMeasurement wetter = measurement(2_000, 20, 55, -70);
+        assertTrue(strategy.apply(wetter).isPresent());
+        assertTrue(wetter.has(MeasurementField.DEW_POINT));
+    }
+
+    @Test
+    void testInvalidDeadbands() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new DeadbandStrategy(Map.of("nonexistent", "1"), 60_000));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new DeadbandStrategy(Map.of("temperature", "-1"), 60_000));
+        assertThrows(
+                NumberFormatException.class,
+                () -> new DeadbandStrategy(Map.of("temperature", "a%"), 60_000));
+    }
+
+    @Test
+    void testTagSettings() {
+        assertInstanceOf(
+                DeadbandStrategy.class,
+                TagProperties.builder("AABBCCDDEEFF")
+                        .add("limitingStrategy", "deadband")
+                        .add("deadband.temperature", "0.2")
+                        .add("deadbandHeartbeatMs", "60000")
+                        .build()
+                        .getLimitingStrategy());
+    }
+
+    private static PrimitiveMeasurement measurement(
+            final long time, final double temperature, final double humidity, final int rssi) {
+        final PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.setTime(START + time);
+        measurement.set(MeasurementField.TEMPERATURE, temperature);
+        measurement.set(MeasurementField.HUMIDITY, humidity);
+        measurement.set(MeasurementField.RSSI, rssi);
+        return measurement;
+    }
+}
@@ -0,0 +1,89 @@
+package fi.tkgwf.ruuvi.strategy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.config.TagProperties;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+class WallClockAlignedStrategyTest {
+
+    private static final long START = 1_600_000_000_000L;
+
+    @Test
+    void testStoresTheMeasurementNearestToEachBoundary() {
+        final WallClockAlignedStrategy strategy = new WallClockAlignedStrategy(10_000);
+
+        // before the boundary at 10 s, the nearest one so far is held
+        assertFalse(strategy.apply(measurement(6_000, 1)).isPresent());
+        assertFalse(strategy.apply(measurement(9_000, 2)).isPresent());
+        // after the boundary, but further away than the held one
+        Optional<PrimitiveMeasurement> result = strategy.apply(measurement(11_500, 3));
+        assertTrue(result.isPresent());
+        assertEquals(START + 10_000, result.get().getTime());
+        assertEquals(2, result.get().get(MeasurementField.TEMPERATURE));
+        // already stored for the boundary
+        assertFalse(strategy.apply(measurement(12_000, 4)).isPresent());
+
+        // at the boundary, nothing can be nearer
+        result = strategy.apply(measurement(20_000, 5));
+        assertTrue(result.isPresent());
+        assertEquals(START + 20_000, result.get().getTime());
+        assertEquals(5, result.get().get(MeasurementField.TEMPERATURE));
+    }
+
+    @Test
+    void testPendingMeasurementIsStoredWhenTheNextBoundaryIsReached() {
+        final WallClockAlignedStrategy strategy = new WallClockAlignedStrategy(10_000);
+
+        assertFalse(strategy.apply(measurement(8_000, 1)).isPresent());
+        // a gap, the boundary at 20 s is nearest to the next measurement
+        Optional<PrimitiveMeasurement> result = strategy.apply(measurement(21_000, 2));
+        assertTrue(result.isPresent());
+        assertEquals(START + 10_000, result.get().getTime());
+        assertEquals(1, result.get().get(MeasurementField.TEMPERATURE));
+        // the measurement after the boundary at 20 s is stored with the next one
+        result = strategy.apply(measurement(22_000, 3));
+        assertTrue(result.isPresent());
+        assertEquals(START + 20_000, result.get().getTime());
+        assertEquals(2, result.get().get(MeasurementField.TEMPERATURE));
+    }
+
+    @Test
+    void testTagSettings() {
+        assertInstanceOf(
+                WallClockAlignedStrategy.class,
+                TagProperties.builder("AABBCCDDEEFF")
+                        .add("limitingStrategy", "aligned")
+                        .add("alignedIntervalMs", "60000")
+                        .build()
+                        .getLimitingStrategy());
+    }
+
+    @Test
+    void testFlushReturnsThePendingMeasurement() {
+        final WallClockAlignedStrategy strategy = new WallClockAlignedStrategy(10_000);
+        assertFalse(strategy.flush().isPresent());
+        assertFalse(strategy.apply(measurement(8_000, 1)).isPresent());
+
+        final PrimitiveMeasurement flushed = strategy.flush().get();
+        assertEquals(START + 10_000, flushed.getTime());
+        assertEquals(1, flushed.get(MeasurementField.TEMPERATURE));
+        assertFalse(strategy.flush().isPresent());
+        // already stored for the boundary
+        assertFalse(strategy.apply(measurement(10_000, 2)).isPresent());
+    }
+
+    private static PrimitiveMeasurement measurement(final long time, final double temperature) {
+        final PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.setTime(START + time);
+        measurement.set(MeasurementField.TEMPERATURE, temperature);
+        return measurement;
+    }
+}
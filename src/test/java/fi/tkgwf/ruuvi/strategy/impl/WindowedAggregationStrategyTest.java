@@ -0,0 +1,87 @@
+package fi.tkgwf.ruuvi.strategy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.bean.AggregatedMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import fi.tkgwf.ruuvi.config.TagProperties;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+class WindowedAggregationStrategyTest {
+
+    private static final long START = 1_600_000_000_000L;
+
+    @Test
+    void testOneAggregatePerWindow() {
+        final WindowedAggregationStrategy strategy = new WindowedAggregationStrategy(60_000);
+
+        assertFalse(strategy.apply(measurement(0, 20, 1)).isPresent());
+        assertFalse(strategy.apply(measurement(10_000, 25, 2)).isPresent());
+        final PrimitiveMeasurement withoutTemperature = measurement(20_000, 0, 3);
+        withoutTemperature.clear(MeasurementField.TEMPERATURE);
+        assertFalse(strategy.apply(withoutTemperature).isPresent());
+        assertFalse(strategy.apply(measurement(59_999, 21, 4)).isPresent());
+
+        final Optional<PrimitiveMeasurement> result = strategy.apply(measurement(61_000, 30, 5));
+        assertTrue(result.isPresent());
+        final AggregatedMeasurement aggregate =
+                assertInstanceOf(AggregatedMeasurement.class, result.get());
+        assertEquals(START, aggregate.getTime());
+        assertEquals("AABBCCDDEEFF", aggregate.getMac());
+        assertEquals(4, aggregate.getCount());
+        assertEquals(22, aggregate.get(MeasurementField.TEMPERATURE));
+        assertEquals(20, aggregate.getMin(MeasurementField.TEMPERATURE));
+        assertEquals(25, aggregate.getMax(MeasurementField.TEMPERATURE));
+        assertEquals(21, aggregate.getLast(MeasurementField.TEMPERATURE));
+        // the last value of the whole number fields
+        assertEquals(4, aggregate.getInt(MeasurementField.MOVEMENT_COUNTER));
+        assertEquals(1, aggregate.getMin(MeasurementField.MOVEMENT_COUNTER));
+        assertFalse(aggregate.has(MeasurementField.PRESSURE));
+
+        // the next window started with the measurement that ended the previous one
+        final AggregatedMeasurement next =
+                (AggregatedMeasurement) strategy.apply(measurement(125_000, 10, 6)).get();
+        assertEquals(START + 61_000, next.getTime());
+        assertEquals(1, next.getCount());
+        assertEquals(30, next.get(MeasurementField.TEMPERATURE));
+    }
+
+    @Test
+    void testFlushReturnsThePendingWindow() {
+        final WindowedAggregationStrategy strategy = new WindowedAggregationStrategy(60_000);
+        assertFalse(strategy.flush().isPresent());
+        strategy.apply(measurement(0, 20, 1));
+        strategy.apply(measurement(10_000, 22, 2));
+
+        final AggregatedMeasurement aggregate = (AggregatedMeasurement) strategy.flush().get();
+        assertEquals(2, aggregate.getCount());
+        assertEquals(21, aggregate.get(MeasurementField.TEMPERATURE));
+        assertFalse(strategy.flush().isPresent());
+    }
+
+    @Test
+    void testTagSettings() {
+        assertInstanceOf(
+                WindowedAggregationStrategy.class,
+                TagProperties.builder("AABBCCDDEEFF")
+                        .add("limitingStrategy", "aggregate")
+                        .add("aggregationWindowMs", "60000")
+                        .build()
+                        .getLimitingStrategy());
+    }
+
+    private static PrimitiveMeasurement measurement(
+            final long time, final double temperature, final int movementCounter) {
+        final PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.setTime(START + time);
+        measurement.set(MeasurementField.TEMPERATURE, temperature);
+        measurement.set(MeasurementField.MOVEMENT_COUNTER, movementCounter);
+        return measurement;
+    }
+}
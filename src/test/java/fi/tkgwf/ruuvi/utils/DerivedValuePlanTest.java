@@ -0,0 +1,98 @@
+package fi.tkgwf.ruuvi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementBatch;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class DerivedValuePlanTest {
+
+    @Test
+    void onlyTheStoredDerivedValuesAreCalculated() {
+        final DerivedValuePlan plan =
+                DerivedValuePlan.forFields(
+                        MeasurementField.forNames(
+                                List.of("temperature", "dewPoint", "accelerationAngleFromZ")));
+        final PrimitiveMeasurement measurement = plan.apply(createMeasurement());
+
+        final EnhancedRuuviMeasurement expected =
+                MeasurementValueCalculator.calculateAllValues(createMeasurement().toEnhanced());
+        assertEquals(expected.getDewPoint(), measurement.get(MeasurementField.DEW_POINT));
+        assertEquals(
+                expected.getAccelerationAngleFromZ(),
+                measurement.get(MeasurementField.ACCELERATION_ANGLE_FROM_Z));
+        assertFalse(measurement.has(MeasurementField.EQUILIBRIUM_VAPOR_PRESSURE));
+        assertFalse(measurement.has(MeasurementField.ABSOLUTE_HUMIDITY));
+        assertFalse(measurement.has(MeasurementField.ACCELERATION_TOTAL));
+        assertFalse(measurement.has(MeasurementField.ACCELERATION_ANGLE_FROM_X));
+    }
+
+    @Test
+    void rawFieldsNeedNoCalculations() {
+        final DerivedValuePlan plan =
+                DerivedValuePlan.forFields(
+                        EnumSet.range(MeasurementField.DATA_FORMAT, MeasurementField.RSSI));
+        assertTrue(plan.isEmpty());
+        final PrimitiveMeasurement measurement = createMeasurement();
+        final long presence = measurement.getPresence();
+        assertEquals(presence, plan.apply(measurement).getPresence());
+    }
+
+    @Test
+    void batchResultsAreIdenticalToCalculatingOneByOne() {
+        for (final boolean approximate : new boolean[] {false, true}) {
+            final DerivedValuePlan plan =
+                    DerivedValuePlan.forFields(EnumSet.allOf(MeasurementField.class), approximate);
+            final Random random = new Random(42);
+            final MeasurementBatch batch = new MeasurementBatch(1000);
+            final List<PrimitiveMeasurement> measurements = new ArrayList<>();
+            while (!batch.isFull()) {
+                final PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+                measurement.set(MeasurementField.TEMPERATURE, random.nextDouble() * 125 - 40);
+                measurement.set(
+                        MeasurementField.HUMIDITY,
+                        random.nextInt(10) == 0 ? 0 : random.nextDouble() * 100);
+                measurement.set(MeasurementField.PRESSURE, 50000 + random.nextDouble() * 65000);
+                for (final MeasurementField field :
+                        EnumSet.range(
+                                MeasurementField.ACCELERATION_X, MeasurementField.ACCELERATION_Z)) {
+                    measurement.set(field, random.nextInt(10) == 0 ? 0 : random.nextGaussian());
+                }
+                // some values missing
+                measurement.clear(MeasurementField.ALL[random.nextInt(7)]);
+                batch.add(measurement);
+                measurements.add(measurement);
+            }
+
+            plan.apply(batch);
+            for (int row = 0; row < batch.size(); row++) {
+                final PrimitiveMeasurement expected = plan.apply(measurements.get(row));
+                assertEquals(expected.getPresence(), batch.getPresence(row));
+                for (final MeasurementField field : MeasurementField.ALL) {
+                    assertEquals(expected.get(field), batch.get(row, field), field.name());
+                }
+            }
+        }
+    }
+
+    private static PrimitiveMeasurement createMeasurement() {
+        final PrimitiveMeasurement measurement = new PrimitiveMeasurement();
+        measurement.setMac("AABBCCDDEEFF");
+        measurement.set(MeasurementField.TEMPERATURE, 21.5);
+        measurement.set(MeasurementField.HUMIDITY, 45.25);
+        measurement.set(MeasurementField.PRESSURE, 100650);
+        measurement.set(MeasurementField.ACCELERATION_X, 0.012);
+        measurement.set(MeasurementField.ACCELERATION_Y, -0.02);
+        measurement.set(MeasurementField.ACCELERATION_Z, 1.004);
+        return measurement;
+    }
+}
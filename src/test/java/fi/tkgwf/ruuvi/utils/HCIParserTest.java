@@ -1,9 +1,14 @@
 package fi.tkgwf.ruuvi.utils;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import fi.tkgwf.ruuvi.TestFixture;
 import fi.tkgwf.ruuvi.bean.HCIData;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import org.junit.jupiter.api.Test;
 
@@ -53,4 +58,22 @@ class HCIParserTest {
                         (byte) -65),
                 hciData.reports.get(0).advertisements.get(1).data);
     }
+
+    @Test
+    void testMalformedBytesDropThePacket() {
+        final HCIParser parser = new HCIParser();
+        final String message = TestFixture.getDataFormat3Message();
+        assertNotNull(readLine(parser, message));
+
+        final String corrupt = message.substring(0, 30) + "G" + message.substring(31);
+        assertThrows(IllegalArgumentException.class, () -> readLine(parser, corrupt));
+        // the continuation of the dropped packet is ignored
+        assertNull(readLine(parser, "  " + message.substring(2)));
+        assertNotNull(readLine(parser, message));
+    }
+
+    private static HCIData readLine(final HCIParser parser, final String line) {
+        final ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+        return parser.readLine(buffer, 0, buffer.limit());
+    }
 }
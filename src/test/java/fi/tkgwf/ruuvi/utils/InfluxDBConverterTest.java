@@ -1,10 +1,14 @@
 package fi.tkgwf.ruuvi.utils;
 
 import static java.util.Collections.emptySet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import fi.tkgwf.ruuvi.bean.AggregatedMeasurement;
 import fi.tkgwf.ruuvi.bean.EnhancedRuuviMeasurement;
+import fi.tkgwf.ruuvi.bean.MeasurementField;
+import fi.tkgwf.ruuvi.bean.PrimitiveMeasurement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -110,6 +114,33 @@ class InfluxDBConverterTest {
         assertFalse(point.toString().contains("accelerationAngleFromZ"));
     }
 
+    @Test
+    void primitiveMeasurementShouldGiveTheSamePoint() {
+        final EnhancedRuuviMeasurement measurement = createMeasurement();
+        final Predicate<String> allowFunction = fieldName -> !fieldName.equals("humidity");
+        assertEquals(
+                InfluxDBConverter.toInflux(measurement, allowFunction).lineProtocol(),
+                InfluxDBConverter.toInflux(PrimitiveMeasurement.from(measurement), allowFunction)
+                        .lineProtocol());
+    }
+
+    @Test
+    void aggregatesShouldOnlyBeWrittenForTheAggregatedFields() {
+        final AggregatedMeasurement aggregate = new AggregatedMeasurement();
+        aggregate.setMac("AAAAAAAAAAAA");
+        aggregate.setAggregates(MeasurementField.TEMPERATURE, 21, 20, 22, 21.5);
+        aggregate.setAggregates(MeasurementField.HUMIDITY, 50, 40, 60, 45);
+        aggregate.setCount(3);
+        // calculated from the aggregated values after the aggregation
+        aggregate.set(MeasurementField.DEW_POINT, 10);
+        final String point = InfluxDBConverter.toInflux(aggregate, field -> true).lineProtocol();
+        assertTrue(point.contains("temperatureMin=20.0"));
+        assertTrue(point.contains("humidityLast=45.0"));
+        assertTrue(point.contains("dewPoint=10.0"));
+        assertFalse(point.contains("dewPointMin"));
+        assertFalse(point.contains("NaN"));
+    }
+
     private static void assertPointContainsAllValues(final Point point) {
         assertPoint(point, allValues(), emptySet());
     }
@@ -0,0 +1,81 @@
+package fi.tkgwf.ruuvi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class PsychrometricTablesTest {
+
+    /** The resolution of the temperature of a RuuviTag */
+    private static final double TEMPERATURE_STEP = 0.005;
+    /** The resolution of the humidity of a RuuviTag */
+    private static final double HUMIDITY_STEP = 0.0025;
+
+    private static final int HUMIDITY_STEPS = (int) Math.round(100 / HUMIDITY_STEP);
+
+    @Test
+    void errorsAreWithinTheDocumentedMaximumOverTheSensorRange() {
+        final int temperatureSteps =
+                (int)
+                        Math.round(
+                                (PsychrometricTables.MAX_TEMPERATURE
+                                                - PsychrometricTables.MIN_TEMPERATURE)
+                                        / TEMPERATURE_STEP);
+        for (int i = 0; i <= temperatureSteps; i++) {
+            final double t = PsychrometricTables.MIN_TEMPERATURE + i * TEMPERATURE_STEP;
+            // a different humidity for every temperature, covering the whole humidity range
+            final int h = (int) ((i * 7919L) % HUMIDITY_STEPS) + 1;
+            assertWithinMaximumError(t, h * HUMIDITY_STEP);
+        }
+        for (final double t : new double[] {-40, -10.005, 0, 21.5, 84.995}) {
+            for (int h = 1; h <= HUMIDITY_STEPS; h++) {
+                assertWithinMaximumError(t, h * HUMIDITY_STEP);
+            }
+        }
+    }
+
+    @Test
+    void valuesOutOfTheTableAreExact() {
+        for (final double t : new double[] {-60, 85, 120}) {
+            assertEquals(
+                    MeasurementValueCalculator.equilibriumVaporPressure(t),
+                    PsychrometricTables.equilibriumVaporPressure(t));
+        }
+        assertTrue(Double.isNaN(PsychrometricTables.equilibriumVaporPressure(Double.NaN)));
+        assertEquals(Double.NEGATIVE_INFINITY, PsychrometricTables.log(0));
+        assertEquals(Math.log(Double.MIN_VALUE), PsychrometricTables.log(Double.MIN_VALUE));
+    }
+
+    private static void assertWithinMaximumError(final double t, final double rh) {
+        final double p = 100650;
+        final double exact = MeasurementValueCalculator.equilibriumVaporPressure(t);
+        final double approximate = PsychrometricTables.equilibriumVaporPressure(t);
+        assertRelativeError(exact, approximate, t, rh);
+        assertRelativeError(
+                MeasurementValueCalculator.absoluteHumidity(t, rh, exact),
+                MeasurementValueCalculator.absoluteHumidity(t, rh, approximate),
+                t,
+                rh);
+        assertRelativeError(
+                MeasurementValueCalculator.airDensity(t, rh, p, exact),
+                MeasurementValueCalculator.airDensity(t, rh, p, approximate),
+                t,
+                rh);
+        final double dewPointError =
+                Math.abs(
+                        MeasurementValueCalculator.dewPointFromVaporPressure(exact, rh)
+                                - PsychrometricTables.dewPointFromVaporPressure(approximate, rh));
+        assertTrue(
+                dewPointError <= PsychrometricTables.MAX_DEW_POINT_ERROR,
+                () -> "Dew point error " + dewPointError + " at " + t + " Celsius, " + rh + " %");
+    }
+
+    private static void assertRelativeError(
+            final double exact, final double approximate, final double t, final double rh) {
+        final double error = Math.abs(approximate - exact) / Math.abs(exact);
+        assertTrue(
+                error <= PsychrometricTables.MAX_RELATIVE_ERROR,
+                () -> "Relative error " + error + " at " + t + " Celsius, " + rh + " %");
+    }
+}